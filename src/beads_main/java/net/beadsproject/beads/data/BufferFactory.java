@@ -51,4 +51,20 @@ public abstract class BufferFactory {
     	return Buffer.staticBufs.get(name);
 	}
 
+	/**
+	 * Gets a band-limited {@link Wavetable} made from the default Buffer, for oscillators that play high notes
+	 * without aliasing. The Wavetable is generated the first time it is asked for and shared after that.
+	 *
+	 * @return the default Wavetable.
+	 */
+	public final Wavetable getWavetable() {
+		String name = getName();
+		synchronized (Wavetable.staticTables) {
+			if(!Wavetable.staticTables.containsKey(name)) {
+				Wavetable.staticTables.put(name, new Wavetable(getDefault()));
+			}
+			return Wavetable.staticTables.get(name);
+		}
+	}
+
 }
@@ -0,0 +1,193 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Arrays;
+
+/**
+ * A {@link SampleStorage} that keeps each channel as a list of fixed-size blocks. Growing
+ * the storage only allocates new blocks, the existing data is never copied, so a
+ * {@link net.beadsproject.beads.ugens.RecordToSample} in INFINITE mode can append
+ * to it for as long as memory allows without causing large copies on the audio thread.
+ * Shrinking simply drops blocks.
+ * <p>
+ * The block size is a power of two so that frames are located with a shift and a mask. Reading
+ * is a little slower than {@link FloatSampleStorage} because of the extra indirection.
+ *
+ * @author Beads Team
+ */
+public class ChunkedSampleStorage extends SampleStorage {
+
+	/** Default block size in frames. */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+	private final int nChannels;
+	private final int shift;
+	private final int blockSize;
+	private final int mask;
+
+	/** The blocks, blocks[channel][block][frame within block]. */
+	private float[][][] blocks;
+
+	/** The number of blocks in use per channel. */
+	private int numBlocks;
+
+	/** The length of the per-channel block arrays. */
+	private int capacity;
+
+	private long nFrames;
+
+	/**
+	 * Creates a new zeroed ChunkedSampleStorage with the default block size.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 */
+	public ChunkedSampleStorage(int nChannels, long nFrames) {
+		this(nChannels, nFrames, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Creates a new zeroed ChunkedSampleStorage.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 * @param blockSize the block size in frames, rounded up to a power of two.
+	 */
+	public ChunkedSampleStorage(int nChannels, long nFrames, int blockSize) {
+		this.nChannels = nChannels;
+		int s = 0;
+		while ((1 << s) < blockSize && s < 30) s++;
+		this.shift = s;
+		this.blockSize = 1 << s;
+		this.mask = this.blockSize - 1;
+		capacity = 4;
+		blocks = new float[nChannels][capacity][];
+		numBlocks = 0;
+		this.nFrames = 0;
+		resize(nFrames);
+	}
+
+	/**
+	 * Creates a ChunkedSampleStorage containing a copy of the data in another storage.
+	 *
+	 * @param source the storage to copy.
+	 */
+	public ChunkedSampleStorage(SampleStorage source) {
+		this(source.getNumChannels(), source.getNumFrames());
+		for (int c = 0; c < nChannels; c++) {
+			for (int b = 0; b < numBlocks; b++) {
+				int start = b << shift;
+				int length = (int) Math.min(blockSize, nFrames - start);
+				source.get(c, start, blocks[c][b], 0, length);
+			}
+		}
+	}
+
+	@Override
+	public int getNumChannels() {
+		return nChannels;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return nFrames;
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return (long) nChannels * numBlocks * blockSize * 4;
+	}
+
+	/**
+	 * Gets the block size in frames.
+	 *
+	 * @return the block size.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		return blocks[channel][frame >>> shift][frame & mask];
+	}
+
+	@Override
+	public void put(int channel, int frame, float value) {
+		blocks[channel][frame >>> shift][frame & mask] = value;
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		float[][] channelBlocks = blocks[channel];
+		while (length > 0) {
+			int pos = frame & mask;
+			int n = Math.min(length, blockSize - pos);
+			System.arraycopy(channelBlocks[frame >>> shift], pos, dest, offset, n);
+			frame += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	public void put(int channel, int frame, float[] src, int offset, int length) {
+		float[][] channelBlocks = blocks[channel];
+		while (length > 0) {
+			int pos = frame & mask;
+			int n = Math.min(length, blockSize - pos);
+			System.arraycopy(src, offset, channelBlocks[frame >>> shift], pos, n);
+			frame += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Changes the number of frames. Growing allocates new blocks without copying
+	 * existing data. Shrinking releases unused blocks and zeroes the unused end of the
+	 * last block, so that growing again yields zeros.
+	 */
+	@Override
+	public void resize(long frames) {
+		int needed = (int) ((frames + mask) >>> shift);
+		if (needed > numBlocks) {
+			if (needed > capacity) {
+				capacity = Math.max(needed, capacity * 2);
+				for (int c = 0; c < nChannels; c++) {
+					blocks[c] = Arrays.copyOf(blocks[c], capacity);
+				}
+			}
+			for (int c = 0; c < nChannels; c++) {
+				for (int b = numBlocks; b < needed; b++) {
+					blocks[c][b] = new float[blockSize];
+				}
+			}
+		} else if (frames < nFrames) {
+			long lastBlockStart = (long) (needed - 1) << shift;
+			for (int c = 0; c < nChannels; c++) {
+				for (int b = needed; b < numBlocks; b++) {
+					blocks[c][b] = null;
+				}
+				if (needed > 0) {
+					int from = (int) (frames - lastBlockStart);
+					int to = (int) Math.min(nFrames - lastBlockStart, blockSize);
+					Arrays.fill(blocks[c][needed - 1], from, to, 0f);
+				}
+			}
+		}
+		numBlocks = needed;
+		nFrames = frames;
+	}
+
+	@Override
+	public void clear() {
+		for (int c = 0; c < nChannels; c++) {
+			for (int b = 0; b < numBlocks; b++) {
+				Arrays.fill(blocks[c][b], 0f);
+			}
+		}
+	}
+}
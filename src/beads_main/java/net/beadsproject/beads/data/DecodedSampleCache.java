@@ -0,0 +1,286 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * DecodedSampleCache keeps decoded copies of compressed audio files, such as mp3s, on disk so
+ * that they don't have to be decoded again the next time they are loaded. {@link Sample} uses it
+ * automatically when loading any file that isn't a wav file (wav files are already fast to read).
+ * The first load decodes the file as usual and writes the decoded audio to the cache; later loads
+ * memory-map the cached copy, which is nearly instant.
+ * <p>
+ * Cached copies are kept in a cache directory (by default "beads-decoded-cache" in the system's
+ * temporary directory), or optionally next to the source files. Each is identified by the source
+ * file's path, size and modification time, so a changed source file is decoded again, and the copy
+ * made from the old version is deleted when the new one is written. Cached copies
+ * hold a short header followed by each channel in turn as little-endian floats, see
+ * {@link DirectSampleStorage#map(File, long, int, long, boolean)}.
+ *
+ * @author Beads Team
+ */
+public class DecodedSampleCache {
+
+	/** Identifies a cached copy, "BDSC". */
+	private static final int MAGIC = 0x43534442;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".bdsc";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static boolean enabled = true;
+	private static boolean nextToSource = false;
+	private static File directory = new File(System.getProperty("java.io.tmpdir"), "beads-decoded-cache");
+
+	/**
+	 * A decoded copy read from the cache.
+	 */
+	static class Entry {
+		final DirectSampleStorage storage;
+		final float sampleRate;
+		final int bitDepth;
+
+		Entry(DirectSampleStorage storage, float sampleRate, int bitDepth) {
+			this.storage = storage;
+			this.sampleRate = sampleRate;
+			this.bitDepth = bitDepth;
+		}
+	}
+
+	private DecodedSampleCache() {
+	}
+
+	/**
+	 * Determines whether the cache is used when loading Samples.
+	 *
+	 * @return true if enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets whether the cache is used when loading Samples. Enabled by default.
+	 *
+	 * @param enabled true to enable.
+	 */
+	public static void setEnabled(boolean enabled) {
+		DecodedSampleCache.enabled = enabled;
+	}
+
+	/**
+	 * Gets the directory in which cached copies are kept.
+	 *
+	 * @return the cache directory.
+	 */
+	public static File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the directory in which cached copies are kept. It is created if necessary.
+	 *
+	 * @param directory the cache directory.
+	 */
+	public static void setDirectory(File directory) {
+		DecodedSampleCache.directory = directory;
+	}
+
+	/**
+	 * Determines whether cached copies are kept next to the source files rather than in the cache directory.
+	 *
+	 * @return true if kept next to the source files.
+	 */
+	public static boolean isNextToSource() {
+		return nextToSource;
+	}
+
+	/**
+	 * Sets whether cached copies are kept next to the source files, with the extension ".bdsc" added,
+	 * rather than in the cache directory. Off by default.
+	 *
+	 * @param nextToSource true to keep copies next to the source files.
+	 */
+	public static void setNextToSource(boolean nextToSource) {
+		DecodedSampleCache.nextToSource = nextToSource;
+	}
+
+	/**
+	 * Deletes all of the cached copies in the cache directory.
+	 */
+	public static void clear() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.getName().endsWith(SUFFIX)) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Gets the file used to cache the given source file.
+	 */
+	private static File cacheFileFor(File source) {
+		if (nextToSource) {
+			return new File(source.getPath() + SUFFIX);
+		}
+		return new File(directory, cachePrefixFor(source) + Long.toHexString(source.length()) + "-" + Long.toHexString(source.lastModified()) + SUFFIX);
+	}
+
+	/**
+	 * Gets the start of the name of every file in the cache directory that could have been used to cache
+	 * the given source file, whatever its size and modification time.
+	 */
+	private static String cachePrefixFor(File source) {
+		return source.getName() + "." + Integer.toHexString(source.getAbsolutePath().hashCode()) + "-";
+	}
+
+	/**
+	 * Deletes copies of the given source file made from earlier versions of it.
+	 */
+	private static void deleteStale(File source, File cacheFile) {
+		if (nextToSource) return;
+		String prefix = cachePrefixFor(source);
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith(prefix) && name.endsWith(SUFFIX) && !name.equals(cacheFile.getName())) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Looks for a cached copy of the given file.
+	 *
+	 * @param filename the source file.
+	 * @return the cached copy, or null if there is none or it is out of date.
+	 */
+	static Entry read(String filename) {
+		File source = new File(filename);
+		if (!source.isFile()) return null;
+		File cacheFile = cacheFileFor(source);
+		if (!cacheFile.isFile()) return null;
+		RandomAccessFile raf = null;
+		try {
+			// private mappings need a channel opened for writing, even though nothing is written
+			boolean writable = cacheFile.canWrite();
+			raf = new RandomAccessFile(cacheFile, writable ? "rw" : "r");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(48).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) return null;
+			int nChannels = header.getInt(8);
+			float sampleRate = header.getFloat(12);
+			int bitDepth = header.getInt(16);
+			long nFrames = header.getLong(20);
+			long sourceLength = header.getLong(28);
+			long sourceModified = header.getLong(36);
+			int pathLength = header.getInt(44);
+			if (sourceLength != source.length() || sourceModified != source.lastModified()) return null;
+			ByteBuffer path = ByteBuffer.allocate(pathLength);
+			readFully(channel, path, 48);
+			if (!new String(path.array(), UTF8).equals(source.getAbsolutePath())) return null;
+			long dataOffset = dataOffset(pathLength);
+			if (channel.size() < dataOffset + (long) nChannels * nFrames * 4) return null;
+			// a private mapping, so the Sample can still be written to without changing the cached copy
+			DirectSampleStorage storage = DirectSampleStorage.map(channel, dataOffset, nChannels, nFrames, writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY);
+			return new Entry(storage, sampleRate, bitDepth);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a cached copy of a decoded file. Failures are ignored, the file will just be decoded again next time.
+	 *
+	 * @param filename the source file.
+	 * @param data the decoded data.
+	 * @param sampleRate the sample rate.
+	 * @param bitDepth the bit depth of the source.
+	 */
+	static void write(String filename, float[][] data, float sampleRate, int bitDepth) {
+		File source = new File(filename);
+		if (!source.isFile()) return;
+		File cacheFile = cacheFileFor(source);
+		File parent = cacheFile.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) return;
+		File temp = new File(parent, cacheFile.getName() + ".tmp" + Thread.currentThread().getId());
+		try {
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				int nChannels = data.length;
+				int nFrames = nChannels == 0 ? 0 : data[0].length;
+				byte[] path = source.getAbsolutePath().getBytes(UTF8);
+				long dataOffset = dataOffset(path.length);
+				ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(nChannels).putFloat(sampleRate).putInt(bitDepth);
+				header.putLong(nFrames).putLong(source.length()).putLong(source.lastModified()).putInt(path.length);
+				header.put(path);
+				header.clear();
+				writeFully(channel, header, 0);
+				ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+				long position = dataOffset;
+				for (int c = 0; c < nChannels; c++) {
+					for (int i = 0; i < nFrames; ) {
+						buffer.clear();
+						while (buffer.hasRemaining() && i < nFrames) {
+							buffer.putFloat(data[c][i++]);
+						}
+						buffer.flip();
+						position += writeFully(channel, buffer, position);
+					}
+				}
+			} finally {
+				raf.close();
+			}
+			try {
+				Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			deleteStale(source, cacheFile);
+		} catch (IOException e) {
+			temp.delete();
+		}
+	}
+
+	/** The data starts after the header and path, aligned to 16 bytes. */
+	private static long dataOffset(int pathLength) {
+		return (48 + pathLength + 15) & ~15L;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) throw new IOException("Unexpected end of cached file");
+		}
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		int written = 0;
+		while (b.hasRemaining()) {
+			written += channel.write(b, position + written);
+		}
+		return written;
+	}
+}
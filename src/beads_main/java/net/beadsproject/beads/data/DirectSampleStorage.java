@@ -0,0 +1,302 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SampleStorage} that keeps 32-bit float data outside the Java heap, either in direct
+ * buffers or in a memory-mapped file, so that very large sample libraries don't add to garbage
+ * collection time and aren't limited by the size of the heap. All of the players, such as
+ * {@link net.beadsproject.beads.ugens.SamplePlayer} and
+ * {@link net.beadsproject.beads.ugens.GranularSamplePlayer}, read from it directly.
+ * <p>
+ * Use {@link Sample.StorageFormat#DIRECT} to load audio files into direct buffers, or
+ * {@link #map(File, long, int, long, boolean)} to use data already in a file. Mapped files hold
+ * each channel in turn as little-endian floats (planar layout), so the operating system pages the
+ * data in as needed and shares it between processes. Direct memory is freed when the storage is
+ * garbage collected; note that the amount of direct memory the JVM allows may need raising with
+ * -XX:MaxDirectMemorySize.
+ *
+ * @author Beads Team
+ */
+public class DirectSampleStorage extends SampleStorage {
+
+	/** Frames per buffer, as a power of two. Buffers are limited to 2GB, so large channels are split. */
+	private static final int SEGMENT_SHIFT = 28;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/** The data, segments[channel][segment]. */
+	private FloatBuffer[][] segments;
+
+	/** Each thread's own views of the segments, which bulk reads and writes position, so that they don't allocate. */
+	private final ThreadLocal<Views> views = new ThreadLocal<Views>();
+
+	/**
+	 * Duplicates of the segments for one thread, made again if the storage is resized.
+	 */
+	private static class Views {
+		final FloatBuffer[][] of;
+		final FloatBuffer[][] views;
+
+		Views(FloatBuffer[][] segments) {
+			of = segments;
+			views = new FloatBuffer[segments.length][];
+			for (int c = 0; c < segments.length; c++) {
+				views[c] = new FloatBuffer[segments[c].length];
+				for (int s = 0; s < segments[c].length; s++) {
+					views[c][s] = segments[c][s].duplicate();
+				}
+			}
+		}
+	}
+
+	private final int nChannels;
+	private long nFrames;
+	private boolean mapped;
+
+	/**
+	 * Creates a new zeroed DirectSampleStorage in direct buffers.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 */
+	public DirectSampleStorage(int nChannels, long nFrames) {
+		this.nChannels = nChannels;
+		this.nFrames = nFrames;
+		this.mapped = false;
+		segments = allocate(nChannels, nFrames);
+	}
+
+	/**
+	 * Creates a DirectSampleStorage in direct buffers holding a copy of the given data.
+	 *
+	 * @param source the data in the form float[channel][frame].
+	 */
+	public DirectSampleStorage(float[][] source) {
+		this(source.length, source.length == 0 ? 0 : source[0].length);
+		for (int c = 0; c < nChannels; c++) {
+			put(c, 0, source[c], 0, source[c].length);
+		}
+	}
+
+	private DirectSampleStorage(FloatBuffer[][] segments, int nChannels, long nFrames) {
+		this.segments = segments;
+		this.nChannels = nChannels;
+		this.nFrames = nFrames;
+		this.mapped = true;
+	}
+
+	private static FloatBuffer[][] allocate(int nChannels, long nFrames) {
+		int numSegments = (int) ((nFrames + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		FloatBuffer[][] segments = new FloatBuffer[nChannels][numSegments];
+		for (int c = 0; c < nChannels; c++) {
+			for (int s = 0; s < numSegments; s++) {
+				int length = (int) Math.min(SEGMENT_SIZE, nFrames - ((long) s << SEGMENT_SHIFT));
+				segments[c][s] = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Maps float data held in a file. The file holds each channel in turn, starting at the given position,
+	 * as little-endian 32-bit floats. If writable, the file is created or extended as necessary and changes
+	 * to the storage are written back to the file; otherwise the storage is read-only and writing to it throws
+	 * a {@link java.nio.ReadOnlyBufferException}. The file does not need to stay open.
+	 *
+	 * @param file the file.
+	 * @param position the position in the file of the first value.
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 * @param writable true to map the file for writing.
+	 * @return the storage.
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	public static DirectSampleStorage map(File file, long position, int nChannels, long nFrames, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			long end = position + (long) nChannels * nFrames * 4;
+			if (raf.length() < end) {
+				if (!writable) throw new IOException("File " + file + " is too short for " + nChannels + " channels of " + nFrames + " frames");
+				raf.setLength(end);
+			}
+			return map(raf.getChannel(), position, nChannels, nFrames, writable);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Like {@link #map(File, long, int, long, boolean)}, but maps from an open FileChannel, which must
+	 * be long enough to hold the data and must have been opened for writing if writable is true.
+	 *
+	 * @param channel the channel.
+	 * @param position the position in the file of the first value.
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 * @param writable true to map the file for writing.
+	 * @return the storage.
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	public static DirectSampleStorage map(FileChannel channel, long position, int nChannels, long nFrames, boolean writable) throws IOException {
+		return map(channel, position, nChannels, nFrames, writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+	}
+
+	/**
+	 * Maps float data from an open FileChannel with the given mode. {@link FileChannel.MapMode#PRIVATE}
+	 * gives a storage that can be written to without changing the file.
+	 */
+	static DirectSampleStorage map(FileChannel channel, long position, int nChannels, long nFrames, FileChannel.MapMode mode) throws IOException {
+		int numSegments = (int) ((nFrames + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		FloatBuffer[][] segments = new FloatBuffer[nChannels][numSegments];
+		for (int c = 0; c < nChannels; c++) {
+			long channelStart = position + (long) c * nFrames * 4;
+			for (int s = 0; s < numSegments; s++) {
+				long first = (long) s << SEGMENT_SHIFT;
+				int length = (int) Math.min(SEGMENT_SIZE, nFrames - first);
+				segments[c][s] = channel.map(mode, channelStart + first * 4, (long) length * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+		}
+		return new DirectSampleStorage(segments, nChannels, nFrames);
+	}
+
+	/**
+	 * Creates a storage that views planar little-endian float data in a region of a larger mapped buffer,
+	 * without copying. The region must start at the buffer's position and hold less than 2GB.
+	 */
+	static DirectSampleStorage view(ByteBuffer region, int nChannels, long nFrames) {
+		int numSegments = (int) ((nFrames + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		FloatBuffer[][] segments = new FloatBuffer[nChannels][numSegments];
+		for (int c = 0; c < nChannels; c++) {
+			int channelStart = region.position() + (int) (c * nFrames * 4);
+			for (int s = 0; s < numSegments; s++) {
+				long first = (long) s << SEGMENT_SHIFT;
+				int length = (int) Math.min(SEGMENT_SIZE, nFrames - first);
+				ByteBuffer b = region.duplicate();
+				b.position(channelStart + (int) (first * 4));
+				b.limit(b.position() + length * 4);
+				segments[c][s] = b.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+		}
+		return new DirectSampleStorage(segments, nChannels, nFrames);
+	}
+
+	/**
+	 * Determines whether the data is in a memory-mapped file.
+	 *
+	 * @return true if mapped.
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	@Override
+	public int getNumChannels() {
+		return nChannels;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return nFrames;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		return segments[channel][frame >>> SEGMENT_SHIFT].get(frame & SEGMENT_MASK);
+	}
+
+	@Override
+	public void put(int channel, int frame, float value) {
+		segments[channel][frame >>> SEGMENT_SHIFT].put(frame & SEGMENT_MASK, value);
+	}
+
+	/**
+	 * Gets the calling thread's views of the segments. These are only made the first time a thread
+	 * reads or writes in bulk and after resizing, so the audio thread doesn't allocate every buffer.
+	 */
+	private FloatBuffer[][] views() {
+		FloatBuffer[][] s = segments;
+		Views v = views.get();
+		if (v == null || v.of != s) {
+			v = new Views(s);
+			views.set(v);
+		}
+		return v.views;
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		FloatBuffer[] s = views()[channel];
+		while (length > 0) {
+			FloatBuffer segment = s[frame >>> SEGMENT_SHIFT];
+			int pos = frame & SEGMENT_MASK;
+			int n = Math.min(length, segment.capacity() - pos);
+			segment.position(pos);
+			segment.get(dest, offset, n);
+			frame += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	public void put(int channel, int frame, float[] src, int offset, int length) {
+		FloatBuffer[] s = views()[channel];
+		while (length > 0) {
+			FloatBuffer segment = s[frame >>> SEGMENT_SHIFT];
+			int pos = frame & SEGMENT_MASK;
+			int n = Math.min(length, segment.capacity() - pos);
+			segment.position(pos);
+			segment.put(src, offset, n);
+			frame += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Copies the data into new direct buffers of the new length. A mapped storage is no longer
+	 * mapped after resizing.
+	 */
+	@Override
+	public void resize(long frames) {
+		FloatBuffer[][] old = segments;
+		long framesToCopy = Math.min(frames, nFrames);
+		segments = allocate(nChannels, frames);
+		for (int c = 0; c < nChannels; c++) {
+			for (int s = 0; ((long) s << SEGMENT_SHIFT) < framesToCopy; s++) {
+				FloatBuffer from = old[c][s].duplicate();
+				from.clear();
+				from.limit((int) Math.min(from.capacity(), framesToCopy - ((long) s << SEGMENT_SHIFT)));
+				FloatBuffer to = segments[c][s].duplicate();
+				to.clear();
+				to.put(from);
+			}
+		}
+		nFrames = frames;
+		mapped = false;
+	}
+
+	@Override
+	public void clear() {
+		float[] zeros = new float[4096];
+		for (int c = 0; c < nChannels; c++) {
+			for (int s = 0; s < segments[c].length; s++) {
+				FloatBuffer segment = segments[c][s].duplicate();
+				segment.clear();
+				while (segment.hasRemaining()) {
+					segment.put(zeros, 0, Math.min(zeros.length, segment.remaining()));
+				}
+			}
+		}
+	}
+}
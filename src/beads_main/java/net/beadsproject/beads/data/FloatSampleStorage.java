@@ -0,0 +1,97 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Arrays;
+
+/**
+ * The default {@link SampleStorage}, which keeps one float[] per channel. This is the
+ * fastest storage to read from, but it uses 4 bytes per value and has to copy all
+ * of the data in order to {@link #resize(long)}.
+ *
+ * @author Beads Team
+ */
+public class FloatSampleStorage extends SampleStorage {
+
+	/** 
+	 * The data, data[0] first channel, data[1] second channel, etc. Replaced whole by {@link #resize(long)}
+	 * so that other threads reading it, such as the {@link WaveformSummary}, never see a half copied array.
+	 */
+	private volatile float[][] data;
+
+	/**
+	 * Creates a new zeroed FloatSampleStorage.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 */
+	public FloatSampleStorage(int nChannels, long nFrames) {
+		this(new float[nChannels][(int) nFrames]);
+	}
+
+	/**
+	 * Creates a FloatSampleStorage that wraps the given data. The data is not copied.
+	 *
+	 * @param data the data in the form float[channel][frame].
+	 */
+	public FloatSampleStorage(float[][] data) {
+		this.data = data;
+	}
+
+	@Override
+	public int getNumChannels() {
+		return data.length;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return data.length == 0 ? 0 : data[0].length;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		return data[channel][frame];
+	}
+
+	@Override
+	public void put(int channel, int frame, float value) {
+		data[channel][frame] = value;
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		System.arraycopy(data[channel], frame, dest, offset, length);
+	}
+
+	@Override
+	public void put(int channel, int frame, float[] src, int offset, int length) {
+		System.arraycopy(src, offset, data[channel], frame, length);
+	}
+
+	@Override
+	public void resize(long frames) {
+		int framesToCopy = (int) Math.min(frames, getNumFrames());
+		float[][] olddata = data;
+		float[][] newdata = new float[olddata.length][(int) frames];
+		for (int i = 0; i < newdata.length; i++) {
+			System.arraycopy(olddata[i], 0, newdata[i], 0, framesToCopy);
+		}
+		data = newdata;
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < data.length; i++) {
+			Arrays.fill(data[i], 0f);
+		}
+	}
+
+	/**
+	 * Returns the underlying arrays without copying.
+	 */
+	@Override
+	public float[][] asFloatArrays() {
+		return data;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Arrays;
+
+/**
+ * A {@link SampleStorage} that keeps each value as a packed 24-bit integer, three bytes
+ * per value, using three quarters of the memory of {@link FloatSampleStorage}. Values are
+ * converted to and from floats as they are read and written, so 24-bit audio files are
+ * held exactly, while values outside the range -1 to 1 are clipped.
+ *
+ * @see Sample.StorageFormat#INT24
+ * @author Beads Team
+ */
+public class Int24SampleStorage extends SampleStorage {
+
+	private static final float SCALE = 8388608f;
+	private static final float INV_SCALE = 1f / 8388608f;
+
+	/** The data, three little-endian bytes per frame, data[0] first channel, data[1] second channel, etc. */
+	private byte[][] data;
+
+	/**
+	 * Creates a new zeroed Int24SampleStorage.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 */
+	public Int24SampleStorage(int nChannels, long nFrames) {
+		if (nFrames * 3 > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many frames for Int24SampleStorage: " + nFrames);
+		data = new byte[nChannels][(int) nFrames * 3];
+	}
+
+	/**
+	 * Creates an Int24SampleStorage holding a copy of the given data.
+	 *
+	 * @param source the data in the form float[channel][frame].
+	 */
+	public Int24SampleStorage(float[][] source) {
+		this(source.length, source.length == 0 ? 0 : source[0].length);
+		for (int c = 0; c < source.length; c++) {
+			put(c, 0, source[c], 0, source[c].length);
+		}
+	}
+
+	@Override
+	public int getNumChannels() {
+		return data.length;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return data.length == 0 ? 0 : data[0].length / 3;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		byte[] d = data[channel];
+		int p = frame * 3;
+		return ((d[p] & 0xFF) | ((d[p + 1] & 0xFF) << 8) | (d[p + 2] << 16)) * INV_SCALE;
+	}
+
+	@Override
+	public void put(int channel, int frame, float value) {
+		byte[] d = data[channel];
+		int p = frame * 3;
+		int v = Math.round(value * SCALE);
+		v = v > 8388607 ? 8388607 : (v < -8388608 ? -8388608 : v);
+		d[p] = (byte) v;
+		d[p + 1] = (byte) (v >> 8);
+		d[p + 2] = (byte) (v >> 16);
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		byte[] d = data[channel];
+		int p = frame * 3;
+		for (int i = 0; i < length; i++, p += 3) {
+			dest[offset + i] = ((d[p] & 0xFF) | ((d[p + 1] & 0xFF) << 8) | (d[p + 2] << 16)) * INV_SCALE;
+		}
+	}
+
+	@Override
+	public void resize(long frames) {
+		int bytesToCopy = (int) Math.min(frames, getNumFrames()) * 3;
+		byte[][] olddata = data;
+		data = new byte[olddata.length][(int) frames * 3];
+		for (int i = 0; i < data.length; i++) {
+			System.arraycopy(olddata[i], 0, data[i], 0, bytesToCopy);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < data.length; i++) {
+			Arrays.fill(data[i], (byte) 0);
+		}
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return (long) getNumChannels() * getNumFrames() * 3;
+	}
+}
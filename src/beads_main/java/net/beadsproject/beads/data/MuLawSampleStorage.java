@@ -0,0 +1,135 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Arrays;
+
+/**
+ * A {@link SampleStorage} that keeps each value as an 8-bit G.711 &micro;-law code, using a
+ * quarter of the memory of {@link FloatSampleStorage}. This is lossy (roughly 14-bit
+ * resolution near zero, less for loud values) so it suits large libraries of sounds
+ * where memory matters more than fidelity. Values outside the range -1 to 1 are clipped.
+ *
+ * @see Sample.StorageFormat#MULAW
+ * @author Beads Team
+ */
+public class MuLawSampleStorage extends SampleStorage {
+
+	private static final int BIAS = 0x84;
+	private static final int CLIP = 32635;
+
+	/** Decoded values of each code. */
+	private static final float[] DECODE = new float[256];
+
+	/** The code for zero. */
+	private static final byte ZERO;
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int u = ~i & 0xFF;
+			int exponent = (u >> 4) & 0x07;
+			int mantissa = u & 0x0F;
+			int sample = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+			DECODE[i] = ((u & 0x80) != 0 ? -sample : sample) / 32768f;
+		}
+		ZERO = encode(0f);
+	}
+
+	/** The data, data[0] first channel, data[1] second channel, etc. */
+	private byte[][] data;
+
+	/**
+	 * Creates a new zeroed MuLawSampleStorage.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 */
+	public MuLawSampleStorage(int nChannels, long nFrames) {
+		data = new byte[nChannels][(int) nFrames];
+		clear();
+	}
+
+	/**
+	 * Creates a MuLawSampleStorage holding a copy of the given data.
+	 *
+	 * @param source the data in the form float[channel][frame].
+	 */
+	public MuLawSampleStorage(float[][] source) {
+		data = new byte[source.length][source.length == 0 ? 0 : source[0].length];
+		for (int c = 0; c < source.length; c++) {
+			put(c, 0, source[c], 0, source[c].length);
+		}
+	}
+
+	private static byte encode(float value) {
+		int pcm = Math.round(value * 32768f);
+		int sign = 0;
+		if (pcm < 0) {
+			sign = 0x80;
+			pcm = -pcm;
+		}
+		if (pcm > CLIP) pcm = CLIP;
+		pcm += BIAS;
+		int exponent = 7;
+		for (int mask = 0x4000; (pcm & mask) == 0 && exponent > 0; mask >>= 1) {
+			exponent--;
+		}
+		int mantissa = (pcm >> (exponent + 3)) & 0x0F;
+		return (byte) ~(sign | (exponent << 4) | mantissa);
+	}
+
+	@Override
+	public int getNumChannels() {
+		return data.length;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return data.length == 0 ? 0 : data[0].length;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		return DECODE[data[channel][frame] & 0xFF];
+	}
+
+	@Override
+	public void put(int channel, int frame, float value) {
+		data[channel][frame] = encode(value);
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		byte[] d = data[channel];
+		for (int i = 0; i < length; i++) {
+			dest[offset + i] = DECODE[d[frame + i] & 0xFF];
+		}
+	}
+
+	@Override
+	public void resize(long frames) {
+		int oldFrames = (int) getNumFrames();
+		int framesToCopy = (int) Math.min(frames, oldFrames);
+		byte[][] olddata = data;
+		data = new byte[olddata.length][(int) frames];
+		for (int i = 0; i < data.length; i++) {
+			System.arraycopy(olddata[i], 0, data[i], 0, framesToCopy);
+			if (frames > oldFrames) {
+				Arrays.fill(data[i], oldFrames, (int) frames, ZERO);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < data.length; i++) {
+			Arrays.fill(data[i], ZERO);
+		}
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return (long) getNumChannels() * getNumFrames();
+	}
+}
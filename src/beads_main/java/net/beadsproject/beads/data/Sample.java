@@ -5,14 +5,22 @@ package net.beadsproject.beads.data;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import net.beadsproject.beads.data.audiofile.AudioFileReader;
+import net.beadsproject.beads.data.audiofile.AudioFileStreamWriter;
 import net.beadsproject.beads.data.audiofile.AudioFileType;
 import net.beadsproject.beads.data.audiofile.AudioFileWriter;
 import net.beadsproject.beads.data.audiofile.FileFormatException;
 import net.beadsproject.beads.data.audiofile.OperationUnsupportedException;
+import net.beadsproject.beads.data.audiofile.WavFileStreamWriter;
 
 /**
  * A Sample encapsulates audio data, either loaded from an audio file (such as
@@ -31,9 +39,47 @@ import net.beadsproject.beads.data.audiofile.OperationUnsupportedException;
  * {@link net.beadsproject.beads.ugens.SamplePlayer}. Sample data can also be
  * accessed through the methods: {@link #getFrame(int, float[]) getFrame},
  * {@link #getFrameLinear(double, float[]) getFrameLinear}, and
- * {@link #getFrames(int, float[][]) getFrames}. Sample data can be written
+ * {@link #getFrames(int, float[][]) getFrames}, or a block at a time with
+ * {@link #getFramesCubic(double[], float[][], int) getFramesCubic} and
+ * friends, which is much faster. Sample data can be written
  * with: {@link #putFrame(int, float[]) putFrame} or
  * {@link #putFrames(int, float[][]) putFrames}.
+ * 
+ * <p>
+ * The audio data is held in a {@link SampleStorage}. By default this is a
+ * {@link FloatSampleStorage}, but the storage can be replaced using
+ * {@link #setStorage(SampleStorage)}, for example with a
+ * {@link ChunkedSampleStorage} for samples that need to grow cheaply.
+ * Samples loaded from files can be held in a more compact {@link StorageFormat},
+ * either per Sample using {@link #Sample(String, StorageFormat)} or for all Samples
+ * using {@link #setDefaultStorageFormat(StorageFormat)}. Compact formats are decoded
+ * on the fly whenever the data is read.
+ * 
+ * <p>
+ * Samples whose sample rate differs from that of the audio context are played
+ * with interpolation. To avoid this they can be converted to the context's rate
+ * with high quality, once, either explicitly with {@link #resample(float)}, or
+ * as they are loaded, using {@link #setDefaultLoadSampleRate(float)}.
+ * 
+ * <p>
+ * Samples that are played much faster than their original rate can be
+ * mipmapped (see {@link #setMipmapped(boolean)}). A mipmapped Sample keeps a
+ * pyramid of band-limited copies, each at half the sample rate of the last, and
+ * players read from the copy that suits the playback rate (see
+ * {@link #getMipmap(double)}), which avoids aliasing and reads through less
+ * memory. The pyramid uses about as much memory again as the Sample.
+ * 
+ * <p>
+ * For drawing overviews and finding peaks, {@link #getWaveformSummary()} gives
+ * the minimum, maximum and RMS level at any zoom level without scanning the data.
+ * 
+ * <p>
+ * Samples loaded from files by {@link SampleManager} may have their data evicted
+ * by the {@link SampleCache} when memory is tight. Reading from an evicted Sample
+ * never blocks: it reads as silence while its data is reloaded from the file on
+ * one of SampleManager's loading threads. Players pin the Sample with
+ * {@link #addPlayer()}, which also starts the reload, so that it isn't evicted
+ * while in use.
  *
  * @see SampleManager
  * @see net.beadsproject.beads.ugens.RecordToSample
@@ -42,13 +88,48 @@ import net.beadsproject.beads.data.audiofile.OperationUnsupportedException;
 @SuppressWarnings("unchecked")
 public class Sample {
 
+	/**
+	 * The formats in which Samples loaded from files can be held in memory.
+	 */
+	public static enum StorageFormat {
+		/** 
+		 * 32-bit floats, see {@link FloatSampleStorage}. The fastest to read. Files found in the
+		 * {@link DecodedSampleCache} are mapped as a {@link DirectSampleStorage} instead.
+		 */
+		FLOAT,
+		/** 16-bit integers, see {@link ShortSampleStorage}. Half the memory of FLOAT. */
+		SHORT,
+		/** Packed 24-bit integers, see {@link Int24SampleStorage}. Three quarters of the memory of FLOAT. */
+		INT24,
+		/** 8-bit &micro;-law, see {@link MuLawSampleStorage}. A quarter of the memory of FLOAT, but lossy. */
+		MULAW,
+		/** 32-bit floats held outside the Java heap, see {@link DirectSampleStorage}. */
+		DIRECT,
+		/** Chooses SHORT, INT24 or FLOAT to match the bit depth of the file, so that no precision is lost. */
+		AUTO
+	}
+
 	private float sampleRate;
 	private int nChannels;
 	private long nFrames;
 	private String simpleName;
 	private String filename = null;
-	private float[][] theSampleData; // theSampleData[0] first channel, theSampleData[1] second channel, etc..
+	private volatile SampleStorage storage;   // holds the audio data, see FloatSampleStorage and ChunkedSampleStorage
 	private float[] current, next;   // used as temp buffers whilst calculating interpolation
+	private int[] blockIndices;      // used as temp buffers whilst reading blocks of frames
+	private float[] blockFractions, blockData, blockFrame;
+	private volatile boolean modified;		// true if the data may differ from the file, in which case it can't be evicted
+	private final AtomicInteger players = new AtomicInteger();	// number of players using this Sample
+	private final AtomicBoolean reloadScheduled = new AtomicBoolean();	// true while a reload is waiting on the loading threads
+	private final Runnable reloader = new Runnable() {
+		public void run() {
+			try {
+				reload();
+			} finally {
+				reloadScheduled.set(false);
+			}
+		}
+	};
 
 	// These are the classes that handle audio file IO
 	private Class<? extends AudioFileReader> audioFileReaderClass = null;
@@ -56,6 +137,56 @@ public class Sample {
 	private static Class<? extends AudioFileReader> defaultAudioFileReaderClass;
 	private static Class<? extends AudioFileWriter> defaultAudioFileWriterClass;
 	
+	// The format used to hold data loaded from files
+	private StorageFormat storageFormat;
+	private static StorageFormat defaultStorageFormat = StorageFormat.FLOAT;
+	
+	// The sample rate to convert data loaded from files to, or 0 to keep the file's rate
+	private float loadSampleRate;
+	private static float defaultLoadSampleRate = 0;
+	
+	// The mipmap pyramid, level 1 (half rate) first, or null if not built
+	private static final int MAX_MIPMAP_LEVELS = 8;
+	private static final int MIN_MIPMAP_FRAMES = 64;
+	private static final int MIPMAP_BLOCK = 8192;	// output frames worked out at a time when building the first level
+	private static final int MIPMAP_SETTLE_MS = 500;	// how long the data must stay unchanged before the pyramid is rebuilt
+	private volatile boolean mipmapped = defaultMipmapped;
+	private volatile Sample[] mipmaps;
+	private volatile int mipmapVersion;		// changes whenever the data changes, so stale pyramids are discarded
+	private volatile int mipmapScheduledVersion;	// the version when the build was last scheduled
+	private final AtomicBoolean mipmapBuildScheduled = new AtomicBoolean();
+	private final Runnable mipmapBuilder = new Runnable() {
+		public void run() {
+			// while the data keeps changing, for example while recording, wait for it to settle rather than rebuilding every buffer
+			int version = mipmapVersion;
+			if (version != mipmapScheduledVersion) {
+				mipmapScheduledVersion = version;
+				getBackgroundPool().schedule(this, MIPMAP_SETTLE_MS, TimeUnit.MILLISECONDS);
+				return;
+			}
+			// cleared before building, so that a change during the build schedules another one
+			mipmapBuildScheduled.set(false);
+			SampleStorage s = storage;
+			// an evicted Sample is built when it is reloaded
+			if (mipmapped && !(s instanceof EvictedStorage) && isOnHeap(s)) {
+				buildMipmaps(version, s);
+			}
+		}
+	};
+	private static boolean defaultMipmapped = false;
+	private static volatile ScheduledExecutorService backgroundPool;
+	
+	// The waveform summary, or null if it hasn't been asked for
+	private volatile WaveformSummary waveformSummary;
+	
+	// Interpolation used by block reads
+	private static final int INTERP_NONE = 0, INTERP_LINEAR = 1, INTERP_CUBIC = 2;
+	// Largest run of frames copied out of the storage for a block read
+	private static final int MAX_BLOCK_SPAN = 1 << 15;
+	private static final int INVALID_FRAME = Integer.MIN_VALUE;
+	// Frames per block when writing to a file
+	private static final int WRITE_BLOCK_FRAMES = 1 << 14;
+	
 	/*
 	 * Try to set the defaultAudioFileReaderClass to JavaSoundAudioFile if available, and if not, use WavFileReaderWriter which
 	 * should always be available in beads_main.
@@ -133,10 +264,24 @@ public class Sample {
 		current = new float[nChannels];
 		next = new float[nChannels];
 		nFrames = (long) msToSamples(length);
-		theSampleData = new float[nChannels][(int) nFrames];
+		storage = new FloatSampleStorage(nChannels, nFrames);
 		length = 1000f * nFrames / this.sampleRate;
 	}
 
+	/**
+	 * Instantiates a new writeable Sample that uses the given {@link SampleStorage}
+	 * for its audio data.
+	 * 
+	 * @param storage
+	 *            The storage holding the audio data.
+	 * @param sampleRate
+	 *            The sampleRate
+	 */
+	public Sample(SampleStorage storage, float sampleRate) {
+		this.sampleRate = sampleRate;
+		setStorage(storage);
+	}
+
 	/**
 	 * Create a sample from a file. This constructor immediately loads the
 	 * entire audio file into memory.
@@ -144,10 +289,359 @@ public class Sample {
 	 * @throws IOException
 	 */
 	public Sample(String filename) throws IOException, OperationUnsupportedException, FileFormatException {
+		this(filename, defaultStorageFormat);
+	}
+
+	/**
+	 * Create a sample from a file, specifying the format in which the data is
+	 * held in memory. This constructor immediately loads the entire audio file
+	 * into memory.
+	 *
+	 * @param filename
+	 *            the file.
+	 * @param storageFormat
+	 *            the format in which to hold the data.
+	 * @throws IOException
+	 */
+	public Sample(String filename, StorageFormat storageFormat) throws IOException, OperationUnsupportedException, FileFormatException {
+		this.storageFormat = storageFormat;
+		this.loadSampleRate = defaultLoadSampleRate;
 		loadAudioFile(filename);
 		this.filename = filename;
 	}
 
+	/**
+	 * Gets the format in which Samples loaded from files are held by default.
+	 * 
+	 * @return the default storage format.
+	 */
+	public static StorageFormat getDefaultStorageFormat() {
+		return defaultStorageFormat;
+	}
+
+	/**
+	 * Sets the format in which Samples loaded from files are held by default,
+	 * including those loaded by {@link SampleManager}. The default is
+	 * {@link StorageFormat#FLOAT}.
+	 * 
+	 * @param storageFormat
+	 *            the default storage format.
+	 */
+	public static void setDefaultStorageFormat(StorageFormat storageFormat) {
+		defaultStorageFormat = storageFormat;
+	}
+
+	/**
+	 * Gets the sample rate to which Samples loaded from files are converted by default.
+	 * 
+	 * @return the sample rate, or 0 if Samples keep the rate of the file.
+	 */
+	public static float getDefaultLoadSampleRate() {
+		return defaultLoadSampleRate;
+	}
+
+	/**
+	 * Sets the sample rate to which Samples loaded from files, including those loaded by
+	 * {@link SampleManager}, are converted using {@link SampleRateConverter}. Usually this 
+	 * is the sample rate of the audio context, for example:
+	 * <code>Sample.setDefaultLoadSampleRate(ac.getSampleRate());</code>
+	 * The default is 0, meaning Samples keep the sample rate of the file.
+	 * 
+	 * @param sampleRate
+	 *            the sample rate, or 0 to keep the rate of the file.
+	 */
+	public static void setDefaultLoadSampleRate(float sampleRate) {
+		defaultLoadSampleRate = sampleRate;
+	}
+
+	/**
+	 * Converts the Sample to a new sample rate using {@link SampleRateConverter}. The
+	 * data is kept in the same kind of storage if possible.
+	 * 
+	 * @param newSampleRate
+	 *            the new sample rate.
+	 */
+	public synchronized void resample(float newSampleRate) {
+		if (newSampleRate == sampleRate) return;
+		float[][] data = SampleRateConverter.resample(storage.asFloatArrays(), sampleRate, newSampleRate);
+		SampleStorage newStorage;
+		if (storage instanceof ShortSampleStorage) {
+			newStorage = new ShortSampleStorage(data);
+		} else if (storage instanceof Int24SampleStorage) {
+			newStorage = new Int24SampleStorage(data);
+		} else if (storage instanceof MuLawSampleStorage) {
+			newStorage = new MuLawSampleStorage(data);
+		} else if (storage instanceof DirectSampleStorage) {
+			newStorage = new DirectSampleStorage(data);
+		} else {
+			newStorage = new FloatSampleStorage(data);
+		}
+		sampleRate = newSampleRate;
+		setStorage(newStorage);
+	}
+
+	/**
+	 * Determines whether new Samples are mipmapped by default.
+	 * 
+	 * @return true if new Samples are mipmapped.
+	 */
+	public static boolean getDefaultMipmapped() {
+		return defaultMipmapped;
+	}
+
+	/**
+	 * Sets whether new Samples are mipmapped by default, see {@link #setMipmapped(boolean)}. 
+	 * The default is false.
+	 * 
+	 * @param mipmapped
+	 *            true to mipmap new Samples.
+	 */
+	public static void setDefaultMipmapped(boolean mipmapped) {
+		defaultMipmapped = mipmapped;
+	}
+
+	/**
+	 * Determines whether this Sample is mipmapped.
+	 * 
+	 * @return true if mipmapped.
+	 */
+	public boolean isMipmapped() {
+		return mipmapped;
+	}
+
+	/**
+	 * Sets whether this Sample is mipmapped. The pyramid of half-rate copies is built 
+	 * in the background straight away, or on the calling thread with {@link #buildMipmaps()},
+	 * and is rebuilt in the background once the data has stopped changing, or when it is reloaded. 
+	 * Turning mipmapping off frees the pyramid.
+	 * <p>
+	 * The pyramid is held on the Java heap, so it isn't built for Samples held in a {@link DirectSampleStorage}
+	 * or a {@link StreamingSampleStorage}, which play without it.
+	 * 
+	 * @param mipmapped
+	 *            true to mipmap this Sample.
+	 */
+	public void setMipmapped(boolean mipmapped) {
+		this.mipmapped = mipmapped;
+		if (mipmapped) {
+			buildMipmapsLater();
+		} else {
+			mipmaps = null;
+		}
+	}
+
+	/**
+	 * Gets the copy of this Sample best suited to playing at the given rate. For mipmapped 
+	 * Samples played at twice their original rate or more this is a band-limited copy at a 
+	 * lower sample rate, such that the copy is played at a rate between 1 and 2. Since positions
+	 * are given in milliseconds the copy can be read with the same positions as this Sample. 
+	 * Otherwise, or if the pyramid isn't ready yet, this Sample is returned. This never blocks
+	 * or allocates, so players can call it from the audio thread.
+	 * 
+	 * @param rate
+	 *            the playback rate, in frames of this Sample per output frame. 
+	 * @return the Sample to read from.
+	 */
+	public Sample getMipmap(double rate) {
+		if (!mipmapped || !(rate >= 2 || rate <= -2)) return this;
+		Sample[] m = mipmaps;
+		if (m == null) {
+			return this;
+		}
+		rate = Math.abs(rate);
+		int level = 0;
+		while (rate >= 2 && level < m.length) {
+			rate *= 0.5;
+			level++;
+		}
+		return level == 0 ? this : m[level - 1];
+	}
+
+	/**
+	 * Gets the number of levels in the mipmap pyramid, not counting this Sample.
+	 * 
+	 * @return the number of levels, or 0 if the pyramid hasn't been built.
+	 */
+	public int getNumMipmapLevels() {
+		Sample[] m = mipmaps;
+		return m == null ? 0 : m.length;
+	}
+
+	/**
+	 * Builds the mipmap pyramid now, blocking until it is done, and reloading the data first
+	 * if it has been evicted. Each level is filtered and decimated from the last with
+	 * {@link SampleRateConverter}, until it would be shorter than a few frames. Nothing is
+	 * built for Samples held off the heap, see {@link #setMipmapped(boolean)}.
+	 */
+	public void buildMipmaps() {
+		int version = mipmapVersion;
+		SampleStorage s = storage instanceof EvictedStorage ? reload() : storage;
+		if (isOnHeap(s)) {
+			buildMipmaps(version, s);
+		}
+	}
+
+	/**
+	 * Determines whether a storage holds its data on the Java heap, where a pyramid about the size
+	 * of the data can be built from it without reading a whole streamed file.
+	 */
+	private static boolean isOnHeap(SampleStorage s) {
+		return !(s instanceof DirectSampleStorage || s instanceof StreamingSampleStorage);
+	}
+
+	private void buildMipmaps(int version, SampleStorage s) {
+		int levels = 0;
+		for (long frames = s.getNumFrames(); frames / 2 >= MIN_MIPMAP_FRAMES && levels < MAX_MIPMAP_LEVELS; frames /= 2) {
+			levels++;
+		}
+		Sample[] m = new Sample[levels];
+		float rate = sampleRate;
+		float[][] data = null;
+		for (int i = 0; i < levels; i++) {
+			// the first level is read from the storage a block at a time, rather than copying all of it
+			data = i == 0 ? halve(s) : SampleRateConverter.resample(data, 2, 1);
+			rate /= 2;
+			m[i] = new Sample(new FloatSampleStorage(data), rate);
+			m[i].mipmapped = false;
+		}
+		synchronized (this) {
+			if (version == mipmapVersion && mipmapped) {
+				mipmaps = m;
+			}
+		}
+	}
+
+	/**
+	 * Filters and decimates the data in a storage to half its sample rate, giving the same result as 
+	 * {@link SampleRateConverter#resample(float[][], float, float)} but reading the storage a block at a time.
+	 */
+	private static float[][] halve(SampleStorage s) {
+		SampleRateConverter converter = new SampleRateConverter(2, 1);
+		int nChannels = s.getNumChannels();
+		int inFrames = (int) s.getNumFrames();
+		int outFrames = converter.getOutputLength(inFrames);
+		// each block of output is worked out from a window of input with enough either side for the filter
+		int pad = converter.getFilterLength() + 1 & ~1;
+		float[] window = new float[2 * MIPMAP_BLOCK + 2 * pad];
+		float[] block = new float[pad / 2 + MIPMAP_BLOCK];
+		float[][] out = new float[nChannels][outFrames];
+		for (int c = 0; c < nChannels; c++) {
+			for (int start = 0; start < outFrames; start += MIPMAP_BLOCK) {
+				int length = Math.min(MIPMAP_BLOCK, outFrames - start);
+				long windowStart = 2L * start - pad;
+				int from = (int) Math.max(0, windowStart);
+				int to = (int) Math.min(inFrames, windowStart + window.length);
+				Arrays.fill(window, 0f);
+				s.get(c, from, window, (int) (from - windowStart), to - from);
+				converter.process(window, block, pad / 2, pad / 2 + length);
+				System.arraycopy(block, pad / 2, out[c], start, length);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Starts building the mipmap pyramid in the background, unless a build is already waiting.
+	 */
+	private void buildMipmapsLater() {
+		if (mipmapped && isOnHeap(storage) && mipmapBuildScheduled.compareAndSet(false, true)) {
+			mipmapScheduledVersion = mipmapVersion;
+			getBackgroundPool().execute(mipmapBuilder);
+		}
+	}
+
+	/**
+	 * Gets the thread on which mipmaps and waveform summaries are built. Only locks the first time,
+	 * as data changes on the audio thread schedule mipmap builds.
+	 */
+	static ScheduledExecutorService getBackgroundPool() {
+		ScheduledExecutorService pool = backgroundPool;
+		return pool != null ? pool : createBackgroundPool();
+	}
+
+	private static synchronized ScheduledExecutorService createBackgroundPool() {
+		if (backgroundPool == null) {
+			backgroundPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Sample background");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return backgroundPool;
+	}
+
+	/**
+	 * Discards the mipmap pyramid and marks the waveform summary out of date when the data changes.
+	 */
+	private void dataChanged(long fromFrame, long toFrame) {
+		if (mipmapped) {
+			mipmapVersion++;
+			mipmaps = null;
+			buildMipmapsLater();
+		}
+		WaveformSummary summary = waveformSummary;
+		if (summary != null) {
+			summary.invalidate(fromFrame, toFrame);
+		}
+	}
+
+	private void resized() {
+		WaveformSummary summary = waveformSummary;
+		if (summary != null) {
+			summary.resize(nFrames);
+		}
+		dataChanged(nFrames, nFrames);
+	}
+
+	/**
+	 * Gets the {@link WaveformSummary} of this Sample, which gives the peak and RMS levels at any zoom level
+	 * without scanning the data. The first call starts building it on a background thread, or reads it from 
+	 * next to the audio file if {@link WaveformSummary#setPersistent(boolean)} is on and it was saved before.
+	 * 
+	 * @return the summary.
+	 */
+	public WaveformSummary getWaveformSummary() {
+		WaveformSummary summary = waveformSummary;
+		if (summary == null) {
+			synchronized (this) {
+				summary = waveformSummary;
+				if (summary == null) {
+					if (WaveformSummary.isPersistent() && filename != null && !modified) {
+						summary = WaveformSummary.read(this, filename);
+					}
+					if (summary == null) {
+						summary = new WaveformSummary(this);
+					}
+					waveformSummary = summary;
+				}
+			}
+			summary.refreshLater();
+		}
+		return summary;
+	}
+
+	/**
+	 * Called when the waveform summary has caught up with the data, to save it if required.
+	 */
+	void waveformSummaryComplete() {
+		WaveformSummary summary = waveformSummary;
+		if (summary != null && WaveformSummary.isPersistent() && filename != null && !modified && summary.isComplete()) {
+			summary.write(filename);
+		}
+	}
+
+	/**
+	 * Gets the format in which the data was held when it was loaded from a file,
+	 * or null if the Sample was not loaded from a file.
+	 * 
+	 * @return the storage format.
+	 */
+	public StorageFormat getStorageFormat() {
+		return storageFormat;
+	}
+
 	/**
 	 * Gets the current AudioFileReaderClass. This is an instantiation of
 	 * a class that implements {@link AudioFileReader} that Sample will use for file reading operations. 
@@ -192,6 +686,84 @@ public class Sample {
 		this.audioFileWriterClass = audioFileWriterClass;
 	}
 
+	/**
+	 * Gets the {@link SampleStorage} that holds the audio data.
+	 * 
+	 * @return the storage.
+	 */
+	public SampleStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Replaces the {@link SampleStorage} that holds the audio data. The number of
+	 * channels and frames of the Sample are taken from the new storage. To change
+	 * the type of storage while keeping the data, copy it first, e.g.:
+	 * <code>sample.setStorage(new ChunkedSampleStorage(sample.getStorage()));</code>
+	 * 
+	 * @param storage
+	 *            the new storage.
+	 */
+	public void setStorage(SampleStorage storage) {
+		installStorage(storage);
+		modified = true;
+		WaveformSummary summary = waveformSummary;
+		if (summary != null) {
+			if (summary.getNumChannels() != nChannels) {
+				waveformSummary = null;
+			} else {
+				summary.resize(nFrames);
+			}
+		}
+		dataChanged(0, nFrames);
+	}
+	
+	private void installStorage(SampleStorage storage) {
+		this.storage = storage;
+		this.nChannels = storage.getNumChannels();
+		this.nFrames = storage.getNumFrames();
+		if (current == null || current.length != nChannels) {
+			current = new float[nChannels];
+			next = new float[nChannels];
+		}
+	}
+
+	/**
+	 * Tells the Sample's storage where playback is heading when not looping, so
+	 * that data can be fetched in the background if necessary (see
+	 * {@link SampleStorage#prefetchHint(int, boolean, int, int, boolean)}).
+	 * 
+	 * @param posInMS
+	 *            the current playback position in milliseconds.
+	 * @param forwards
+	 *            true if playing forwards.
+	 */
+	public void prefetchHint(double posInMS, boolean forwards) {
+		storage.prefetchHint((int) msToSamples(posInMS), forwards, -1, -1, false);
+	}
+
+	/**
+	 * Tells the Sample's storage where playback is heading when looping, so
+	 * that data can be fetched in the background if necessary (see
+	 * {@link SampleStorage#prefetchHint(int, boolean, int, int, boolean)}).
+	 * 
+	 * @param posInMS
+	 *            the current playback position in milliseconds.
+	 * @param forwards
+	 *            true if playing forwards.
+	 * @param loopStartInMS
+	 *            the start of the loop in milliseconds.
+	 * @param loopEndInMS
+	 *            the end of the loop in milliseconds.
+	 * @param alternating
+	 *            true if the loop alternates direction.
+	 */
+	public void prefetchHint(double posInMS, boolean forwards, double loopStartInMS, double loopEndInMS, boolean alternating) {
+		int loopStart = (int) Math.max(0, msToSamples(Math.min(loopStartInMS, loopEndInMS)));
+		int loopEnd = (int) Math.max(0, msToSamples(Math.max(loopStartInMS, loopEndInMS)));
+		storage.prefetchHint((int) msToSamples(posInMS), forwards, loopStart, loopEnd, alternating);
+	}
+
 	/**
 	 * Return a single frame.
 	 * 
@@ -208,7 +780,7 @@ public class Sample {
 			return;
 		}
 		for (int i = 0; i < nChannels; i++) {
-			frameData[i] = theSampleData[i][frame];
+			frameData[i] = storage.get(i, frame);
 		}
 	}
 
@@ -239,7 +811,7 @@ public class Sample {
 	public void getFrameLinear(double posInMS, float[] result) {
 		double frame = msToSamples(posInMS);
 		int frame_floor = (int) Math.floor(frame);
-		if (frame_floor > 0 && frame_floor < nFrames) {
+		if (frame_floor >= 0 && frame_floor < nFrames) {
 			double frame_frac = frame - frame_floor;
 			if (frame_floor == nFrames - 1) {
 				getFrame(frame_floor, result);
@@ -314,6 +886,182 @@ public class Sample {
 		}
 	}
 
+	/**
+	 * Retrieves a block of frames at the given positions using no interpolation. This is
+	 * equivalent to calling {@link #getFrameNoInterp(double, float[])} for each position,
+	 * but much faster. Frames outside the sample range are zeros.
+	 * 
+	 * @param posInMS
+	 *            the positions to read, in milliseconds.
+	 * @param result
+	 *            the frames to fill, in the form result[channel][index].
+	 * @param length
+	 *            the number of positions to read.
+	 */
+	public void getFramesNoInterp(double[] posInMS, float[][] result, int length) {
+		getFramesInterpolated(posInMS, result, length, INTERP_NONE);
+	}
+
+	/**
+	 * Retrieves a block of frames at the given positions using linear interpolation. This is
+	 * equivalent to calling {@link #getFrameLinear(double, float[])} for each position,
+	 * but much faster. Frames outside the sample range are zeros.
+	 * 
+	 * @param posInMS
+	 *            the positions to read, in milliseconds.
+	 * @param result
+	 *            the frames to fill, in the form result[channel][index].
+	 * @param length
+	 *            the number of positions to read.
+	 */
+	public void getFramesLinear(double[] posInMS, float[][] result, int length) {
+		getFramesInterpolated(posInMS, result, length, INTERP_LINEAR);
+	}
+
+	/**
+	 * Retrieves a block of frames at the given positions using cubic interpolation. This is
+	 * equivalent to calling {@link #getFrameCubic(double, float[])} for each position,
+	 * but much faster. Frames outside the sample range are zeros.
+	 * 
+	 * @param posInMS
+	 *            the positions to read, in milliseconds.
+	 * @param result
+	 *            the frames to fill, in the form result[channel][index].
+	 * @param length
+	 *            the number of positions to read.
+	 */
+	public void getFramesCubic(double[] posInMS, float[][] result, int length) {
+		getFramesInterpolated(posInMS, result, length, INTERP_CUBIC);
+	}
+
+	/**
+	 * Reads a block of frames. Positions are converted to frames once, then the span of
+	 * frames covered is read from the storage in one go (or straight from the arrays of a
+	 * {@link FloatSampleStorage}) and each channel is interpolated in a tight loop.
+	 */
+	private void getFramesInterpolated(double[] posInMS, float[][] result, int length, int interpolation) {
+		if (blockIndices == null || blockIndices.length < length) {
+			blockIndices = new int[length];
+			blockFractions = new float[length];
+		}
+		int[] indices = blockIndices;
+		float[] fractions = blockFractions;
+		int last = (int) nFrames - 1;
+		// cubic interpolation needs the next frame too
+		int maxIndex = interpolation == INTERP_CUBIC ? last - 1 : last;
+		int lo = Integer.MAX_VALUE;
+		int hi = Integer.MIN_VALUE;
+		for (int i = 0; i < length; i++) {
+			double frame = msToSamples(posInMS[i]);
+			int index = (int) Math.floor(frame);
+			if (index >= 0 && index <= maxIndex) {
+				indices[i] = index;
+				fractions[i] = (float) (frame - index);
+				if (index < lo) lo = index;
+				if (index > hi) hi = index;
+			} else {
+				indices[i] = INVALID_FRAME;
+			}
+		}
+		if (lo > hi) {
+			for (int c = 0; c < nChannels; c++) {
+				Arrays.fill(result[c], 0, length, 0f);
+			}
+			return;
+		}
+		// the frames needed, including neighbours for interpolation
+		int first = Math.max(0, lo - 1);
+		int end = Math.min(last, hi + 2);
+		SampleStorage s = storage;
+		boolean direct = s instanceof FloatSampleStorage;
+		if (!direct && end - first + 1 > MAX_BLOCK_SPAN) {
+			// e.g. positions that jump around a long loop, read frame by frame
+			getFramesOneByOne(posInMS, result, length, interpolation);
+			return;
+		}
+		if (!direct && (blockData == null || blockData.length < end - first + 1)) {
+			blockData = new float[Math.min(MAX_BLOCK_SPAN, Math.max(end - first + 1, 2 * length + 4))];
+		}
+		for (int c = 0; c < nChannels; c++) {
+			float[] data;
+			int base;
+			if (direct) {
+				data = s.asFloatArrays()[c];
+				base = 0;
+			} else {
+				data = blockData;
+				base = first;
+				s.get(c, first, data, 0, end - first + 1);
+			}
+			float[] out = result[c];
+			switch (interpolation) {
+			case INTERP_NONE:
+				for (int i = 0; i < length; i++) {
+					int index = indices[i];
+					out[i] = index == INVALID_FRAME ? 0f : data[index - base];
+				}
+				break;
+			case INTERP_LINEAR:
+				for (int i = 0; i < length; i++) {
+					int index = indices[i];
+					if (index == INVALID_FRAME) {
+						out[i] = 0f;
+					} else if (index == last) {
+						out[i] = data[index - base];
+					} else {
+						float frac = fractions[i];
+						float y0 = data[index - base];
+						out[i] = y0 + frac * (data[index + 1 - base] - y0);
+					}
+				}
+				break;
+			case INTERP_CUBIC:
+				for (int i = 0; i < length; i++) {
+					int index = indices[i];
+					if (index == INVALID_FRAME) {
+						out[i] = 0f;
+						continue;
+					}
+					float mu = fractions[i];
+					float ym1 = data[(index > 0 ? index - 1 : 0) - base];
+					float y0 = data[index - base];
+					float y1 = data[index + 1 - base];
+					float y2 = data[(index + 2 <= last ? index + 2 : last) - base];
+					float mu2 = mu * mu;
+					float a0 = y2 - y1 - ym1 + y0;
+					float a1 = ym1 - y0 - a0;
+					float a2 = y1 - ym1;
+					out[i] = a0 * mu * mu2 + a1 * mu2 + a2 * mu + y0;
+				}
+				break;
+			}
+		}
+	}
+
+	private void getFramesOneByOne(double[] posInMS, float[][] result, int length, int interpolation) {
+		if (blockFrame == null || blockFrame.length != nChannels) {
+			blockFrame = new float[nChannels];
+		}
+		float[] frame = blockFrame;
+		for (int i = 0; i < length; i++) {
+			switch (interpolation) {
+			case INTERP_NONE:
+				Arrays.fill(frame, 0f);
+				getFrameNoInterp(posInMS[i], frame);
+				break;
+			case INTERP_LINEAR:
+				getFrameLinear(posInMS[i], frame);
+				break;
+			case INTERP_CUBIC:
+				getFrameCubic(posInMS[i], frame);
+				break;
+			}
+			for (int c = 0; c < nChannels; c++) {
+				result[c][i] = frame[c];
+			}
+		}
+	}
+
 	/**
 	 * Get a series of frames. FrameData will only be filled with the available
 	 * frames. It is the caller's responsibility to count how many frames are
@@ -333,7 +1081,7 @@ public class Sample {
 		}
 		int numFloats = Math.min(frameData[0].length, (int) (nFrames - frame));
 		for (int i = 0; i < nChannels; i++) {
-			System.arraycopy(theSampleData[i], frame, frameData[i], 0, numFloats);
+			storage.get(i, frame, frameData[i], 0, numFloats);
 		}
 	}
 
@@ -341,10 +1089,9 @@ public class Sample {
 	 * Clears the (writeable) sample.
 	 */
 	public void clear() {
-		for (int i = 0; i < nChannels; i++) {
-			Arrays.fill(theSampleData[i], 0f);
-		}
-
+		modified = true;
+		storage.clear();
+		dataChanged(0, nFrames);
 	}
 
 	/**
@@ -359,9 +1106,11 @@ public class Sample {
 	 *            The frame data to write.
 	 */
 	public void putFrame(int frame, float[] frameData) {
+		modified = true;
 		for (int i = 0; i < nChannels; i++) {
-			theSampleData[i][frame] = frameData[i];
+			storage.put(i, frame, frameData[i]);
 		}
+		dataChanged(frame, frame + 1);
 	}
 
 	/**
@@ -380,10 +1129,12 @@ public class Sample {
 		if (frame < 0) {
 			return;
 		}
+		modified = true;
 		// TODO in loop record this falls over
 		for (int i = 0; i < nChannels; i++) {
-			System.arraycopy(frameData[i], 0, theSampleData[i], frame, numFrames);
+			storage.put(i, frame, frameData[i], 0, numFrames);
 		}
+		dataChanged(frame, frame + numFrames);
 	}
 
 	/**
@@ -406,12 +1157,13 @@ public class Sample {
 		if (numFrames <= 0) {
 			return;
 		}
+		modified = true;
 		// clip numFrames
 		numFrames = Math.min(numFrames, (int) (nFrames - frame));
 		for (int i = 0; i < nChannels; i++) {
-			System.arraycopy(frameData[i], offset, theSampleData[i], frame,
-					numFrames);
+			storage.put(i, frame, frameData[i], offset, numFrames);
 		}
+		dataChanged(frame, frame + numFrames);
 	}
 
 	/**
@@ -467,22 +1219,66 @@ public class Sample {
 				//worth continuing in case the default manages it.
 			}
 		}
+		if(type == AudioFileType.WAV && (saf.bitDepth == 16 || saf.bitDepth == 24 || saf.bitDepth == 32)) {
+			// stream straight from the storage, so no copy of the data is needed
+			writeStreaming(fn, type, saf, new WavFileStreamWriter());
+			return;
+		}
 		if(theRealAudioFileWriterClass == null) {
 			throw new IOException("Sample: No AudioFile Class has been set and the default JavaSoundAudioFile Class cannot be found. Aborting write(). You may need to link to beads-io.jar.");
 		}
 		try {
 			AudioFileWriter audioFileWriter = theRealAudioFileWriterClass.getConstructor().newInstance();
-			audioFileWriter.writeAudioFile(theSampleData, fn, type, saf);
+			audioFileWriter.writeAudioFile(storage.asFloatArrays(), fn, type, saf);
 		} catch(Exception e) {
 			throw new IOException("Sample: Unable to create or use the AudioFileWriter class.", e);
 		}
 	}
 
+	/**
+	 * Writes the sample to a file through an {@link AudioFileStreamWriter}, a block at a time,
+	 * so that only one block of the data is held in memory at once. It is BLOCKING.
+	 * 
+	 * @param fn
+	 *            The filename.
+	 * @param type
+	 *            The type (AIFF, WAVE, etc.)
+	 * @param saf
+	 * 			  The SampleAudioFormat
+	 * @param writer
+	 *            The writer, which should not be open yet.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeStreaming(String fn, AudioFileType type, SampleAudioFormat saf, AudioFileStreamWriter writer) throws IOException {
+		try {
+			writer.open(fn, type, new SampleAudioFormat(saf.sampleRate, saf.bitDepth, nChannels));
+		} catch(OperationUnsupportedException e) {
+			throw new IOException("Sample: Unable to write " + type + " files with " + writer.getClass().getSimpleName(), e);
+		} catch(FileFormatException e) {
+			throw new IOException("Sample: Unable to write " + fn, e);
+		}
+		try {
+			float[][] block = new float[nChannels][(int) Math.min(WRITE_BLOCK_FRAMES, Math.max(1, nFrames))];
+			for (long frame = 0; frame < nFrames; frame += block[0].length) {
+				int length = (int) Math.min(block[0].length, nFrames - frame);
+				for (int c = 0; c < nChannels; c++) {
+					storage.get(c, (int) frame, block[c], 0, length);
+				}
+				writer.write(block, 0, length);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
 	/**
 	 * <b>Advanced</b>
 	 * 
-	 * Change the number of frames in the (writeable) sample. This is slow and
-	 * so should be used sparingly.
+	 * Change the number of frames in the (writeable) sample. With the default
+	 * {@link FloatSampleStorage} this copies all of the data and so should be used
+	 * sparingly. {@link ChunkedSampleStorage} can grow without copying.
 	 * 
 	 * The new frames may contain garbage, but see
 	 * {@link #resizeWithZeros(long)}.
@@ -491,13 +1287,10 @@ public class Sample {
 	 *            The total number of frames the sample should have.
 	 */
 	public void resize(long frames) {
-		int framesToCopy = (int) Math.min(frames, nFrames);
-		float[][] olddata = theSampleData;
-		theSampleData = new float[nChannels][(int) frames];
-		for (int i = 0; i < nChannels; i++)
-			System.arraycopy(olddata[i], 0, theSampleData[i], 0,
-					framesToCopy);
+		modified = true;
+		storage.resize(frames);
 		nFrames = frames;
+		resized();
 	}
 
 	/**
@@ -508,20 +1301,11 @@ public class Sample {
 	 *            The total number of frames the sample should have.
 	 */
 	public void resizeWithZeros(long frames) {
-        int framesToCopy = (int) Math.min(frames, nFrames);
-        float[][] olddata = theSampleData;
-        theSampleData = new float[nChannels][(int) frames];
-        
-        // Initialise all 0
-        for (float[] row : theSampleData) {
-            Arrays.fill(row, 0f);
-        }
-        
-        //Copy across sample data
-        for (int i = 0; i < nChannels; i++)
-            System.arraycopy(olddata[i], 0, theSampleData[i], 0,
-                    framesToCopy);
-        nFrames = frames;
+		// all SampleStorage implementations initialise new frames with zeros
+		modified = true;
+		storage.resize(frames);
+		nFrames = frames;
+		resized();
 	}
 
 	/**
@@ -638,7 +1422,28 @@ public class Sample {
 		//interprets 24-bit wavs as mp3s. So we intercept all wavs and send them to the WavFileReaderWriter.
 		//In the first instance we can only use the file suffix as a clue to this, not the header.
 		Class<? extends AudioFileReader> theRealAudioFileReaderClass = audioFileReaderClass == null ? defaultAudioFileReaderClass : audioFileReaderClass;
-		if(file.endsWith(".wav") || file.endsWith(".WAV")) {
+		boolean isWav = file.endsWith(".wav") || file.endsWith(".WAV");
+		//compressed files are slow to decode, so look for a decoded copy first
+		boolean useDecodedCache = !isWav && DecodedSampleCache.isEnabled();
+		if(useDecodedCache) {
+			DecodedSampleCache.Entry entry = DecodedSampleCache.read(file);
+			if(entry != null) {
+				this.sampleRate = entry.sampleRate;
+				StorageFormat format = resolveStorageFormat(storageFormat, entry.bitDepth);
+				if(needsResampling()) {
+					installStorage(createStorage(resampleOnLoad(entry.storage.asFloatArrays()), format, entry.bitDepth));
+				} else if(format == StorageFormat.FLOAT || format == StorageFormat.DIRECT) {
+					//use the mapped copy directly
+					installStorage(entry.storage);
+				} else {
+					installStorage(createStorage(entry.storage.asFloatArrays(), format, entry.bitDepth));
+				}
+				modified = false;
+				buildMipmapsLater();
+				return;
+			}
+		}
+		if(isWav) {
 			try {
 				theRealAudioFileReaderClass = (Class<? extends AudioFileReader>) Class.forName("net.beadsproject.beads.data.audiofile.WavFileReaderWriter");
 			} catch (ClassNotFoundException e) {
@@ -651,15 +1456,262 @@ public class Sample {
 		} catch (Exception e1) {
 			throw new IOException("Sample: No AudioFileReader Class has been set and the default JavaSoundAudioFile Class cannot be found. Aborting write(). You may need to link to beads-io.jar.");
 		} 
+		float[][] data;
 		try {
-			this.theSampleData = audioFileReader.readAudioFile(file);
+			data = audioFileReader.readAudioFile(file);
 		} catch (Exception e) {
 			throw e;
 		}
-		this.sampleRate = audioFileReader.getSampleAudioFormat().sampleRate;
-		this.nChannels = theSampleData.length;
-		this.nFrames = theSampleData[0].length;
-		this.current = new float[nChannels];
-        this.next = new float[nChannels];
+		SampleAudioFormat format = audioFileReader.getSampleAudioFormat();
+		this.sampleRate = format.sampleRate;
+		if(useDecodedCache) {
+			DecodedSampleCache.write(file, data, format.sampleRate, format.bitDepth);
+		}
+		if(needsResampling()) {
+			data = resampleOnLoad(data);
+		}
+		installStorage(createStorage(data, storageFormat, format.bitDepth));
+		modified = false;
+		buildMipmapsLater();
+	}
+	
+	private boolean needsResampling() {
+		return loadSampleRate > 0 && loadSampleRate != sampleRate;
+	}
+	
+	/**
+	 * Converts data just loaded from a file to the load sample rate.
+	 */
+	private float[][] resampleOnLoad(float[][] data) {
+		data = SampleRateConverter.resample(data, sampleRate, loadSampleRate);
+		sampleRate = loadSampleRate;
+		return data;
+	}
+	
+	/**
+	 * Works out which format AUTO stands for, given the bit depth of the file.
+	 */
+	private static StorageFormat resolveStorageFormat(StorageFormat storageFormat, int bitDepth) {
+		if (storageFormat == null) {
+			return StorageFormat.FLOAT;
+		}
+		if (storageFormat == StorageFormat.AUTO) {
+			return bitDepth <= 16 ? StorageFormat.SHORT : (bitDepth == 24 ? StorageFormat.INT24 : StorageFormat.FLOAT);
+		}
+		return storageFormat;
+	}
+	
+	/**
+	 * Puts data loaded from a file into storage of the given format.
+	 */
+	private static SampleStorage createStorage(float[][] data, StorageFormat storageFormat, int bitDepth) {
+		switch (resolveStorageFormat(storageFormat, bitDepth)) {
+		case SHORT:
+			return new ShortSampleStorage(data);
+		case INT24:
+			return new Int24SampleStorage(data);
+		case MULAW:
+			return new MuLawSampleStorage(data);
+		case DIRECT:
+			return new DirectSampleStorage(data);
+		default:
+			return new FloatSampleStorage(data);
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes of memory used by the audio data.
+	 * 
+	 * @return the memory used, in bytes.
+	 */
+	public long getMemoryUsage() {
+		long bytes = storage.getMemoryUsage();
+		Sample[] m = mipmaps;
+		if (m != null) {
+			for (Sample level : m) {
+				bytes += level.getMemoryUsage();
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Tells the Sample that a player has started using it. Players such as 
+	 * {@link net.beadsproject.beads.ugens.SamplePlayer} call this so that the Sample won't be
+	 * evicted by the {@link SampleCache} while it is in use. If the Sample has already been
+	 * evicted, its data starts reloading in the background.
+	 * <p>
+	 * Each call must be matched by a call to {@link #removePlayer()}. The players in Beads do this
+	 * when they are killed or given another Sample, so a player that is simply dropped from the
+	 * graph without being killed keeps its Sample pinned in memory.
+	 */
+	public void addPlayer() {
+		players.incrementAndGet();
+		if (storage instanceof EvictedStorage) {
+			reloadLater();
+		}
+	}
+	
+	/**
+	 * Tells the Sample that a player has stopped using it.
+	 */
+	public void removePlayer() {
+		players.decrementAndGet();
+	}
+	
+	/**
+	 * Determines whether any players are using this Sample.
+	 * 
+	 * @return true if in use.
+	 */
+	public boolean isInUse() {
+		return players.get() > 0;
+	}
+	
+	/**
+	 * Determines whether the data has been evicted from memory. It will be reloaded
+	 * from the file in the background when next read.
+	 * 
+	 * @return true if evicted.
+	 */
+	public boolean isEvicted() {
+		return storage instanceof EvictedStorage;
+	}
+	
+	/**
+	 * Determines whether the data could be evicted from memory: it must have come from a file,
+	 * not have been changed since, and not be in use by any players.
+	 * 
+	 * @return true if evictable.
+	 */
+	boolean isEvictable() {
+		return filename != null && !modified && !isInUse() && !(storage instanceof EvictedStorage);
+	}
+	
+	/**
+	 * Frees the audio data if the Sample is evictable.
+	 * 
+	 * @return true if the data was freed.
+	 */
+	synchronized boolean evict() {
+		if (!isEvictable()) return false;
+		SampleStorage old = storage;
+		storage = new EvictedStorage();
+		if (isInUse()) {
+			// a player pinned the Sample after it was checked, so put the data back
+			storage = old;
+			return false;
+		}
+		// the pyramid is rebuilt when the data is reloaded, and a build in progress is discarded
+		mipmapVersion++;
+		mipmaps = null;
+		return true;
+	}
+	
+	/**
+	 * Reloads the audio data from the file on one of {@link SampleManager}'s loading threads,
+	 * unless a reload is already waiting. Never blocks on the file, so it is safe to call from
+	 * the audio thread.
+	 */
+	void reloadLater() {
+		if (reloadScheduled.compareAndSet(false, true)) {
+			SampleManager.execute(reloader);
+		}
+	}
+
+	/**
+	 * Reloads the audio data from the file on the calling thread if it has been evicted. If the
+	 * file can no longer be read the Sample is filled with silence.
+	 * 
+	 * @return the storage holding the data.
+	 */
+	SampleStorage reload() {
+		SampleStorage result;
+		boolean reloaded = false;
+		synchronized (this) {
+			if (storage instanceof EvictedStorage) {
+				int oldChannels = nChannels;
+				long oldFrames = nFrames;
+				try {
+					loadAudioFile(filename);
+				} catch (Exception e) {
+					System.out.println("Sample: Unable to reload evicted sample " + filename);
+					installStorage(new FloatSampleStorage(new float[oldChannels][(int) oldFrames]));
+					modified = true;
+				}
+				reloaded = true;
+			}
+			result = storage;
+		}
+		if (reloaded) {
+			// the reloaded data may not be what was summarised, for example if the file has changed or could not be read
+			WaveformSummary summary = waveformSummary;
+			if (summary != null) {
+				summary.invalidate(0, nFrames);
+			}
+			// outside the lock, as the cache locks itself and then Samples when evicting
+			SampleManager.getCache().reloaded(this);
+		}
+		return result;
+	}
+	
+	/**
+	 * Stands in for the data of an evicted Sample. Reads give silence and start a reload in the
+	 * background. Writes, and copying the whole of the data, reload it on the calling thread,
+	 * as they need the real data.
+	 */
+	private class EvictedStorage extends SampleStorage {
+
+		@Override
+		public int getNumChannels() {
+			return nChannels;
+		}
+
+		@Override
+		public long getNumFrames() {
+			return nFrames;
+		}
+
+		@Override
+		public float get(int channel, int frame) {
+			reloadLater();
+			return 0;
+		}
+
+		@Override
+		public void put(int channel, int frame, float value) {
+			reload().put(channel, frame, value);
+		}
+
+		@Override
+		public void resize(long frames) {
+			reload().resize(frames);
+		}
+
+		@Override
+		public void get(int channel, int frame, float[] dest, int offset, int length) {
+			reloadLater();
+			Arrays.fill(dest, offset, offset + length, 0f);
+		}
+
+		@Override
+		public void put(int channel, int frame, float[] src, int offset, int length) {
+			reload().put(channel, frame, src, offset, length);
+		}
+
+		@Override
+		public void clear() {
+			reload().clear();
+		}
+
+		@Override
+		public float[][] asFloatArrays() {
+			return reload().asFloatArrays();
+		}
+
+		@Override
+		public long getMemoryUsage() {
+			return 0;
+		}
 	}
 }
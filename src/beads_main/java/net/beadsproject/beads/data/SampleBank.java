@@ -0,0 +1,346 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.beadsproject.beads.data.audiofile.FileFormatException;
+
+/**
+ * A SampleBank packs many {@link Sample}s into a single file, so that a whole kit of sounds
+ * can be loaded with one file open and one memory-map rather than opening and parsing every
+ * file separately. For example, to pack a group once:
+ * <pre>
+ * <code>
+ * SampleManager.group("drums", "audio/drums");
+ * SampleBank.write(new File("drums.bank"), "drums");
+ * </code>
+ * </pre>
+ * and then to load it in future:
+ * <pre>
+ * <code>
+ * SampleBank bank = new SampleBank(new File("drums.bank"));
+ * bank.addToSampleManager("drums");
+ * </code>
+ * </pre>
+ * The Samples of a bank are views onto the mapped file, held in {@link DirectSampleStorage}s,
+ * so nothing is copied and the operating system pages data in as it is played. They are read-only.
+ * <p>
+ * A bank file holds a header, an index giving the name, number of channels, sample rate,
+ * encoding, length and position of each entry, and then the data of each entry in turn, each
+ * channel in turn as little-endian 32-bit floats.
+ *
+ * @author Beads Team
+ */
+public class SampleBank {
+
+	/** Identifies a bank file, "BDSB". */
+	private static final int MAGIC = 0x42534442;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	/** Entries start on multiples of this many bytes. */
+	private static final int ALIGNMENT = 64;
+	/** Encoding of entries: little-endian 32-bit float. */
+	private static final int ENCODING_FLOAT = 1;
+	/** Largest region mapped at once. */
+	private static final long MAX_MAP_SIZE = 1L << 30;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+
+	/**
+	 * Opens a bank file and maps its contents. The file does not stay open.
+	 *
+	 * @param file the bank file.
+	 * @throws IOException if the file cannot be read.
+	 * @throws FileFormatException if the file is not a valid bank.
+	 */
+	public SampleBank(File file) throws IOException, FileFormatException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			if (header.getInt(0) != MAGIC) throw new FileFormatException("Not a sample bank: " + file);
+			if (header.getInt(4) != VERSION) throw new FileFormatException("Unsupported sample bank version " + header.getInt(4));
+			int numEntries = header.getInt(8);
+			int indexSize = header.getInt(12);
+			long dataOffset = header.getLong(16);
+			ByteBuffer index = ByteBuffer.allocate(indexSize).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, index, HEADER_SIZE);
+			index.flip();
+			String[] names = new String[numEntries];
+			int[] nChannels = new int[numEntries];
+			float[] sampleRates = new float[numEntries];
+			long[] nFrames = new long[numEntries];
+			long[] offsets = new long[numEntries];
+			for (int i = 0; i < numEntries; i++) {
+				byte[] name = new byte[index.getInt()];
+				index.get(name);
+				names[i] = new String(name, UTF8);
+				nChannels[i] = index.getInt();
+				sampleRates[i] = index.getFloat();
+				int encoding = index.getInt();
+				if (encoding != ENCODING_FLOAT) throw new FileFormatException("Unsupported sample bank encoding " + encoding);
+				nFrames[i] = index.getLong();
+				offsets[i] = index.getLong();
+				if (offsets[i] < dataOffset || offsets[i] + length(nChannels[i], nFrames[i]) > channel.size()) {
+					throw new FileFormatException("Sample bank entry " + names[i] + " lies outside the file");
+				}
+			}
+			// map the data in as few regions as possible, usually just one
+			int first = 0;
+			while (first < numEntries) {
+				long regionStart = offsets[first];
+				int last = first;
+				while (last + 1 < numEntries && offsets[last + 1] + length(nChannels[last + 1], nFrames[last + 1]) - regionStart <= MAX_MAP_SIZE) {
+					last++;
+				}
+				long regionEnd = offsets[last] + length(nChannels[last], nFrames[last]);
+				if (regionEnd - regionStart > MAX_MAP_SIZE) {
+					// a single entry too big to map as one region
+					addSample(names[first], DirectSampleStorage.map(channel, regionStart, nChannels[first], nFrames[first], false), sampleRates[first]);
+				} else {
+					MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+					for (int i = first; i <= last; i++) {
+						ByteBuffer b = region.duplicate();
+						b.position((int) (offsets[i] - regionStart));
+						addSample(names[i], DirectSampleStorage.view(b, nChannels[i], nFrames[i]), sampleRates[i]);
+					}
+				}
+				first = last + 1;
+			}
+		} catch (RuntimeException e) {
+			throw new FileFormatException("Sample bank " + file + " is damaged: " + e, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void addSample(String name, SampleStorage storage, float sampleRate) {
+		Sample sample = new Sample(storage, sampleRate);
+		sample.setSimpleName(name);
+		samples.put(name, sample);
+	}
+
+	private static long length(int nChannels, long nFrames) {
+		return (long) nChannels * nFrames * 4;
+	}
+
+	/**
+	 * Gets the bank file.
+	 *
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the named Sample.
+	 *
+	 * @param name the name of the entry.
+	 * @return the Sample, or null if there is no such entry.
+	 */
+	public Sample getSample(String name) {
+		return samples.get(name);
+	}
+
+	/**
+	 * Gets the names of the entries, in the order they appear in the bank.
+	 *
+	 * @return the names.
+	 */
+	public List<String> getNames() {
+		return new ArrayList<String>(samples.keySet());
+	}
+
+	/**
+	 * Gets the Samples, in the order they appear in the bank.
+	 *
+	 * @return the Samples.
+	 */
+	public List<Sample> getSamples() {
+		return new ArrayList<Sample>(samples.values());
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return samples.size();
+	}
+
+	/**
+	 * Adds all of the Samples to {@link SampleManager}, indexed by their names, and puts them in the given group.
+	 *
+	 * @param groupName the group name.
+	 * @return the group.
+	 */
+	public List<Sample> addToSampleManager(String groupName) {
+		for (Map.Entry<String, Sample> e : samples.entrySet()) {
+			SampleManager.sample(e.getKey(), e.getValue());
+		}
+		SampleManager.addToGroup(groupName, getSamples());
+		return SampleManager.getGroup(groupName);
+	}
+
+	/**
+	 * Packs a {@link SampleManager} group into a bank file. Entries are named by the Samples' simple names.
+	 *
+	 * @param file the bank file to write.
+	 * @param groupName the group to pack.
+	 * @throws IOException if the file cannot be written or there is no such group.
+	 */
+	public static void write(File file, String groupName) throws IOException {
+		List<Sample> group = SampleManager.getGroup(groupName);
+		if (group == null) throw new IOException("No such group: " + groupName);
+		List<Sample> copy;
+		synchronized (group) {
+			copy = new ArrayList<Sample>(group);
+		}
+		write(file, copy);
+	}
+
+	/**
+	 * Packs a list of Samples into a bank file. Entries are named by the Samples' simple names,
+	 * or "sample" followed by a number if a Sample has none; a number is added to names that repeat.
+	 *
+	 * @param file the bank file to write.
+	 * @param sampleList the Samples to pack.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void write(File file, List<Sample> sampleList) throws IOException {
+		Map<String, Sample> named = new LinkedHashMap<String, Sample>();
+		for (int i = 0; i < sampleList.size(); i++) {
+			Sample sample = sampleList.get(i);
+			String name = sample.getSimpleName();
+			if (name == null) name = "sample" + i;
+			String unique = name;
+			for (int n = 2; named.containsKey(unique); n++) {
+				unique = name + "-" + n;
+			}
+			named.put(unique, sample);
+		}
+		write(file, named);
+	}
+
+	/**
+	 * Packs Samples into a bank file, using the given names. Samples that have been evicted by the
+	 * {@link SampleCache} are reloaded first, and streamed Samples are read from their files.
+	 *
+	 * @param file the bank file to write.
+	 * @param namedSamples the Samples to pack, indexed by name.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void write(File file, Map<String, Sample> namedSamples) throws IOException {
+		int numEntries = namedSamples.size();
+		byte[][] names = new byte[numEntries][];
+		Sample[] entries = new Sample[numEntries];
+		int indexSize = 0;
+		int n = 0;
+		for (Map.Entry<String, Sample> e : namedSamples.entrySet()) {
+			names[n] = e.getKey().getBytes(UTF8);
+			entries[n] = e.getValue();
+			indexSize += 4 + names[n].length + 4 + 4 + 4 + 8 + 8;
+			n++;
+		}
+		long dataOffset = align(HEADER_SIZE + indexSize);
+		ByteBuffer index = ByteBuffer.allocate((int) (dataOffset - HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+		long offset = dataOffset;
+		long[] offsets = new long[numEntries];
+		for (int i = 0; i < numEntries; i++) {
+			Sample s = entries[i];
+			offsets[i] = offset;
+			index.putInt(names[i].length).put(names[i]);
+			index.putInt(s.getNumChannels()).putFloat(s.getSampleRate()).putInt(ENCODING_FLOAT);
+			index.putLong(s.getNumFrames()).putLong(offset);
+			offset = align(offset + length(s.getNumChannels(), s.getNumFrames()));
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(numEntries).putInt(indexSize).putLong(dataOffset);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			header.clear();
+			writeFully(channel, header, 0);
+			index.clear();
+			writeFully(channel, index, HEADER_SIZE);
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			float[] chunk = new float[buffer.capacity() / 4];
+			ByteBuffer raw = null;
+			for (int i = 0; i < numEntries; i++) {
+				Sample s = entries[i];
+				// pin the Sample so that it can't be evicted part way through
+				s.addPlayer();
+				try {
+					SampleStorage storage = s.reload();
+					// a streamed Sample only holds the blocks near where it is playing
+					StreamingSampleSource source = storage instanceof StreamingSampleStorage ? ((StreamingSampleStorage) storage).getSource() : null;
+					if (source != null && (raw == null || raw.capacity() < chunk.length * source.getInfo().blockAlign)) {
+						raw = ByteBuffer.allocate(chunk.length * source.getInfo().blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+					}
+					int nChannels = s.getNumChannels();
+					int nFrames = (int) s.getNumFrames();
+					long position = offsets[i];
+					for (int c = 0; c < nChannels; c++) {
+						for (int frame = 0; frame < nFrames; frame += chunk.length) {
+							int length = Math.min(chunk.length, nFrames - frame);
+							if (source != null) {
+								source.read(raw, frame, length);
+								source.getInfo().decode(raw, 0, c, chunk, 0, length);
+							} else {
+								storage.get(c, frame, chunk, 0, length);
+							}
+							buffer.clear();
+							buffer.asFloatBuffer().put(chunk, 0, length);
+							buffer.limit(length * 4);
+							writeFully(channel, buffer, position);
+							position += length * 4;
+						}
+					}
+				} finally {
+					s.removePlayer();
+				}
+			}
+			// pad the last entry
+			raf.setLength(offset);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long align(long position) {
+		return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) throw new IOException("Unexpected end of sample bank");
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		int written = 0;
+		while (b.hasRemaining()) {
+			written += channel.write(b, position + written);
+		}
+	}
+}
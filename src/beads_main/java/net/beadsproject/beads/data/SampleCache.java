@@ -0,0 +1,278 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SampleCache keeps track of how much memory is used by the {@link Sample}s held by
+ * {@link SampleManager}, and keeps it within a budget by evicting the audio data of Samples
+ * that haven't been used recently (LRU) or often (LFU). Get the cache with
+ * {@link SampleManager#getCache()}. For example, to keep the sample library within 500MB:
+ * <pre>
+ * <code>
+ * SampleManager.getCache().setBudget(500L * 1024 * 1024);
+ * </code>
+ * </pre>
+ * An evicted Sample keeps its name, length and format but frees its data. The next time it is
+ * accessed, either through {@link SampleManager} or directly, it starts reloading the data from its
+ * file on SampleManager's loading threads, and reads as silence until the data is back. To wait for
+ * the data, get the Sample with {@link SampleManager#sampleAsync(String)} and wait on the Future.
+ * <p>
+ * Only Samples that were loaded from a file and haven't been changed since can be evicted, and
+ * Samples in use by a player (see {@link Sample#addPlayer()}) are never evicted, nor is the Sample
+ * most recently loaded, so the budget can be exceeded if every Sample is in use. By default the budget is unlimited.
+ *
+ * @author Beads Team
+ */
+public class SampleCache {
+
+	/**
+	 * The eviction policy.
+	 */
+	public static enum Policy {
+		/** Evict the least recently used Samples first. */
+		LRU,
+		/** Evict the least frequently used Samples first. */
+		LFU
+	}
+
+	/** Per-sample bookkeeping. */
+	private static class Entry {
+		long bytes;
+		long uses;
+	}
+
+	/** Entries in access order, least recently used first. */
+	private final LinkedHashMap<Sample, Entry> entries = new LinkedHashMap<Sample, Entry>(16, 0.75f, true);
+
+	private long budget = Long.MAX_VALUE;
+	private Policy policy = Policy.LRU;
+	private long bytesInUse;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	SampleCache() {
+	}
+
+	/**
+	 * Adds a Sample to the cache.
+	 *
+	 * @param sample the Sample.
+	 * @param loaded true if the Sample was just loaded from a file, which counts as a miss.
+	 */
+	synchronized void add(Sample sample, boolean loaded) {
+		if (loaded) misses++;
+		touch(sample);
+		trim(sample);
+	}
+
+	/**
+	 * Records an access to a Sample, starting to reload its data in the background if it has been evicted.
+	 *
+	 * @param sample the Sample.
+	 */
+	void access(Sample sample) {
+		if (sample.isEvicted()) {
+			// reloading calls reloaded(), which counts the miss
+			sample.reloadLater();
+			return;
+		}
+		synchronized (this) {
+			if (!entries.containsKey(sample)) return;
+			hits++;
+			touch(sample);
+		}
+	}
+
+	/**
+	 * Called by {@link Sample} when it has reloaded its data.
+	 */
+	synchronized void reloaded(Sample sample) {
+		if (!entries.containsKey(sample)) return;
+		misses++;
+		touch(sample);
+		trim(sample);
+	}
+
+	/**
+	 * Removes a Sample from the cache, without evicting it.
+	 */
+	synchronized void remove(Sample sample) {
+		Entry entry = entries.remove(sample);
+		if (entry != null) {
+			bytesInUse -= entry.bytes;
+		}
+	}
+
+	private void touch(Sample sample) {
+		Entry entry = entries.get(sample);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(sample, entry);
+		}
+		entry.uses++;
+		updateSize(entry, sample);
+	}
+
+	private void updateSize(Entry entry, Sample sample) {
+		long bytes = sample.getMemoryUsage();
+		bytesInUse += bytes - entry.bytes;
+		entry.bytes = bytes;
+	}
+
+	/**
+	 * Evicts Samples until the memory used is within the budget, or nothing more can be evicted.
+	 * The Sample that was just accessed, if any, is kept.
+	 */
+	private void trim(Sample keep) {
+		if (bytesInUse <= budget) return;
+		// sizes may have changed since they were last seen, e.g. when recording
+		for (Map.Entry<Sample, Entry> e : entries.entrySet()) {
+			updateSize(e.getValue(), e.getKey());
+		}
+		List<Map.Entry<Sample, Entry>> candidates = new ArrayList<Map.Entry<Sample, Entry>>();
+		for (Map.Entry<Sample, Entry> e : entries.entrySet()) {
+			if (e.getKey() != keep && e.getValue().bytes > 0 && e.getKey().isEvictable()) {
+				candidates.add(e);
+			}
+		}
+		if (policy == Policy.LFU) {
+			// stable sort, so ties are broken by least recent use
+			Collections.sort(candidates, new Comparator<Map.Entry<Sample, Entry>>() {
+				public int compare(Map.Entry<Sample, Entry> a, Map.Entry<Sample, Entry> b) {
+					return Long.compare(a.getValue().uses, b.getValue().uses);
+				}
+			});
+		}
+		Iterator<Map.Entry<Sample, Entry>> i = candidates.iterator();
+		while (bytesInUse > budget && i.hasNext()) {
+			Map.Entry<Sample, Entry> e = i.next();
+			if (e.getKey().evict()) {
+				evictions++;
+				updateSize(e.getValue(), e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Gets the memory budget.
+	 *
+	 * @return the budget in bytes.
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the memory budget, evicting Samples straight away if it is exceeded. Use
+	 * Long.MAX_VALUE for no limit.
+	 *
+	 * @param budget the budget in bytes.
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = Math.max(0, budget);
+		trim(null);
+	}
+
+	/**
+	 * Gets the eviction policy.
+	 *
+	 * @return the policy.
+	 */
+	public synchronized Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Sets the eviction policy. The default is {@link Policy#LRU}.
+	 *
+	 * @param policy the policy.
+	 */
+	public synchronized void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Gets the memory used by the Samples in the cache, as of the last time they were accessed.
+	 *
+	 * @return the memory used, in bytes.
+	 */
+	public synchronized long getBytesInUse() {
+		return bytesInUse;
+	}
+
+	/**
+	 * Gets the number of Samples in the cache, including evicted ones.
+	 *
+	 * @return the number of Samples.
+	 */
+	public synchronized int getNumSamples() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of accesses to Samples whose data was in memory.
+	 *
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of times data had to be loaded from a file, including reloads of evicted Samples.
+	 *
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of times a Sample has been evicted.
+	 *
+	 * @return the number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counts to zero.
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	/**
+	 * Evicts every Sample that can be evicted, regardless of the budget.
+	 */
+	public synchronized void evictAll() {
+		for (Map.Entry<Sample, Entry> e : entries.entrySet()) {
+			if (e.getKey().evict()) {
+				evictions++;
+				updateSize(e.getValue(), e.getKey());
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "SampleCache: " + getNumSamples() + " samples, " + getBytesInUse() + " bytes, " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+	}
+}
@@ -11,18 +11,43 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import net.beadsproject.beads.data.audiofile.FileFormatException;
 import net.beadsproject.beads.data.audiofile.OperationUnsupportedException;
 
 /**
  * SampleManager provides a static repository for {@link Sample} data and provides methods to organise samples into groups.
- *
+ * <p>
+ * Samples and groups can also be loaded in the background on a pool of loading threads, using
+ * {@link #sampleAsync(String)} and {@link #groupAsync(String, String)}. These return straight away with
+ * a {@link Future} for each {@link Sample}, and each Sample is added to its group as soon as it is loaded, so
+ * you can start playing from a group while the rest of it is still loading. Listeners registered with 
+ * {@link #addGroupListener(SampleGroupListener)} are told each time a group changes, and those that
+ * implement {@link SampleGroupLoadListener} are also told how far loading has got. The size of the pool is 
+ * set with {@link #setLoadingThreads(int)}.
+ * <p>
+ * The memory used by Samples can be limited with a {@link SampleCache}, see {@link #getCache()}. Samples that
+ * are evicted from the cache are reloaded in the background when they are next accessed, and read as silence
+ * until they have been. The format and sample rate in which Samples 
+ * are held once loaded are set with {@link Sample#setDefaultStorageFormat(Sample.StorageFormat)} and
+ * {@link Sample#setDefaultLoadSampleRate(float)}.
+ * <p>
+ * SampleManager is safe to use from multiple threads, but note that the lists returned by {@link #getGroup(String)}
+ * may grow while a group is loading in the background; synchronize on the list when iterating over it.
  */
 public class SampleManager {
 	
@@ -35,10 +60,25 @@ public class SampleManager {
 	/** List of group names mapped to group directories, groups only in this list if from same directory. */
 	private final static Map<String, String> groupDirs = new TreeMap<String, String>();
 
-	private final static Set<SampleGroupListener> listeners = new HashSet<SampleGroupListener>();
+	private final static Set<SampleGroupListener> listeners = new CopyOnWriteArraySet<SampleGroupListener>();
+	
+	/** Samples currently being loaded in the background, indexed by name. */
+	private final static Map<String, CompletableFuture<Sample>> loading = new TreeMap<String, CompletableFuture<Sample>>();
+	
+	/** Keeps track of memory used by Samples and evicts them if the budget is exceeded. */
+	private final static SampleCache cache = new SampleCache();
 	
 	private static boolean verbose = true;
 	
+	/** Number of threads used to load samples in the background. */
+	private static int loadingThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	
+	/** Pool used to load samples in the background. Volatile so that {@link #execute(Runnable)} can read it without locking. */
+	private static volatile ExecutorService loadingPool;
+	
+	/** Guards creating and shutting down the loading pool, separately from the SampleManager lock. */
+	private static final Object poolLock = new Object();
+	
 	/**
 	 * Returns a new Sample from the given filename. If the Sample has already
 	 * been loaded, it will not be loaded again, but will simply be retrieved
@@ -58,12 +98,14 @@ public class SampleManager {
 	 * @param sample
 	 */
 	public static void sample(String name, Sample sample) {
-		if (samples.get(name) == null) {
+		synchronized (SampleManager.class) {
+			if (samples.get(name) != null) return;
 			samples.put(name, sample);
 			if(sample.getSimpleName() == null) {
 				sample.setSimpleName(name);
 			}
 		}
+		cache.add(sample, false);
 	}	
 	
 	/**
@@ -75,22 +117,133 @@ public class SampleManager {
 	 * @return the sample.
 	 */
 	public static Sample sample(String ref, String fn) {
-		Sample sample = samples.get(ref);
-		if (sample == null) {
-			try {
-				sample = new Sample(fn);
+		Future<Sample> pending;
+		Sample sample;
+		synchronized (SampleManager.class) {
+			sample = samples.get(ref);
+			pending = loading.get(ref);
+		}
+		if (sample != null) {
+			cache.access(sample);
+			return sample;
+		}
+		if (pending != null) {
+			//already being loaded in the background, so wait for that
+			return waitFor(pending);
+		}
+		return load(ref, fn);
+	}
+
+	/**
+	 * Loads a Sample on the calling thread and adds it to the repository, without holding the lock while reading the file.
+	 * Returns null if the Sample could not be loaded.
+	 */
+	private static Sample load(String ref, String fn) {
+		Sample sample = null;
+		try {
+			sample = new Sample(fn);
+			if(verbose) System.out.println("Sample loaded " + fn);
+		} catch (OperationUnsupportedException e) {
+		    System.out.println("OperationUnsupportedException: The reading operation failed " + fn);
+		} catch (FileFormatException e) {
+		    System.out.println("FileFormatException: Sample format malformed " + fn);
+		} catch (IOException e) {
+		    System.out.println("IOException: Sample not found/supported " + fn);
+		}
+		if (sample != null) {
+			synchronized (SampleManager.class) {
+				Sample existing = samples.get(ref);
+				if (existing != null) {
+					//somebody else got there first
+					return existing;
+				}
 				samples.put(ref, sample);
-				if(verbose) System.out.println("Sample loaded " + fn);
-			} catch (OperationUnsupportedException e) {
-			    System.out.println("OperationUnsupportedException: The reading operation failed " + fn);
-			} catch (FileFormatException e) {
-			    System.out.println("FileFormatException: Sample format malformed " + fn);
-			} catch (IOException e) {
-			    System.out.println("IOException: Sample not found/supported " + fn);
-			}	
+			}
+			cache.add(sample, true);
 		}
 		return sample;
 	}
+	
+	private static Sample waitFor(Future<Sample> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.out.println("ExecutionException: Sample could not be loaded " + e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * Like {@link SampleManager#sample(String)} but loads the {@link Sample} in the background on one of the loading threads.
+	 * If the Sample has already been loaded, or is already being loaded, it will not be loaded again.
+	 * 
+	 * @param fn the file path.
+	 * 
+	 * @return a Future that gives the Sample when it has loaded, or null if it could not be loaded.
+	 */
+	public static Future<Sample> sampleAsync(String fn) {
+		return sampleAsync(fn, fn);
+	}
+
+	/**
+	 * Like {@link SampleManager#sampleAsync(String)} but with the option to specify the name with which this {@link Sample} is indexed.
+	 * 
+	 * @param ref the name with which to index this Sample.
+	 * @param fn the file path.
+	 * 
+	 * @return a Future that gives the Sample when it has loaded, or null if it could not be loaded.
+	 */
+	public static Future<Sample> sampleAsync(String ref, String fn) {
+		return loadAsync(ref, fn);
+	}
+	
+	private static synchronized CompletableFuture<Sample> loadAsync(final String ref, final String fn) {
+		CompletableFuture<Sample> pending = loading.get(ref);
+		if (pending != null) {
+			return pending;
+		}
+		final Sample sample = samples.get(ref);
+		if (sample != null) {
+			if (!sample.isEvicted()) {
+				cache.access(sample);
+				return CompletableFuture.completedFuture(sample);
+			}
+			//reload evicted data in the background
+			final CompletableFuture<Sample> future = new CompletableFuture<Sample>();
+			loading.put(ref, future);
+			execute(new Runnable() {
+				public void run() {
+					try {
+						sample.reload();
+					} finally {
+						synchronized (SampleManager.class) {
+							loading.remove(ref);
+						}
+						future.complete(sample);
+					}
+				}
+			});
+			return future;
+		}
+		final CompletableFuture<Sample> future = new CompletableFuture<Sample>();
+		loading.put(ref, future);
+		execute(new Runnable() {
+			public void run() {
+				Sample sample = null;
+				try {
+					sample = load(ref, fn);
+				} finally {
+					synchronized (SampleManager.class) {
+						loading.remove(ref);
+					}
+					future.complete(sample);
+				}
+			}
+		});
+		return future;
+	}
 
 	/**
 	 * Generates a new group with the given group name and list of Samples to be
@@ -100,22 +253,31 @@ public class SampleManager {
 	 * @param sampleList the sample list.
 	 */
 	public static List<Sample> group(String groupName, Sample[] sampleList) {
-		ArrayList<Sample> group;
-		if (!groups.keySet().contains(groupName)) {
+		ArrayList<Sample> group = getOrCreateGroup(groupName);
+		synchronized (group) {
+			for (int i = 0; i < sampleList.length; i++) {
+				if (!group.contains(sampleList[i])) {
+					group.add(sampleList[i]);
+				}
+			}
+		}
+		notifyChanged(groupName);
+		return group;
+	}
+	
+	private static synchronized ArrayList<Sample> getOrCreateGroup(String groupName) {
+		ArrayList<Sample> group = groups.get(groupName);
+		if (group == null) {
 			group = new ArrayList<Sample>();
 			groups.put(groupName, group);
-		} else {
-			group = groups.get(groupName);
-		}
-		for (int i = 0; i < sampleList.length; i++) {
-			if (!group.contains(sampleList[i])) {
-				group.add(sampleList[i]);
-			}
 		}
+		return group;
+	}
+	
+	private static void notifyChanged(String groupName) {
 		for(SampleGroupListener l : listeners) {
 			l.changed(groupName);
 		}
-		return group;
 	}
 
 	/**
@@ -138,6 +300,14 @@ public class SampleManager {
 	 * @param maxItems number of items to limit to.
 	 */
 	public static List<Sample> group(String groupName, String folderName, int maxItems) {
+		return group(groupName, listFolder(groupName, folderName), maxItems);
+	}
+	
+	/**
+	 * Finds the files in the given folder, interpreting it firstly as a URL and then as a folder path, 
+	 * and records it as the directory of the group.
+	 */
+	private static String[] listFolder(String groupName, String folderName) {
 		//first try interpreting the folderName as a system resource
 		File theDirectory = null;
 		try {
@@ -152,7 +322,9 @@ public class SampleManager {
 		if(theDirectory == null || !theDirectory.exists()) {
 			theDirectory = new File(folderName);
 		}
-		groupDirs.put(groupName, theDirectory.getAbsolutePath());
+		synchronized (SampleManager.class) {
+			groupDirs.put(groupName, theDirectory.getAbsolutePath());
+		}
 		String[] fileNameList = theDirectory.list();
 		for (int i = 0; i < fileNameList.length; i++) {
 			String absFileName = theDirectory.getAbsolutePath() + "/" + fileNameList[i];
@@ -161,7 +333,7 @@ public class SampleManager {
 			}
 			
 		}
-		return group(groupName, fileNameList, maxItems);
+		return fileNameList;
 	}
 
 	/**
@@ -184,50 +356,189 @@ public class SampleManager {
 	 * @param maxItems number of items to limit to.
 	 */
 	public static List<Sample> group(String groupName, String[] fileNameList, int maxItems) {
-		ArrayList<Sample> group;
-		if (!groups.keySet().contains(groupName)) {
-			group = new ArrayList<Sample>();
-			groups.put(groupName, group);
-		} else
-			group = groups.get(groupName);
+		ArrayList<Sample> group = getOrCreateGroup(groupName);
 		int count = 0;
 		for (int i = 0; i < fileNameList.length; i++) {
 			String simpleName = fileNameList[i];
 			try {
 				Sample sample = sample(simpleName, fileNameList[i]);
-				if (!group.contains(simpleName) && sample != null) {
-					if(count++ >= maxItems) break;
-					group.add(sample);
+				synchronized (group) {
+					if (!group.contains(simpleName) && sample != null) {
+						if(count++ >= maxItems) break;
+						group.add(sample);
+					}
 				}
 			} catch(Exception e) {
 				//snuff the exception
 			}
 		}
-		for(SampleGroupListener l : listeners) {
-			l.changed(groupName);
-		}
+		notifyChanged(groupName);
 		return group;
 	}
 	
+	/**
+	 * Like {@link SampleManager#group(String, String)} but loads the samples in the background on the loading threads.
+	 * The group is created straight away, and each {@link Sample} is added to it as soon as it has loaded, so the order
+	 * of the group depends on the order in which the samples finish loading.
+	 * 
+	 * @param groupName the group name.
+	 * @param folderName the folder address (URL or file path).
+	 * 
+	 * @return a list of Futures, one for each file, which give the Sample when it has loaded, or null if it could not be loaded.
+	 */
+	public static List<Future<Sample>> groupAsync(String groupName, String folderName) {
+		return groupAsync(groupName, folderName, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Like {@link SampleManager#groupAsync(String, String)} but limits the number of files loaded to maxItems.
+	 * 
+	 * @param groupName the group name.
+	 * @param folderName the folder address (URL or file path).
+	 * @param maxItems number of files to limit to.
+	 * 
+	 * @return a list of Futures, one for each file, which give the Sample when it has loaded, or null if it could not be loaded.
+	 */
+	public static List<Future<Sample>> groupAsync(String groupName, String folderName, int maxItems) {
+		return groupAsync(groupName, listFolder(groupName, folderName), maxItems);
+	}
+
+	/**
+	 * Like {@link SampleManager#group(String, String[])} but loads the samples in the background on the loading threads.
+	 * The group is created straight away, and each {@link Sample} is added to it as soon as it has loaded.
+	 * 
+	 * @param groupName the group name.
+	 * @param fileNameList the file name list.
+	 * 
+	 * @return a list of Futures, one for each file, which give the Sample when it has loaded, or null if it could not be loaded.
+	 */
+	public static List<Future<Sample>> groupAsync(String groupName, String[] fileNameList) {
+		return groupAsync(groupName, fileNameList, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Like {@link SampleManager#groupAsync(String, String[])} but only loads the first maxItems files. Unlike 
+	 * {@link SampleManager#group(String, String[], int)}, files that fail to load still count towards maxItems.
+	 * 
+	 * @param groupName the group name.
+	 * @param fileNameList the file name list.
+	 * @param maxItems number of files to limit to.
+	 * 
+	 * @return a list of Futures, one for each file, which give the Sample when it has loaded, or null if it could not be loaded.
+	 */
+	public static List<Future<Sample>> groupAsync(final String groupName, String[] fileNameList, int maxItems) {
+		final ArrayList<Sample> group = getOrCreateGroup(groupName);
+		final int total = Math.min(fileNameList.length, maxItems);
+		final AtomicInteger done = new AtomicInteger();
+		List<Future<Sample>> futures = new ArrayList<Future<Sample>>(total);
+		for (int i = 0; i < total; i++) {
+			futures.add(loadAsync(fileNameList[i], fileNameList[i]).thenApply(new Function<Sample, Sample>() {
+				public Sample apply(Sample sample) {
+					if (sample != null) {
+						synchronized (group) {
+							if (!group.contains(sample)) {
+								group.add(sample);
+							}
+						}
+					}
+					int loaded = done.incrementAndGet();
+					for(SampleGroupListener l : listeners) {
+						if (l instanceof SampleGroupLoadListener) {
+							((SampleGroupLoadListener) l).progress(groupName, loaded, total);
+						}
+						l.changed(groupName);
+					}
+					return sample;
+				}
+			}));
+		}
+		return futures;
+	}
+	
+	/**
+	 * Runs a task on the loading threads. This never takes the SampleManager lock, which is held during file IO,
+	 * as it is reached from the audio thread when an evicted Sample is played. If {@link #setLoadingThreads(int)}
+	 * shuts the pool down in between getting it and handing it the task, the task goes to the new pool.
+	 */
+	static void execute(Runnable task) {
+		while (true) {
+			ExecutorService pool = loadingPool;
+			if (pool == null) {
+				pool = getLoadingPool();
+			}
+			try {
+				pool.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				// shut down by setLoadingThreads, try again with the new pool
+			}
+		}
+	}
+
+	private static ExecutorService getLoadingPool() {
+		synchronized (poolLock) {
+			if (loadingPool == null) {
+				loadingPool = Executors.newFixedThreadPool(loadingThreads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "SampleManager loader");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+			}
+			return loadingPool;
+		}
+	}
+	
+	/**
+	 * Gets the number of threads used to load samples in the background.
+	 * 
+	 * @return the number of loading threads.
+	 */
+	public static int getLoadingThreads() {
+		return loadingThreads;
+	}
+	
+	/**
+	 * Sets the number of threads used to load samples in the background. The default is one less than the 
+	 * number of processors. Loads that have already started carry on with the old threads.
+	 * 
+	 * @param threads the number of loading threads.
+	 */
+	public static void setLoadingThreads(int threads) {
+		threads = Math.max(1, threads);
+		synchronized (poolLock) {
+			if (threads != loadingThreads && loadingPool != null) {
+				loadingPool.shutdown();
+				loadingPool = null;
+			}
+			loadingThreads = threads;
+		}
+	}
+	
+	/**
+	 * Gets the number of samples currently being loaded in the background.
+	 * 
+	 * @return the number of samples being loaded.
+	 */
+	public static synchronized int getNumLoading() {
+		return loading.size();
+	}
+	
 	/**
 	 * Add a new Sample to a group. Create the group if it doesn't exist.
 	 * @param group the group to add to.
 	 * @param sample the Sample to add.
 	 */
 	public static void addToGroup(String group, Sample sample) {
-		ArrayList<Sample> samples;
-		if(!groups.containsKey(group)) {
-			samples = new ArrayList<Sample>();
-			groups.put(group, samples);
-		} else {
-			samples = groups.get(group);
-		}
-		if(!samples.contains(sample)) {
-			samples.add(sample);
-		}
-		for(SampleGroupListener l : listeners) {
-			l.changed(group);
+		ArrayList<Sample> samples = getOrCreateGroup(group);
+		synchronized (samples) {
+			if(!samples.contains(sample)) {
+				samples.add(sample);
+			}
 		}
+		notifyChanged(group);
 	}
 	
 
@@ -238,28 +549,22 @@ public class SampleManager {
 	 */
 	public static void addToGroup(String group, List<Sample> newSamples) {
 		if(newSamples == null) return;
-		ArrayList<Sample> samples;
-		if(!groups.containsKey(group)) {
-			samples = new ArrayList<Sample>();
-			groups.put(group, samples);
-		} else {
-			samples = groups.get(group);
-		}
-		for(Sample sample : newSamples) {
-			if(!samples.contains(sample)) {
-				samples.add(sample);
+		ArrayList<Sample> samples = getOrCreateGroup(group);
+		synchronized (samples) {
+			for(Sample sample : newSamples) {
+				if(!samples.contains(sample)) {
+					samples.add(sample);
+				}
 			}
 		}
-		for(SampleGroupListener l : listeners) {
-			l.changed(group);
-		}
+		notifyChanged(group);
 	}
 	
 	/**
 	 * Gets the set of group names.
 	 * @return Set of Strings representing group names.
 	 */
-	public static Set<String> groups() {
+	public static synchronized Set<String> groups() {
 		return groups.keySet();
 	}
 	
@@ -267,7 +572,7 @@ public class SampleManager {
 	 * List the groups by name as a list of Strings.
 	 * @return a List of Strings.
 	 */
-	public static List<String> groupsAsList() {
+	public static synchronized List<String> groupsAsList() {
 		return new ArrayList<String>(groups.keySet());
 	}
 
@@ -278,7 +583,7 @@ public class SampleManager {
 	 * 
 	 * @return the group.
 	 */
-	public static ArrayList<Sample> getGroup(String groupName) {
+	public static synchronized ArrayList<Sample> getGroup(String groupName) {
 		return groups.get(groupName);
 	}
 	
@@ -287,7 +592,7 @@ public class SampleManager {
 	 * @param groupName
 	 * @return directory path.
 	 */
-	public static String getGroupDir(String groupName) {
+	public static synchronized String getGroupDir(String groupName) {
 		return groupDirs.get(groupName);
 	}
 	
@@ -299,8 +604,13 @@ public class SampleManager {
 	 * @return a random Sample.
 	 */
 	public static Sample randomFromGroup(String groupName) {
-		ArrayList<Sample> group = groups.get(groupName);
-		return group.get((int)(Math.random() * group.size()));
+		ArrayList<Sample> group = getGroup(groupName);
+		Sample sample;
+		synchronized (group) {
+			sample = group.get((int)(Math.random() * group.size()));
+		}
+		cache.access(sample);
+		return sample;
 	}
 
 	/**
@@ -313,11 +623,19 @@ public class SampleManager {
 	 * @return the Sample.
 	 */
 	public static Sample fromGroup(String groupName, int index) {
-		ArrayList<Sample> group = groups.get(groupName);
-		if(group == null || group.size() == 0) {
+		ArrayList<Sample> group = getGroup(groupName);
+		if(group == null) {
 			return null;
 		}
-		return group.get(index % group.size());
+		Sample sample;
+		synchronized (group) {
+			if(group.size() == 0) {
+				return null;
+			}
+			sample = group.get(index % group.size());
+		}
+		cache.access(sample);
+		return sample;
 	}
 	
 	/**
@@ -325,9 +643,9 @@ public class SampleManager {
 	 * 
 	 * @param sampleName the sample name.
 	 */
-	public static void removeSample(String sampleName) {
+	public static synchronized void removeSample(String sampleName) {
 		if(samples.containsKey(sampleName)) {
-			samples.remove(sampleName);
+			cache.remove(samples.remove(sampleName));
 		}
 	}
 
@@ -336,7 +654,7 @@ public class SampleManager {
 	 * 
 	 * @param sample the Sample.
 	 */
-	public static void removeSample(Sample sample) {
+	public static synchronized void removeSample(Sample sample) {
 		for (String str : samples.keySet()) {
 			if (samples.get(str).equals(sample)) {
 				removeSample(str);
@@ -351,11 +669,11 @@ public class SampleManager {
 	 * @param groupName the group name.
 	 */
 	public static void removeGroup(String groupName) {
-		groups.remove(groupName);
-		groupDirs.remove(groupName);
-		for(SampleGroupListener l : listeners) {
-			l.changed(groupName);
+		synchronized (SampleManager.class) {
+			groups.remove(groupName);
+			groupDirs.remove(groupName);
 		}
+		notifyChanged(groupName);
 	}
 
 	/**
@@ -365,13 +683,25 @@ public class SampleManager {
 	 * @param groupName the group name.
 	 */
 	public static void destroyGroup(String groupName) {
-		ArrayList<Sample> group = groups.get(groupName);
-		for (int i = 0; i < group.size(); i++) {
-			removeSample(group.get(i));
+		ArrayList<Sample> group = getGroup(groupName);
+		synchronized (group) {
+			for (int i = 0; i < group.size(); i++) {
+				removeSample(group.get(i));
+			}
 		}
 		removeGroup(groupName);
 	}
 
+	/**
+	 * Gets the {@link SampleCache} that keeps track of the memory used by Samples, which can be used to 
+	 * set a memory budget and get statistics.
+	 * 
+	 * @return the SampleCache.
+	 */
+	public static SampleCache getCache() {
+		return cache;
+	}
+
 	public static void addGroupListener(SampleGroupListener l) {
 		listeners.add(l);
 	}
@@ -383,7 +713,7 @@ public class SampleManager {
 	/**
 	 * Prints a list of all {@link Sample}s to System.out.
 	 */
-	public static void printSampleList() {
+	public static synchronized void printSampleList() {
 		for(String s : samples.keySet()) {
 			System.out.println(s + " " + samples.get(s));
 		}
@@ -394,7 +724,7 @@ public class SampleManager {
 	 * 
 	 * @return ArrayList of Sample names.
 	 */
-	public static List<String> getSampleNameList() {
+	public static synchronized List<String> getSampleNameList() {
 		return new ArrayList<String>(samples.keySet());
 	}
 
@@ -424,7 +754,7 @@ public class SampleManager {
 	 * 
 	 * @param toFile destination of the file.
 	 */
-	public static void logSamplePaths(String toFile) {
+	public static synchronized void logSamplePaths(String toFile) {
 		try {
 			File f = new File(toFile);
 			PrintWriter out = new PrintWriter(f);
@@ -455,7 +785,11 @@ public class SampleManager {
 		File drd = new File(destRootDir);
 		if(!drd.exists()) drd.mkdir();
 		destRootDir = drd.getAbsolutePath();
-		for(Sample s : samples.values()) {
+		List<Sample> allSamples;
+		synchronized (SampleManager.class) {
+			allSamples = new ArrayList<Sample>(samples.values());
+		}
+		for(Sample s : allSamples) {
 			if(s.getFileName() != null && !s.getFileName().equals("")) {
 				String absFileName = s.getFileName();
 				if(absFileName.startsWith(sourceRootDir)) {
@@ -491,5 +825,23 @@ public class SampleManager {
 		public void changed(String group);
 	}
 	
+	/**
+	 * A {@link SampleGroupListener} that is also told about the progress of groups loading in the background,
+	 * see {@link SampleManager#groupAsync(String, String)}. Add it with {@link SampleManager#addGroupListener(SampleGroupListener)}.
+	 * Note that the methods are called from the loading threads.
+	 * 
+	 * @author Beads Team
+	 */
+	public static interface SampleGroupLoadListener extends SampleGroupListener {
+		
+		/**
+		 * Called each time a file being loaded into a group in the background has finished loading, or has failed to load.
+		 * @param group the name of the group.
+		 * @param loaded the number of files finished so far.
+		 * @param total the total number of files being loaded.
+		 */
+		public void progress(String group, int loaded, int total);
+	}
+	
 	
 }
@@ -0,0 +1,313 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * SampleRateConverter changes the sample rate of audio data using a Kaiser-windowed sinc
+ * filter, which gives much higher quality than the cubic interpolation used by players
+ * when a {@link Sample} is played at a different rate from the audio context. It is meant
+ * for converting Samples once, when they are loaded, see {@link Sample#resample(float)} and
+ * {@link Sample#setDefaultLoadSampleRate(float)}.
+ * <p>
+ * When the ratio of the two rates is a simple fraction, as it is between the common rates
+ * (e.g. 44100 to 48000 is 160/147), a polyphase filter bank with one set of coefficients per
+ * output phase is precomputed. Otherwise coefficients are interpolated from a finely sampled
+ * table. When downsampling, the cutoff is lowered to avoid aliasing. Large conversions are
+ * split across several threads.
+ *
+ * @author Beads Team
+ */
+public class SampleRateConverter {
+
+	/** The default number of zero crossings of the sinc on either side of the centre. */
+	public static final int DEFAULT_ZERO_CROSSINGS = 24;
+
+	/** Cutoff frequency as a fraction of the lower Nyquist frequency. */
+	private static final double ROLLOFF = 0.94;
+
+	/** Kaiser window shape parameter, giving roughly 90dB stopband attenuation. */
+	private static final double KAISER_BETA = 9;
+
+	/** Largest number of phases for which a polyphase filter bank is precomputed. */
+	private static final int MAX_PHASES = 1024;
+
+	/** Table entries per input sample when interpolating coefficients. */
+	private static final int TABLE_RESOLUTION = 512;
+
+	/** Output frames per task when splitting the work between threads. */
+	private static final int FRAMES_PER_TASK = 1 << 17;
+
+	private static int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private static ExecutorService pool;
+
+	private final double step;
+	private final double cutoff;
+	private final double halfWidth;
+	private final int taps;
+	private final int phases;
+	private final long stepNum;
+	private final float[][] bank;
+	private final float[] table;
+
+	/**
+	 * Creates a converter between the given rates, with the default quality.
+	 *
+	 * @param fromRate the sample rate of the input.
+	 * @param toRate the sample rate of the output.
+	 */
+	public SampleRateConverter(float fromRate, float toRate) {
+		this(fromRate, toRate, DEFAULT_ZERO_CROSSINGS);
+	}
+
+	/**
+	 * Creates a converter between the given rates.
+	 *
+	 * @param fromRate the sample rate of the input.
+	 * @param toRate the sample rate of the output.
+	 * @param zeroCrossings the number of zero crossings either side of the centre of the filter. Higher gives a sharper filter but is slower.
+	 */
+	public SampleRateConverter(float fromRate, float toRate, int zeroCrossings) {
+		step = (double) fromRate / toRate;
+		cutoff = ROLLOFF * Math.min(1.0, 1.0 / step);
+		halfWidth = zeroCrossings / cutoff;
+		taps = 2 * (int) Math.ceil(halfWidth);
+		// look for a simple fraction, toRate / fromRate = p / q
+		long p = Math.round(toRate), q = Math.round(fromRate);
+		int p0 = 0;
+		if (p == toRate && q == fromRate && p > 0 && q > 0) {
+			long g = gcd(p, q);
+			if (p / g <= MAX_PHASES) p0 = (int) (p / g);
+			q /= g;
+		}
+		phases = p0;
+		stepNum = q;
+		if (phases > 0) {
+			bank = new float[phases][taps];
+			for (int phase = 0; phase < phases; phase++) {
+				double frac = (double) phase / phases;
+				for (int m = 0; m < taps; m++) {
+					bank[phase][m] = (float) kernel(frac + taps / 2 - 1 - m);
+				}
+			}
+			table = null;
+		} else {
+			bank = null;
+			table = new float[(int) Math.ceil(halfWidth * TABLE_RESOLUTION) + 2];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (float) kernel((double) i / TABLE_RESOLUTION);
+			}
+		}
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/**
+	 * The windowed sinc, x in input samples.
+	 */
+	private double kernel(double x) {
+		double ax = Math.abs(x);
+		if (ax >= halfWidth) return 0;
+		double sinc = ax < 1e-9 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+		double r = x / halfWidth;
+		double window = bessel0(KAISER_BETA * Math.sqrt(1 - r * r)) / bessel0(KAISER_BETA);
+		return cutoff * sinc * window;
+	}
+
+	/**
+	 * Zeroth order modified Bessel function of the first kind.
+	 */
+	private static double bessel0(double x) {
+		double sum = 1, term = 1, halfX = x / 2;
+		for (int k = 1; k < 50; k++) {
+			term *= (halfX / k) * (halfX / k);
+			sum += term;
+			if (term < sum * 1e-12) break;
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the number of input frames that each output frame is worked out from.
+	 *
+	 * @return the length of the filter.
+	 */
+	int getFilterLength() {
+		return taps;
+	}
+
+	/**
+	 * Gets the number of output frames produced from the given number of input frames.
+	 *
+	 * @param inputFrames the number of input frames.
+	 * @return the number of output frames.
+	 */
+	public int getOutputLength(int inputFrames) {
+		return (int) Math.ceil(inputFrames / step);
+	}
+
+	/**
+	 * Converts one channel.
+	 *
+	 * @param in the input.
+	 * @return the output, of length {@link #getOutputLength(int)}.
+	 */
+	public float[] process(float[] in) {
+		float[] out = new float[getOutputLength(in.length)];
+		process(in, out, 0, out.length);
+		return out;
+	}
+
+	/**
+	 * Converts a range of output frames of one channel.
+	 *
+	 * @param in the whole input.
+	 * @param out the whole output.
+	 * @param start the first output frame to compute.
+	 * @param end one after the last output frame to compute.
+	 */
+	public void process(float[] in, float[] out, int start, int end) {
+		int n = in.length;
+		int half = taps / 2;
+		for (int j = start; j < end; j++) {
+			if (bank != null) {
+				// exact positions, j * q / p
+				long pos = (long) j * stepNum;
+				int i0 = (int) (pos / phases);
+				int phase = (int) (pos % phases);
+				float[] coeffs = bank[phase];
+				int first = i0 - half + 1;
+				double sum = 0;
+				if (first >= 0 && first + taps <= n) {
+					for (int m = 0; m < taps; m++) {
+						sum += in[first + m] * coeffs[m];
+					}
+				} else {
+					for (int m = 0; m < taps; m++) {
+						int k = first + m;
+						if (k >= 0 && k < n) sum += in[k] * coeffs[m];
+					}
+				}
+				out[j] = (float) sum;
+			} else {
+				double t = j * step;
+				int i0 = (int) Math.floor(t);
+				double sum = 0;
+				for (int m = 0; m < taps; m++) {
+					int k = i0 - half + 1 + m;
+					if (k < 0 || k >= n) continue;
+					double x = Math.abs(t - k) * TABLE_RESOLUTION;
+					int xi = (int) x;
+					if (xi + 1 >= table.length) continue;
+					double xf = x - xi;
+					sum += in[k] * (table[xi] + xf * (table[xi + 1] - table[xi]));
+				}
+				out[j] = (float) sum;
+			}
+		}
+	}
+
+	/**
+	 * Converts audio data from one sample rate to another, using several threads for large data.
+	 *
+	 * @param data the data in the form float[channel][frame].
+	 * @param fromRate the sample rate of the data.
+	 * @param toRate the new sample rate.
+	 * @return the converted data.
+	 */
+	public static float[][] resample(final float[][] data, float fromRate, float toRate) {
+		final SampleRateConverter converter = new SampleRateConverter(fromRate, toRate);
+		int nFrames = data.length == 0 ? 0 : data[0].length;
+		final int outFrames = converter.getOutputLength(nFrames);
+		final float[][] out = new float[data.length][outFrames];
+		if (numThreads <= 1 || (long) outFrames * data.length <= FRAMES_PER_TASK) {
+			for (int c = 0; c < data.length; c++) {
+				converter.process(data[c], out[c], 0, outFrames);
+			}
+			return out;
+		}
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		ExecutorService pool = getPool();
+		for (int c = 0; c < data.length; c++) {
+			for (int start = 0; start < outFrames; start += FRAMES_PER_TASK) {
+				final int channel = c;
+				final int first = start;
+				final int end = Math.min(outFrames, start + FRAMES_PER_TASK);
+				Runnable task = new Runnable() {
+					public void run() {
+						converter.process(data[channel], out[channel], first, end);
+					}
+				};
+				try {
+					tasks.add(pool.submit(task));
+				} catch (RejectedExecutionException e) {
+					// the pool was shut down by setNumThreads, this thread does the work instead
+					task.run();
+				}
+			}
+		}
+		try {
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while resampling", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Resampling failed", e.getCause());
+		}
+		return out;
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SampleRateConverter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets the number of threads used for large conversions.
+	 *
+	 * @return the number of threads.
+	 */
+	public static int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Sets the number of threads used for large conversions. The default is the number of processors.
+	 *
+	 * @param threads the number of threads.
+	 */
+	public static synchronized void setNumThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (threads != numThreads && pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		numThreads = threads;
+	}
+}
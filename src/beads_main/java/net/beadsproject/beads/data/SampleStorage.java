@@ -0,0 +1,145 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+/**
+ * SampleStorage holds the audio data of a {@link Sample}. By default a Sample stores
+ * its data in a {@link FloatSampleStorage}, one float[] per channel, but other
+ * implementations can trade off speed, memory and flexibility, for example
+ * {@link ChunkedSampleStorage}, which can grow without copying.
+ * <p>
+ * Values are normalised floats, channels and frames are zero-indexed. Implementations
+ * do not need to do any bounds checking, this is taken care of by {@link Sample}.
+ *
+ * @see Sample#setStorage(SampleStorage)
+ * @author Beads Team
+ */
+public abstract class SampleStorage {
+
+	/**
+	 * Gets the number of channels.
+	 *
+	 * @return the number of channels.
+	 */
+	public abstract int getNumChannels();
+
+	/**
+	 * Gets the number of frames.
+	 *
+	 * @return the number of frames.
+	 */
+	public abstract long getNumFrames();
+
+	/**
+	 * Gets a single value.
+	 *
+	 * @param channel the channel.
+	 * @param frame the frame.
+	 * @return the value.
+	 */
+	public abstract float get(int channel, int frame);
+
+	/**
+	 * Sets a single value.
+	 *
+	 * @param channel the channel.
+	 * @param frame the frame.
+	 * @param value the new value.
+	 */
+	public abstract void put(int channel, int frame, float value);
+
+	/**
+	 * Changes the number of frames. Any new frames are zero. Implementations may
+	 * need to copy the data, so this can be slow.
+	 *
+	 * @param frames the new number of frames.
+	 */
+	public abstract void resize(long frames);
+
+	/**
+	 * Copies a run of consecutive values from one channel into an array. Subclasses
+	 * should override this with something faster than the default per-value copy.
+	 *
+	 * @param channel the channel.
+	 * @param frame the first frame to copy.
+	 * @param dest the array to copy into.
+	 * @param offset the offset into dest.
+	 * @param length the number of values to copy.
+	 */
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			dest[offset + i] = get(channel, frame + i);
+		}
+	}
+
+	/**
+	 * Copies a run of consecutive values from an array into one channel. Subclasses
+	 * should override this with something faster than the default per-value copy.
+	 *
+	 * @param channel the channel.
+	 * @param frame the first frame to write to.
+	 * @param src the array to copy from.
+	 * @param offset the offset into src.
+	 * @param length the number of values to copy.
+	 */
+	public void put(int channel, int frame, float[] src, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			put(channel, frame + i, src[offset + i]);
+		}
+	}
+
+	/**
+	 * Tells the storage which frames are likely to be read next, so that storages that
+	 * fetch data in the background (such as {@link StreamingSampleStorage}) can get them
+	 * ready. Players call this once per buffer. The default implementation does nothing.
+	 *
+	 * @param frame the current playback frame.
+	 * @param forwards true if playback is moving forwards through the data.
+	 * @param loopStart the first frame of the loop, or -1 if not looping.
+	 * @param loopEnd the last frame of the loop, or -1 if not looping.
+	 * @param alternating true if the loop alternates direction at each end.
+	 */
+	public void prefetchHint(int frame, boolean forwards, int loopStart, int loopEnd, boolean alternating) {
+	}
+
+	/**
+	 * Gets the number of bytes of memory used to hold the data. The default assumes
+	 * four bytes per value.
+	 *
+	 * @return the memory used, in bytes.
+	 */
+	public long getMemoryUsage() {
+		return (long) getNumChannels() * getNumFrames() * 4;
+	}
+
+	/**
+	 * Sets all values to zero.
+	 */
+	public void clear() {
+		int nChannels = getNumChannels();
+		int nFrames = (int) getNumFrames();
+		for (int c = 0; c < nChannels; c++) {
+			for (int i = 0; i < nFrames; i++) {
+				put(c, i, 0f);
+			}
+		}
+	}
+
+	/**
+	 * Gets the data as one float[] per channel. The default implementation copies the data
+	 * into new arrays. {@link FloatSampleStorage} returns its own arrays, so the
+	 * result should be treated as read-only.
+	 *
+	 * @return the data in the form float[channel][frame].
+	 */
+	public float[][] asFloatArrays() {
+		int nChannels = getNumChannels();
+		int nFrames = (int) getNumFrames();
+		float[][] data = new float[nChannels][nFrames];
+		for (int c = 0; c < nChannels; c++) {
+			get(c, 0, data[c], 0, nFrames);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Arrays;
+
+/**
+ * A {@link SampleStorage} that keeps each value as a 16-bit integer, one short[] per
+ * channel, using half the memory of {@link FloatSampleStorage}. Values are converted
+ * to and from floats as they are read and written, so 16-bit audio files are held
+ * exactly, while values outside the range -1 to 1 are clipped.
+ *
+ * @see Sample.StorageFormat#SHORT
+ * @author Beads Team
+ */
+public class ShortSampleStorage extends SampleStorage {
+
+	private static final float SCALE = 32768f;
+	private static final float INV_SCALE = 1f / 32768f;
+
+	/** The data, data[0] first channel, data[1] second channel, etc. */
+	private short[][] data;
+
+	/**
+	 * Creates a new zeroed ShortSampleStorage.
+	 *
+	 * @param nChannels the number of channels.
+	 * @param nFrames the number of frames.
+	 */
+	public ShortSampleStorage(int nChannels, long nFrames) {
+		data = new short[nChannels][(int) nFrames];
+	}
+
+	/**
+	 * Creates a ShortSampleStorage holding a copy of the given data.
+	 *
+	 * @param source the data in the form float[channel][frame].
+	 */
+	public ShortSampleStorage(float[][] source) {
+		this(source.length, source.length == 0 ? 0 : source[0].length);
+		for (int c = 0; c < source.length; c++) {
+			put(c, 0, source[c], 0, source[c].length);
+		}
+	}
+
+	private static short encode(float value) {
+		int v = Math.round(value * SCALE);
+		return (short) (v > 32767 ? 32767 : (v < -32768 ? -32768 : v));
+	}
+
+	@Override
+	public int getNumChannels() {
+		return data.length;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return data.length == 0 ? 0 : data[0].length;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		return data[channel][frame] * INV_SCALE;
+	}
+
+	@Override
+	public void put(int channel, int frame, float value) {
+		data[channel][frame] = encode(value);
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		short[] d = data[channel];
+		for (int i = 0; i < length; i++) {
+			dest[offset + i] = d[frame + i] * INV_SCALE;
+		}
+	}
+
+	@Override
+	public void put(int channel, int frame, float[] src, int offset, int length) {
+		short[] d = data[channel];
+		for (int i = 0; i < length; i++) {
+			d[frame + i] = encode(src[offset + i]);
+		}
+	}
+
+	@Override
+	public void resize(long frames) {
+		int framesToCopy = (int) Math.min(frames, getNumFrames());
+		short[][] olddata = data;
+		data = new short[olddata.length][(int) frames];
+		for (int i = 0; i < data.length; i++) {
+			System.arraycopy(olddata[i], 0, data[i], 0, framesToCopy);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < data.length; i++) {
+			Arrays.fill(data[i], (short) 0);
+		}
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return (long) getNumChannels() * getNumFrames() * 2;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import net.beadsproject.beads.data.audiofile.FileFormatException;
+import net.beadsproject.beads.data.audiofile.OperationUnsupportedException;
+import net.beadsproject.beads.data.audiofile.WavFileInfo;
+
+/**
+ * StreamingSampleSource lets you play audio files that are too big to load into memory.
+ * Only the first part of the file (the head) is loaded; the rest is read from disk as it
+ * is needed. For example:
+ * <pre>
+ * <code>
+ * StreamingSampleSource source = new StreamingSampleSource("hugeAmbience.wav");
+ * SamplePlayer sp = new SamplePlayer(source.newSample());
+ * </code>
+ * </pre>
+ * Each call to {@link #newSample()} creates a {@link Sample} backed by its own
+ * {@link StreamingSampleStorage}, so use one per player. The Samples share the head and the
+ * open file, and are filled ahead of the playback position by a background thread, so the
+ * audio thread never waits for the disk. {@link net.beadsproject.beads.ugens.SamplePlayer}
+ * tells the storage where it is going (including loop points and direction), so forward,
+ * backward and looped playback all stream smoothly. If the disk can't keep up, silence is
+ * returned and counted as an underrun.
+ * <p>
+ * Only wav files (including RF64) can be streamed. Streamed Samples are read-only.
+ *
+ * @see StreamingSampleStorage
+ * @author Beads Team
+ */
+public class StreamingSampleSource {
+
+	/** Default length of the head, in milliseconds. */
+	public static final double DEFAULT_HEAD_LENGTH = 2000;
+
+	private final String filename;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final WavFileInfo info;
+	private final float[][] head;
+	private final int headFrames;
+
+	/**
+	 * Opens an audio file for streaming with the default head length.
+	 *
+	 * @param filename
+	 *            the wav file.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 * @throws FileFormatException
+	 *             if the file is not a valid wav file.
+	 * @throws OperationUnsupportedException
+	 *             if the encoding is not supported.
+	 */
+	public StreamingSampleSource(String filename) throws IOException, FileFormatException, OperationUnsupportedException {
+		this(filename, DEFAULT_HEAD_LENGTH);
+	}
+
+	/**
+	 * Opens an audio file for streaming.
+	 *
+	 * @param filename
+	 *            the wav file.
+	 * @param headLength
+	 *            the length, in milliseconds, of the beginning of the file that is
+	 *            kept in memory.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 * @throws FileFormatException
+	 *             if the file is not a valid wav file.
+	 * @throws OperationUnsupportedException
+	 *             if the encoding is not supported.
+	 */
+	public StreamingSampleSource(String filename, double headLength) throws IOException, FileFormatException, OperationUnsupportedException {
+		this.filename = filename;
+		raf = new RandomAccessFile(new File(filename), "r");
+		channel = raf.getChannel();
+		try {
+			info = WavFileInfo.read(channel);
+			if (info.numFrames > Integer.MAX_VALUE) {
+				throw new OperationUnsupportedException("Files longer than " + Integer.MAX_VALUE + " frames cannot be streamed");
+			}
+			headFrames = (int) Math.min(info.numFrames, Math.max(0, (long) (headLength * info.sampleRate / 1000.0)));
+			head = new float[info.numChannels][headFrames];
+			ByteBuffer buffer = ByteBuffer.allocate(headFrames * info.blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+			read(buffer, 0, headFrames);
+			info.decode(buffer, 0, head, 0, headFrames);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		} catch (FileFormatException e) {
+			raf.close();
+			throw e;
+		} catch (OperationUnsupportedException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads raw frames from the file into the buffer, starting at position 0 in the buffer.
+	 * Safe to call from multiple threads.
+	 */
+	void read(ByteBuffer buffer, long frame, int numFrames) throws IOException {
+		buffer.clear();
+		buffer.limit(numFrames * info.blockAlign);
+		long position = info.dataOffset + frame * info.blockAlign;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) throw new IOException("Unexpected end of file " + filename);
+		}
+	}
+
+	/**
+	 * Creates a new {@link Sample} that streams from this source. Create one per player.
+	 *
+	 * @return the Sample.
+	 */
+	public Sample newSample() {
+		return newSample(StreamingSampleStorage.DEFAULT_BLOCK_SIZE, StreamingSampleStorage.DEFAULT_NUM_BLOCKS);
+	}
+
+	/**
+	 * Creates a new {@link Sample} that streams from this source, specifying the size of
+	 * its read-ahead buffer. Create one per player.
+	 *
+	 * @param blockSize
+	 *            the number of frames read from disk at a time, rounded up to a power of two.
+	 * @param numBlocks
+	 *            the number of blocks held in memory.
+	 * @return the Sample.
+	 */
+	public Sample newSample(int blockSize, int numBlocks) {
+		Sample sample = new Sample(new StreamingSampleStorage(this, blockSize, numBlocks), info.sampleRate);
+		sample.setSimpleName(new File(filename).getName());
+		return sample;
+	}
+
+	/**
+	 * Closes the file. Samples created from this source will no longer be able to stream.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be closed.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Determines whether the file is still open.
+	 *
+	 * @return true if open.
+	 */
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Gets the file name.
+	 *
+	 * @return the file name.
+	 */
+	public String getFileName() {
+		return filename;
+	}
+
+	/**
+	 * Gets the format and layout of the file.
+	 *
+	 * @return the WavFileInfo.
+	 */
+	public WavFileInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * Gets the number of frames held in memory.
+	 *
+	 * @return the number of frames in the head.
+	 */
+	public int getHeadFrames() {
+		return headFrames;
+	}
+
+	float[][] getHead() {
+		return head;
+	}
+}
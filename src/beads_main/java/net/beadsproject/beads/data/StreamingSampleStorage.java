@@ -0,0 +1,440 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A read-only {@link SampleStorage} that streams audio from disk. Create these using
+ * {@link StreamingSampleSource#newSample()}.
+ * <p>
+ * Frames in the head of the file are read from the memory shared by the
+ * {@link StreamingSampleSource}. The rest of the file is divided into blocks, and each
+ * storage keeps a small cache of blocks that a shared background loader thread fills ahead
+ * of the playback position. Which blocks are needed is worked out from the most recent
+ * {@link #prefetchHint(int, boolean, int, int, boolean) prefetch hint} (sent once per buffer
+ * by {@link net.beadsproject.beads.ugens.SamplePlayer}) or, failing that, from the most recent
+ * frame that was not available. Once a hint has been sent, only frames missed on the thread
+ * that sent it move the hint, so background readers don't draw the loader away from playback.
+ * The audio thread never blocks: a frame that has not been loaded yet reads as zero and is
+ * counted as an underrun.
+ *
+ * @see StreamingSampleSource
+ * @author Beads Team
+ */
+public class StreamingSampleStorage extends SampleStorage {
+
+	/** Default block size in frames. */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 15;
+
+	/** Default number of blocks held in memory per storage. */
+	public static final int DEFAULT_NUM_BLOCKS = 8;
+
+	/** All live storages, serviced by the loader thread. */
+	private static final CopyOnWriteArrayList<WeakReference<StreamingSampleStorage>> storages = new CopyOnWriteArrayList<WeakReference<StreamingSampleStorage>>();
+
+	/** The loader thread, started when the first storage is created. */
+	private static Thread loaderThread;
+
+	private final StreamingSampleSource source;
+	private final float[][] head;
+	private final int headFrames;
+	private final int nChannels;
+	private final int nFrames;
+	private final int shift;
+	private final int blockSize;
+	private final int mask;
+	private final int lastBlock;
+
+	/** The cached blocks, slots[slot][channel][frame within block]. */
+	private final float[][][] slots;
+
+	/** The block held in each slot, or -1 if the slot is empty or being loaded. */
+	private final AtomicIntegerArray slotBlocks;
+
+	/** The slot last read from. Only used by the reading thread. */
+	private int lastSlot;
+
+	/** The last error encountered by the loader thread while reading from the source, if any. */
+	private volatile IOException error;
+
+	/** Buffer used by the loader thread to read raw data. */
+	private ByteBuffer readBuffer;
+
+	/** Scratch space used by the loader thread to work out which blocks are needed. */
+	private final int[] wanted;
+
+	// the most recent information about where playback is heading
+	private volatile int hintFrame;
+	private volatile boolean hintForwards = true;
+	private volatile int hintLoopStart = -1;
+	private volatile int hintLoopEnd = -1;
+	private volatile boolean hintAlternating;
+
+	/** The thread that sent the most recent prefetch hint, or null if none has been sent. */
+	private volatile Thread hintThread;
+
+	private volatile long underruns;
+	private volatile boolean released;
+
+	StreamingSampleStorage(StreamingSampleSource source, int blockSize, int numBlocks) {
+		this.source = source;
+		head = source.getHead();
+		headFrames = source.getHeadFrames();
+		nChannels = source.getInfo().numChannels;
+		nFrames = (int) source.getInfo().numFrames;
+		int s = 0;
+		while ((1 << s) < blockSize && s < 30) s++;
+		shift = s;
+		this.blockSize = 1 << s;
+		mask = this.blockSize - 1;
+		lastBlock = Math.max(0, (nFrames - 1) >>> shift);
+		numBlocks = Math.max(2, numBlocks);
+		slots = new float[numBlocks][nChannels][this.blockSize];
+		slotBlocks = new AtomicIntegerArray(numBlocks);
+		wanted = new int[numBlocks];
+		for (int i = 0; i < numBlocks; i++) {
+			slotBlocks.set(i, -1);
+		}
+		hintFrame = headFrames;
+		register(this);
+	}
+
+	@Override
+	public int getNumChannels() {
+		return nChannels;
+	}
+
+	@Override
+	public long getNumFrames() {
+		return nFrames;
+	}
+
+	@Override
+	public float get(int channel, int frame) {
+		if (frame < headFrames) {
+			return head[channel][frame];
+		}
+		int block = frame >>> shift;
+		int slot = lastSlot;
+		if (slotBlocks.get(slot) != block) {
+			slot = findSlot(block);
+			if (slot < 0) {
+				miss(frame);
+				return 0f;
+			}
+			lastSlot = slot;
+		}
+		float value = slots[slot][channel][frame & mask];
+		// the loader may have replaced the block while we were reading
+		return slotBlocks.get(slot) == block ? value : 0f;
+	}
+
+	@Override
+	public void get(int channel, int frame, float[] dest, int offset, int length) {
+		if (frame < headFrames) {
+			int n = Math.min(length, headFrames - frame);
+			System.arraycopy(head[channel], frame, dest, offset, n);
+			frame += n;
+			offset += n;
+			length -= n;
+		}
+		while (length > 0) {
+			int block = frame >>> shift;
+			int pos = frame & mask;
+			int n = Math.min(length, blockSize - pos);
+			int slot = findSlot(block);
+			if (slot >= 0) {
+				System.arraycopy(slots[slot][channel], pos, dest, offset, n);
+				if (slotBlocks.get(slot) != block) {
+					Arrays.fill(dest, offset, offset + n, 0f);
+				}
+			} else {
+				miss(frame);
+				Arrays.fill(dest, offset, offset + n, 0f);
+			}
+			frame += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private int findSlot(int block) {
+		for (int i = 0; i < slots.length; i++) {
+			if (slotBlocks.get(i) == block) return i;
+		}
+		return -1;
+	}
+
+	private void miss(int frame) {
+		underruns++;
+		Thread t = hintThread;
+		if (hintLoopStart < 0 && (t == null || t == Thread.currentThread())) {
+			hintFrame = frame;
+		}
+		LockSupport.unpark(loaderThread);
+	}
+
+	/**
+	 * Streamed storage is read-only, so this throws an UnsupportedOperationException.
+	 */
+	@Override
+	public void put(int channel, int frame, float value) {
+		throw new UnsupportedOperationException("StreamingSampleStorage is read-only");
+	}
+
+	/**
+	 * Streamed storage is read-only, so this throws an UnsupportedOperationException.
+	 */
+	@Override
+	public void put(int channel, int frame, float[] src, int offset, int length) {
+		throw new UnsupportedOperationException("StreamingSampleStorage is read-only");
+	}
+
+	/**
+	 * Streamed storage is read-only, so this throws an UnsupportedOperationException.
+	 */
+	@Override
+	public void resize(long frames) {
+		throw new UnsupportedOperationException("StreamingSampleStorage is read-only");
+	}
+
+	/**
+	 * Streamed storage is read-only, so this throws an UnsupportedOperationException.
+	 */
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("StreamingSampleStorage is read-only");
+	}
+
+	/**
+	 * Tells the loader thread where playback is heading.
+	 */
+	@Override
+	public void prefetchHint(int frame, boolean forwards, int loopStart, int loopEnd, boolean alternating) {
+		Thread t = Thread.currentThread();
+		if (hintThread != t) hintThread = t;
+		int oldBlock = hintFrame >>> shift;
+		hintFrame = Math.max(0, Math.min(frame, nFrames - 1));
+		if (hintForwards != forwards) hintForwards = forwards;
+		if (hintLoopStart != loopStart) hintLoopStart = loopStart;
+		if (hintLoopEnd != loopEnd) hintLoopEnd = loopEnd;
+		if (hintAlternating != alternating) hintAlternating = alternating;
+		if (oldBlock != (hintFrame >>> shift)) {
+			LockSupport.unpark(loaderThread);
+		}
+	}
+
+	/**
+	 * Loads the blocks around the given frame, blocking until they are read. Use this before
+	 * starting playback somewhere other than the beginning of the file, for example at the end
+	 * for backwards playback. Do not call this from the audio thread.
+	 *
+	 * @param frame
+	 *            the frame playback will start from.
+	 * @param forwards
+	 *            the direction of playback.
+	 */
+	public void prefill(int frame, boolean forwards) {
+		prefetchHint(frame, forwards, -1, -1, false);
+		synchronized (this) {
+			while (service()) {
+				// keep going until all wanted blocks are loaded
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of times a frame was requested before it had been loaded.
+	 *
+	 * @return the number of underruns.
+	 */
+	public long getNumUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * Gets the last error encountered while reading from the source, if any. Frames that could
+	 * not be read are counted as underruns.
+	 *
+	 * @return the error, or null.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		// the head is shared with other storages reading from the same source
+		return (long) slots.length * nChannels * blockSize * 4;
+	}
+
+	/**
+	 * Stops the loader thread from servicing this storage and releases its blocks. This
+	 * happens automatically when the storage is garbage collected.
+	 */
+	public void release() {
+		released = true;
+		for (int i = 0; i < slots.length; i++) {
+			slotBlocks.set(i, -1);
+		}
+	}
+
+	/**
+	 * Gets the {@link StreamingSampleSource} this storage reads from.
+	 *
+	 * @return the source.
+	 */
+	public StreamingSampleSource getSource() {
+		return source;
+	}
+
+	/**
+	 * Works out which blocks should be in memory, in order of priority, starting with the block
+	 * containing the hinted frame and following the direction of playback and any loop.
+	 */
+	private int wantedBlocks(int[] wanted) {
+		int frame = hintFrame;
+		int dir = hintForwards ? 1 : -1;
+		int loopStart = hintLoopStart;
+		int loopEnd = hintLoopEnd;
+		boolean looping = loopStart >= 0 && loopEnd > loopStart;
+		int loopStartBlock = looping ? (loopStart >>> shift) : 0;
+		int loopEndBlock = looping ? (Math.min(loopEnd, nFrames - 1) >>> shift) : lastBlock;
+		boolean alternating = hintAlternating;
+		int count = 0;
+		int block = frame >>> shift;
+		for (int steps = 0; steps < wanted.length * 2 && count < wanted.length; steps++) {
+			if (block < 0 || block > lastBlock) break;
+			boolean inHead = ((block + 1) << shift) <= headFrames;
+			boolean seen = false;
+			for (int i = 0; i < count; i++) {
+				if (wanted[i] == block) {
+					seen = true;
+					break;
+				}
+			}
+			if (!inHead && !seen) {
+				wanted[count++] = block;
+			}
+			int next = block + dir;
+			if (looping && dir > 0 && block == loopEndBlock) {
+				if (alternating) {
+					dir = -1;
+					next = block - 1;
+				} else {
+					next = loopStartBlock;
+				}
+			} else if (looping && dir < 0 && block == loopStartBlock) {
+				if (alternating) {
+					dir = 1;
+					next = block + 1;
+				} else {
+					next = loopEndBlock;
+				}
+			}
+			block = next;
+		}
+		return count;
+	}
+
+	/**
+	 * Loads the most urgent missing block, if any. Called by the loader thread.
+	 *
+	 * @return true if a block was loaded.
+	 */
+	private boolean service() {
+		if (released || !source.isOpen()) return false;
+		int count = wantedBlocks(wanted);
+		for (int w = 0; w < count; w++) {
+			int block = wanted[w];
+			if (findSlot(block) >= 0) continue;
+			int victim = -1;
+			for (int i = 0; i < slots.length && victim < 0; i++) {
+				int held = slotBlocks.get(i);
+				boolean keep = false;
+				for (int j = 0; j < count; j++) {
+					if (wanted[j] == held) {
+						keep = true;
+						break;
+					}
+				}
+				if (!keep) victim = i;
+			}
+			if (victim < 0) return false;
+			load(block, victim);
+			return true;
+		}
+		return false;
+	}
+
+	private void load(int block, int slot) {
+		slotBlocks.set(slot, -1);
+		int start = block << shift;
+		int frames = Math.min(blockSize, nFrames - start);
+		if (readBuffer == null) {
+			readBuffer = ByteBuffer.allocate(blockSize * source.getInfo().blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		try {
+			source.read(readBuffer, start, frames);
+		} catch (IOException e) {
+			if (source.isOpen()) error = e;
+			return;
+		}
+		float[][] data = slots[slot];
+		source.getInfo().decode(readBuffer, 0, data, 0, frames);
+		if (frames < blockSize) {
+			for (int c = 0; c < nChannels; c++) {
+				Arrays.fill(data[c], frames, blockSize, 0f);
+			}
+		}
+		slotBlocks.set(slot, block);
+	}
+
+	private static synchronized void register(StreamingSampleStorage storage) {
+		storages.add(new WeakReference<StreamingSampleStorage>(storage));
+		if (loaderThread == null) {
+			loaderThread = new Thread(new Runnable() {
+				public void run() {
+					runLoader();
+				}
+			}, "StreamingSampleStorage loader");
+			loaderThread.setDaemon(true);
+			loaderThread.start();
+		}
+	}
+
+	/**
+	 * The body of the loader thread. Services each storage in turn, loading one block at a
+	 * time from each so that no storage is starved, and sleeps when there is nothing to do.
+	 */
+	private static void runLoader() {
+		while (true) {
+			boolean didWork = false;
+			Iterator<WeakReference<StreamingSampleStorage>> it = storages.iterator();
+			while (it.hasNext()) {
+				WeakReference<StreamingSampleStorage> ref = it.next();
+				StreamingSampleStorage storage = ref.get();
+				if (storage == null || storage.released) {
+					storages.remove(ref);
+				} else {
+					synchronized (storage) {
+						didWork |= storage.service();
+					}
+				}
+			}
+			if (!didWork) {
+				LockSupport.parkNanos(10000000L);
+			}
+		}
+	}
+}
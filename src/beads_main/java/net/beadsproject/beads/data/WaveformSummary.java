@@ -0,0 +1,584 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WaveformSummary holds the minimum, maximum and RMS level of a {@link Sample} over blocks of
+ * frames at a range of resolutions, so that overviews can be drawn and peaks found at any zoom
+ * level without scanning the audio data. Get a Sample's summary with {@link Sample#getWaveformSummary()},
+ * and query it with {@link #getPeaks(int, long, long, int, float[], float[], float[])}, which takes
+ * time in proportion to the number of pixels rather than the number of frames. For example:
+ * <pre>
+ * <code>
+ * WaveformSummary summary = sample.getWaveformSummary();
+ * summary.getPeaks(0, 0, sample.getNumFrames(), width, min, max, rms);
+ * </code>
+ * </pre>
+ * The summary is built on a background thread; until it is complete, the parts not yet summarised
+ * read as silence (see {@link #isComplete()}). It is kept up to date as the Sample is written to,
+ * for example by {@link net.beadsproject.beads.ugens.RecordToSample}: writes and changes of length
+ * just mark the frames as changed, without locking or allocating, and the summary of those frames
+ * is recomputed when it is next queried.
+ * <p>
+ * The finest level summarises blocks of {@link #BLOCK_SIZE} frames, and each level above combines
+ * pairs of blocks from the level below. With {@link #setPersistent(boolean)}, the summaries of
+ * Samples loaded from files are saved next to the files, with the extension ".peaks" added, and
+ * read back the next time.
+ *
+ * @author Beads Team
+ */
+public class WaveformSummary {
+
+	/** The number of frames summarised by each block of the finest level. */
+	public static final int BLOCK_SIZE = 256;
+
+	/** Identifies a saved summary, "BDWS". */
+	private static final int MAGIC = 0x53574442;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final String SUFFIX = ".peaks";
+
+	/** Blocks recomputed at a time by the background thread. */
+	private static final int BLOCKS_PER_STEP = 256;
+
+	/** Changed blocks up to this many are recomputed during a query, more are left to the background thread. */
+	private static final int MAX_INLINE_BLOCKS = 256;
+
+	private static boolean persistent = false;
+
+	/** A dirty range with no blocks in it. */
+	private static final long CLEAN = range(Integer.MAX_VALUE, 0);
+
+	private final Sample sample;
+	private final int nChannels;
+
+	/** The number of frames in the Sample, which may be ahead of the levels until they are next used. */
+	private volatile long nFrames;
+
+	/** 
+	 * The levels, [level][channel][block], finest first. Each level has room for more blocks than the
+	 * Sample may need, and grows by doubling, so that a recording doesn't copy them every buffer. Only
+	 * used with the lock held.
+	 */
+	private float[][][] mins, maxs, squares;
+
+	/** The number of blocks of the finest level there is room for. */
+	private int capacity;
+
+	/** 
+	 * The range of blocks of the finest level that need recomputing, packed into one long by
+	 * {@link #range(int, int)} so that it can be widened by the writing thread without locking.
+	 */
+	private final AtomicLong dirty;
+
+	private boolean refreshing;
+	private float[] scratch;
+
+	/**
+	 * Creates a summary of the given Sample, initially with every block needing to be computed.
+	 */
+	WaveformSummary(Sample sample) {
+		this.sample = sample;
+		this.nChannels = sample.getNumChannels();
+		nFrames = sample.getNumFrames();
+		ensureCapacity(blocksFor(nFrames));
+		dirty = new AtomicLong(range(0, (int) blocksFor(nFrames)));
+	}
+
+	private static long blocksFor(long frames) {
+		return (frames + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+
+	private static long range(int from, int to) {
+		return (long) from << 32 | to & 0xffffffffL;
+	}
+
+	private static int from(long range) {
+		return (int) (range >>> 32);
+	}
+
+	private static int to(long range) {
+		return (int) range;
+	}
+
+	/**
+	 * Gets the number of levels needed for the given number of blocks of the finest level.
+	 */
+	private static int levelsFor(long blocks) {
+		int numLevels = 1;
+		for (; blocks > 1; blocks = (blocks + 1) / 2) {
+			numLevels++;
+		}
+		return numLevels;
+	}
+
+	/**
+	 * Makes room for at least the given number of blocks of the finest level, keeping existing blocks.
+	 */
+	private void ensureCapacity(long blocks) {
+		if (mins != null && blocks <= capacity) return;
+		int newCapacity = (int) Math.max(blocks, 2L * capacity);
+		int numLevels = levelsFor(newCapacity);
+		float[][][] oldMins = mins, oldMaxs = maxs, oldSquares = squares;
+		mins = new float[numLevels][nChannels][];
+		maxs = new float[numLevels][nChannels][];
+		squares = new float[numLevels][nChannels][];
+		long size = newCapacity;
+		for (int level = 0; level < numLevels; level++) {
+			for (int c = 0; c < nChannels; c++) {
+				mins[level][c] = new float[(int) size];
+				maxs[level][c] = new float[(int) size];
+				squares[level][c] = new float[(int) size];
+				if (oldMins != null && level < oldMins.length) {
+					int keep = oldMins[level][c].length;
+					System.arraycopy(oldMins[level][c], 0, mins[level][c], 0, keep);
+					System.arraycopy(oldMaxs[level][c], 0, maxs[level][c], 0, keep);
+					System.arraycopy(oldSquares[level][c], 0, squares[level][c], 0, keep);
+				}
+			}
+			size = (size + 1) / 2;
+		}
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Marks a range of frames as changed. Called by {@link Sample} whenever it is written to, 
+	 * possibly on the audio thread, so this never locks or allocates.
+	 *
+	 * @param fromFrame the first frame changed.
+	 * @param toFrame one after the last frame changed.
+	 */
+	void invalidate(long fromFrame, long toFrame) {
+		long from = Math.max(0, fromFrame / BLOCK_SIZE);
+		long to = Math.min(blocksFor(nFrames), blocksFor(toFrame));
+		if (to <= from) return;
+		markDirty((int) from, (int) to);
+	}
+
+	/**
+	 * Widens the dirty range to include the given blocks.
+	 */
+	private void markDirty(int from, int to) {
+		while (true) {
+			long old = dirty.get();
+			long widened = to(old) <= from(old) ? range(from, to) : range(Math.min(from(old), from), Math.max(to(old), to));
+			if (widened == old || dirty.compareAndSet(old, widened)) return;
+		}
+	}
+
+	/**
+	 * Called by {@link Sample} when its length changes, possibly on the audio thread. Only the length is
+	 * changed here, and new frames are marked as changed; the levels grow when they are next used.
+	 */
+	void resize(long frames) {
+		long oldFrames = nFrames;
+		nFrames = frames;
+		if (frames > oldFrames) {
+			// the last old block may have been partial
+			invalidate(oldFrames - oldFrames % BLOCK_SIZE, frames);
+		} else if (frames < oldFrames && frames > 0) {
+			invalidate(frames - 1, frames);
+		}
+	}
+
+	/**
+	 * Recomputes up to the given number of changed blocks. Nothing is done while the Sample is
+	 * evicted, as its data would read as silence.
+	 *
+	 * @return true if there are no more changed blocks.
+	 */
+	private synchronized boolean refresh(int maxBlocks) {
+		long taken = dirty.getAndSet(CLEAN);
+		long frames = nFrames;
+		int numBlocks = (int) blocksFor(frames);
+		int from = from(taken);
+		int to = Math.min(to(taken), numBlocks);
+		if (to <= from) return dirtyBlocks() == 0;
+		SampleStorage storage = sample.getStorage();
+		if (sample.isEvicted() || storage != sample.getStorage()) {
+			// leave the blocks to be done once the data has been reloaded
+			markDirty(from, to);
+			return false;
+		}
+		if (to - from > maxBlocks) {
+			// put back what won't be done this time
+			markDirty(from + maxBlocks, to);
+			to = from + maxBlocks;
+		}
+		ensureCapacity(numBlocks);
+		frames = Math.min(frames, storage.getNumFrames());
+		if (scratch == null) {
+			scratch = new float[BLOCK_SIZE * BLOCKS_PER_STEP];
+		}
+		for (int c = 0; c < nChannels; c++) {
+			float[] min = mins[0][c], max = maxs[0][c], sq = squares[0][c];
+			for (int b = from; b < to; ) {
+				int blocks = Math.min(to - b, BLOCKS_PER_STEP);
+				long first = (long) b * BLOCK_SIZE;
+				int length = (int) Math.max(0, Math.min((long) blocks * BLOCK_SIZE, frames - first));
+				storage.get(c, (int) first, scratch, 0, length);
+				for (int k = 0; k < blocks; k++) {
+					int start = k * BLOCK_SIZE;
+					int end = Math.min(length, start + BLOCK_SIZE);
+					float lo = 0, hi = 0, sum = 0;
+					if (start < end) {
+						lo = hi = scratch[start];
+						for (int i = start; i < end; i++) {
+							float x = scratch[i];
+							if (x < lo) lo = x;
+							if (x > hi) hi = x;
+							sum += x * x;
+						}
+					}
+					min[b + k] = lo;
+					max[b + k] = hi;
+					sq[b + k] = sum;
+				}
+				b += blocks;
+			}
+		}
+		// combine pairs into the levels above
+		int below = numBlocks;
+		for (int level = 1; level < levelsFor(numBlocks); level++) {
+			from >>= 1;
+			to = (to + 1) >> 1;
+			for (int c = 0; c < nChannels; c++) {
+				float[] cmin = mins[level - 1][c], cmax = maxs[level - 1][c], csq = squares[level - 1][c];
+				float[] min = mins[level][c], max = maxs[level][c], sq = squares[level][c];
+				for (int b = from; b < to; b++) {
+					int i = 2 * b;
+					if (i + 1 < below) {
+						min[b] = Math.min(cmin[i], cmin[i + 1]);
+						max[b] = Math.max(cmax[i], cmax[i + 1]);
+						sq[b] = csq[i] + csq[i + 1];
+					} else {
+						min[b] = cmin[i];
+						max[b] = cmax[i];
+						sq[b] = csq[i];
+					}
+				}
+			}
+			below = (below + 1) / 2;
+		}
+		return dirtyBlocks() == 0;
+	}
+
+	/**
+	 * Gets the number of blocks of the finest level waiting to be recomputed.
+	 */
+	private int dirtyBlocks() {
+		long d = dirty.get();
+		return Math.max(0, to(d) - from(d));
+	}
+
+	/**
+	 * Recomputes all changed blocks on the background thread, a few at a time.
+	 */
+	void refreshLater() {
+		synchronized (this) {
+			if (refreshing || dirtyBlocks() == 0) return;
+			refreshing = true;
+		}
+		Sample.getBackgroundPool().execute(new Runnable() {
+			public void run() {
+				try {
+					while (!refresh(BLOCKS_PER_STEP)) {
+						reloadIfEvicted();
+						Thread.yield();
+					}
+				} finally {
+					synchronized (WaveformSummary.this) {
+						refreshing = false;
+					}
+				}
+				sample.waveformSummaryComplete();
+			}
+		});
+	}
+
+	/**
+	 * Determines whether every block has been computed. Changes made since the summary was last
+	 * queried are not counted.
+	 *
+	 * @return true if complete.
+	 */
+	public synchronized boolean isComplete() {
+		return dirtyBlocks() == 0;
+	}
+
+	/**
+	 * Computes every block now, blocking until it is done.
+	 */
+	public void complete() {
+		while (!refresh(BLOCKS_PER_STEP)) {
+			reloadIfEvicted();
+		}
+	}
+
+	/**
+	 * Reloads the Sample's data if it has been evicted, so that it can be summarised. Only called off the audio thread.
+	 */
+	private void reloadIfEvicted() {
+		if (sample.isEvicted()) {
+			sample.reload();
+		}
+	}
+
+	/**
+	 * Gets the minimum, maximum and RMS level of a range of frames split into equal pixels. Any of the
+	 * result arrays can be null if not needed. Where there are more frames in a pixel than {@link #BLOCK_SIZE},
+	 * the summary is used, with the pixel rounded out to whole blocks; otherwise the frames are read from the
+	 * Sample. Pixels outside the Sample read as 0.
+	 *
+	 * @param channel the channel.
+	 * @param startFrame the first frame of the range.
+	 * @param endFrame one after the last frame of the range.
+	 * @param numPixels the number of pixels to split the range into.
+	 * @param min the minimum of each pixel.
+	 * @param max the maximum of each pixel.
+	 * @param rms the RMS level of each pixel.
+	 */
+	public void getPeaks(int channel, long startFrame, long endFrame, int numPixels, float[] min, float[] max, float[] rms) {
+		double framesPerPixel = (double) (endFrame - startFrame) / numPixels;
+		if (framesPerPixel < BLOCK_SIZE) {
+			getPeaksFromSample(channel, startFrame, framesPerPixel, numPixels, min, max, rms);
+			return;
+		}
+		synchronized (this) {
+			if (dirtyBlocks() <= MAX_INLINE_BLOCKS && !sample.isEvicted()) {
+				refresh(MAX_INLINE_BLOCKS);
+			} else {
+				refreshLater();
+			}
+			long nFrames = this.nFrames;
+			long numBlocks = blocksFor(nFrames);
+			// blocks not summarised yet read as silence
+			ensureCapacity(numBlocks);
+			// the coarsest level whose blocks fit in a pixel
+			int level = 0;
+			while (level + 1 < levelsFor(numBlocks) && ((long) BLOCK_SIZE << (level + 1)) <= framesPerPixel) {
+				level++;
+			}
+			int shift = level + Integer.numberOfTrailingZeros(BLOCK_SIZE);
+			float[] lmin = mins[level][channel], lmax = maxs[level][channel], lsq = squares[level][channel];
+			for (int p = 0; p < numPixels; p++) {
+				long from = Math.max(0, startFrame + (long) (p * framesPerPixel));
+				long to = Math.min(nFrames, startFrame + (long) ((p + 1) * framesPerPixel));
+				float lo = 0, hi = 0, sum = 0;
+				if (from < to) {
+					int first = (int) (from >> shift);
+					int last = (int) ((to - 1) >> shift);
+					lo = lmin[first];
+					hi = lmax[first];
+					for (int b = first; b <= last; b++) {
+						if (lmin[b] < lo) lo = lmin[b];
+						if (lmax[b] > hi) hi = lmax[b];
+						sum += lsq[b];
+					}
+					from = (long) first << shift;
+					to = Math.min(nFrames, (long) (last + 1) << shift);
+				}
+				if (min != null) min[p] = lo;
+				if (max != null) max[p] = hi;
+				if (rms != null) rms[p] = from < to ? (float) Math.sqrt(sum / (to - from)) : 0;
+			}
+		}
+	}
+
+	private void getPeaksFromSample(int channel, long startFrame, double framesPerPixel, int numPixels, float[] min, float[] max, float[] rms) {
+		SampleStorage storage = sample.getStorage();
+		long frames = Math.min(nFrames, storage.getNumFrames());
+		float[] buffer = new float[(int) Math.ceil(framesPerPixel) + 1];
+		for (int p = 0; p < numPixels; p++) {
+			long from = Math.max(0, startFrame + (long) (p * framesPerPixel));
+			long to = Math.min(frames, Math.max(from + 1, startFrame + (long) ((p + 1) * framesPerPixel)));
+			float lo = 0, hi = 0, sum = 0;
+			int length = (int) Math.max(0, Math.min(buffer.length, to - from));
+			if (length > 0) {
+				storage.get(channel, (int) from, buffer, 0, length);
+				lo = hi = buffer[0];
+				for (int i = 0; i < length; i++) {
+					float x = buffer[i];
+					if (x < lo) lo = x;
+					if (x > hi) hi = x;
+					sum += x * x;
+				}
+			}
+			if (min != null) min[p] = lo;
+			if (max != null) max[p] = hi;
+			if (rms != null) rms[p] = length > 0 ? (float) Math.sqrt(sum / length) : 0;
+		}
+	}
+
+	/**
+	 * Gets the number of channels.
+	 *
+	 * @return the number of channels.
+	 */
+	public int getNumChannels() {
+		return nChannels;
+	}
+
+	/**
+	 * Gets the number of frames summarised.
+	 *
+	 * @return the number of frames.
+	 */
+	public long getNumFrames() {
+		return nFrames;
+	}
+
+	/**
+	 * Gets the number of levels.
+	 *
+	 * @return the number of levels.
+	 */
+	public int getNumLevels() {
+		return levelsFor(blocksFor(nFrames));
+	}
+
+	/**
+	 * Determines whether summaries are saved next to the audio files of Samples.
+	 *
+	 * @return true if summaries are saved.
+	 */
+	public static boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Sets whether summaries of Samples loaded from files are saved next to the files, with the extension
+	 * ".peaks" added, and read back instead of being recomputed. Off by default.
+	 *
+	 * @param persistent true to save summaries.
+	 */
+	public static void setPersistent(boolean persistent) {
+		WaveformSummary.persistent = persistent;
+	}
+
+	private static File summaryFileFor(String filename) {
+		return new File(filename + SUFFIX);
+	}
+
+	/**
+	 * Reads a saved summary of a Sample's file.
+	 *
+	 * @return the summary, or null if there is none or it is out of date.
+	 */
+	static WaveformSummary read(Sample sample, String filename) {
+		File source = new File(filename);
+		File file = summaryFileFor(filename);
+		if (!file.isFile() || !source.isFile()) return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				readFully(channel, header, 0);
+				if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) return null;
+				if (header.getInt(8) != sample.getNumChannels() || header.getLong(12) != sample.getNumFrames()) return null;
+				if (header.getInt(20) != BLOCK_SIZE) return null;
+				if (header.getLong(24) != source.length() || header.getLong(32) != source.lastModified()) return null;
+				WaveformSummary summary = new WaveformSummary(sample);
+				int blocks = (int) blocksFor(summary.nFrames);
+				ByteBuffer data = ByteBuffer.allocate(blocks * 12).order(ByteOrder.LITTLE_ENDIAN);
+				long position = HEADER_SIZE;
+				for (int c = 0; c < summary.nChannels; c++) {
+					data.clear();
+					readFully(channel, data, position);
+					position += data.capacity();
+					data.flip();
+					data.asFloatBuffer().get(summary.mins[0][c], 0, blocks).get(summary.maxs[0][c], 0, blocks).get(summary.squares[0][c], 0, blocks);
+				}
+				// only the levels above need computing
+				summary.dirty.set(CLEAN);
+				summary.combineAll();
+				return summary;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Recomputes every level above the finest.
+	 */
+	private void combineAll() {
+		int below = (int) blocksFor(nFrames);
+		for (int level = 1; level < levelsFor(below); level++) {
+			int blocks = (below + 1) / 2;
+			for (int c = 0; c < nChannels; c++) {
+				float[] cmin = mins[level - 1][c], cmax = maxs[level - 1][c], csq = squares[level - 1][c];
+				float[] min = mins[level][c], max = maxs[level][c], sq = squares[level][c];
+				for (int b = 0; b < blocks; b++) {
+					int i = 2 * b;
+					boolean pair = i + 1 < below;
+					min[b] = pair ? Math.min(cmin[i], cmin[i + 1]) : cmin[i];
+					max[b] = pair ? Math.max(cmax[i], cmax[i + 1]) : cmax[i];
+					sq[b] = pair ? csq[i] + csq[i + 1] : csq[i];
+				}
+			}
+			below = blocks;
+		}
+	}
+
+	/**
+	 * Saves the summary next to a Sample's file. Failures are ignored, the summary will just be computed again next time.
+	 */
+	synchronized void write(String filename) {
+		File source = new File(filename);
+		if (!source.isFile()) return;
+		File file = summaryFileFor(filename);
+		long nFrames = this.nFrames;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				FileChannel channel = raf.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(nChannels).putLong(nFrames).putInt(BLOCK_SIZE);
+				header.putLong(source.length()).putLong(source.lastModified());
+				header.flip();
+				writeFully(channel, header, 0);
+				int blocks = (int) blocksFor(nFrames);
+				ensureCapacity(blocks);
+				ByteBuffer data = ByteBuffer.allocate(blocks * 12).order(ByteOrder.LITTLE_ENDIAN);
+				long position = HEADER_SIZE;
+				for (int c = 0; c < nChannels; c++) {
+					data.clear();
+					data.asFloatBuffer().put(mins[0][c], 0, blocks).put(maxs[0][c], 0, blocks).put(squares[0][c], 0, blocks);
+					writeFully(channel, data, position);
+					position += data.capacity();
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) throw new IOException("Unexpected end of waveform summary");
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+		int written = 0;
+		while (b.hasRemaining()) {
+			written += channel.write(b, position + written);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Hashtable;
+
+/**
+ * A Wavetable holds one cycle of a waveform as a set of band-limited tables, one per octave, for
+ * oscillators that don't alias at high frequencies. Level 0 holds all of the harmonics that fit in
+ * the table and each further level holds half as many, down to the fundamental alone, so an
+ * oscillator playing a note reads from the level whose highest harmonic is below the Nyquist
+ * frequency (see {@link #getLevel(double)}). All levels have the same power-of-two size, plus one
+ * guard point at the end so that interpolation needs no wrapping.
+ * <p>
+ * Wavetables are made from the single cycle held in a {@link Buffer}. Use
+ * {@link BufferFactory#getWavetable()} for a shared Wavetable of a common waveform, such as
+ * <code>new SawBuffer().getWavetable()</code>, and pass it to a
+ * {@link net.beadsproject.beads.ugens.WavePlayer}.
+ *
+ * @see Buffer BufferFactory
+ * @author Beads Team
+ */
+public class Wavetable {
+
+	/**
+	 * A static storage area for common Wavetables. Used by {@link BufferFactory} to keep track of common Wavetables.
+	 */
+	public static Hashtable<String, Wavetable> staticTables = new Hashtable<String, Wavetable>();
+
+	/** The Buffer the Wavetable was made from. */
+	private final Buffer buffer;
+
+	/** The size of each table, as a power of two. */
+	private final int sizeBits;
+
+	/** The tables, from all harmonics to the fundamental alone. */
+	private final float[][] levels;
+
+	/**
+	 * Creates a Wavetable from the cycle in the given Buffer, using tables of {@link BufferFactory#DEFAULT_BUFFER_SIZE} points.
+	 *
+	 * @param buffer the Buffer holding one cycle of the waveform.
+	 */
+	public Wavetable(Buffer buffer) {
+		this(buffer, BufferFactory.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a Wavetable from the cycle in the given Buffer.
+	 *
+	 * @param buffer the Buffer holding one cycle of the waveform.
+	 * @param size the size of the tables, which must be a power of two of at least 4.
+	 */
+	public Wavetable(Buffer buffer, int size) {
+		if (size < 4 || (size & (size - 1)) != 0) throw new IllegalArgumentException("Wavetable size must be a power of two of at least 4, not " + size);
+		this.buffer = buffer;
+		sizeBits = Integer.numberOfTrailingZeros(size);
+		// the spectrum of the cycle, taken at the table size
+		double[] re = new double[size];
+		double[] im = new double[size];
+		for (int i = 0; i < size; i++) {
+			re[i] = buffer.buf.length == size ? buffer.buf[i] : buffer.getValueFraction((float) i / size);
+		}
+		fft(re, im, false);
+		int numLevels = sizeBits;
+		levels = new float[numLevels][];
+		double[] levelRe = new double[size];
+		double[] levelIm = new double[size];
+		for (int level = 0; level < numLevels; level++) {
+			// keep the harmonics below half the table size at level 0, half as many at each level after
+			int harmonics = (size / 2) >> level;
+			if (level == 0) harmonics--;
+			for (int k = 0; k < size; k++) {
+				int harmonic = k <= size / 2 ? k : size - k;
+				boolean keep = harmonic <= harmonics;
+				levelRe[k] = keep ? re[k] : 0;
+				levelIm[k] = keep ? im[k] : 0;
+			}
+			fft(levelRe, levelIm, true);
+			float[] table = new float[size + 1];
+			for (int i = 0; i < size; i++) {
+				table[i] = (float) (levelRe[i] / size);
+			}
+			table[size] = table[0];
+			levels[level] = table;
+		}
+	}
+
+	/**
+	 * In-place radix-2 complex FFT, unscaled.
+	 */
+	private static void fft(double[] re, double[] im, boolean inverse) {
+		int n = re.length;
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if (i < j) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		for (int length = 2; length <= n; length <<= 1) {
+			double angle = (inverse ? 2 : -2) * Math.PI / length;
+			for (int i = 0; i < n; i += length) {
+				for (int k = 0; k < length / 2; k++) {
+					double wr = Math.cos(angle * k);
+					double wi = Math.sin(angle * k);
+					int a = i + k;
+					int b = a + length / 2;
+					double xr = re[b] * wr - im[b] * wi;
+					double xi = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the Buffer the Wavetable was made from.
+	 *
+	 * @return the Buffer.
+	 */
+	public Buffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Gets the size of the tables, which is a power of two. Each table has one more point than this.
+	 *
+	 * @return the size.
+	 */
+	public int getSize() {
+		return 1 << sizeBits;
+	}
+
+	/**
+	 * Gets the size of the tables as a power of two.
+	 *
+	 * @return the base 2 logarithm of the size.
+	 */
+	public int getSizeBits() {
+		return sizeBits;
+	}
+
+	/**
+	 * Gets the number of levels.
+	 *
+	 * @return the number of levels.
+	 */
+	public int getNumLevels() {
+		return levels.length;
+	}
+
+	/**
+	 * Gets the table of a level. Level 0 has every harmonic, and each level after has half as many.
+	 * The table should be treated as read-only.
+	 *
+	 * @param level the level.
+	 * @return the table, of {@link #getSize()} + 1 points.
+	 */
+	public float[] getTable(int level) {
+		return levels[level];
+	}
+
+	/**
+	 * Gets the level to use for an oscillator, the first whose harmonics are all below the Nyquist frequency.
+	 *
+	 * @param cyclesPerSample the frequency of the oscillator divided by the sample rate.
+	 * @return the level.
+	 */
+	public int getLevel(double cyclesPerSample) {
+		double highest = Math.abs(cyclesPerSample) * ((1 << (sizeBits - 1)) - 1);
+		int level = 0;
+		while (highest >= 0.5 && level < levels.length - 1) {
+			level++;
+			highest = Math.abs(cyclesPerSample) * ((1 << (sizeBits - 1)) >> level);
+		}
+		return level;
+	}
+
+	/**
+	 * Returns the value of a level at the given fraction of a cycle, using linear interpolation.
+	 *
+	 * @param fraction the point in the cycle, from 0 to 1.
+	 * @param level the level.
+	 * @return the value.
+	 */
+	public float getValueFraction(float fraction, int level) {
+		float[] table = levels[level];
+		int size = 1 << sizeBits;
+		float pos = (fraction - (float) Math.floor(fraction)) * size;
+		int index = Math.min(size - 1, (int) pos);
+		float offset = pos - index;
+		return table[index] + offset * (table[index + 1] - table[index]);
+	}
+}
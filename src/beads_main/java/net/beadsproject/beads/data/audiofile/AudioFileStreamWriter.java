@@ -0,0 +1,47 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+import net.beadsproject.beads.data.SampleAudioFormat;
+
+/**
+ * Implementing this interface indicates support for incremental writing of an audio file.
+ * That is, a file is opened, blocks of audio are appended to it one after another, and then it is closed,
+ * so that arbitrarily long audio can be written without holding all of it in memory.
+ * Compare {@link AudioFileWriter}, which writes an entire file from a float[][] in one go.
+ *
+ * @author Beads Team
+ */
+public interface AudioFileStreamWriter {
+
+	/**
+	 * Opens a file for writing. An existing file will be overwritten.
+	 * @param filename - the name of the file to be written
+	 * @param type - the type of audio file to be written (wav, etc.)
+	 * @param saf - a SampleAudioFormat object specifying the sample rate, number of channels and bit depth to write.
+	 */
+	void open(String filename, AudioFileType type, SampleAudioFormat saf) throws IOException, OperationUnsupportedException, FileFormatException;
+
+	/**
+	 * Appends a block of audio to the file.
+	 * @param data - the audio data, in the form data[channel][frame]
+	 * @param offset - the frame in data from which to start
+	 * @param numFrames - the number of frames to write
+	 */
+	void write(float[][] data, int offset, int numFrames) throws IOException;
+
+	/**
+	 * Finishes writing the file and closes it.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Get the supported file types.
+	 * @return - the supported file types.
+	 */
+	HashSet<AudioFileType> getSupportedFileTypesForStreamWriting();
+}
@@ -15,6 +15,11 @@ public class FileFormatException extends Exception{
 		this.problem = problem;
 	}
 
+	public FileFormatException(String problem, Throwable cause) {
+		super(problem, cause);
+		this.problem = problem;
+	}
+
 	public String getError() {
 		return this.problem;
 	}
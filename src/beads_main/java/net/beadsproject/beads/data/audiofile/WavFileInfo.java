@@ -0,0 +1,215 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import net.beadsproject.beads.data.SampleAudioFormat;
+
+/**
+ * Describes the layout of a wav file: its format and where the audio data lies in the file.
+ * This is used by classes that read wav data directly from a {@link FileChannel} rather than
+ * loading the whole file through {@link WavFileReaderWriter}, such as
+ * {@link net.beadsproject.beads.data.StreamingSampleSource}. RIFF and RF64 files are understood,
+ * with PCM, IEEE float and extensible format chunks.
+ * <p>
+ * Also converts raw little-endian wav data into floats a block at a time, see
+ * {@link #decode(ByteBuffer, int, int, float[], int, int)}.
+ *
+ * @author Beads Team
+ */
+public class WavFileInfo {
+
+	private final static int RIFF_CHUNK_ID = 0x46464952;	// "RIFF"
+	private final static int RF64_CHUNK_ID = 0x34364652;	// "RF64"
+	private final static int RIFF_TYPE_ID = 0x45564157;		// "WAVE"
+	private final static int DS64_CHUNK_ID = 0x34367364;	// "ds64"
+	private final static int FMT_CHUNK_ID = 0x20746D66;		// "fmt "
+	private final static int DATA_CHUNK_ID = 0x61746164;	// "data"
+
+	private final static int WAVE_FORMAT_PCM = 0x0001;
+	private final static int WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+	private final static int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/** The number of channels. */
+	public final int numChannels;
+
+	/** The sample rate. */
+	public final float sampleRate;
+
+	/** The number of bits used to store each sample. */
+	public final int bitsPerSample;
+
+	/** True if the samples are IEEE floating point, false if integer PCM. */
+	public final boolean floatingPoint;
+
+	/** The number of bytes per frame. */
+	public final int blockAlign;
+
+	/** The position in the file of the first byte of audio data. */
+	public final long dataOffset;
+
+	/** The number of frames of audio data. */
+	public final long numFrames;
+
+	private WavFileInfo(int numChannels, float sampleRate, int bitsPerSample, boolean floatingPoint, int blockAlign, long dataOffset, long numFrames) {
+		this.numChannels = numChannels;
+		this.sampleRate = sampleRate;
+		this.bitsPerSample = bitsPerSample;
+		this.floatingPoint = floatingPoint;
+		this.blockAlign = blockAlign;
+		this.dataOffset = dataOffset;
+		this.numFrames = numFrames;
+	}
+
+	/**
+	 * Reads the header of a wav file. The channel's position is not used or changed.
+	 *
+	 * @param channel the channel to read from.
+	 * @return the WavFileInfo.
+	 * @throws IOException if the file cannot be read.
+	 * @throws FileFormatException if the file is not a valid wav file.
+	 * @throws OperationUnsupportedException if the encoding is not supported.
+	 */
+	public static WavFileInfo read(FileChannel channel) throws IOException, FileFormatException, OperationUnsupportedException {
+		ByteBuffer b = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+		long fileSize = channel.size();
+		readFully(channel, b, 0, 12);
+		int riffID = b.getInt(0);
+		if (riffID != RIFF_CHUNK_ID && riffID != RF64_CHUNK_ID) throw new FileFormatException("Invalid Wav Header data, incorrect riff chunk ID");
+		if (b.getInt(8) != RIFF_TYPE_ID) throw new FileFormatException("Invalid Wav Header data, incorrect riff type ID");
+		boolean rf64 = riffID == RF64_CHUNK_ID;
+		long rf64DataSize = -1;
+		int numChannels = 0, bitsPerSample = 0, blockAlign = 0;
+		float sampleRate = 0;
+		boolean floatingPoint = false;
+		boolean foundFormat = false;
+		long pos = 12;
+		while (pos + 8 <= fileSize) {
+			readFully(channel, b, pos, 8);
+			int chunkID = b.getInt(0);
+			long chunkSize = b.getInt(4) & 0xFFFFFFFFL;
+			long chunkStart = pos + 8;
+			if (chunkID == DS64_CHUNK_ID) {
+				readFully(channel, b, chunkStart, 24);
+				rf64DataSize = b.getLong(8);
+			} else if (chunkID == FMT_CHUNK_ID) {
+				readFully(channel, b, chunkStart, (int) Math.min(chunkSize, 26));
+				int compressionCode = b.getShort(0) & 0xFFFF;
+				numChannels = b.getShort(2) & 0xFFFF;
+				sampleRate = b.getInt(4) & 0xFFFFFFFFL;
+				blockAlign = b.getShort(12) & 0xFFFF;
+				bitsPerSample = b.getShort(14) & 0xFFFF;
+				if (compressionCode == WAVE_FORMAT_EXTENSIBLE) {
+					if (chunkSize < 26) throw new FileFormatException("Extensible format chunk is too short");
+					compressionCode = b.getShort(24) & 0xFFFF;
+				}
+				if (compressionCode != WAVE_FORMAT_PCM && compressionCode != WAVE_FORMAT_IEEE_FLOAT) {
+					throw new OperationUnsupportedException("Compression Code " + compressionCode + " not supported");
+				}
+				floatingPoint = compressionCode == WAVE_FORMAT_IEEE_FLOAT;
+				if (numChannels == 0) throw new FileFormatException("Number of channels specified in header is equal to zero");
+				if (floatingPoint && bitsPerSample != 32 && bitsPerSample != 64) throw new OperationUnsupportedException("Only 32-bit and 64-bit Floating Point PCM files are supported");
+				if (!floatingPoint && (bitsPerSample < 8 || bitsPerSample > 32 || bitsPerSample % 8 != 0)) throw new OperationUnsupportedException("Only 8, 16, 24 and 32-bit integer PCM files are supported");
+				if (blockAlign != numChannels * bitsPerSample / 8) throw new FileFormatException("Block Align does not agree with bytes required for bits per sample and number of channels");
+				foundFormat = true;
+			} else if (chunkID == DATA_CHUNK_ID) {
+				if (!foundFormat) throw new FileFormatException("Data chunk found before Format chunk");
+				long dataSize = (rf64 && chunkSize == 0xFFFFFFFFL && rf64DataSize >= 0) ? rf64DataSize : chunkSize;
+				// tolerate truncated files, e.g. recordings that were never finalised
+				dataSize = Math.min(dataSize, fileSize - chunkStart);
+				return new WavFileInfo(numChannels, sampleRate, bitsPerSample, floatingPoint, blockAlign, chunkStart, dataSize / blockAlign);
+			}
+			pos = chunkStart + chunkSize + (chunkSize % 2);
+		}
+		throw new FileFormatException("Did not find a data chunk");
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer b, long position, int length) throws IOException {
+		b.clear();
+		b.limit(length);
+		while (b.hasRemaining()) {
+			int read = channel.read(b, position + b.position());
+			if (read < 0) throw new IOException("Not enough wav file bytes for header");
+		}
+	}
+
+	/**
+	 * Gets the format as a {@link SampleAudioFormat}.
+	 *
+	 * @return the SampleAudioFormat.
+	 */
+	public SampleAudioFormat getSampleAudioFormat() {
+		return new SampleAudioFormat(sampleRate, bitsPerSample, numChannels);
+	}
+
+	/**
+	 * Converts one channel of a block of raw wav data into floats.
+	 *
+	 * @param src the raw data. Must be in little-endian order. Absolute gets are used so the buffer's position is unchanged.
+	 * @param srcPos the position in src of the first frame.
+	 * @param channel the channel to convert.
+	 * @param dest the array to write to.
+	 * @param destOffset the offset into dest.
+	 * @param numFrames the number of frames to convert.
+	 */
+	public void decode(ByteBuffer src, int srcPos, int channel, float[] dest, int destOffset, int numFrames) {
+		int stride = blockAlign;
+		int p = srcPos + channel * (bitsPerSample / 8);
+		int end = destOffset + numFrames;
+		if (floatingPoint) {
+			if (bitsPerSample == 32) {
+				for (int i = destOffset; i < end; i++, p += stride) {
+					dest[i] = src.getFloat(p);
+				}
+			} else {
+				for (int i = destOffset; i < end; i++, p += stride) {
+					dest[i] = (float) src.getDouble(p);
+				}
+			}
+			return;
+		}
+		switch (bitsPerSample) {
+		case 8:
+			for (int i = destOffset; i < end; i++, p += stride) {
+				dest[i] = (src.get(p) & 0xFF) / 127.5f - 1f;
+			}
+			break;
+		case 16:
+			for (int i = destOffset; i < end; i++, p += stride) {
+				dest[i] = src.getShort(p) / 32768f;
+			}
+			break;
+		case 24:
+			for (int i = destOffset; i < end; i++, p += stride) {
+				int v = (src.get(p) & 0xFF) | ((src.get(p + 1) & 0xFF) << 8) | (src.get(p + 2) << 16);
+				dest[i] = v / 8388608f;
+			}
+			break;
+		default:
+			for (int i = destOffset; i < end; i++, p += stride) {
+				dest[i] = (float) (src.getInt(p) / 2147483648.0);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Converts a block of raw wav data into floats, one channel at a time.
+	 *
+	 * @param src the raw data. Must be in little-endian order. Absolute gets are used so the buffer's position is unchanged.
+	 * @param srcPos the position in src of the first frame.
+	 * @param dest the arrays to write to, in the form float[channel][frame].
+	 * @param destOffset the offset into dest.
+	 * @param numFrames the number of frames to convert.
+	 */
+	public void decode(ByteBuffer src, int srcPos, float[][] dest, int destOffset, int numFrames) {
+		for (int c = 0; c < numChannels; c++) {
+			decode(src, srcPos, c, dest[c], destOffset, numFrames);
+		}
+	}
+}
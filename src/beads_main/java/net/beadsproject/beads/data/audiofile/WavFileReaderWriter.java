@@ -4,9 +4,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import net.beadsproject.beads.data.SampleAudioFormat;
 
@@ -21,6 +37,13 @@ import net.beadsproject.beads.data.SampleAudioFormat;
  *  - Augmented to read and write 32- and 64-bit Floating Point PCM	  	
  *  - Bugfixes 
  *  
+ *  By default files are read by memory-mapping the data chunk and converting whole blocks
+ *  at a time (see {@link #setMappedReading(boolean)}), which can optionally be split across
+ *  several threads (see {@link #setDecodingThreads(int)}). The original stream-based reader is
+ *  used for formats the mapped reader does not handle. Likewise 16-bit, 24-bit and 32-bit
+ *  float files are written a block at a time by {@link WavFileStreamWriter}, which can also
+ *  be used directly to write files incrementally.
+ *  
  *  File format is based on the information from
  *  - http://www.sonicspot.com/guide/wavefiles.html
  *  - http://www.blitter.com/~russtopia/MIDI/~jglatt/tech/wave.htm
@@ -66,6 +89,21 @@ public class WavFileReaderWriter implements AudioFileReader, AudioFileWriter {
 
 	private IOState ioState = IOState.CLOSED;
 
+	/** Maximum number of bytes mapped at once. */
+	private final static int MAX_MAP_SIZE = 1 << 30;
+
+	/** Minimum number of frames per decoding task, below which it isn't worth using other threads. */
+	private final static int MIN_FRAMES_PER_TASK = 1 << 16;
+
+	/** Whether to use memory-mapped reading. */
+	private static boolean mappedReading = true;
+
+	/** Number of threads used to decode mapped data. */
+	private static int decodingThreads = 1;
+
+	/** Pool used for decoding with more than one thread. */
+	private static ExecutorService decodingPool;
+
 	public WavFileReaderWriter() {
 		buffer = new byte[BUFFER_SIZE];
 	}
@@ -79,6 +117,19 @@ public class WavFileReaderWriter implements AudioFileReader, AudioFileWriter {
 			throw new OperationUnsupportedException("Unsupported file type for writing: " + type);
 		}
 		
+		if (saf.bitDepth == 16 || saf.bitDepth == 24 || saf.bitDepth == 32) {
+			// the common formats are converted a block at a time
+			WavFileStreamWriter writer = new WavFileStreamWriter(new File(filename), new SampleAudioFormat(saf.sampleRate, saf.bitDepth, data.length));
+			try {
+				writer.write(data, 0, data[0].length);
+			} catch (IOException e) {
+				throw new IOException("Could not write audio file: " + e.getMessage(), e);
+			} finally {
+				writer.close();
+			}
+			return;
+		}
+
 		this.sampleRate = (long) saf.sampleRate;
 		this.numChannels = data.length;
 		this.validBits = saf.bitDepth;
@@ -126,6 +177,13 @@ public class WavFileReaderWriter implements AudioFileReader, AudioFileWriter {
 //                throw new IOException("Could not find audio file: " + filename);
 //            }
 //        }
+		if (mappedReading) {
+			try {
+				return readMapped();
+			} catch (OperationUnsupportedException e) {
+				// fall back on the stream reader, which supports some more unusual bit depths
+			}
+		}
 		float[][] data = null;
 //		try {
 			readHeader();
@@ -141,6 +199,172 @@ public class WavFileReaderWriter implements AudioFileReader, AudioFileWriter {
 		return data;
 	}
 	
+	/**
+	 * Read the file by memory-mapping the data chunk and converting it in bulk.
+	 * @return the audio data.
+	 * @throws IOException
+	 * @throws FileFormatException
+	 * @throws OperationUnsupportedException if the format is not supported by the mapped reader.
+	 */
+	private float[][] readMapped() throws IOException, FileFormatException, OperationUnsupportedException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			final WavFileInfo info = WavFileInfo.read(channel);
+			if (info.numFrames > Integer.MAX_VALUE) throw new FileFormatException("Wav file is too long to load into memory");
+			this.numChannels = info.numChannels;
+			this.sampleRate = (long) info.sampleRate;
+			this.validBits = info.bitsPerSample;
+			this.numFrames = info.numFrames;
+			final float[][] data = new float[numChannels][(int) numFrames];
+			int framesPerMap = MAX_MAP_SIZE / info.blockAlign;
+			for (long start = 0; start < numFrames; start += framesPerMap) {
+				int frames = (int) Math.min(framesPerMap, numFrames - start);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, info.dataOffset + start * info.blockAlign, (long) frames * info.blockAlign);
+				mapped.order(ByteOrder.LITTLE_ENDIAN);
+				try {
+					decodeMapped(info, mapped, data, (int) start, frames);
+				} catch (InterruptedIOException e) {
+					// decoding threads may still be reading the mapping, so leave it to the garbage collector
+					mapped = null;
+					throw e;
+				} finally {
+					if (mapped != null) unmap(mapped);
+				}
+			}
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Decode a mapped region, splitting the work by channel and by range of frames across the decoding threads if enabled.
+	 */
+	private static void decodeMapped(final WavFileInfo info, final MappedByteBuffer mapped, final float[][] data, final int offset, int frames) throws IOException {
+		int threads = Math.min(decodingThreads, Math.max(1, (int) ((long) frames * info.numChannels / MIN_FRAMES_PER_TASK)));
+		if (threads <= 1) {
+			info.decode(mapped, 0, data, offset, frames);
+			return;
+		}
+		int segments = (threads + info.numChannels - 1) / info.numChannels;
+		int framesPerSegment = (frames + segments - 1) / segments;
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		ExecutorService pool = getDecodingPool();
+		for (int c = 0; c < info.numChannels; c++) {
+			for (int seg = 0; seg < segments; seg++) {
+				final int channel = c;
+				final int first = seg * framesPerSegment;
+				final int length = Math.min(framesPerSegment, frames - first);
+				if (length <= 0) continue;
+				Runnable task = new Runnable() {
+					public void run() {
+						info.decode(mapped, first * info.blockAlign, channel, data[channel], offset + first, length);
+					}
+				};
+				try {
+					tasks.add(pool.submit(task));
+				} catch (RejectedExecutionException e) {
+					// the pool was shut down by setDecodingThreads, this thread does the work instead
+					task.run();
+				}
+			}
+		}
+		// wait for every task, even after a failure, so that nothing is still reading the mapping when it is released
+		Throwable failure = null;
+		for (Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while decoding audio file");
+			} catch (ExecutionException e) {
+				if (failure == null) failure = e.getCause();
+			}
+		}
+		if (failure != null) {
+			throw new IOException("Could not decode audio file", failure);
+		}
+	}
+
+	/**
+	 * Releases a mapping straight away, rather than when it is garbage collected, so that the file is not left
+	 * locked on platforms such as Windows. Does nothing if the JVM does not allow it.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				// before Java 9 the buffer has its own cleaner
+				Method cleaner = buffer.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(buffer);
+				if (c != null) c.getClass().getMethod("clean").invoke(c);
+				return;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (Exception e) {
+			// the mapping is released when the buffer is garbage collected
+		}
+	}
+
+	private static synchronized ExecutorService getDecodingPool() {
+		if (decodingPool == null) {
+			decodingPool = Executors.newFixedThreadPool(decodingThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "WavFileReaderWriter decoder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return decodingPool;
+	}
+
+	/**
+	 * Determines whether wav files are read by memory-mapping.
+	 * @return true if memory-mapped reading is used.
+	 */
+	public static boolean isMappedReading() {
+		return mappedReading;
+	}
+
+	/**
+	 * Sets whether wav files are read by memory-mapping the data chunk and converting it in bulk (the default),
+	 * or by the original stream reader.
+	 * @param mappedReading true to use memory-mapped reading.
+	 */
+	public static void setMappedReading(boolean mappedReading) {
+		WavFileReaderWriter.mappedReading = mappedReading;
+	}
+
+	/**
+	 * Gets the number of threads used to convert memory-mapped data.
+	 * @return the number of threads.
+	 */
+	public static int getDecodingThreads() {
+		return decodingThreads;
+	}
+
+	/**
+	 * Sets the number of threads used to convert memory-mapped data. With more than one thread the channels 
+	 * (and for long files, ranges of frames) of large files are converted in parallel. Default is 1.
+	 * @param threads the number of threads.
+	 */
+	public static synchronized void setDecodingThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (threads != decodingThreads && decodingPool != null) {
+			decodingPool.shutdown();
+			decodingPool = null;
+		}
+		decodingThreads = threads;
+	}
+	
 	/**
 	 * See {@link net.beadsproject.beads.data.audiofile.AudioFileReader#getSupportedFileTypesForReading}
 	 */
@@ -0,0 +1,439 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+
+import net.beadsproject.beads.data.SampleAudioFormat;
+
+/**
+ * Incremental writer for wav files. Unlike {@link WavFileReaderWriter}, which needs the
+ * entire audio data in memory, this class lets you open a file, append blocks of
+ * audio, either interleaved or one array per channel, as they become available and close
+ * it when done, using constant memory. It can be opened through the constructors, or
+ * created empty and opened through the {@link AudioFileStreamWriter} interface.
+ * <p>
+ * Supported formats are 16- and 24-bit integer PCM and 32-bit floating point PCM (following
+ * the convention of {@link WavFileReaderWriter}, a bit depth of 32 means floating point).
+ * Blocks are converted in one pass into a reusable {@link ByteBuffer} and written through a
+ * {@link FileChannel}.
+ * <p>
+ * The header reserves space for a ds64 chunk, so once the file grows beyond the 4GB limit
+ * of the RIFF format it is transparently converted to RF64 (EBU Tech 3306). The header can
+ * be patched with the current length at any time using {@link #updateHeader()}, so that a file
+ * being recorded remains readable if the program is interrupted before {@link #close()}.
+ * <p>
+ * This class is not thread safe, it is expected to be used from a single thread.
+ *
+ * @author Beads Team
+ */
+public class WavFileStreamWriter implements AudioFileStreamWriter {
+
+	private final static int RIFF_CHUNK_ID = 0x46464952;	// "RIFF"
+	private final static int RF64_CHUNK_ID = 0x34364652;	// "RF64"
+	private final static int RIFF_TYPE_ID = 0x45564157;		// "WAVE"
+	private final static int JUNK_CHUNK_ID = 0x4B4E554A;	// "JUNK"
+	private final static int DS64_CHUNK_ID = 0x34367364;	// "ds64"
+	private final static int FMT_CHUNK_ID = 0x20746D66;		// "fmt "
+	private final static int DATA_CHUNK_ID = 0x61746164;	// "data"
+
+	private final static int WAVE_FORMAT_PCM = 0x0001;
+	private final static int WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+
+	/** Size of the JUNK/ds64 chunk payload. */
+	private final static int DS64_SIZE = 28;
+
+	/** Maximum value of an unsigned 32-bit chunk size. */
+	private final static long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+	/** Default number of frames converted per write call. */
+	private final static int DEFAULT_BLOCK_FRAMES = 4096;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private int numChannels;
+	private int bitDepth;
+	private int bytesPerSample;
+	private int blockAlign;
+	private long sampleRate;
+	private int compressionCode;
+
+	/** Position in the file of the first byte of audio data. */
+	private long dataStart;
+
+	/** Reusable buffer for converted audio data. */
+	private ByteBuffer dataBuffer;
+
+	/** Reusable buffer for header patches. */
+	private final ByteBuffer headerBuffer = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+
+	private long numFramesWritten;
+	private boolean rf64;
+	private boolean closed;
+
+	/**
+	 * Creates a writer that is not yet open. Open a file with {@link #open(String, AudioFileType, SampleAudioFormat)}.
+	 */
+	public WavFileStreamWriter() {
+		closed = true;
+	}
+
+	/**
+	 * Opens a new wav file for writing. An existing file will be overwritten.
+	 *
+	 * @param file the file to write.
+	 * @param saf the format to write. The sample rate, number of channels and bit depth (16, 24 or 32) are used.
+	 * @throws IOException if the file cannot be opened.
+	 * @throws FileFormatException if the format cannot be written.
+	 */
+	public WavFileStreamWriter(File file, SampleAudioFormat saf) throws IOException, FileFormatException {
+		this(file, saf, DEFAULT_BLOCK_FRAMES);
+	}
+
+	/**
+	 * Opens a new wav file for writing. An existing file will be overwritten.
+	 *
+	 * @param file the file to write.
+	 * @param saf the format to write. The sample rate, number of channels and bit depth (16, 24 or 32) are used.
+	 * @param blockFrames the number of frames converted per write to the file channel.
+	 * @throws IOException if the file cannot be opened.
+	 * @throws FileFormatException if the format cannot be written.
+	 */
+	public WavFileStreamWriter(File file, SampleAudioFormat saf, int blockFrames) throws IOException, FileFormatException {
+		open(file, saf, blockFrames);
+	}
+
+	/**
+	 * See {@link net.beadsproject.beads.data.audiofile.AudioFileStreamWriter#open}
+	 */
+	public void open(String filename, AudioFileType type, SampleAudioFormat saf) throws IOException, OperationUnsupportedException, FileFormatException {
+		if (!getSupportedFileTypesForStreamWriting().contains(type)) {
+			throw new OperationUnsupportedException("Unsupported file type for writing: " + type);
+		}
+		open(new File(filename), saf, DEFAULT_BLOCK_FRAMES);
+	}
+
+	private void open(File file, SampleAudioFormat saf, int blockFrames) throws IOException, FileFormatException {
+		if (channel != null && !closed) throw new IOException("WavFileStreamWriter: already open");
+		if (saf.channels < 1 || saf.channels > 65535) throw new FileFormatException("Illegal number of channels, valid range 1 to 65535");
+		if (saf.bitDepth != 16 && saf.bitDepth != 24 && saf.bitDepth != 32) throw new FileFormatException("Only 16-bit, 24-bit and 32-bit floating point wav files can be streamed");
+		if (saf.sampleRate <= 0) throw new FileFormatException("Sample rate must be positive");
+		this.file = file;
+		this.numChannels = saf.channels;
+		this.bitDepth = saf.bitDepth;
+		this.sampleRate = (long) saf.sampleRate;
+		this.bytesPerSample = bitDepth / 8;
+		this.blockAlign = bytesPerSample * numChannels;
+		this.compressionCode = (bitDepth == 32) ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM;
+		dataBuffer = ByteBuffer.allocate(Math.max(1, blockFrames) * blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		dataStart = writeHeader();
+		numFramesWritten = 0;
+		rf64 = false;
+		closed = false;
+	}
+
+	/**
+	 * See {@link net.beadsproject.beads.data.audiofile.AudioFileStreamWriter#getSupportedFileTypesForStreamWriting}
+	 */
+	public HashSet<AudioFileType> getSupportedFileTypesForStreamWriting() {
+		HashSet<AudioFileType> types = new HashSet<AudioFileType>();
+		types.add(AudioFileType.WAV);
+		return types;
+	}
+
+	/**
+	 * Writes the initial header, with zero length and a JUNK chunk reserving room for ds64.
+	 *
+	 * @return the position of the start of the audio data.
+	 */
+	private long writeHeader() throws IOException {
+		int formatDataSize = (compressionCode == WAVE_FORMAT_PCM) ? 16 : 18;
+		ByteBuffer b = ByteBuffer.allocate(12 + 8 + DS64_SIZE + 8 + formatDataSize + 8).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(RIFF_CHUNK_ID);
+		b.putInt(0);							// RIFF size, patched later
+		b.putInt(RIFF_TYPE_ID);
+		b.putInt(JUNK_CHUNK_ID);				// becomes ds64 if we go over 4GB
+		b.putInt(DS64_SIZE);
+		for (int i = 0; i < DS64_SIZE; i++) b.put((byte) 0);
+		b.putInt(FMT_CHUNK_ID);
+		b.putInt(formatDataSize);
+		b.putShort((short) compressionCode);
+		b.putShort((short) numChannels);
+		b.putInt((int) sampleRate);
+		b.putInt((int) (sampleRate * blockAlign));	// average bytes per second
+		b.putShort((short) blockAlign);
+		b.putShort((short) bitDepth);
+		if (compressionCode == WAVE_FORMAT_IEEE_FLOAT) {
+			b.putShort((short) 0);				// size of extension
+		}
+		b.putInt(DATA_CHUNK_ID);
+		b.putInt(0);							// data size, patched later
+		b.flip();
+		while (b.hasRemaining()) channel.write(b);
+		return channel.position();
+	}
+
+	/**
+	 * Appends interleaved audio to the file.
+	 *
+	 * @param interleaved the audio data, with samples for each channel interleaved.
+	 * @param numFrames the number of frames to write.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void write(float[] interleaved, int numFrames) throws IOException {
+		write(interleaved, 0, numFrames);
+	}
+
+	/**
+	 * Appends interleaved audio to the file.
+	 *
+	 * @param interleaved the audio data, with samples for each channel interleaved.
+	 * @param offsetFrames the frame in interleaved from which to start.
+	 * @param numFrames the number of frames to write.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void write(float[] interleaved, int offsetFrames, int numFrames) throws IOException {
+		if (closed) throw new IOException("WavFileStreamWriter: file is closed");
+		int framesPerBlock = dataBuffer.capacity() / blockAlign;
+		int index = offsetFrames * numChannels;
+		while (numFrames > 0) {
+			int frames = Math.min(numFrames, framesPerBlock);
+			int numSamples = frames * numChannels;
+			dataBuffer.clear();
+			encode(interleaved, index, numSamples);
+			dataBuffer.flip();
+			while (dataBuffer.hasRemaining()) channel.write(dataBuffer);
+			index += numSamples;
+			numFrames -= frames;
+			numFramesWritten += frames;
+		}
+	}
+
+	/**
+	 * Appends audio to the file, held as one array per channel. Extra channels in data are ignored;
+	 * if data has fewer channels than the file, they are repeated.
+	 *
+	 * @param data the audio data, in the form data[channel][frame].
+	 * @param offset the frame in data from which to start.
+	 * @param numFrames the number of frames to write.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void write(float[][] data, int offset, int numFrames) throws IOException {
+		if (closed) throw new IOException("WavFileStreamWriter: file is closed");
+		int framesPerBlock = dataBuffer.capacity() / blockAlign;
+		while (numFrames > 0) {
+			int frames = Math.min(numFrames, framesPerBlock);
+			dataBuffer.clear();
+			encode(data, offset, frames);
+			dataBuffer.flip();
+			while (dataBuffer.hasRemaining()) channel.write(dataBuffer);
+			offset += frames;
+			numFrames -= frames;
+			numFramesWritten += frames;
+		}
+	}
+
+	/**
+	 * Interleaves and converts frames held as one array per channel into the data buffer.
+	 */
+	private void encode(float[][] data, int offset, int frames) {
+		int end = offset + frames;
+		byte[] bytes = dataBuffer.array();
+		for (int c = 0; c < numChannels; c++) {
+			float[] source = data[c % data.length];
+			int pos = c * bytesPerSample;
+			switch (bitDepth) {
+			case 16:
+				for (int i = offset; i < end; i++, pos += blockAlign) {
+					float x = source[i];
+					if (x > 1f) x = 1f; else if (x < -1f) x = -1f;
+					int v = (int) (x * 32767f);
+					bytes[pos] = (byte) v;
+					bytes[pos + 1] = (byte) (v >> 8);
+				}
+				break;
+			case 24:
+				for (int i = offset; i < end; i++, pos += blockAlign) {
+					float x = source[i];
+					if (x > 1f) x = 1f; else if (x < -1f) x = -1f;
+					int v = (int) (x * 8388607f);
+					bytes[pos] = (byte) v;
+					bytes[pos + 1] = (byte) (v >> 8);
+					bytes[pos + 2] = (byte) (v >> 16);
+				}
+				break;
+			default:
+				for (int i = offset; i < end; i++, pos += blockAlign) {
+					int v = Float.floatToRawIntBits(source[i]);
+					bytes[pos] = (byte) v;
+					bytes[pos + 1] = (byte) (v >> 8);
+					bytes[pos + 2] = (byte) (v >> 16);
+					bytes[pos + 3] = (byte) (v >> 24);
+				}
+				break;
+			}
+		}
+		dataBuffer.position(frames * blockAlign);
+	}
+
+	/**
+	 * Converts samples into the data buffer according to the bit depth.
+	 */
+	private void encode(float[] source, int index, int numSamples) {
+		int end = index + numSamples;
+		switch (bitDepth) {
+		case 16:
+			for (int i = index; i < end; i++) {
+				float x = source[i];
+				if (x > 1f) x = 1f; else if (x < -1f) x = -1f;
+				dataBuffer.putShort((short) (x * 32767f));
+			}
+			break;
+		case 24:
+			for (int i = index; i < end; i++) {
+				float x = source[i];
+				if (x > 1f) x = 1f; else if (x < -1f) x = -1f;
+				int v = (int) (x * 8388607f);
+				dataBuffer.put((byte) v);
+				dataBuffer.put((byte) (v >> 8));
+				dataBuffer.put((byte) (v >> 16));
+			}
+			break;
+		default:
+			for (int i = index; i < end; i++) {
+				dataBuffer.putFloat(source[i]);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Patches the header with the current length of the audio data, without closing the file.
+	 * Call this periodically while recording so that the file remains valid if the program is
+	 * interrupted. If the data has grown beyond 4GB the file is converted to RF64.
+	 *
+	 * @throws IOException if the header cannot be written.
+	 */
+	public void updateHeader() throws IOException {
+		if (closed) return;
+		long dataSize = numFramesWritten * blockAlign;
+		long riffSize = dataStart - 8 + dataSize + (dataSize % 2);
+		headerBuffer.clear();
+		if (!rf64 && riffSize <= MAX_RIFF_SIZE) {
+			headerBuffer.putInt(0, (int) riffSize);
+			headerBuffer.limit(4);
+			writeFully(headerBuffer, 4);
+		} else {
+			rf64 = true;
+			headerBuffer.putInt(RF64_CHUNK_ID);
+			headerBuffer.putInt(-1);
+			headerBuffer.putInt(RIFF_TYPE_ID);
+			headerBuffer.putInt(DS64_CHUNK_ID);
+			headerBuffer.putInt(DS64_SIZE);
+			headerBuffer.putLong(riffSize);
+			headerBuffer.putLong(dataSize);
+			headerBuffer.putLong(numFramesWritten);
+			headerBuffer.putInt(0);				// table length
+			headerBuffer.flip();
+			writeFully(headerBuffer, 0);
+		}
+		headerBuffer.clear();
+		headerBuffer.putInt(0, rf64 ? -1 : (int) dataSize);
+		headerBuffer.limit(4);
+		writeFully(headerBuffer, dataStart - 4);
+	}
+
+	private void writeFully(ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			position += channel.write(b, position);
+		}
+	}
+
+	/**
+	 * Forces any written data and header updates to the storage device.
+	 *
+	 * @throws IOException if the data cannot be flushed.
+	 */
+	public void flush() throws IOException {
+		if (!closed) channel.force(false);
+	}
+
+	/**
+	 * Finalises the header and closes the file. Further writes will fail.
+	 *
+	 * @throws IOException if the file cannot be finalised.
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			if ((numFramesWritten * blockAlign) % 2 == 1) {
+				// chunks must be word aligned
+				dataBuffer.clear();
+				dataBuffer.put((byte) 0);
+				dataBuffer.flip();
+				channel.write(dataBuffer);
+			}
+			updateHeader();
+		} finally {
+			closed = true;
+			channel.close();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Gets the file being written.
+	 *
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the number of frames written so far.
+	 *
+	 * @return the number of frames.
+	 */
+	public long getNumFramesWritten() {
+		return numFramesWritten;
+	}
+
+	/**
+	 * Gets the number of channels.
+	 *
+	 * @return the number of channels.
+	 */
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	/**
+	 * Determines whether the file has been converted to RF64.
+	 *
+	 * @return true if the file is RF64.
+	 */
+	public boolean isRF64() {
+		return rf64;
+	}
+
+	/**
+	 * Determines whether the file has been closed.
+	 *
+	 * @return true if closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.Arrays;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * AdditiveSynth sums a large number of sine wave partials, each with its own frequency,
+ * amplitude and pan. It is intended for resynthesis of the output of
+ * {@link net.beadsproject.beads.analysis.featureextractors.SpectralPeaks} with thousands of
+ * partials, see {@link #setFrequenciesAndGains(float[][])}, and is much cheaper per partial than
+ * {@link OscillatorBank}.
+ * <p>
+ * Each partial is computed a whole buffer at a time by rotating a complex phasor, so no table
+ * lookups or trigonometric functions are needed per frame. Changes to frequency, amplitude and
+ * pan take effect smoothly over the following buffer: amplitudes and pan levels are ramped
+ * linearly, and frequencies are swept linearly, by also rotating the phasor's rotation.
+ * Partials whose amplitude stays below the silence threshold for a whole buffer are skipped,
+ * their phase being advanced in one step, as are partials above the Nyquist frequency.
+ * <p>
+ * With one output all partials are centred. With two or more outputs the pan of a partial, from
+ * 0 to 1, places it across the outputs in turn using equal power panning between neighbouring
+ * outputs, so that with two outputs 0 is left, 0.5 centre and 1 right.
+ *
+ * @see OscillatorBank
+ * @author Beads Team
+ */
+public class AdditiveSynth extends UGen {
+
+	/** The default silence threshold, about -100dB. */
+	public static final float DEFAULT_SILENCE_THRESHOLD = 1e-5f;
+
+	/** The number of partials there is room for, and the number in use. */
+	private final int maxPartials;
+	private int numPartials;
+
+	/** The frequency, amplitude and pan of each partial, as set. */
+	private final float[] frequencies;
+	private final float[] amplitudes;
+	private final float[] pans;
+
+	/** The phasor of each partial; the partial's output is the imaginary part. */
+	private final double[] phasorRe;
+	private final double[] phasorIm;
+
+	/** The frequency of each partial at the start of the next buffer, in radians per frame. */
+	private final double[] currentFrequencies;
+
+	/** The level of each partial in each output at the start of the next buffer, in the form [channel][partial]. */
+	private final float[][] currentLevels;
+
+	/** The level of a partial in each output at the end of the current buffer. */
+	private final float[] targetLevels;
+
+	/** One buffer of a partial, before it is scaled and added to the outputs. */
+	private float[] partialBuffer;
+
+	/** Partials quieter than this are skipped. */
+	private float silenceThreshold;
+
+	/** Radians per frame per Hz. */
+	private final double radiansPerHz;
+
+	/**
+	 * Instantiates a new AdditiveSynth.
+	 *
+	 * @param context the AudioContext.
+	 * @param outs the number of outputs.
+	 * @param maxPartials the largest number of partials.
+	 */
+	public AdditiveSynth(AudioContext context, int outs, int maxPartials) {
+		super(context, outs);
+		this.maxPartials = maxPartials;
+		numPartials = maxPartials;
+		frequencies = new float[maxPartials];
+		amplitudes = new float[maxPartials];
+		pans = new float[maxPartials];
+		phasorRe = new double[maxPartials];
+		phasorIm = new double[maxPartials];
+		currentFrequencies = new double[maxPartials];
+		currentLevels = new float[outs][maxPartials];
+		targetLevels = new float[outs];
+		for (int i = 0; i < maxPartials; i++) {
+			phasorRe[i] = 1;
+			pans[i] = 0.5f;
+		}
+		silenceThreshold = DEFAULT_SILENCE_THRESHOLD;
+		radiansPerHz = 2 * Math.PI / context.getSampleRate();
+	}
+
+	/**
+	 * Instantiates a new AdditiveSynth.
+	 *
+	 * @param outs the number of outputs.
+	 * @param maxPartials the largest number of partials.
+	 */
+	public AdditiveSynth(int outs, int maxPartials) {
+		this(getDefaultContext(), outs, maxPartials);
+	}
+
+	/**
+	 * Gets the largest number of partials.
+	 *
+	 * @return the largest number of partials.
+	 */
+	public int getMaxPartials() {
+		return maxPartials;
+	}
+
+	/**
+	 * Gets the number of partials in use.
+	 *
+	 * @return the number of partials.
+	 */
+	public int getNumPartials() {
+		return numPartials;
+	}
+
+	/**
+	 * Sets the number of partials in use. Partials beyond this number are silent, and fade out
+	 * over the next buffer if they were sounding.
+	 *
+	 * @param numPartials the number of partials, up to the largest number.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setNumPartials(int numPartials) {
+		this.numPartials = Math.max(0, Math.min(maxPartials, numPartials));
+		return this;
+	}
+
+	/**
+	 * Sets the frequency of a partial.
+	 *
+	 * @param partial the index of the partial.
+	 * @param frequency the frequency in Hz.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setFrequency(int partial, float frequency) {
+		frequencies[partial] = Math.abs(frequency);
+		return this;
+	}
+
+	/**
+	 * Gets the frequency of a partial.
+	 *
+	 * @param partial the index of the partial.
+	 * @return the frequency in Hz.
+	 */
+	public float getFrequency(int partial) {
+		return frequencies[partial];
+	}
+
+	/**
+	 * Sets the amplitude of a partial.
+	 *
+	 * @param partial the index of the partial.
+	 * @param amplitude the amplitude.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setAmplitude(int partial, float amplitude) {
+		amplitudes[partial] = amplitude;
+		return this;
+	}
+
+	/**
+	 * Gets the amplitude of a partial.
+	 *
+	 * @param partial the index of the partial.
+	 * @return the amplitude.
+	 */
+	public float getAmplitude(int partial) {
+		return amplitudes[partial];
+	}
+
+	/**
+	 * Sets the pan of a partial, from 0 (the first output) to 1 (the last output).
+	 *
+	 * @param partial the index of the partial.
+	 * @param pan the pan.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setPan(int partial, float pan) {
+		pans[partial] = Math.max(0, Math.min(1, pan));
+		return this;
+	}
+
+	/**
+	 * Gets the pan of a partial.
+	 *
+	 * @param partial the index of the partial.
+	 * @return the pan.
+	 */
+	public float getPan(int partial) {
+		return pans[partial];
+	}
+
+	/**
+	 * Sets the frequencies of the partials. Partials beyond the length of the array are unchanged.
+	 *
+	 * @param frequencies the frequencies in Hz.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setFrequencies(float[] frequencies) {
+		int n = Math.min(maxPartials, frequencies.length);
+		for (int i = 0; i < n; i++) {
+			this.frequencies[i] = Math.abs(frequencies[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the amplitudes of the partials. Partials beyond the length of the array are unchanged.
+	 *
+	 * @param amplitudes the amplitudes.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setAmplitudes(float[] amplitudes) {
+		int n = Math.min(maxPartials, amplitudes.length);
+		System.arraycopy(amplitudes, 0, this.amplitudes, 0, n);
+		return this;
+	}
+
+	/**
+	 * Sets the pans of the partials. Partials beyond the length of the array are unchanged.
+	 *
+	 * @param pans the pans, from 0 to 1.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setPans(float[] pans) {
+		int n = Math.min(maxPartials, pans.length);
+		for (int i = 0; i < n; i++) {
+			setPan(i, pans[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the frequencies and amplitudes of the partials from an array freqsGains[][] where freqsGains[i][0] gives the
+	 * ith frequency, and freqsGains[i][1] gives the ith amplitude. This is the format generated by the SpectralPeaks
+	 * FeatureExtractor. The number of partials in use becomes the length of the array.
+	 *
+	 * @param freqsGains the frequencies and amplitudes.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setFrequenciesAndGains(float[][] freqsGains) {
+		int n = Math.min(maxPartials, freqsGains.length);
+		for (int i = 0; i < n; i++) {
+			frequencies[i] = Math.abs(freqsGains[i][0]);
+			amplitudes[i] = freqsGains[i][1];
+		}
+		setNumPartials(n);
+		return this;
+	}
+
+	/**
+	 * Gets the silence threshold.
+	 *
+	 * @return the silence threshold.
+	 */
+	public float getSilenceThreshold() {
+		return silenceThreshold;
+	}
+
+	/**
+	 * Sets the silence threshold. Partials whose level stays below this for a whole buffer are skipped.
+	 * The default is {@link #DEFAULT_SILENCE_THRESHOLD}; 0 never skips a partial.
+	 *
+	 * @param silenceThreshold the silence threshold, as an amplitude.
+	 * @return this AdditiveSynth.
+	 */
+	public AdditiveSynth setSilenceThreshold(float silenceThreshold) {
+		this.silenceThreshold = silenceThreshold;
+		return this;
+	}
+
+	/**
+	 * Works out the level of a partial in each output at the given amplitude and pan.
+	 */
+	private void calculateLevels(float amplitude, float pan, float[] levels) {
+		if (outs == 1) {
+			levels[0] = amplitude;
+			return;
+		}
+		for (int j = 0; j < outs; j++) {
+			levels[j] = 0;
+		}
+		float x = pan * (outs - 1);
+		int left = Math.min(outs - 2, (int) x);
+		double angle = (x - left) * Math.PI / 2;
+		levels[left] = amplitude * (float) Math.cos(angle);
+		levels[left + 1] = amplitude * (float) Math.sin(angle);
+	}
+
+	/**
+	 * Determines whether a partial is currently silent in every output.
+	 */
+	private boolean isSilent(int k) {
+		for (int j = 0; j < outs; j++) {
+			if (currentLevels[j][k] != 0) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		for (int j = 0; j < outs; j++) {
+			Arrays.fill(bufOut[j], 0, bufferSize, 0f);
+		}
+		if (partialBuffer == null || partialBuffer.length != bufferSize) {
+			partialBuffer = new float[bufferSize];
+		}
+		float[] buf = partialBuffer;
+		float threshold = silenceThreshold;
+		int n = numPartials;
+		for (int k = 0; k < maxPartials; k++) {
+			// the level in each output at the end of the buffer, silent above Nyquist
+			double w1 = frequencies[k] * radiansPerHz;
+			boolean audible = k < n && w1 < Math.PI;
+			if (!audible) {
+				w1 = Math.min(w1, Math.PI);
+				if (k >= n && isSilent(k)) {
+					// unused partials have no phase to keep
+					currentFrequencies[k] = w1;
+					continue;
+				}
+			}
+			calculateLevels(audible ? amplitudes[k] : 0, pans[k], targetLevels);
+			double w0 = currentFrequencies[k];
+			double dw = (w1 - w0) / bufferSize;
+			boolean silent = true;
+			for (int j = 0; j < outs; j++) {
+				if (Math.abs(currentLevels[j][k]) >= threshold || Math.abs(targetLevels[j]) >= threshold) {
+					silent = false;
+					break;
+				}
+			}
+			double re = phasorRe[k];
+			double im = phasorIm[k];
+			if (silent) {
+				// just move the phase on to where it would be
+				double phase = w0 * bufferSize + dw * bufferSize * (bufferSize - 1) / 2;
+				double c = Math.cos(phase);
+				double s = Math.sin(phase);
+				double t = re * c - im * s;
+				im = re * s + im * c;
+				re = t;
+			} else {
+				// rotate the phasor by w each frame, and w by dw each frame
+				double zr = Math.cos(w0);
+				double zi = Math.sin(w0);
+				if (dw == 0) {
+					for (int i = 0; i < bufferSize; i++) {
+						buf[i] = (float) im;
+						double t = re * zr - im * zi;
+						im = re * zi + im * zr;
+						re = t;
+					}
+				} else {
+					double dzr = Math.cos(dw);
+					double dzi = Math.sin(dw);
+					for (int i = 0; i < bufferSize; i++) {
+						buf[i] = (float) im;
+						double t = re * zr - im * zi;
+						im = re * zi + im * zr;
+						re = t;
+						t = zr * dzr - zi * dzi;
+						zi = zr * dzi + zi * dzr;
+						zr = t;
+					}
+				}
+				// mix, ramping the level in each output
+				for (int j = 0; j < outs; j++) {
+					float level = currentLevels[j][k];
+					float step = (targetLevels[j] - level) / bufferSize;
+					if (level == 0 && step == 0) continue;
+					float[] out = bufOut[j];
+					for (int i = 0; i < bufferSize; i++) {
+						out[i] += level * buf[i];
+						level += step;
+					}
+				}
+			}
+			// keep the phasor on the unit circle
+			double norm = (3 - (re * re + im * im)) * 0.5;
+			phasorRe[k] = re * norm;
+			phasorIm[k] = im * norm;
+			currentFrequencies[k] = w1;
+			for (int j = 0; j < outs; j++) {
+				currentLevels[j][k] = targetLevels[j];
+			}
+		}
+	}
+
+}
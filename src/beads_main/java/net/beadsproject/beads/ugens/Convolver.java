@@ -0,0 +1,508 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Sample;
+import net.beadsproject.beads.data.SampleRateConverter;
+
+/**
+ * Convolver convolves its input with an impulse response held in a {@link Sample}, for
+ * realistic reverbs of real spaces, cabinet simulation and so on. Each channel is convolved
+ * with the corresponding channel of the impulse response (channels of the impulse response
+ * are reused if there are fewer of them). The output is the convolved signal alone, so use
+ * a {@link Gain} or a mixer to blend it with the dry signal.
+ * <p>
+ * The convolution is done with FFTs, splitting the impulse response into partitions. The
+ * start of the impulse response uses partitions as long as the audio buffer, so there is no
+ * latency when the buffer size is a power of two (otherwise the output is delayed by
+ * {@link #getLatency()} frames). The rest uses partitions {@value #TAIL_RATIO} times as long,
+ * which are much cheaper per frame, and is computed by a pool of background threads while the
+ * next block of input arrives. Impulse responses lasting several seconds cost only a few
+ * percent of a core.
+ * <p>
+ * An impulse response at a different sample rate from the AudioContext is resampled when it
+ * is set.
+ *
+ * @see Reverb
+ * @author Beads Team
+ */
+public class Convolver extends UGen {
+
+	/** The length of the tail partitions, in head partitions. */
+	public static final int TAIL_RATIO = 16;
+
+	/** The shortest head partition, used when the buffer size has no large power of two factor. */
+	private static final int MIN_BLOCK = 64;
+
+	private static final int DEFAULT_BLOCK = 256;
+
+	private static ExecutorService pool;
+
+	/** The number of channels. */
+	private final int channels;
+
+	/** The length of the head and tail partitions. */
+	private final int block, tailBlock;
+
+	/** True if the head partition divides the buffer size, so there is no latency. */
+	private final boolean latencyFree;
+
+	/** The impulse response and gain. */
+	private Sample impulseResponse;
+	private float gain;
+
+	/** The convolvers for each channel, replaced together when the impulse response changes. */
+	private volatile Stages stages;
+
+	/** The number of frames of the current head block that have been filled. */
+	private int blockFill;
+
+	/** The number of head blocks since the start of the current tail block. */
+	private int tailBlockCount;
+
+	/** Input and output of the current head block, in the form [channel][frame]. */
+	private final float[][] blockIn, blockOut;
+
+	/**
+	 * The head and tail convolvers of every channel, with the buffers that pass the tail's input and
+	 * output to and from the background threads.
+	 */
+	private static class Stages {
+		Stage[] head;
+		Stage[] tail;
+		/** Tail input being gathered, and being convolved on the background threads. */
+		float[][] tailFill, tailWork;
+		/** Tail output being computed on the background threads, and being played. */
+		float[][] tailResult, tailPlaying;
+		Future<?>[] tasks;
+	}
+
+	/**
+	 * Instantiates a new Convolver with the given number of channels and no impulse response.
+	 *
+	 * @param context the AudioContext.
+	 * @param channels the number of input and output channels.
+	 */
+	public Convolver(AudioContext context, int channels) {
+		super(context, channels, channels);
+		this.channels = channels;
+		int b = Integer.lowestOneBit(bufferSize);
+		latencyFree = b >= MIN_BLOCK;
+		block = latencyFree ? b : DEFAULT_BLOCK;
+		tailBlock = block * TAIL_RATIO;
+		blockIn = new float[channels][block];
+		blockOut = new float[channels][block];
+		gain = 1;
+	}
+
+	/**
+	 * Instantiates a new Convolver with the given number of channels and no impulse response.
+	 *
+	 * @param channels the number of input and output channels.
+	 */
+	public Convolver(int channels) {
+		this(getDefaultContext(), channels);
+	}
+
+	/**
+	 * Instantiates a new Convolver with the given impulse response, with as many channels as the impulse response.
+	 *
+	 * @param context the AudioContext.
+	 * @param impulseResponse the impulse response.
+	 */
+	public Convolver(AudioContext context, Sample impulseResponse) {
+		this(context, impulseResponse.getNumChannels());
+		setImpulseResponse(impulseResponse);
+	}
+
+	/**
+	 * Instantiates a new Convolver with the given impulse response, with as many channels as the impulse response.
+	 *
+	 * @param impulseResponse the impulse response.
+	 */
+	public Convolver(Sample impulseResponse) {
+		this(getDefaultContext(), impulseResponse);
+	}
+
+	/**
+	 * Gets the impulse response.
+	 *
+	 * @return the impulse response.
+	 */
+	public Sample getImpulseResponse() {
+		return impulseResponse;
+	}
+
+	/**
+	 * Sets the impulse response. The partitions are prepared on the calling thread, which may take a
+	 * moment for long impulse responses, and the Convolver switches to them at the start of the next
+	 * buffer. Changes to the Sample afterwards are not heard.
+	 *
+	 * @param impulseResponse the impulse response, or null for silence.
+	 * @return this Convolver.
+	 */
+	public Convolver setImpulseResponse(Sample impulseResponse) {
+		this.impulseResponse = impulseResponse;
+		if (impulseResponse == null) {
+			stages = null;
+			return this;
+		}
+		float[][] ir = impulseResponse.getStorage().asFloatArrays();
+		if (impulseResponse.getSampleRate() != context.getSampleRate()) {
+			ir = SampleRateConverter.resample(ir, impulseResponse.getSampleRate(), context.getSampleRate());
+		}
+		int tailStart = 2 * tailBlock;
+		Stages s = new Stages();
+		s.head = new Stage[channels];
+		for (int c = 0; c < channels; c++) {
+			float[] h = ir[c % ir.length];
+			s.head[c] = new Stage(block, h, 0, Math.min(h.length, tailStart));
+		}
+		if (ir.length > 0 && ir[0].length > tailStart) {
+			s.tail = new Stage[channels];
+			for (int c = 0; c < channels; c++) {
+				float[] h = ir[c % ir.length];
+				s.tail[c] = new Stage(tailBlock, h, tailStart, h.length);
+			}
+			s.tailFill = new float[channels][tailBlock];
+			s.tailWork = new float[channels][tailBlock];
+			s.tailResult = new float[channels][tailBlock];
+			s.tailPlaying = new float[channels][tailBlock];
+			s.tasks = new Future<?>[channels];
+		}
+		stages = s;
+		return this;
+	}
+
+	/**
+	 * Gets the gain applied to the output.
+	 *
+	 * @return the gain.
+	 */
+	public float getGain() {
+		return gain;
+	}
+
+	/**
+	 * Sets the gain applied to the output.
+	 *
+	 * @param gain the gain.
+	 * @return this Convolver.
+	 */
+	public Convolver setGain(float gain) {
+		this.gain = gain;
+		return this;
+	}
+
+	/**
+	 * Gets the delay of the output, which is 0 unless the buffer size isn't a multiple of a reasonably large power of two.
+	 *
+	 * @return the latency in frames.
+	 */
+	public int getLatency() {
+		return latencyFree ? 0 : block;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		Stages s = stages;
+		if (s == null) {
+			for (int c = 0; c < channels; c++) {
+				Arrays.fill(bufOut[c], 0, bufferSize, 0f);
+			}
+			return;
+		}
+		float g = gain;
+		int i = 0;
+		while (i < bufferSize) {
+			int n = Math.min(block - blockFill, bufferSize - i);
+			for (int c = 0; c < channels; c++) {
+				System.arraycopy(bufIn[c], i, blockIn[c], blockFill, n);
+			}
+			boolean full = blockFill + n == block;
+			if (full && latencyFree) {
+				processBlock(s);
+			}
+			for (int c = 0; c < channels; c++) {
+				float[] out = bufOut[c];
+				float[] y = blockOut[c];
+				for (int j = 0; j < n; j++) {
+					out[i + j] = g * y[blockFill + j];
+				}
+			}
+			if (full && !latencyFree) {
+				processBlock(s);
+			}
+			blockFill = full ? 0 : blockFill + n;
+			i += n;
+		}
+	}
+
+	/**
+	 * Convolves a complete head block, and passes tail blocks to and from the background threads.
+	 */
+	private void processBlock(final Stages s) {
+		for (int c = 0; c < channels; c++) {
+			s.head[c].process(blockIn[c], blockOut[c]);
+		}
+		if (s.tail == null) return;
+		int offset = tailBlockCount * block;
+		for (int c = 0; c < channels; c++) {
+			System.arraycopy(blockIn[c], 0, s.tailFill[c], offset, block);
+			float[] y = blockOut[c];
+			float[] t = s.tailPlaying[c];
+			for (int j = 0; j < block; j++) {
+				y[j] += t[offset + j];
+			}
+		}
+		if (++tailBlockCount < TAIL_RATIO) return;
+		tailBlockCount = 0;
+		// the previous tail block is due now
+		waitForTail(s);
+		float[][] t = s.tailPlaying;
+		s.tailPlaying = s.tailResult;
+		s.tailResult = t;
+		t = s.tailWork;
+		s.tailWork = s.tailFill;
+		s.tailFill = t;
+		ExecutorService p = getPool();
+		for (int c = 0; c < channels; c++) {
+			final Stage stage = s.tail[c];
+			final float[] in = s.tailWork[c];
+			final float[] out = s.tailResult[c];
+			s.tasks[c] = p.submit(new Runnable() {
+				public void run() {
+					stage.process(in, out);
+				}
+			});
+		}
+	}
+
+	private static void waitForTail(Stages s) {
+		boolean interrupted = false;
+		for (int c = 0; c < s.tasks.length; c++) {
+			Future<?> task = s.tasks[c];
+			if (task == null) continue;
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Convolution failed", e.getCause());
+				}
+			}
+			s.tasks[c] = null;
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Convolver");
+					t.setDaemon(true);
+					t.setPriority(Thread.MAX_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Uniformly partitioned overlap-save convolution of one channel with one segment of an impulse response.
+	 */
+	private static class Stage {
+
+		private final int block;
+		private final int parts;
+		private final RealFFT fft;
+
+		/** The spectra of the partitions, and of recent blocks of input, most recent at cursor. */
+		private final float[][] hRe, hIm, xRe, xIm;
+		private int cursor;
+
+		/** The last two blocks of input, the accumulated spectrum and the result. */
+		private final float[] window, accRe, accIm, result;
+
+		Stage(int block, float[] h, int start, int end) {
+			this.block = block;
+			parts = Math.max(0, (end - start + block - 1) / block);
+			fft = new RealFFT(2 * block);
+			hRe = new float[parts][block + 1];
+			hIm = new float[parts][block + 1];
+			xRe = new float[parts][block + 1];
+			xIm = new float[parts][block + 1];
+			window = new float[2 * block];
+			accRe = new float[block + 1];
+			accIm = new float[block + 1];
+			result = new float[2 * block];
+			float[] segment = new float[2 * block];
+			for (int p = 0; p < parts; p++) {
+				Arrays.fill(segment, 0f);
+				int from = start + p * block;
+				System.arraycopy(h, from, segment, 0, Math.min(block, end - from));
+				fft.forward(segment, hRe[p], hIm[p]);
+			}
+		}
+
+		/**
+		 * Convolves one block of input, giving one block of output.
+		 */
+		void process(float[] in, float[] out) {
+			if (parts == 0) {
+				Arrays.fill(out, 0, block, 0f);
+				return;
+			}
+			System.arraycopy(window, block, window, 0, block);
+			System.arraycopy(in, 0, window, block, block);
+			fft.forward(window, xRe[cursor], xIm[cursor]);
+			Arrays.fill(accRe, 0f);
+			Arrays.fill(accIm, 0f);
+			for (int p = 0; p < parts; p++) {
+				int x = cursor - p;
+				if (x < 0) x += parts;
+				float[] ar = xRe[x], ai = xIm[x], br = hRe[p], bi = hIm[p];
+				for (int k = 0; k <= block; k++) {
+					accRe[k] += ar[k] * br[k] - ai[k] * bi[k];
+					accIm[k] += ar[k] * bi[k] + ai[k] * br[k];
+				}
+			}
+			fft.inverse(accRe, accIm, result);
+			System.arraycopy(result, block, out, 0, block);
+			cursor = cursor + 1 == parts ? 0 : cursor + 1;
+		}
+	}
+
+	/**
+	 * FFT of real data of a power of two length, done as a complex FFT of half the length.
+	 */
+	private static class RealFFT {
+
+		private final int n, m;
+		private final int[] reverse;
+		/** Twiddles for the complex FFT, and for splitting its result. */
+		private final float[] cos, sin, splitCos, splitSin;
+		private final float[] zr, zi;
+
+		RealFFT(int n) {
+			this.n = n;
+			m = n / 2;
+			reverse = new int[m];
+			int bits = Integer.numberOfTrailingZeros(m);
+			for (int i = 0; i < m; i++) {
+				reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+			}
+			cos = new float[Math.max(1, m / 2)];
+			sin = new float[Math.max(1, m / 2)];
+			for (int i = 0; i < m / 2; i++) {
+				cos[i] = (float) Math.cos(2 * Math.PI * i / m);
+				sin[i] = (float) Math.sin(2 * Math.PI * i / m);
+			}
+			splitCos = new float[m + 1];
+			splitSin = new float[m + 1];
+			for (int k = 0; k <= m; k++) {
+				splitCos[k] = (float) Math.cos(2 * Math.PI * k / n);
+				splitSin[k] = (float) Math.sin(2 * Math.PI * k / n);
+			}
+			zr = new float[m];
+			zi = new float[m];
+		}
+
+		/**
+		 * Transforms n real values into bins 0 to n/2.
+		 */
+		void forward(float[] x, float[] re, float[] im) {
+			for (int k = 0; k < m; k++) {
+				zr[k] = x[2 * k];
+				zi[k] = x[2 * k + 1];
+			}
+			transform(false);
+			for (int k = 0; k <= m; k++) {
+				int a = k == m ? 0 : k;
+				int b = k == 0 ? 0 : m - k;
+				// even and odd parts
+				float er = (zr[a] + zr[b]) * 0.5f;
+				float ei = (zi[a] - zi[b]) * 0.5f;
+				float or = (zi[a] + zi[b]) * 0.5f;
+				float oi = (zr[b] - zr[a]) * 0.5f;
+				float wr = splitCos[k], wi = -splitSin[k];
+				re[k] = er + wr * or - wi * oi;
+				im[k] = ei + wr * oi + wi * or;
+			}
+		}
+
+		/**
+		 * Transforms bins 0 to n/2 back into n real values, scaled by 1/n.
+		 */
+		void inverse(float[] re, float[] im, float[] x) {
+			for (int k = 0; k < m; k++) {
+				int b = m - k;
+				float er = (re[k] + re[b]) * 0.5f;
+				float ei = (im[k] - im[b]) * 0.5f;
+				float dr = (re[k] - re[b]) * 0.5f;
+				float di = (im[k] + im[b]) * 0.5f;
+				float wr = splitCos[k], wi = splitSin[k];
+				float or = dr * wr - di * wi;
+				float oi = dr * wi + di * wr;
+				zr[k] = er - oi;
+				zi[k] = ei + or;
+			}
+			transform(true);
+			float scale = 1f / m;
+			for (int k = 0; k < m; k++) {
+				x[2 * k] = zr[k] * scale;
+				x[2 * k + 1] = zi[k] * scale;
+			}
+		}
+
+		/**
+		 * In-place radix-2 complex FFT of zr and zi, unscaled.
+		 */
+		private void transform(boolean inverse) {
+			for (int i = 0; i < m; i++) {
+				int j = reverse[i];
+				if (i < j) {
+					float t = zr[i];
+					zr[i] = zr[j];
+					zr[j] = t;
+					t = zi[i];
+					zi[i] = zi[j];
+					zi[j] = t;
+				}
+			}
+			float sign = inverse ? 1 : -1;
+			for (int length = 2; length <= m; length <<= 1) {
+				int half = length / 2;
+				int step = m / length;
+				for (int i = 0; i < m; i += length) {
+					for (int k = 0; k < half; k++) {
+						float wr = cos[k * step];
+						float wi = sign * sin[k * step];
+						int a = i + k;
+						int b = a + half;
+						float xr = zr[b] * wr - zi[b] * wi;
+						float xi = zr[b] * wi + zi[b] * wr;
+						zr[b] = zr[a] - xr;
+						zi[b] = zi[a] - xi;
+						zr[a] += xr;
+						zi[a] += xi;
+					}
+				}
+			}
+		}
+	}
+}
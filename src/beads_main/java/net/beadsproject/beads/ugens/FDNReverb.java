@@ -0,0 +1,499 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.DataBead;
+import net.beadsproject.beads.data.DataBeadReceiver;
+
+/**
+ * A feedback delay network reverb with the same controls as {@link Reverb}: room size,
+ * high-frequency damping, and early reflections and late reverb levels. Unlike Reverb, which is
+ * a chain of about twenty UGens, FDNReverb does all of its work in one UGen, with every delay line
+ * in a single block of memory and one loop over the frames of each buffer, so it costs a fraction
+ * as much.
+ * <p>
+ * The input is low-pass filtered and diffused by a series of allpass filters, then fed to eight
+ * delay lines that feed back into each other through a Householder matrix, with damping in each
+ * line and slowly modulated lengths to avoid ringing. Early reflections are taken from a
+ * multi-tap delay of the input. Each output channel has its own early reflection times and mixes
+ * the delay lines with its own signs (rows of a Hadamard matrix, so the first eight outputs are
+ * uncorrelated), so any number of output channels are de-correlated from each other.
+ * <p>
+ * Parameter changes are smoothed over a few buffers, so the room size can be changed while the
+ * reverb is sounding.
+ *
+ * @see Reverb
+ * @author Beads Team
+ */
+public class FDNReverb extends UGen implements DataBeadReceiver {
+
+	private static final int LINES = 8;
+
+	/** The delay line lengths in ms at the default size. */
+	private static final float[] LINE_MS = { 29.71f, 37.11f, 41.13f, 43.67f,
+			53.29f, 59.93f, 67.73f, 79.31f };
+
+	/** The rates in Hz and depth in ms of the modulation of the delay line lengths. */
+	private static final float[] MOD_HZ = { .113f, .171f, .229f, .293f, .371f,
+			.433f, .531f, .613f };
+	private static final float MOD_MS = .3f;
+
+	/** The diffusing allpass filter lengths in ms, and their gain. */
+	private static final float[] DIFFUSER_MS = { 4.771f, 3.595f, 12.73f, 9.307f };
+	private static final float DIFFUSER_GAIN = .6f;
+
+	/** The early reflection tap times in ms at the default size. */
+	private static final float[] EARLY_MS = { 7.13f, 11.31f, 17.93f, 23.33f,
+			31.71f, 43.13f };
+
+	/** The largest size scale, and the largest spread of early reflection times between channels. */
+	private static final float MAX_SCALE = 1.75f;
+	private static final float EARLY_SPREAD = .2f;
+
+	/** How far the smoothed size moves towards the set size each buffer. */
+	private static final float SMOOTHING = .25f;
+
+	/** The gain of the input to each delay line, and of the early reflections and late reverb outputs. */
+	private static final float INPUT_GAIN = .7f;
+	private static final float EARLY_GAIN = .15f;
+	private static final float LATE_GAIN = .7f;
+
+	/** Added to the input to keep the feedback out of denormal numbers. */
+	private static final float DENORMAL = 1e-20f;
+
+	private static final double GOLDEN = .6180339887498949;
+
+	private float size, damping, earlyLevel, lateLevel;
+	private final float sampsPerMS;
+
+	/** All of the delay lines, each a power of two long, written at the same position. */
+	private final float[] slab;
+	private int write;
+	private final int inputBase, inputMask, diffuserMask, lineMask;
+	private final int[] diffuserBase, diffuserLength, lineBase;
+
+	/** The smoothed size, which is negative before the first buffer. */
+	private float currentSize;
+
+	/** The values reached at the end of the last buffer, which this buffer moves on from. */
+	private final float[] lineLength, lineGain;
+	private float dampCoef, inputCoef, currentEarly, currentLate;
+
+	/** Filter states, the time in seconds for the modulation, and scratch space for the delay line outputs. */
+	private final float[] lineLowpass, lineOut, lengthStep, gainStep;
+	private float inputLowpass;
+	private double time;
+
+	/** The delay line outputs for every frame of the buffer, in the form [line][frame]. */
+	private final float[][] lineBlock;
+
+	/** The early reflection taps and gains, and the late reverb signs, for each output. */
+	private final int[][] earlyTaps;
+	private final float[][] earlyGains, lateSigns;
+	private final float[] earlyTimes;
+
+	/**
+	 * Constructor for a reverb unit with one output channel.
+	 *
+	 * @param context
+	 *            The audio context.
+	 */
+	public FDNReverb(AudioContext context) {
+		this(context, 1);
+	}
+
+	/**
+	 * Constructor for a reverb unit with one output channel.
+	 */
+	public FDNReverb() {
+		this(getDefaultContext());
+	}
+
+	/**
+	 * Constructor for a reverb unit with the specified number of output
+	 * channels.
+	 *
+	 * @param outChannels
+	 *            The number of output channels.
+	 */
+	public FDNReverb(int outChannels) {
+		this(getDefaultContext(), outChannels);
+	}
+
+	/**
+	 * Constructor for a reverb unit with the specified number of output
+	 * channels.
+	 *
+	 * @param context
+	 *            The audio context.
+	 * @param outChannels
+	 *            The number of output channels.
+	 */
+	public FDNReverb(AudioContext context, int outChannels) {
+		super(context, 1, outChannels);
+		sampsPerMS = (float) context.msToSamples(1);
+
+		// lay out the delay lines in one slab
+		// the input line also holds a buffer's worth of frames, as the early reflections are read after the buffer is written
+		int inputSize = powerOfTwo(EARLY_MS[EARLY_MS.length - 1] * MAX_SCALE
+				* (1 + EARLY_SPREAD) * sampsPerMS + 2 + bufferSize);
+		int diffuserSize = 0;
+		for (float ms : DIFFUSER_MS) {
+			diffuserSize = Math.max(diffuserSize, powerOfTwo(ms * sampsPerMS + 1));
+		}
+		int lineSize = powerOfTwo((LINE_MS[LINES - 1] * MAX_SCALE + MOD_MS) * sampsPerMS + 2);
+		slab = new float[inputSize + diffuserSize * DIFFUSER_MS.length + lineSize * LINES];
+		inputBase = 0;
+		inputMask = inputSize - 1;
+		diffuserMask = diffuserSize - 1;
+		diffuserBase = new int[DIFFUSER_MS.length];
+		diffuserLength = new int[DIFFUSER_MS.length];
+		for (int i = 0; i < DIFFUSER_MS.length; i++) {
+			diffuserBase[i] = inputSize + i * diffuserSize;
+			diffuserLength[i] = Math.max(1, (int) (DIFFUSER_MS[i] * sampsPerMS));
+		}
+		lineMask = lineSize - 1;
+		lineBase = new int[LINES];
+		for (int k = 0; k < LINES; k++) {
+			lineBase[k] = inputSize + diffuserSize * DIFFUSER_MS.length + k * lineSize;
+		}
+
+		lineLength = new float[LINES];
+		lineGain = new float[LINES];
+		lineLowpass = new float[LINES];
+		lineOut = new float[LINES];
+		lineBlock = new float[LINES][bufferSize];
+		lengthStep = new float[LINES];
+		gainStep = new float[LINES];
+
+		// each output gets its own early reflection times and signs, and a row of a Hadamard matrix for the late reverb
+		earlyTaps = new int[outChannels][EARLY_MS.length];
+		earlyGains = new float[outChannels][EARLY_MS.length];
+		earlyTimes = new float[EARLY_MS.length];
+		lateSigns = new float[outChannels][LINES];
+		for (int o = 0; o < outChannels; o++) {
+			float g = EARLY_GAIN;
+			for (int j = 0; j < EARLY_MS.length; j++) {
+				earlyGains[o][j] = ((j + o) % 2 == 0 ? g : -g);
+				g *= .8f;
+			}
+			// beyond the first eight outputs, flip the signs of the rows with a pattern for each set of eight
+			int flips = o < LINES ? 0 : (o / LINES) * 0x9E3779B9;
+			for (int k = 0; k < LINES; k++) {
+				int parity = Integer.bitCount(o & k) + ((flips >>> (k * 3 + 5)) & 1);
+				lateSigns[o][k] = (parity % 2 == 0 ? LATE_GAIN : -LATE_GAIN)
+						/ (float) Math.sqrt(LINES);
+			}
+		}
+		currentSize = -1;
+		setSize(.5f).setDamping(.7f).setEarlyReflectionsLevel(1)
+				.setLateReverbLevel(1);
+	}
+
+	private static int powerOfTwo(float length) {
+		int size = 1;
+		while (size < length) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the coefficient of a one-pole low-pass filter.
+	 */
+	private float lowpassCoefficient(float freq) {
+		return (float) (1 - Math.exp(-2 * Math.PI * freq / context.getSampleRate()));
+	}
+
+	@Override
+	public void calculateBuffer() {
+		boolean first = currentSize < 0;
+		float s = first ? size : currentSize + (size - currentSize) * SMOOTHING;
+		if (Math.abs(size - s) < 1e-4f) {
+			s = size;
+		}
+		currentSize = s;
+
+		// the targets for the end of this buffer
+		float scale = .25f + 1.5f * s;
+		float decaySamples = (.3f + 5.5f * s) * context.getSampleRate();
+		time += bufferSize / context.getSampleRate();
+		for (int k = 0; k < LINES; k++) {
+			float length = (LINE_MS[k] * scale + MOD_MS
+					* (float) Math.sin(2 * Math.PI * MOD_HZ[k] * time)) * sampsPerMS;
+			length = Math.max(1, Math.min(lineMask - 1, length));
+			float gain = (float) Math.pow(10, -3 * length / decaySamples);
+			if (first) {
+				lineLength[k] = length;
+				lineGain[k] = gain;
+			}
+			lengthStep[k] = (length - lineLength[k]) / bufferSize;
+			gainStep[k] = (gain - lineGain[k]) / bufferSize;
+		}
+		float f = 1f - (float) Math.sqrt(damping);
+		float damp = lowpassCoefficient(f * 8000 + 200);
+		float pre = lowpassCoefficient(f * 10000 + 250);
+		if (first) {
+			dampCoef = damp;
+			inputCoef = pre;
+			currentEarly = earlyLevel;
+			currentLate = lateLevel;
+		}
+		float dampStep = (damp - dampCoef) / bufferSize;
+		float inputStep = (pre - inputCoef) / bufferSize;
+		float earlyTarget = earlyLevel;
+		float lateTarget = lateLevel;
+		float earlyStep = (earlyTarget - currentEarly) / bufferSize;
+		float lateStep = (lateTarget - currentLate) / bufferSize;
+		for (int j = 0; j < EARLY_MS.length; j++) {
+			earlyTimes[j] = EARLY_MS[j] * scale * sampsPerMS;
+		}
+		for (int o = 0; o < outs; o++) {
+			for (int j = 0; j < EARLY_MS.length; j++) {
+				double spread = ((o + 1) * (j + 1) * GOLDEN) % 1;
+				earlyTaps[o][j] = Math.max(1, (int) (earlyTimes[j] * (1 + EARLY_SPREAD * spread)));
+			}
+		}
+
+		float[] in = bufIn[0];
+		float[] slab = this.slab;
+		float[] lineLength = this.lineLength, lineGain = this.lineGain, lineLowpass = this.lineLowpass,
+				lineOut = this.lineOut, lengthStep = this.lengthStep, gainStep = this.gainStep;
+		float[][] lineBlock = this.lineBlock;
+		int[] lineBase = this.lineBase, diffuserBase = this.diffuserBase, diffuserLength = this.diffuserLength;
+		int inputMask = this.inputMask, diffuserMask = this.diffuserMask, lineMask = this.lineMask;
+		float lowpass = inputLowpass, inputCoef = this.inputCoef, dampCoef = this.dampCoef;
+		int w = write;
+		for (int i = 0; i < bufferSize; i++) {
+			// input filter and early reflections line
+			lowpass += inputCoef * (in[i] + DENORMAL - lowpass);
+			float x = lowpass;
+			slab[inputBase + (w & inputMask)] = x;
+
+			// diffusion
+			for (int a = 0; a < diffuserBase.length; a++) {
+				int base = diffuserBase[a];
+				float delayed = slab[base + ((w - diffuserLength[a]) & diffuserMask)];
+				float v = x + DIFFUSER_GAIN * delayed;
+				slab[base + (w & diffuserMask)] = v;
+				x = delayed - DIFFUSER_GAIN * v;
+			}
+
+			// read, damp and attenuate the delay lines
+			float sum = 0;
+			for (int k = 0; k < LINES; k++) {
+				float length = lineLength[k];
+				int d = (int) length;
+				float frac = length - d;
+				int base = lineBase[k];
+				float a0 = slab[base + ((w - d) & lineMask)];
+				float a1 = slab[base + ((w - d - 1) & lineMask)];
+				float lp = lineLowpass[k] + dampCoef * (a0 + frac * (a1 - a0) - lineLowpass[k]);
+				lineLowpass[k] = lp;
+				float v = lp * lineGain[k];
+				lineOut[k] = v;
+				lineBlock[k][i] = v;
+				sum += v;
+				lineLength[k] = length + lengthStep[k];
+				lineGain[k] += gainStep[k];
+			}
+
+			// feed back through the Householder matrix, with the input
+			sum *= 2f / LINES;
+			x *= INPUT_GAIN;
+			for (int k = 0; k < LINES; k++) {
+				slab[lineBase[k] + (w & lineMask)] = lineOut[k] - sum + ((k & 1) == 0 ? x : -x);
+			}
+
+			dampCoef += dampStep;
+			inputCoef += inputStep;
+			w++;
+		}
+		inputLowpass = lowpass;
+		this.inputCoef = inputCoef;
+		this.dampCoef = dampCoef;
+
+		mixOutputs(write, earlyStep, lateStep);
+		currentEarly = earlyTarget;
+		currentLate = lateTarget;
+		write = w;
+	}
+
+	/**
+	 * Mixes each output from the delay line outputs and the early reflection taps of the input line.
+	 */
+	private void mixOutputs(int start, float earlyStep, float lateStep) {
+		for (int o = 0; o < outs; o++) {
+			float[] out = bufOut[o];
+			float[] ls = lateSigns[o];
+			float[] block = lineBlock[0];
+			float sign = ls[0];
+			for (int i = 0; i < bufferSize; i++) {
+				out[i] = sign * block[i];
+			}
+			for (int k = 1; k < LINES; k++) {
+				block = lineBlock[k];
+				sign = ls[k];
+				for (int i = 0; i < bufferSize; i++) {
+					out[i] += sign * block[i];
+				}
+			}
+			float level = currentLate;
+			for (int i = 0; i < bufferSize; i++) {
+				out[i] *= level;
+				level += lateStep;
+			}
+			int[] et = earlyTaps[o];
+			float[] eg = earlyGains[o];
+			for (int j = 0; j < et.length; j++) {
+				// read the input line in at most two runs, either side of its end
+				int from = (start - et[j]) & inputMask;
+				int first = Math.min(bufferSize, inputMask + 1 - from);
+				float g = eg[j] * currentEarly;
+				float step = eg[j] * earlyStep;
+				for (int i = 0; i < first; i++) {
+					out[i] += g * slab[inputBase + from + i];
+					g += step;
+				}
+				for (int i = first; i < bufferSize; i++) {
+					out[i] += g * slab[inputBase + i - first];
+					g += step;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the "room size".
+	 *
+	 * @return The "room size", between 0 and 1.
+	 */
+	public float getSize() {
+		return size;
+	}
+
+	/**
+	 * Sets the "room size". Valid value range from 0 to 1 (.5 is the default).
+	 * The larger the value, the longer the delays and the decay time.
+	 *
+	 * @param size
+	 *            The "room size".
+	 * @return This reverb instance.
+	 */
+	public FDNReverb setSize(float size) {
+		if (size > 1)
+			size = 1;
+		else if (size < 0.01)
+			size = .01f;
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * Gets the damping factor.
+	 *
+	 * @return The damping factor, between 0 and 1.
+	 */
+	public float getDamping() {
+		return damping;
+	}
+
+	/**
+	 * Sets the damping factor. Valid values range from 0 to 1 (.7 is the
+	 * default). Higher values filter out higher frequencies faster.
+	 *
+	 * @param damping
+	 *            The damping factor.
+	 * @return This reverb instance.
+	 */
+	public FDNReverb setDamping(float damping) {
+		if (damping < 0)
+			damping = 0;
+		else if (damping > 1)
+			damping = 1;
+		this.damping = damping;
+		return this;
+	}
+
+	/**
+	 * Gets the early reflections level.
+	 *
+	 * @return The early reflections level.
+	 */
+	public float getEarlyReflectionsLevel() {
+		return earlyLevel;
+	}
+
+	/**
+	 * Sets the early reflections level (the amount of early reflections heard
+	 * in the output). The default value is 1.
+	 *
+	 * @param earlyLevel
+	 *            The early reflections level.
+	 * @return This reverb instance.
+	 */
+	public FDNReverb setEarlyReflectionsLevel(float earlyLevel) {
+		this.earlyLevel = earlyLevel;
+		return this;
+	}
+
+	/**
+	 * Gets the late reverb level.
+	 *
+	 * @return The late reverb level.
+	 */
+	public float getLateReverbLevel() {
+		return lateLevel;
+	}
+
+	/**
+	 * Sets the late reverb level (the amount of late reverb heard in the
+	 * output). The default value is 1.
+	 *
+	 * @param lateLevel
+	 *            The late reverb level.
+	 * @return This reverb instance.
+	 */
+	public FDNReverb setLateReverbLevel(float lateLevel) {
+		this.lateLevel = lateLevel;
+		return this;
+	}
+
+	/**
+	 * Sets the reverb parameters with a DataBead, using values stored in the
+	 * keys "damping", "roomSize", "earlyReflectionsLevel", and
+	 * "lateReverbLevel".
+	 *
+	 * @param db
+	 *            The parameter DataBead.
+	 */
+	public DataBeadReceiver sendData(DataBead db) {
+		if (db != null) {
+			setDamping(db.getFloat("damping", damping));
+			setSize(db.getFloat("roomSize", size));
+			setEarlyReflectionsLevel(db.getFloat("earlyReflectionsLevel",
+					earlyLevel));
+			setLateReverbLevel(db.getFloat("lateReverbLevel", lateLevel));
+		}
+		return this;
+	}
+
+	/**
+	 * Gets a new DataBead filled with parameter values stored in the keys
+	 * "damping", "roomSize", "earlyReflectionsLevel", and "lateReverbLevel".
+	 *
+	 * @return The parameter DataBead.
+	 */
+	public DataBead getParams() {
+		DataBead db = new DataBead();
+		db.put("damping", damping);
+		db.put("roomSize", size);
+		db.put("earlyReflectionsLevel", earlyLevel);
+		db.put("lateReverbLevel", lateLevel);
+		return db;
+	}
+
+}
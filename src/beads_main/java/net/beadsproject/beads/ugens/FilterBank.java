@@ -0,0 +1,421 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * FilterBank runs many biquad filter sections in one UGen, for things like graphic EQs and
+ * per-voice filters that would otherwise need hundreds of {@link BiquadFilter}s. Each channel
+ * passes through its own chain of sections in series, so a 31 band EQ on 8 channels is a
+ * FilterBank with 8 channels and 31 stages, and 100 independent filters are a FilterBank with
+ * 100 channels and 1 stage. Sections use the same designs as BiquadFilter (see
+ * {@link BiquadFilter.Type}, except {@link BiquadFilter.Type#CUSTOM_FILTER}) and start out
+ * passing their input through unchanged.
+ * <p>
+ * The coefficients and state of all sections are held in flat arrays. Coefficients are worked
+ * out by the thread that sets the parameters and are picked up at the start of the next buffer,
+ * so parameters are fixed for the length of a buffer and cost nothing while they don't change.
+ * Each stage is run a whole buffer at a time, on four channels at once, which keeps the four
+ * independent filters busy together.
+ *
+ * @see BiquadFilter
+ * @author Beads Team
+ */
+public class FilterBank extends UGen {
+
+	/** The number of channels and the number of sections per channel. */
+	private final int channels;
+	private final int stages;
+
+	/** The type, frequency, Q and gain of each section, indexed by stage * channels + channel. */
+	private final BiquadFilter.Type[] types;
+	private final float[] frequencies;
+	private final float[] qs;
+	private final float[] gains;
+
+	/** Normalised coefficients set by the parameter methods, to be picked up by the audio thread. */
+	private final double[] pendingCoefficients;
+
+	/** The coefficients in use, b0, b1, b2, a1, a2 for each section in turn. */
+	private final double[] coefficients;
+
+	/** Whether each section is doing anything, and whether each stage is doing anything on any channel. */
+	private final boolean[] active;
+	private final boolean[] stageActive;
+
+	/** The state of each section, in transposed direct form II. */
+	private final double[] z1;
+	private final double[] z2;
+
+	/** Set when the pending coefficients have changed. */
+	private volatile boolean changed;
+
+	/** Set when the state should be cleared at the start of the next buffer. */
+	private volatile boolean clearState;
+
+	/** Used to design sections. */
+	private final BiquadFilter designer;
+
+	/**
+	 * Instantiates a new FilterBank.
+	 *
+	 * @param context the AudioContext.
+	 * @param channels the number of channels.
+	 * @param stages the number of sections each channel passes through.
+	 */
+	public FilterBank(AudioContext context, int channels, int stages) {
+		super(context, channels, channels);
+		this.channels = channels;
+		this.stages = stages;
+		int n = channels * stages;
+		types = new BiquadFilter.Type[n];
+		frequencies = new float[n];
+		qs = new float[n];
+		gains = new float[n];
+		pendingCoefficients = new double[n * 5];
+		coefficients = new double[n * 5];
+		active = new boolean[n];
+		stageActive = new boolean[stages];
+		z1 = new double[n];
+		z2 = new double[n];
+		for (int k = 0; k < n; k++) {
+			frequencies[k] = 100;
+			qs[k] = 1;
+			pendingCoefficients[k * 5] = 1;
+			coefficients[k * 5] = 1;
+		}
+		designer = new BiquadFilter(context, 1);
+	}
+
+	/**
+	 * Instantiates a new FilterBank.
+	 *
+	 * @param channels the number of channels.
+	 * @param stages the number of sections each channel passes through.
+	 */
+	public FilterBank(int channels, int stages) {
+		this(getDefaultContext(), channels, stages);
+	}
+
+	/**
+	 * Gets the number of channels.
+	 *
+	 * @return the number of channels.
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Gets the number of sections each channel passes through.
+	 *
+	 * @return the number of stages.
+	 */
+	public int getStages() {
+		return stages;
+	}
+
+	/**
+	 * Sets all the parameters of one section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @param type the filter type, or null to pass the input through unchanged.
+	 * @param freq the frequency in Hz.
+	 * @param q the Q.
+	 * @param gain the gain in decibels, for the EQ and shelf types.
+	 * @return this FilterBank.
+	 */
+	public synchronized FilterBank setSection(int channel, int stage, BiquadFilter.Type type, float freq, float q, float gain) {
+		int k = index(channel, stage);
+		types[k] = type;
+		frequencies[k] = freq;
+		qs[k] = q;
+		gains[k] = gain;
+		design(k);
+		return this;
+	}
+
+	/**
+	 * Sets all the parameters of one stage on every channel, for example one band of a multichannel EQ.
+	 *
+	 * @param stage the stage.
+	 * @param type the filter type, or null to pass the input through unchanged.
+	 * @param freq the frequency in Hz.
+	 * @param q the Q.
+	 * @param gain the gain in decibels, for the EQ and shelf types.
+	 * @return this FilterBank.
+	 */
+	public synchronized FilterBank setStage(int stage, BiquadFilter.Type type, float freq, float q, float gain) {
+		for (int c = 0; c < channels; c++) {
+			setSection(c, stage, type, freq, q, gain);
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the type of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @param type the filter type, or null to pass the input through unchanged.
+	 * @return this FilterBank.
+	 */
+	public synchronized FilterBank setType(int channel, int stage, BiquadFilter.Type type) {
+		int k = index(channel, stage);
+		return setSection(channel, stage, type, frequencies[k], qs[k], gains[k]);
+	}
+
+	/**
+	 * Sets the frequency of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @param freq the frequency in Hz.
+	 * @return this FilterBank.
+	 */
+	public synchronized FilterBank setFrequency(int channel, int stage, float freq) {
+		int k = index(channel, stage);
+		return setSection(channel, stage, types[k], freq, qs[k], gains[k]);
+	}
+
+	/**
+	 * Sets the Q of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @param q the Q.
+	 * @return this FilterBank.
+	 */
+	public synchronized FilterBank setQ(int channel, int stage, float q) {
+		int k = index(channel, stage);
+		return setSection(channel, stage, types[k], frequencies[k], q, gains[k]);
+	}
+
+	/**
+	 * Sets the gain of a section. Only relevant for the EQ and shelf types.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @param gain the gain in decibels.
+	 * @return this FilterBank.
+	 */
+	public synchronized FilterBank setGain(int channel, int stage, float gain) {
+		int k = index(channel, stage);
+		return setSection(channel, stage, types[k], frequencies[k], qs[k], gain);
+	}
+
+	/**
+	 * Gets the type of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @return the type, or null if the section passes the input through unchanged.
+	 */
+	public synchronized BiquadFilter.Type getType(int channel, int stage) {
+		return types[index(channel, stage)];
+	}
+
+	/**
+	 * Gets the frequency of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @return the frequency in Hz.
+	 */
+	public synchronized float getFrequency(int channel, int stage) {
+		return frequencies[index(channel, stage)];
+	}
+
+	/**
+	 * Gets the Q of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @return the Q.
+	 */
+	public synchronized float getQ(int channel, int stage) {
+		return qs[index(channel, stage)];
+	}
+
+	/**
+	 * Gets the gain of a section.
+	 *
+	 * @param channel the channel.
+	 * @param stage the stage.
+	 * @return the gain in decibels.
+	 */
+	public synchronized float getGain(int channel, int stage) {
+		return gains[index(channel, stage)];
+	}
+
+	/**
+	 * Clears the state of every section, in case a filter "explodes".
+	 */
+	public void reset() {
+		clearState = true;
+	}
+
+	private int index(int channel, int stage) {
+		if (channel < 0 || channel >= channels) throw new IndexOutOfBoundsException("No channel " + channel);
+		if (stage < 0 || stage >= stages) throw new IndexOutOfBoundsException("No stage " + stage);
+		return stage * channels + channel;
+	}
+
+	/**
+	 * Works out the pending coefficients of a section from its parameters, using the designs of {@link BiquadFilter}.
+	 */
+	private void design(int k) {
+		BiquadFilter.Type type = types[k];
+		int i = k * 5;
+		if (type == null) {
+			pendingCoefficients[i] = 1;
+			pendingCoefficients[i + 1] = 0;
+			pendingCoefficients[i + 2] = 0;
+			pendingCoefficients[i + 3] = 0;
+			pendingCoefficients[i + 4] = 0;
+		} else {
+			if (type == BiquadFilter.Type.CUSTOM_FILTER) throw new IllegalArgumentException("FilterBank doesn't support custom filters");
+			designer.setType(type);
+			designer.freq = frequencies[k];
+			designer.q = qs[k];
+			designer.gain = gains[k];
+			designer.vc.calcVals();
+			double a0 = designer.a0;
+			pendingCoefficients[i] = designer.b0 / a0;
+			pendingCoefficients[i + 1] = designer.b1 / a0;
+			pendingCoefficients[i + 2] = designer.b2 / a0;
+			pendingCoefficients[i + 3] = designer.a1 / a0;
+			pendingCoefficients[i + 4] = designer.a2 / a0;
+		}
+		changed = true;
+	}
+
+	/**
+	 * Picks up new coefficients, noting which sections and stages do anything.
+	 */
+	private synchronized void updateCoefficients() {
+		changed = false;
+		System.arraycopy(pendingCoefficients, 0, coefficients, 0, coefficients.length);
+		for (int s = 0; s < stages; s++) {
+			stageActive[s] = false;
+			for (int c = 0; c < channels; c++) {
+				int k = s * channels + c;
+				int i = k * 5;
+				active[k] = coefficients[i] != 1 || coefficients[i + 1] != 0 || coefficients[i + 2] != 0
+						|| coefficients[i + 3] != 0 || coefficients[i + 4] != 0;
+				if (!active[k]) {
+					z1[k] = 0;
+					z2[k] = 0;
+				}
+				stageActive[s] |= active[k];
+			}
+		}
+	}
+
+	@Override
+	public void calculateBuffer() {
+		if (changed) {
+			updateCoefficients();
+		}
+		if (clearState) {
+			clearState = false;
+			for (int k = 0; k < z1.length; k++) {
+				z1[k] = 0;
+				z2[k] = 0;
+			}
+		}
+		for (int c = 0; c < channels; c++) {
+			System.arraycopy(bufIn[c], 0, bufOut[c], 0, bufferSize);
+		}
+		for (int s = 0; s < stages; s++) {
+			if (!stageActive[s]) continue;
+			int c = 0;
+			// four channels at a time, so that the four filters run side by side
+			for (; c + 4 <= channels; c += 4) {
+				int k = s * channels + c;
+				if (active[k] || active[k + 1] || active[k + 2] || active[k + 3]) {
+					processFour(k, bufOut[c], bufOut[c + 1], bufOut[c + 2], bufOut[c + 3]);
+				}
+			}
+			for (; c < channels; c++) {
+				int k = s * channels + c;
+				if (active[k]) {
+					processOne(k, bufOut[c]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs one section over a buffer in place.
+	 */
+	private void processOne(int k, float[] x) {
+		int i = k * 5;
+		double b0 = coefficients[i], b1 = coefficients[i + 1], b2 = coefficients[i + 2];
+		double a1 = coefficients[i + 3], a2 = coefficients[i + 4];
+		double s1 = z1[k], s2 = z2[k];
+		for (int n = 0; n < bufferSize; n++) {
+			double in = x[n];
+			double out = b0 * in + s1;
+			s1 = b1 * in - a1 * out + s2;
+			s2 = b2 * in - a2 * out;
+			x[n] = (float) out;
+		}
+		store(k, s1, s2);
+	}
+
+	/**
+	 * Runs four neighbouring sections of one stage over their buffers in place.
+	 */
+	private void processFour(int k, float[] x0, float[] x1, float[] x2, float[] x3) {
+		double[] co = coefficients;
+		int i = k * 5;
+		double b00 = co[i], b10 = co[i + 1], b20 = co[i + 2], a10 = co[i + 3], a20 = co[i + 4];
+		double b01 = co[i + 5], b11 = co[i + 6], b21 = co[i + 7], a11 = co[i + 8], a21 = co[i + 9];
+		double b02 = co[i + 10], b12 = co[i + 11], b22 = co[i + 12], a12 = co[i + 13], a22 = co[i + 14];
+		double b03 = co[i + 15], b13 = co[i + 16], b23 = co[i + 17], a13 = co[i + 18], a23 = co[i + 19];
+		double s10 = z1[k], s20 = z2[k];
+		double s11 = z1[k + 1], s21 = z2[k + 1];
+		double s12 = z1[k + 2], s22 = z2[k + 2];
+		double s13 = z1[k + 3], s23 = z2[k + 3];
+		for (int n = 0; n < bufferSize; n++) {
+			double in0 = x0[n], in1 = x1[n], in2 = x2[n], in3 = x3[n];
+			double out0 = b00 * in0 + s10;
+			double out1 = b01 * in1 + s11;
+			double out2 = b02 * in2 + s12;
+			double out3 = b03 * in3 + s13;
+			s10 = b10 * in0 - a10 * out0 + s20;
+			s11 = b11 * in1 - a11 * out1 + s21;
+			s12 = b12 * in2 - a12 * out2 + s22;
+			s13 = b13 * in3 - a13 * out3 + s23;
+			s20 = b20 * in0 - a20 * out0;
+			s21 = b21 * in1 - a21 * out1;
+			s22 = b22 * in2 - a22 * out2;
+			s23 = b23 * in3 - a23 * out3;
+			x0[n] = (float) out0;
+			x1[n] = (float) out1;
+			x2[n] = (float) out2;
+			x3[n] = (float) out3;
+		}
+		store(k, s10, s20);
+		store(k + 1, s11, s21);
+		store(k + 2, s12, s22);
+		store(k + 3, s13, s23);
+	}
+
+	/**
+	 * Stores the state of a section, clearing it if the filter has blown up.
+	 */
+	private void store(int k, double s1, double s2) {
+		if (Double.isNaN(s1) || Double.isNaN(s2) || Double.isInfinite(s1) || Double.isInfinite(s2)) {
+			s1 = 0;
+			s2 = 0;
+		}
+		z1[k] = s1;
+		z2[k] = s2;
+	}
+}
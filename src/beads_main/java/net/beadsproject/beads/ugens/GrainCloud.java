@@ -0,0 +1,757 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.data.FloatSampleStorage;
+import net.beadsproject.beads.data.Sample;
+import net.beadsproject.beads.data.SampleStorage;
+import net.beadsproject.beads.data.buffers.CosineWindow;
+
+/**
+ * GrainCloud plays a dense cloud of grains from a {@link Sample}, spreading the work of rendering
+ * the grains over several threads so that a single cloud can hold thousands of grains at once.
+ * Unlike {@link GranularSamplePlayer} there is no playback head: each grain starts at the position
+ * given by the position {@link UGen}, scattered by the position randomness, and plays at the pitch
+ * given by the pitch UGen, scattered by the pitch randomness. Grains start every grain interval
+ * milliseconds, which may be much less than the length of a sample frame, and last for the grain size.
+ * <p>
+ * Each buffer, the grains are split into fixed groups of {@link #GRAINS_PER_TASK} which are mixed
+ * separately by a shared set of helper threads (and the audio thread), and the partial mixes are
+ * then summed in order. The grouping doesn't depend on the number of threads or how the work is
+ * scheduled, and all random choices are made on the audio thread, so for a given seed (see
+ * {@link #setSeed(long)}) and given controls the output is always the same.
+ * <p>
+ * Grains are read with linear interpolation straight from the Sample's data. The data of Samples
+ * that aren't held in a {@link FloatSampleStorage} is copied into float arrays by {@link #setSample(Sample)},
+ * and changes to it afterwards are not heard. Grains of a mipmapped Sample
+ * played at high pitch are read from the band-limited copies (see {@link Sample#getMipmap(double)}).
+ *
+ * @see GranularSamplePlayer
+ * @author Beads Team
+ */
+public class GrainCloud extends UGen {
+
+	/** The number of grains mixed together by one task. */
+	public static final int GRAINS_PER_TASK = 64;
+
+	/** The default largest number of grains at once. */
+	public static final int DEFAULT_MAX_GRAINS = 8192;
+
+	/** The length of the table the grain window is read from. */
+	private static final int WINDOW_TABLE_SIZE = 1024;
+
+	/** The shortest grain interval in milliseconds, to bound the number of grains started per frame. */
+	private static final float MIN_GRAIN_INTERVAL = 0.001f;
+
+	private static int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	/** The helper threads shared by all GrainClouds, created when first needed. */
+	private static volatile Helper[] helpers;
+
+	/** The Sample. */
+	private Sample sample;
+
+	/** The position, position randomness, pitch, pitch randomness, grain interval, grain size and pan randomness UGens. */
+	private UGen positionUGen;
+	private UGen positionRandomnessUGen;
+	private UGen pitchUGen;
+	private UGen pitchRandomnessUGen;
+	private UGen grainIntervalUGen;
+	private UGen grainSizeUGen;
+	private UGen randomPanUGen;
+
+	/** The grain window, and the table it is read from. */
+	private Buffer window;
+	private float[] windowTable;
+
+	/** The random number generator used for all random choices. */
+	private Random random;
+
+	/** The time in milliseconds since the last grain was started. */
+	private double timeSinceLastGrain;
+
+	/** The length of one sample frame in milliseconds. */
+	private final double msPerSample;
+
+	/** The largest number of grains at once, as set by {@link #setMaxGrains(int)}. */
+	private volatile int maxGrains;
+
+	/** Grain arrays allocated by {@link #setMaxGrains(int)}, waiting to be taken up at the start of the next buffer. */
+	private final AtomicReference<Grains> newGrains;
+
+	/** The number of current grains, which occupy the first numGrains entries of the grain arrays. */
+	private int numGrains;
+
+	/** The data each grain reads, in the form [channel][frame]. */
+	private float[][][] grainData;
+
+	/** The position of each grain in frames of its data, and the frames of data per output frame. */
+	private double[] grainPositions;
+	private double[] grainIncrements;
+
+	/** The age and length of each grain in output frames. */
+	private int[] grainAges;
+	private int[] grainSizes;
+
+	/** The frame of the current buffer at which each grain starts, 0 for grains started in earlier buffers. */
+	private int[] grainStarts;
+
+	/** The pan level of each grain for each channel, in the form [channel][grain]. */
+	private float[][] grainPans;
+
+	/** The partial mixes of each group of grains, in the form [group][channel][frame]. */
+	private float[][][] partials;
+
+	/** The number of groups in the current buffer, and the next group to be mixed. */
+	private int numTasks;
+	private final AtomicInteger nextTask;
+
+	/** 
+	 * Signals that the helpers have finished the current buffer. The audio thread is its one permanent
+	 * party, and the helpers of each buffer are registered for it and deregister when done.
+	 */
+	private final Phaser finished;
+
+	/** A float copy of the data of the Sample if it isn't held as floats, made by {@link #setSample(Sample)}. */
+	private volatile float[][] copiedData;
+	private volatile Sample copiedSample;
+
+	/** Set when the grains should be cleared at the start of the next buffer. */
+	private volatile boolean clearGrains;
+
+	/**
+	 * A long-lived thread that mixes groups of grains for whichever GrainCloud hands it a buffer,
+	 * and is parked in between. The audio thread hands over a buffer by setting the job with a
+	 * compare-and-set and unparking the helper, so it neither locks nor allocates. A retired helper
+	 * closes its job so that nothing more can be handed to it.
+	 */
+	private static class Helper extends Thread {
+
+		/** Marks the job of a helper that has retired. */
+		private static final Object CLOSED = new Object();
+
+		/** The GrainCloud to mix for, null if idle or {@link #CLOSED} once retired. */
+		final AtomicReference<Object> job = new AtomicReference<Object>();
+
+		/** Set by {@link GrainCloud#setNumThreads(int)} when the helper should finish. */
+		volatile boolean retired;
+
+		Helper() {
+			super("GrainCloud");
+			setDaemon(true);
+			setPriority(MAX_PRIORITY);
+		}
+
+		/**
+		 * Hands a buffer of the given GrainCloud to this helper, if it is idle.
+		 *
+		 * @return true if the helper took the buffer.
+		 */
+		boolean offer(GrainCloud cloud) {
+			if (!job.compareAndSet(null, cloud)) return false;
+			LockSupport.unpark(this);
+			return true;
+		}
+
+		public void run() {
+			while (true) {
+				Object j = job.get();
+				if (j instanceof GrainCloud) {
+					GrainCloud cloud = (GrainCloud) j;
+					try {
+						cloud.mixTasks();
+					} finally {
+						job.set(null);
+						cloud.finished.arriveAndDeregister();
+					}
+				} else if (retired) {
+					if (job.compareAndSet(null, CLOSED)) return;
+				} else {
+					LockSupport.park(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The grain arrays and partial mixes for a given largest number of grains, allocated off the audio thread.
+	 */
+	private static class Grains {
+		final float[][][] data;
+		final double[] positions, increments;
+		final int[] ages, sizes, starts;
+		final float[][] pans;
+		final float[][][] partials;
+
+		Grains(int maxGrains, int outs, int bufferSize) {
+			data = new float[maxGrains][][];
+			positions = new double[maxGrains];
+			increments = new double[maxGrains];
+			ages = new int[maxGrains];
+			sizes = new int[maxGrains];
+			starts = new int[maxGrains];
+			pans = new float[outs][maxGrains];
+			partials = new float[(maxGrains + GRAINS_PER_TASK - 1) / GRAINS_PER_TASK][outs][bufferSize];
+		}
+	}
+
+	/**
+	 * Instantiates a new GrainCloud with no Sample.
+	 *
+	 * @param context the AudioContext.
+	 * @param outs the number of outputs.
+	 */
+	public GrainCloud(AudioContext context, int outs) {
+		super(context, outs);
+		msPerSample = context.samplesToMs(1);
+		random = new Random();
+		nextTask = new AtomicInteger();
+		finished = new Phaser(1);
+		newGrains = new AtomicReference<Grains>();
+		setMaxGrains(DEFAULT_MAX_GRAINS);
+		takeNewGrains();
+		setPosition(new Static(context, 0f));
+		setPositionRandomness(new Static(context, 0f));
+		setPitch(new Static(context, 1f));
+		setPitchRandomness(new Static(context, 0f));
+		setGrainInterval(new Static(context, 10f));
+		setGrainSize(new Static(context, 100f));
+		setRandomPan(new Static(context, 0f));
+		setWindow(new CosineWindow().getDefault());
+	}
+
+	/**
+	 * Instantiates a new GrainCloud with no Sample.
+	 *
+	 * @param outs the number of outputs.
+	 */
+	public GrainCloud(int outs) {
+		this(getDefaultContext(), outs);
+	}
+
+	/**
+	 * Instantiates a new GrainCloud playing the given Sample, with one output per channel of the Sample.
+	 *
+	 * @param context the AudioContext.
+	 * @param sample the Sample.
+	 */
+	public GrainCloud(AudioContext context, Sample sample) {
+		this(context, sample.getNumChannels());
+		setSample(sample);
+	}
+
+	/**
+	 * Instantiates a new GrainCloud playing the given Sample, with one output per channel of the Sample.
+	 *
+	 * @param sample the Sample.
+	 */
+	public GrainCloud(Sample sample) {
+		this(getDefaultContext(), sample);
+	}
+
+	/**
+	 * Gets the Sample.
+	 *
+	 * @return the Sample.
+	 */
+	public Sample getSample() {
+		return sample;
+	}
+
+	/**
+	 * Sets the Sample. Current grains are stopped. If the Sample isn't held in a {@link FloatSampleStorage},
+	 * its data is copied into float arrays here, so this may take a while for a long Sample.
+	 *
+	 * @param sample the Sample.
+	 */
+	public void setSample(Sample sample) {
+		if (this.sample != null && !isDeleted()) {
+			this.sample.removePlayer();
+		}
+		copiedSample = null;
+		if (sample != null && !(sample.getStorage() instanceof FloatSampleStorage)) {
+			copiedData = sample.getStorage().asFloatArrays();
+			copiedSample = sample;
+		} else {
+			copiedData = null;
+		}
+		this.sample = sample;
+		if (sample != null && !isDeleted()) {
+			sample.addPlayer();
+		}
+		clearGrains = true;
+	}
+
+	/**
+	 * Kills the GrainCloud, and tells the Sample it is no longer in use, so that
+	 * it can be evicted from the {@link net.beadsproject.beads.data.SampleCache}.
+	 */
+	@Override
+	public void kill() {
+		if (!isDeleted() && sample != null) {
+			sample.removePlayer();
+		}
+		super.kill();
+	}
+
+	/**
+	 * Gets the position UGen.
+	 *
+	 * @return the position UGen, in milliseconds.
+	 */
+	public UGen getPositionUGen() {
+		return positionUGen;
+	}
+
+	/**
+	 * Sets the position UGen, which gives the position in the Sample at which grains start.
+	 *
+	 * @param positionUGen the new position UGen, in milliseconds.
+	 */
+	public void setPosition(UGen positionUGen) {
+		this.positionUGen = positionUGen;
+	}
+
+	/**
+	 * Gets the position randomness UGen.
+	 *
+	 * @return the position randomness UGen, in milliseconds.
+	 */
+	public UGen getPositionRandomnessUGen() {
+		return positionRandomnessUGen;
+	}
+
+	/**
+	 * Sets the position randomness UGen. Grains start up to this many milliseconds either side of the position.
+	 *
+	 * @param positionRandomnessUGen the new position randomness UGen, in milliseconds.
+	 */
+	public void setPositionRandomness(UGen positionRandomnessUGen) {
+		this.positionRandomnessUGen = positionRandomnessUGen;
+	}
+
+	/**
+	 * Gets the pitch UGen.
+	 *
+	 * @return the pitch UGen.
+	 */
+	public UGen getPitchUGen() {
+		return pitchUGen;
+	}
+
+	/**
+	 * Sets the pitch UGen, where 1 plays grains at their original pitch. The pitch of each grain is fixed when it starts.
+	 *
+	 * @param pitchUGen the new pitch UGen.
+	 */
+	public void setPitch(UGen pitchUGen) {
+		this.pitchUGen = pitchUGen;
+	}
+
+	/**
+	 * Gets the pitch randomness UGen.
+	 *
+	 * @return the pitch randomness UGen.
+	 */
+	public UGen getPitchRandomnessUGen() {
+		return pitchRandomnessUGen;
+	}
+
+	/**
+	 * Sets the pitch randomness UGen. The pitch of each grain is scattered by up to this fraction of the pitch either way.
+	 *
+	 * @param pitchRandomnessUGen the new pitch randomness UGen.
+	 */
+	public void setPitchRandomness(UGen pitchRandomnessUGen) {
+		this.pitchRandomnessUGen = pitchRandomnessUGen;
+	}
+
+	/**
+	 * Gets the grain interval UGen.
+	 *
+	 * @return the grain interval UGen, in milliseconds.
+	 */
+	public UGen getGrainIntervalUGen() {
+		return grainIntervalUGen;
+	}
+
+	/**
+	 * Sets the grain interval UGen, the time between the starts of grains. This may be less than
+	 * the length of a frame, in which case several grains start each frame.
+	 *
+	 * @param grainIntervalUGen the new grain interval UGen, in milliseconds.
+	 */
+	public void setGrainInterval(UGen grainIntervalUGen) {
+		this.grainIntervalUGen = grainIntervalUGen;
+	}
+
+	/**
+	 * Gets the grain size UGen.
+	 *
+	 * @return the grain size UGen, in milliseconds.
+	 */
+	public UGen getGrainSizeUGen() {
+		return grainSizeUGen;
+	}
+
+	/**
+	 * Sets the grain size UGen. The size of each grain is fixed when it starts.
+	 *
+	 * @param grainSizeUGen the new grain size UGen, in milliseconds.
+	 */
+	public void setGrainSize(UGen grainSizeUGen) {
+		this.grainSizeUGen = grainSizeUGen;
+	}
+
+	/**
+	 * Gets the random pan UGen.
+	 *
+	 * @return the random pan UGen.
+	 */
+	public UGen getRandomPanUGen() {
+		return randomPanUGen;
+	}
+
+	/**
+	 * Sets the random pan UGen, from 0 (grains in the centre) to 1 (grains anywhere). Only applies with 2 outputs.
+	 *
+	 * @param randomPanUGen the new random pan UGen.
+	 */
+	public void setRandomPan(UGen randomPanUGen) {
+		this.randomPanUGen = randomPanUGen;
+	}
+
+	/**
+	 * Gets the grain window.
+	 *
+	 * @return the window.
+	 */
+	public Buffer getWindow() {
+		return window;
+	}
+
+	/**
+	 * Sets the grain window.
+	 *
+	 * @param window the window.
+	 */
+	public void setWindow(Buffer window) {
+		float[] table = new float[WINDOW_TABLE_SIZE + 1];
+		for (int i = 0; i <= WINDOW_TABLE_SIZE; i++) {
+			table[i] = window.getValueFraction((float) i / WINDOW_TABLE_SIZE);
+		}
+		this.window = window;
+		windowTable = table;
+	}
+
+	/**
+	 * Sets the seed of the random number generator. Two GrainClouds with the same seed, Sample and
+	 * controls give the same output.
+	 *
+	 * @param seed the seed.
+	 */
+	public void setSeed(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Gets the largest number of grains at once.
+	 *
+	 * @return the largest number of grains.
+	 */
+	public int getMaxGrains() {
+		return maxGrains;
+	}
+
+	/**
+	 * Sets the largest number of grains at once. No new grains start while there are this many.
+	 * The grain arrays are allocated here and taken up at the start of the next buffer, keeping
+	 * as many of the current grains as fit.
+	 *
+	 * @param maxGrains the largest number of grains.
+	 */
+	public void setMaxGrains(int maxGrains) {
+		maxGrains = Math.max(1, maxGrains);
+		newGrains.set(new Grains(maxGrains, outs, bufferSize));
+		this.maxGrains = maxGrains;
+	}
+
+	/**
+	 * Takes up the grain arrays allocated by {@link #setMaxGrains(int)}, if any, copying the current grains into them.
+	 */
+	private void takeNewGrains() {
+		Grains grains = newGrains.getAndSet(null);
+		if (grains == null) return;
+		numGrains = Math.min(numGrains, grains.positions.length);
+		if (numGrains > 0) {
+			System.arraycopy(grainData, 0, grains.data, 0, numGrains);
+			System.arraycopy(grainPositions, 0, grains.positions, 0, numGrains);
+			System.arraycopy(grainIncrements, 0, grains.increments, 0, numGrains);
+			System.arraycopy(grainAges, 0, grains.ages, 0, numGrains);
+			System.arraycopy(grainSizes, 0, grains.sizes, 0, numGrains);
+			System.arraycopy(grainStarts, 0, grains.starts, 0, numGrains);
+			for (int j = 0; j < outs; j++) {
+				System.arraycopy(grainPans[j], 0, grains.pans[j], 0, numGrains);
+			}
+		}
+		grainData = grains.data;
+		grainPositions = grains.positions;
+		grainIncrements = grains.increments;
+		grainAges = grains.ages;
+		grainSizes = grains.sizes;
+		grainStarts = grains.starts;
+		grainPans = grains.pans;
+		partials = grains.partials;
+	}
+
+	/**
+	 * Gets the number of grains currently playing.
+	 *
+	 * @return the number of grains.
+	 */
+	public int getNumGrains() {
+		return numGrains;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		if (clearGrains) {
+			clearGrains = false;
+			numGrains = 0;
+			timeSinceLastGrain = 0;
+		}
+		takeNewGrains();
+		for (int j = 0; j < outs; j++) {
+			Arrays.fill(bufOut[j], 0, bufferSize, 0f);
+		}
+		if (sample == null) return;
+		positionUGen.update();
+		positionRandomnessUGen.update();
+		pitchUGen.update();
+		pitchRandomnessUGen.update();
+		grainIntervalUGen.update();
+		grainSizeUGen.update();
+		randomPanUGen.update();
+		// start new grains, making all random choices here in a fixed order
+		for (int i = 0; i < bufferSize; i++) {
+			double interval = Math.max(MIN_GRAIN_INTERVAL, grainIntervalUGen.getValue(0, i));
+			while (timeSinceLastGrain >= interval) {
+				timeSinceLastGrain -= interval;
+				startGrain(i);
+			}
+			timeSinceLastGrain += msPerSample;
+		}
+		if (numGrains == 0) return;
+		// mix the groups of grains, with helpers if there are several
+		numTasks = (numGrains + GRAINS_PER_TASK - 1) / GRAINS_PER_TASK;
+		nextTask.set(0);
+		Helper[] h = numTasks > 1 ? getHelpers() : null;
+		int wanted = h == null ? 0 : Math.min(h.length, numTasks - 1);
+		int offered = 0;
+		for (int w = 0; offered < wanted && w < h.length; w++) {
+			// a helper that is busy with another GrainCloud, or retired, is skipped
+			finished.register();
+			if (h[w].offer(this)) {
+				offered++;
+			} else {
+				finished.arriveAndDeregister();
+			}
+		}
+		mixTasks();
+		if (offered > 0) {
+			finished.arriveAndAwaitAdvance();
+		}
+		// sum the partial mixes in order
+		for (int t = 0; t < numTasks; t++) {
+			for (int j = 0; j < outs; j++) {
+				float[] out = bufOut[j];
+				float[] partial = partials[t][j];
+				for (int i = 0; i < bufferSize; i++) {
+					out[i] += partial[i];
+				}
+			}
+		}
+		// remove grains that have finished, moving the last grain into their place
+		int g = 0;
+		while (g < numGrains) {
+			if (grainAges[g] >= grainSizes[g]) {
+				int last = --numGrains;
+				grainData[g] = grainData[last];
+				grainPositions[g] = grainPositions[last];
+				grainIncrements[g] = grainIncrements[last];
+				grainAges[g] = grainAges[last];
+				grainSizes[g] = grainSizes[last];
+				grainStarts[g] = grainStarts[last];
+				for (int j = 0; j < outs; j++) {
+					grainPans[j][g] = grainPans[j][last];
+				}
+				grainData[last] = null;
+			} else {
+				grainStarts[g] = 0;
+				g++;
+			}
+		}
+	}
+
+	/**
+	 * Starts a grain at the given frame of the current buffer.
+	 *
+	 * @param i the index within the buffer.
+	 */
+	private void startGrain(int i) {
+		// the random numbers are always drawn, so that the sequence doesn't depend on the grain count
+		double positionScatter = random.nextDouble() * 2 - 1;
+		double pitchScatter = random.nextDouble() * 2 - 1;
+		float panScatter = random.nextFloat();
+		boolean panLeft = random.nextBoolean();
+		if (numGrains == grainPositions.length) return;
+		double position = positionUGen.getValue(0, i) + positionRandomnessUGen.getValue(0, i) * positionScatter;
+		double pitch = Math.abs(pitchUGen.getValue(0, i) * (1 + pitchRandomnessUGen.getValue(0, i) * pitchScatter));
+		double increment = pitch * sample.getSampleRate() / context.getSampleRate();
+		Sample source = sample.getMipmap(increment);
+		double scale = source == sample ? 1 : source.getSampleRate() / sample.getSampleRate();
+		float[][] data = dataOf(source);
+		if (data == null || data.length == 0) return;
+		int g = numGrains++;
+		grainData[g] = data;
+		grainPositions[g] = sample.msToSamples(position) * scale;
+		grainIncrements[g] = increment * scale;
+		grainAges[g] = 0;
+		grainSizes[g] = Math.max(1, (int) Math.round(grainSizeUGen.getValue(0, i) / msPerSample));
+		grainStarts[g] = i;
+		if (outs == 2) {
+			float pan = panScatter * Math.min(1, Math.max(0, randomPanUGen.getValue(0, i))) * 0.5f;
+			pan = panLeft ? 0.5f + pan : 0.5f - pan;
+			grainPans[0][g] = pan > 0.5f ? 1f : 2f * pan;
+			grainPans[1][g] = pan < 0.5f ? 1f : 2f * (1 - pan);
+		} else {
+			for (int j = 0; j < outs; j++) {
+				grainPans[j][g] = 1f;
+			}
+		}
+	}
+
+	/**
+	 * Gets the data of a Sample as float arrays, or the copy made by {@link #setSample(Sample)} if
+	 * it isn't held as floats. Nothing is read or copied here, so that an evicted Sample isn't loaded
+	 * on the audio thread.
+	 *
+	 * @return the data, or null if there is no copy.
+	 */
+	private float[][] dataOf(Sample source) {
+		SampleStorage storage = source.getStorage();
+		if (storage instanceof FloatSampleStorage) {
+			return storage.asFloatArrays();
+		}
+		return source == copiedSample ? copiedData : null;
+	}
+
+	/**
+	 * Mixes groups of grains into their partial mixes until there are none left. Called on the
+	 * audio thread and the workers at once; each group is mixed by exactly one of them.
+	 */
+	private void mixTasks() {
+		int t;
+		while ((t = nextTask.getAndIncrement()) < numTasks) {
+			float[][] partial = partials[t];
+			for (int j = 0; j < outs; j++) {
+				Arrays.fill(partial[j], 0, bufferSize, 0f);
+			}
+			int end = Math.min(numGrains, (t + 1) * GRAINS_PER_TASK);
+			for (int g = t * GRAINS_PER_TASK; g < end; g++) {
+				mixGrain(g, partial);
+			}
+		}
+	}
+
+	/**
+	 * Mixes one grain over the current buffer, or until it finishes.
+	 */
+	private void mixGrain(int g, float[][] partial) {
+		float[][] data = grainData[g];
+		int nChannels = data.length;
+		int last = data[0].length - 1;
+		double position = grainPositions[g];
+		double increment = grainIncrements[g];
+		int age = grainAges[g];
+		int size = grainSizes[g];
+		float windowStep = (float) WINDOW_TABLE_SIZE / size;
+		float[] table = windowTable;
+		int i = grainStarts[g];
+		int end = Math.min(bufferSize, i + size - age);
+		for (; i < end; i++, age++, position += increment) {
+			if (position < 0) continue;
+			int index = (int) position;
+			if (index >= last) continue;
+			float frac = (float) (position - index);
+			float w = age * windowStep;
+			int wi = (int) w;
+			float level = table[wi] + (w - wi) * (table[wi + 1] - table[wi]);
+			for (int j = 0; j < outs; j++) {
+				float[] d = data[j % nChannels];
+				float y0 = d[index];
+				partial[j][i] += grainPans[j][g] * level * (y0 + frac * (d[index + 1] - y0));
+			}
+		}
+		grainPositions[g] = position;
+		grainAges[g] = age;
+	}
+
+	/**
+	 * Gets the helper threads, starting them the first time. After that this only reads a volatile field.
+	 */
+	private static Helper[] getHelpers() {
+		Helper[] h = helpers;
+		return h != null ? h : startHelpers();
+	}
+
+	private static synchronized Helper[] startHelpers() {
+		if (helpers == null) {
+			Helper[] h = new Helper[numThreads - 1];
+			for (int i = 0; i < h.length; i++) {
+				h[i] = new Helper();
+				h[i].start();
+			}
+			helpers = h;
+		}
+		return helpers;
+	}
+
+	/**
+	 * Gets the number of threads that mix grains, including the audio thread.
+	 *
+	 * @return the number of threads.
+	 */
+	public static int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Sets the number of threads that mix grains, including the audio thread. The default is the
+	 * number of processors. This applies from the next buffer of every GrainCloud, and doesn't change their output.
+	 *
+	 * @param threads the number of threads.
+	 */
+	public static synchronized void setNumThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (threads != numThreads && helpers != null) {
+			for (Helper h : helpers) {
+				h.retired = true;
+				LockSupport.unpark(h);
+			}
+			helpers = null;
+		}
+		numThreads = threads;
+	}
+}
@@ -3,9 +3,8 @@
  */
 package net.beadsproject.beads.ugens;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.Bead;
@@ -48,14 +47,48 @@ public class GranularSamplePlayer extends SamplePlayer {
 	/** The pitch, bound to the pitch envelope. */
 	protected float pitch;
 
-	/** The list of current grains. */
-	private LinkedList<Grain> grains;
+	/** The default largest number of grains at once. */
+	public static final int DEFAULT_MAX_GRAINS = 256;
 
-	/** A list of free grains. */
-	private LinkedList<Grain> freeGrains;
+	/** The largest number of grains at once, as set by {@link #setMaxGrains(int)}. */
+	private volatile int maxGrains;
 
-	/** A list of dead grains. */
-	private LinkedList<Grain> deadGrains;
+	/** Grain arrays allocated by {@link #setMaxGrains(int)}, waiting to be taken up at the start of the next buffer. */
+	private final AtomicReference<Grains> newGrains;
+
+	/** The number of current grains, which occupy the first numGrains entries of the grain arrays. */
+	private int numGrains;
+
+	/** The position of each grain in milliseconds. */
+	private double[] grainPositions;
+
+	/** The age of each grain in milliseconds. */
+	private double[] grainAges;
+
+	/** The size of each grain, fixed when the grain starts. */
+	private double[] grainSizes;
+
+	/** The pan level of each grain for each channel, in the form [channel][grain]. */
+	private float[][] grainPans;
+
+	/** The frame of the current buffer at which each grain starts, 0 for grains started in earlier buffers. */
+	private int[] grainStarts;
+
+	/** Set when the grains should be cleared at the start of the next buffer. */
+	private volatile boolean clearGrains;
+
+	/** The grain position increment, and the rate, loop bounds and direction, at each frame of the current buffer. */
+	private double[] grainSteps;
+	private float[] rates, loopMins, loopMaxs;
+	private boolean[] forwardsFlags;
+
+	/** The positions, window levels and frames read for one grain over the current buffer. */
+	private double[] grainReadPositions;
+	private float[] windowLevels;
+	private float[][] grainFrames;
+
+	/** The values of the pitch, grain interval, grain size, randomness and random pan envelopes for UGens without an output buffer. */
+	private float[] pitchValues, grainIntervalValues, grainSizeValues, randomnessValues, randomPanValues;
 
 	/** The window used by grains. */
 	private Buffer window;
@@ -64,21 +97,20 @@ public class GranularSamplePlayer extends SamplePlayer {
 	private boolean loopInsideGrains;
 
 	/**
-	 * The nested class Grain. Stores information about the start time, current position, age, and grain size of the grain.
+	 * The grain arrays for a given largest number of grains, allocated off the audio thread.
 	 */
-	private static class Grain {
-
-		/** The position in millseconds. */
-		double position;
-
-		/** The age of the grain in milliseconds. */
-		double age;
-
-		/** The grain size of the grain. Fixed at instantiation. */
-		double grainSize;
-		
-		/** The pan level for each channel. Currently only 2 channel is supported. */
-		float[] pan;
+	private static class Grains {
+		final double[] positions, ages, sizes;
+		final int[] starts;
+		final float[][] pans;
+
+		Grains(int maxGrains, int outs) {
+			positions = new double[maxGrains];
+			ages = new double[maxGrains];
+			sizes = new double[maxGrains];
+			starts = new int[maxGrains];
+			pans = new float[outs][maxGrains];
+		}
 	}
 
 	/**
@@ -89,9 +121,9 @@ public class GranularSamplePlayer extends SamplePlayer {
 	 */
 	public GranularSamplePlayer(AudioContext context, int outs) {
 		super(context, outs);
-		grains = new LinkedList<Grain>();
-		freeGrains = new LinkedList<Grain>();
-		deadGrains = new LinkedList<Grain>();
+		newGrains = new AtomicReference<Grains>();
+		setMaxGrains(DEFAULT_MAX_GRAINS);
+		takeNewGrains();
 		pitchEnvelope = new Static(context, 1f);
 		setGrainInterval(new Static(context, 70.0f));
 		setGrainSize(new Static(context, 100.0f));
@@ -344,25 +376,68 @@ public class GranularSamplePlayer extends SamplePlayer {
 	public void setRandomPan(UGen randomPanEnvelope) {
 		this.randomPanEnvelope = randomPanEnvelope;
 	}
+
+	/**
+	 * Gets the largest number of grains at once.
+	 *
+	 * @return the largest number of grains.
+	 */
+	public int getMaxGrains() {
+		return maxGrains;
+	}
+
+	/**
+	 * Sets the largest number of grains at once. No new grains start while there are this many.
+	 * The grain arrays are allocated here and taken up at the start of the next buffer, keeping
+	 * as many of the current grains as fit.
+	 *
+	 * @param maxGrains the largest number of grains.
+	 */
+	public void setMaxGrains(int maxGrains) {
+		maxGrains = Math.max(1, maxGrains);
+		newGrains.set(new Grains(maxGrains, outs));
+		this.maxGrains = maxGrains;
+	}
+
+	/**
+	 * Takes up the grain arrays allocated by {@link #setMaxGrains(int)}, if any, copying the current grains into them.
+	 */
+	private void takeNewGrains() {
+		Grains grains = newGrains.getAndSet(null);
+		if (grains == null) return;
+		numGrains = Math.min(numGrains, grains.positions.length);
+		if (numGrains > 0) {
+			System.arraycopy(grainPositions, 0, grains.positions, 0, numGrains);
+			System.arraycopy(grainAges, 0, grains.ages, 0, numGrains);
+			System.arraycopy(grainSizes, 0, grains.sizes, 0, numGrains);
+			System.arraycopy(grainStarts, 0, grains.starts, 0, numGrains);
+			for (int j = 0; j < outs; j++) {
+				System.arraycopy(grainPans[j], 0, grains.pans[j], 0, numGrains);
+			}
+		}
+		grainPositions = grains.positions;
+		grainAges = grains.ages;
+		grainSizes = grains.sizes;
+		grainStarts = grains.starts;
+		grainPans = grains.pans;
+	}
 	
 	
 	/**
 	 * @deprecated Use {@link #setSample(Sample)} instead.
 	 */
 	@Deprecated
-	public synchronized void setBuffer(Sample buffer) {
+	public void setBuffer(Sample buffer) {
 		super.setSample(buffer);
-		grains.clear();
-		timeSinceLastGrain = 0f;
+		clearGrains = true;
 	}
 	
 	/* (non-Javadoc)
 	 * @see net.beadsproject.beads.ugens.SamplePlayer#setBuffer(net.beadsproject.beads.data.Sample)
 	 */
-	public synchronized void setSample(Sample buffer) {
+	public void setSample(Sample buffer) {
 		super.setSample(buffer);
-		grains.clear();
-		timeSinceLastGrain = 0f;
+		clearGrains = true;
 	}
 
 	/* (non-Javadoc)
@@ -375,29 +450,74 @@ public class GranularSamplePlayer extends SamplePlayer {
 	}
 
 	/**
-	 * Sets the given Grain to start immediately.
+	 * Starts a new grain, unless there are already as many as there is room for.
+	 * 
+	 * @param position the position of the grain in milliseconds.
+	 * @param age the age of the grain in milliseconds.
+	 * @param grainSize the size of the grain in milliseconds.
+	 * @param panRandomness the amount of random panning.
+	 * @param start the frame of the current buffer at which the grain starts.
+	 */
+	private void addGrain(double position, double age, double grainSize, float panRandomness, int start) {
+		if (numGrains == grainPositions.length) return;
+		int g = numGrains++;
+		grainPositions[g] = position;
+		grainAges[g] = age;
+		grainSizes[g] = grainSize;
+		grainStarts[g] = start;
+		setGrainPan(g, panRandomness);
+	}
+
+	/**
+	 * Removes a grain, moving the last grain into its place.
+	 * 
+	 * @param g the index of the grain.
+	 */
+	private void removeGrain(int g) {
+		int last = --numGrains;
+		grainPositions[g] = grainPositions[last];
+		grainAges[g] = grainAges[last];
+		grainSizes[g] = grainSizes[last];
+		grainStarts[g] = grainStarts[last];
+		for (int j = 0; j < outs; j++) {
+			grainPans[j][g] = grainPans[j][last];
+		}
+	}
+
+	/**
+	 * Starts a new grain at the given time.
 	 * 
-	 * @param g
-	 *            the g
 	 * @param time
-	 *            the time
+	 *            the index within the current buffer.
+	 * @param grainSize the grain size at that time.
+	 * @param randomness the randomness at that time.
+	 * @param panRandomness the random pan at that time.
+	 */
+	private void resetGrain(int time, float grainSize, float randomness, float panRandomness) {
+		double grainPosition = position + (grainSize * randomness * (Math.random() * 2.0 - 1.0));
+		addGrain(grainPosition, 0, grainSize, panRandomness, time);
+	}
+
+	/**
+	 * Gets the output of an envelope over the current buffer. UGens such as {@link Static} have no
+	 * output buffer, so their value is copied into the given array instead.
 	 */
-	private void resetGrain(Grain g, int time) {
-		g.position = position + (grainSizeEnvelope.getValue(0, time) * randomnessEnvelope.getValue(0, time) * (Math.random() * 2.0 - 1.0));
-		g.age = 0f;
-		g.grainSize = grainSizeEnvelope.getValue(0, time);
-	}   
+	private float[] valuesOf(UGen envelope, float[] values) {
+		float[] buffer = envelope.getOutBuffer(0);
+		if (buffer != null) return buffer;
+		Arrays.fill(values, 0, bufferSize, envelope.getValue());
+		return values;
+	}
 	
-	private void setGrainPan(Grain g, float panRandomness) {
-		g.pan = new float[outs];
+	private void setGrainPan(int g, float panRandomness) {
 		if(outs == 2) {
 			float pan = (float)Math.random() * Math.min(1, Math.max(0, panRandomness)) * 0.5f;
 			pan = Math.random() < 0.5f ? 0.5f + pan : 0.5f - pan;
-			g.pan[0] = pan > 0.5f ? 1f : 2f * pan;
-			g.pan[1] = pan < 0.5f ? 1f : 2f * (1 - pan);
+			grainPans[0][g] = pan > 0.5f ? 1f : 2f * pan;
+			grainPans[1][g] = pan < 0.5f ? 1f : 2f * (1 - pan);
 		} else {
 			for(int i = 0; i < outs; i++) {
-				g.pan[i] = 1f;
+				grainPans[i][g] = 1f;
 			}
 		}
 	}
@@ -414,14 +534,9 @@ public class GranularSamplePlayer extends SamplePlayer {
 	/** Special case method for playing first grain. */
 	private void firstGrain() {
 		if(firstGrain) {
-			Grain g = new Grain();
-			g.position = position;
-			g.age = grainSizeEnvelope.getValue() / 4f;
-			g.grainSize = grainSizeEnvelope.getValue(0, 0);
-			grains.add(g);
+			addGrain(position, grainSizeEnvelope.getValue() / 4f, grainSizeEnvelope.getValue(0, 0), randomPanEnvelope.getValue(0, 0), 0);
 			firstGrain = false;
 			timeSinceLastGrain = grainIntervalEnvelope.getValue() / 2f;
-			setGrainPan(g, randomPanEnvelope.getValue(0, 0));
 		}
 	}
 
@@ -429,10 +544,16 @@ public class GranularSamplePlayer extends SamplePlayer {
 	 * @see com.olliebown.beads.ugens.SamplePlayer#calculateBuffer()
 	 */
 	@Override
-	public synchronized void calculateBuffer() {
+	public void calculateBuffer() {
 		//special condition for first grain
 		//update the various envelopes
 		if(sample != null) {
+			if(clearGrains) {
+				clearGrains = false;
+				numGrains = 0;
+				timeSinceLastGrain = 0f;
+			}
+			takeNewGrains();
 			rateEnvelope.update();
 			if(positionEnvelope != null) {
 				positionEnvelope.update();
@@ -445,124 +566,177 @@ public class GranularSamplePlayer extends SamplePlayer {
 			randomnessEnvelope.update();
 			randomPanEnvelope.update();
 			firstGrain();
-			//now loop through the buffer
+			if(grainSteps == null || grainSteps.length != bufferSize) {
+				grainSteps = new double[bufferSize];
+				rates = new float[bufferSize];
+				loopMins = new float[bufferSize];
+				loopMaxs = new float[bufferSize];
+				forwardsFlags = new boolean[bufferSize];
+				grainReadPositions = new double[bufferSize];
+				windowLevels = new float[bufferSize];
+				grainFrames = null;
+				pitchValues = new float[bufferSize];
+				grainIntervalValues = new float[bufferSize];
+				grainSizeValues = new float[bufferSize];
+				randomnessValues = new float[bufferSize];
+				randomPanValues = new float[bufferSize];
+			}
+			float[] pitches = valuesOf(pitchEnvelope, pitchValues);
+			float[] intervals = valuesOf(grainIntervalEnvelope, grainIntervalValues);
+			float[] sizes = valuesOf(grainSizeEnvelope, grainSizeValues);
+			float[] randomness = valuesOf(randomnessEnvelope, randomnessValues);
+			float[] panRandomness = valuesOf(randomPanEnvelope, randomPanValues);
+			//first pass: start new grains and work out how grains move at each frame
+			float maxPitch = 0;
 			for (int i = 0; i < bufferSize; i++) {
 				//determine if we need a new grain
-				if (timeSinceLastGrain > grainIntervalEnvelope.getValue(0, i)) {
-					Grain g = null;
-					if(freeGrains.size() > 0) {
-						g = freeGrains.pollFirst();
-					} else {
-						g = new Grain();
-					}
-					resetGrain(g, i);
-					setGrainPan(g, randomPanEnvelope.getValue(0, i));
-					grains.add(g);
+				if (timeSinceLastGrain > intervals[i]) {
+					resetGrain(i, sizes[i], randomness[i], panRandomness[i]);
 					timeSinceLastGrain = 0f;
 				}
-				//for each channel, start by resetting current output frame
-				for (int j = 0; j < outs; j++) {
-					bufOut[j][i] = 0.0f;
-				}
-
-				//gather the output from each grain
-				for(Grain g : grains) {
-					//calculate value of grain window
-					float windowScale = window.getValueFraction((float)(g.age / g.grainSize));
-					//get position in sample for this grain
-					//get the frame for this grain
-					switch (interpolationType) {
-					case ADAPTIVE: 
-						if(pitch > ADAPTIVE_INTERP_HIGH_THRESH) {
-							sample.getFrameNoInterp(g.position, frame);
-						} else if(pitch > ADAPTIVE_INTERP_LOW_THRESH) {
-							sample.getFrameLinear(g.position, frame);
-						} else {
-							sample.getFrameCubic(g.position, frame);
-						}
-						break;
-					case LINEAR:
-						sample.getFrameLinear(g.position, frame);
-						break;
-					case CUBIC:
-						sample.getFrameCubic(g.position, frame);
-						break;
-					case NONE:
-						sample.getFrameNoInterp(g.position, frame);
-						break;
-					}
-					//add it to the current output frame
-					for (int j = 0; j < outs; j++) {
-						bufOut[j][i] += g.pan[j] * windowScale * frame[j % sample.getNumChannels()];
-					}
-				}
+				if(pitch > maxPitch) maxPitch = pitch;
 				//increment time and stuff
 				calculateNextPosition(i);
-				pitch = Math.abs(pitchEnvelope.getValue(0, i));
-				for(Grain g : grains) {
-					calculateNextGrainPosition(g);
-				}
+				pitch = Math.abs(pitches[i]);
+				int direction = rate >= 0 ? 1 : -1;	//this is a bit odd in the case when controlling grain from positionEnvelope
+				grainSteps[i] = direction * positionIncrement * pitch;
+				rates[i] = rate;
+				loopMins[i] = Math.min(loopStart, loopEnd);
+				loopMaxs[i] = Math.max(loopStart, loopEnd);
+				forwardsFlags[i] = forwards;
 				//increment timeSinceLastGrain
 				timeSinceLastGrain += msPerSample;
-				//finally, see if any grains are dead
-				for(Grain g : grains) {
-					if(g.age > g.grainSize) {
-						freeGrains.add(g);
-						deadGrains.add(g);
+			}
+			//grains of a mipmapped Sample played at high pitch are read from a band-limited copy.
+			//the copy and the adaptive interpolation are chosen from the highest pitch in the buffer.
+			Sample source = sample.getMipmap(maxPitch * sample.msToSamples(positionIncrement));
+			float sourcePitch = source == sample ? maxPitch : maxPitch * source.getSampleRate() / sample.getSampleRate();
+			InterpolationType type = interpolationType;
+			if (type == InterpolationType.ADAPTIVE) {
+				if (sourcePitch > ADAPTIVE_INTERP_HIGH_THRESH) {
+					type = InterpolationType.NONE;
+				} else if (sourcePitch > ADAPTIVE_INTERP_LOW_THRESH) {
+					type = InterpolationType.LINEAR;
+				} else {
+					type = InterpolationType.CUBIC;
+				}
+			}
+			int nChannels = source.getNumChannels();
+			if (grainFrames == null || grainFrames.length < nChannels) {
+				grainFrames = new float[nChannels][bufferSize];
+			}
+			for (int j = 0; j < outs; j++) {
+				Arrays.fill(bufOut[j], 0, bufferSize, 0f);
+			}
+			//second pass: render each grain over the buffer in one go
+			int g = 0;
+			while (g < numGrains) {
+				int start = grainStarts[g];
+				double grainPosition = grainPositions[g];
+				double age = grainAges[g];
+				double grainSize = grainSizes[g];
+				boolean dead = false;
+				int length = 0;
+				for (int i = start; i < bufferSize; i++) {
+					//calculate value of grain window and position in sample for this grain
+					grainReadPositions[length] = grainPosition;
+					windowLevels[length] = window.getValueFraction((float)(age / grainSize));
+					length++;
+					age += msPerSample;
+					grainPosition = nextGrainPosition(grainPosition, i);
+					//see if the grain is dead
+					if (age > grainSize) {
+						dead = true;
+						break;
 					}
 				}
-				grains.removeAll(deadGrains);
-				deadGrains.clear();
+				readFrames(source, type, grainReadPositions, grainFrames, length);
+				//add it to the output
+				for (int j = 0; j < outs; j++) {
+					float pan = grainPans[j][g];
+					float[] out = bufOut[j];
+					float[] f = grainFrames[j % nChannels];
+					for (int k = 0; k < length; k++) {
+						out[start + k] += pan * windowLevels[k] * f[k];
+					}
+				}
+				if (dead) {
+					removeGrain(g);
+				} else {
+					grainPositions[g] = grainPosition;
+					grainAges[g] = age;
+					grainStarts[g] = 0;
+					g++;
+				}
 			}
 		}
 	}
+
+	/**
+	 * Reads the frames of one grain.
+	 */
+	private void readFrames(Sample source, InterpolationType type, double[] positions, float[][] result, int length) {
+		switch (type) {
+		case NONE:
+			source.getFramesNoInterp(positions, result, length);
+			break;
+		case LINEAR:
+			source.getFramesLinear(positions, result, length);
+			break;
+		default:
+			source.getFramesCubic(positions, result, length);
+			break;
+		}
+	}
 	
 	/**
-	 * Calculate next position for the given Grain.
+	 * Calculates the next position of a grain.
 	 * 
-	 * @param g the Grain.
+	 * @param grainPosition the current position of the grain.
+	 * @param i the index within the buffer loop.
+	 * @return the next position of the grain.
 	 */
-	private void calculateNextGrainPosition(Grain g) {
-		int direction = rate >= 0 ? 1 : -1;	//this is a bit odd in the case when controlling grain from positionEnvelope
-		g.age += msPerSample;
+	private double nextGrainPosition(double grainPosition, int i) {
+		double step = grainSteps[i];
 		if(loopInsideGrains) {
 			switch(loopType) {
 			case NO_LOOP_FORWARDS:
-				g.position += direction * positionIncrement * pitch;
+				grainPosition += step;
 				break;
 			case NO_LOOP_BACKWARDS:
-				g.position -= direction * positionIncrement * pitch;
+				grainPosition -= step;
 				break;
 			case LOOP_FORWARDS:
-				g.position += direction * positionIncrement * pitch;
-				if(rate > 0 && g.position > Math.max(loopStart, loopEnd)) {
-					g.position = Math.min(loopStart, loopEnd);
-				} else if(rate < 0 && g.position < Math.min(loopStart, loopEnd)) {
-					g.position = Math.max(loopStart, loopEnd);
+				grainPosition += step;
+				if(rates[i] > 0 && grainPosition > loopMaxs[i]) {
+					grainPosition = loopMins[i];
+				} else if(rates[i] < 0 && grainPosition < loopMins[i]) {
+					grainPosition = loopMaxs[i];
 				}
 				break;
 			case LOOP_BACKWARDS:
-				g.position -= direction * positionIncrement * pitch;
-				if(rate > 0 && g.position < Math.min(loopStart, loopEnd)) {
-					g.position = Math.max(loopStart, loopEnd);
-				} else if(rate < 0 && g.position > Math.max(loopStart, loopEnd)) {
-					g.position = Math.min(loopStart, loopEnd);
+				grainPosition -= step;
+				if(rates[i] > 0 && grainPosition < loopMins[i]) {
+					grainPosition = loopMaxs[i];
+				} else if(rates[i] < 0 && grainPosition > loopMaxs[i]) {
+					grainPosition = loopMins[i];
 				}
 				break;
 			case LOOP_ALTERNATING:
-				g.position += direction * (forwards ? positionIncrement * pitch : -positionIncrement * pitch);
-				if(forwards ^ (rate < 0)) {
-					if(g.position > Math.max(loopStart, loopEnd)) {
-						g.position = 2 * Math.max(loopStart, loopEnd) - g.position;
+				grainPosition += forwardsFlags[i] ? step : -step;
+				if(forwardsFlags[i] ^ (rates[i] < 0)) {
+					if(grainPosition > loopMaxs[i]) {
+						grainPosition = 2 * loopMaxs[i] - grainPosition;
 					}
-				} else if(g.position < Math.min(loopStart, loopEnd)) {
-					g.position = 2 * Math.min(loopStart, loopEnd) - g.position;
+				} else if(grainPosition < loopMins[i]) {
+					grainPosition = 2 * loopMins[i] - grainPosition;
 				}
 				break;
 			}   
 		} else {
-			g.position += direction * positionIncrement * pitch;
+			grainPosition += step;
 		}
+		return grainPosition;
 	}
 
 	/**
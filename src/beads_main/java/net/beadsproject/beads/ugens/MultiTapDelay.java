@@ -0,0 +1,457 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.Arrays;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.ugens.TapOut.InterpolationType;
+
+/**
+ * MultiTapDelay is a delay line with any number of taps, each with its own
+ * delay time, gain, output channel and {@link TapOut.InterpolationType}, for
+ * multi-tap echoes, choruses and so on. Where a {@link TapIn} with sixteen
+ * {@link TapOut}s needs seventeen UGens, MultiTapDelay stores its input in a
+ * single ring buffer, a power of two long so that it can be read with a mask
+ * rather than a modulo, and reads every tap from it in one UGen.
+ * <p>
+ * As with TapOut, a tap's delay time is given in milliseconds, either as a
+ * static float or by a UGen. Taps may be added and removed while the delay is
+ * running.
+ *
+ * @see TapIn
+ * @see TapOut
+ * @author Beads Team
+ */
+public class MultiTapDelay extends UGen {
+
+	private final float[] ring;
+	private final int mask;
+	private final int maxDelay;
+	private final float sampsPerMS;
+
+	/** The write position, which counts up and is masked to index the ring. */
+	private int write;
+
+	/** The taps, replaced as a whole when taps are added or removed. */
+	private volatile Tap[] taps;
+
+	/** The delay times of a tap whose delay UGen has no output buffer, such as a {@link Static}. */
+	private final float[] delayValues;
+
+	/**
+	 * A single tap of a MultiTapDelay. The delay, gain, mode and channel can
+	 * be changed at any time.
+	 */
+	public class Tap {
+
+		private UGen delayUGen;
+		private float delay, gain;
+		private int channel;
+		private InterpolationType mode;
+		private float lastY;
+
+		private Tap(InterpolationType mode, float gain) {
+			this.gain = gain;
+			setMode(mode);
+		}
+
+		/**
+		 * Gets the current delay time. If the delay time is specified by a
+		 * UGen, this is its last value.
+		 *
+		 * @return The delay time in milliseconds.
+		 */
+		public float getDelay() {
+			return delay;
+		}
+
+		/**
+		 * Sets the delay time to a static value.
+		 *
+		 * @param delay
+		 *            The delay time in milliseconds.
+		 * @return This tap.
+		 */
+		public Tap setDelay(float delay) {
+			this.delay = delay;
+			delayUGen = null;
+			return this;
+		}
+
+		/**
+		 * Sets a UGen to specify the delay time in milliseconds.
+		 *
+		 * @param delayUGen
+		 *            The delay UGen.
+		 * @return This tap.
+		 */
+		public Tap setDelay(UGen delayUGen) {
+			if (delayUGen == null) {
+				setDelay(delay);
+			} else {
+				this.delayUGen = delayUGen;
+			}
+			return this;
+		}
+
+		/**
+		 * Gets the delay UGen, if there is one. Returns <code>null</code> if
+		 * delay time is set to a static float.
+		 *
+		 * @return The delay UGen.
+		 */
+		public UGen getDelayUGen() {
+			return delayUGen;
+		}
+
+		/**
+		 * Gets the gain.
+		 *
+		 * @return The gain.
+		 */
+		public float getGain() {
+			return gain;
+		}
+
+		/**
+		 * Sets the gain.
+		 *
+		 * @param gain
+		 *            The gain.
+		 * @return This tap.
+		 */
+		public Tap setGain(float gain) {
+			this.gain = gain;
+			return this;
+		}
+
+		/**
+		 * Gets the output channel.
+		 *
+		 * @return The output channel.
+		 */
+		public int getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Sets the output channel that the tap is mixed into. The default is 0.
+		 *
+		 * @param channel
+		 *            The output channel.
+		 * @return This tap.
+		 */
+		public Tap setChannel(int channel) {
+			if (channel < 0 || channel >= outs) {
+				throw new IllegalArgumentException("No output channel " + channel);
+			}
+			this.channel = channel;
+			return this;
+		}
+
+		/**
+		 * Gets the delay mode.
+		 *
+		 * @return The delay mode.
+		 */
+		public InterpolationType getMode() {
+			return mode;
+		}
+
+		/**
+		 * Sets the delay mode as {@link InterpolationType}.
+		 *
+		 * @param mode
+		 *            The delay mode.
+		 * @return This tap.
+		 */
+		public Tap setMode(InterpolationType mode) {
+			if (mode != null) {
+				this.mode = mode;
+			}
+			return this;
+		}
+
+		/**
+		 * Adds the tap's output for the current buffer, whose first frame was
+		 * written at the given position, to its output channel.
+		 */
+		private void read(int start) {
+			float[] out = bufOut[channel];
+			float g = gain;
+			UGen d = delayUGen;
+			if (d == null) {
+				float samples = Math.max(0, Math.min(maxDelay, delay * sampsPerMS));
+				switch (mode) {
+				case NO_INTERP: {
+					int from = start - (int) (samples + .5f);
+					for (int i = 0; i < bufferSize; i++) {
+						out[i] += g * ring[(from + i) & mask];
+					}
+					break;
+				}
+				case LINEAR: {
+					int from = start - (int) samples;
+					float frac = samples % 1;
+					for (int i = 0; i < bufferSize; i++) {
+						float a = ring[(from + i) & mask];
+						out[i] += g * (a + frac * (ring[(from + i - 1) & mask] - a));
+					}
+					break;
+				}
+				case ALLPASS: {
+					int from = start - (int) samples;
+					float frac = samples % 1;
+					float c = (1 - frac) / (1 + frac);
+					float y = lastY;
+					for (int i = 0; i < bufferSize; i++) {
+						y = ring[(from + i - 1) & mask] + c * (ring[(from + i) & mask] - y);
+						out[i] += g * y;
+					}
+					lastY = y;
+					break;
+				}
+				}
+			} else {
+				d.update();
+				float[] delays = d.getOutBuffer(0);
+				if (delays == null) {
+					delays = delayValues;
+					for (int i = 0; i < bufferSize; i++) {
+						delays[i] = d.getValue(0, i);
+					}
+				}
+				float y = lastY;
+				switch (mode) {
+				case NO_INTERP:
+					for (int i = 0; i < bufferSize; i++) {
+						float samples = Math.max(0, Math.min(maxDelay, delays[i] * sampsPerMS));
+						y = ring[(start + i - (int) (samples + .5f)) & mask];
+						out[i] += g * y;
+					}
+					break;
+				case LINEAR:
+					for (int i = 0; i < bufferSize; i++) {
+						float samples = Math.max(0, Math.min(maxDelay, delays[i] * sampsPerMS));
+						int whole = (int) samples;
+						int from = start + i - whole;
+						float a = ring[from & mask];
+						y = a + (samples - whole) * (ring[(from - 1) & mask] - a);
+						out[i] += g * y;
+					}
+					break;
+				case ALLPASS:
+					for (int i = 0; i < bufferSize; i++) {
+						float samples = Math.max(0, Math.min(maxDelay, delays[i] * sampsPerMS));
+						int whole = (int) samples;
+						int from = start + i - whole;
+						float frac = samples - whole;
+						y = ring[(from - 1) & mask] + (1 - frac) / (1 + frac) * (ring[from & mask] - y);
+						out[i] += g * y;
+					}
+					break;
+				}
+				lastY = y;
+				delay = delays[bufferSize - 1];
+			}
+		}
+	}
+
+	/**
+	 * Constructor for a multi-tap delay with one output channel.
+	 *
+	 * @param ac
+	 *            The audio context.
+	 * @param maxDelayInMS
+	 *            The longest delay time in milliseconds.
+	 */
+	public MultiTapDelay(AudioContext ac, float maxDelayInMS) {
+		this(ac, 1, maxDelayInMS);
+	}
+
+	/**
+	 * Constructor for a multi-tap delay with one output channel.
+	 *
+	 * @param maxDelayInMS
+	 *            The longest delay time in milliseconds.
+	 */
+	public MultiTapDelay(float maxDelayInMS) {
+		this(getDefaultContext(), maxDelayInMS);
+	}
+
+	/**
+	 * Constructor for a multi-tap delay with the specified number of output
+	 * channels.
+	 *
+	 * @param outChannels
+	 *            The number of output channels.
+	 * @param maxDelayInMS
+	 *            The longest delay time in milliseconds.
+	 */
+	public MultiTapDelay(int outChannels, float maxDelayInMS) {
+		this(getDefaultContext(), outChannels, maxDelayInMS);
+	}
+
+	/**
+	 * Constructor for a multi-tap delay with the specified number of output
+	 * channels.
+	 *
+	 * @param ac
+	 *            The audio context.
+	 * @param outChannels
+	 *            The number of output channels.
+	 * @param maxDelayInMS
+	 *            The longest delay time in milliseconds.
+	 */
+	public MultiTapDelay(AudioContext ac, int outChannels, float maxDelayInMS) {
+		super(ac, 1, outChannels);
+		sampsPerMS = (float) ac.msToSamples(1);
+		maxDelay = Math.max(0, (int) ac.msToSamples(maxDelayInMS) + 1);
+		// the ring holds the longest delay behind the whole of the current buffer, plus one frame for interpolation
+		int size = 1;
+		while (size < maxDelay + bufferSize + 1) {
+			size <<= 1;
+		}
+		ring = new float[size];
+		mask = size - 1;
+		taps = new Tap[0];
+		delayValues = new float[bufferSize];
+	}
+
+	/**
+	 * Gets the longest delay time.
+	 *
+	 * @return The longest delay time in milliseconds.
+	 */
+	public float getMaxDelayMS() {
+		return (float) context.samplesToMs(maxDelay);
+	}
+
+	/**
+	 * Adds a tap with a static delay and a gain of 1, with no interpolation.
+	 *
+	 * @param delay
+	 *            The delay time in milliseconds.
+	 * @return The new tap.
+	 */
+	public Tap addTap(float delay) {
+		return addTap(InterpolationType.NO_INTERP, delay, 1);
+	}
+
+	/**
+	 * Adds a tap with a static delay and the given gain, with no interpolation.
+	 *
+	 * @param delay
+	 *            The delay time in milliseconds.
+	 * @param gain
+	 *            The gain.
+	 * @return The new tap.
+	 */
+	public Tap addTap(float delay, float gain) {
+		return addTap(InterpolationType.NO_INTERP, delay, gain);
+	}
+
+	/**
+	 * Adds a tap with a static delay, using the specified delay mode.
+	 *
+	 * @param mode
+	 *            The delay mode.
+	 * @param delay
+	 *            The delay time in milliseconds.
+	 * @param gain
+	 *            The gain.
+	 * @return The new tap.
+	 */
+	public Tap addTap(InterpolationType mode, float delay, float gain) {
+		return addTap(new Tap(mode, gain).setDelay(delay));
+	}
+
+	/**
+	 * Adds a tap with a delay time specified by a UGen, using the specified
+	 * delay mode.
+	 *
+	 * @param mode
+	 *            The delay mode.
+	 * @param delayUGen
+	 *            The UGen specifying the delay time in milliseconds.
+	 * @param gain
+	 *            The gain.
+	 * @return The new tap.
+	 */
+	public Tap addTap(InterpolationType mode, UGen delayUGen, float gain) {
+		return addTap(new Tap(mode, gain).setDelay(delayUGen));
+	}
+
+	private synchronized Tap addTap(Tap tap) {
+		Tap[] t = Arrays.copyOf(taps, taps.length + 1);
+		t[t.length - 1] = tap;
+		taps = t;
+		return tap;
+	}
+
+	/**
+	 * Removes a tap.
+	 *
+	 * @param tap
+	 *            The tap to remove.
+	 */
+	public synchronized void removeTap(Tap tap) {
+		for (int i = 0; i < taps.length; i++) {
+			if (taps[i] == tap) {
+				Tap[] t = new Tap[taps.length - 1];
+				System.arraycopy(taps, 0, t, 0, i);
+				System.arraycopy(taps, i + 1, t, i, t.length - i);
+				taps = t;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes all of the taps.
+	 */
+	public synchronized void clearTaps() {
+		taps = new Tap[0];
+	}
+
+	/**
+	 * Gets the taps. The array is a copy, so changing it has no effect.
+	 *
+	 * @return The taps.
+	 */
+	public Tap[] getTaps() {
+		return taps.clone();
+	}
+
+	/**
+	 * Gets the number of taps.
+	 *
+	 * @return The number of taps.
+	 */
+	public int getNumTaps() {
+		return taps.length;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		// write the input first, so that a delay of zero passes it straight through
+		int start = write;
+		float[] bi = bufIn[0];
+		int from = start & mask;
+		int first = Math.min(bufferSize, ring.length - from);
+		System.arraycopy(bi, 0, ring, from, first);
+		System.arraycopy(bi, first, ring, 0, bufferSize - first);
+		write = start + bufferSize;
+
+		for (int i = 0; i < outs; i++) {
+			Arrays.fill(bufOut[i], 0, bufferSize, 0f);
+		}
+		Tap[] t = taps;
+		for (int i = 0; i < t.length; i++) {
+			t[i].read(start);
+		}
+	}
+}
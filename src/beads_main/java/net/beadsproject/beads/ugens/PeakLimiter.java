@@ -0,0 +1,473 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.Arrays;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.DataBead;
+import net.beadsproject.beads.data.DataBeadReceiver;
+
+/**
+ * A look-ahead peak limiter for master busses, which keeps every channel below
+ * a ceiling without clipping. Unlike {@link Compressor}, which follows the RMS
+ * power and changes its gain by a fixed step each frame, PeakLimiter delays
+ * the signal by its look-ahead time and lowers the gain smoothly over that
+ * time, so the gain has fallen far enough before each peak comes out of the
+ * delay.
+ * <p>
+ * Peaks are measured as true peaks by default, including the peaks between
+ * samples that appear once the signal is converted to analog, found by four
+ * times oversampling. As with true peak meters, peaks made of frequencies
+ * very close to the Nyquist frequency may be under-read by up to about half a
+ * dB, so leave a little headroom below 0 dBFS. The channels are linked, so that one gain is applied to
+ * all of them and the stereo (or surround) image is kept. The smallest gain
+ * over the look-ahead window is found with a monotonic queue, so the cost per
+ * frame doesn't depend on the look-ahead time.
+ * <p>
+ * The following are the default parameter values:
+ * </p>
+ * <ul>
+ * <li>{@link #setCeiling(float) ceiling} - 1</li>
+ * <li>{@link #setRelease(float) release} - 50 ms</li>
+ * <li>{@link #setTruePeak(boolean) true peak} - true</li>
+ * </ul>
+ *
+ * @see Compressor
+ * @author Beads Team
+ */
+public class PeakLimiter extends UGen implements DataBeadReceiver {
+
+	/** The default look-ahead time in milliseconds. */
+	public static final float DEFAULT_LOOK_AHEAD = 5;
+
+	/** The oversampling factor, and half of the number of taps of each phase of the interpolation filter. */
+	private static final int OVERSAMPLING = 4;
+	private static final int HALF_TAPS = 8;
+
+	/** The interpolation filter, in the form [phase][tap], for the points between samples. */
+	private static final float[][] INTERPOLATOR = makeInterpolator();
+
+	/**
+	 * The first phase split into the parts that are even and odd about the
+	 * middle of the filter, the first half of the symmetric middle phase, and
+	 * the largest gain of any phase.
+	 */
+	private static final float[] EVEN = new float[HALF_TAPS], ODD = new float[HALF_TAPS], MIDDLE = new float[HALF_TAPS];
+	private static final float INTERPOLATOR_GAIN;
+
+	static {
+		float[] f = INTERPOLATOR[0];
+		for (int k = 0; k < HALF_TAPS; k++) {
+			EVEN[k] = (f[k] + f[2 * HALF_TAPS - 1 - k]) / 2;
+			ODD[k] = (f[k] - f[2 * HALF_TAPS - 1 - k]) / 2;
+			MIDDLE[k] = INTERPOLATOR[OVERSAMPLING / 2 - 1][k];
+		}
+		float gain = 1;
+		for (float[] phase : INTERPOLATOR) {
+			float sum = 0;
+			for (float v : phase) {
+				sum += Math.abs(v);
+			}
+			gain = Math.max(gain, sum);
+		}
+		INTERPOLATOR_GAIN = gain * 1.001f;
+	}
+
+	private final int channels;
+
+	/** The look-ahead in frames, and the extra delay needed by the interpolation filter. */
+	private final int lookAhead, filterDelay;
+
+	/** The input history of each channel, which is also the delay line, and the position of the next frame. */
+	private final float[][] history;
+	private final int historyMask;
+	private int write;
+
+	/** The queue of frames that might yet be the smallest gain, as a ring of frame numbers and gains. */
+	private final int[] queueFrames;
+	private final float[] queueGains;
+	private final int queueMask;
+	private int queueHead, queueTail;
+
+	/** The gains after release smoothing, for the running sum, the slot of the next one, and the running sum itself. */
+	private final float[] held;
+	private int heldSlot;
+	private double heldSum;
+	private float released;
+
+	/** The peak of each frame over the channels, and the gain applied to each frame. */
+	private final float[] peaks, gains;
+
+	/** Scratch space for true peak measurement, a run of input frames. */
+	private final float[] window;
+
+	private float ceiling, release, releaseCoef;
+	private boolean truePeak;
+
+	/** The frame count at the start of the current buffer. It wraps around, so it is only compared by difference. */
+	private int frame;
+
+	/**
+	 * Constructor for a 2-channel limiter with the default look-ahead time.
+	 *
+	 * @param context
+	 *            The audio context.
+	 */
+	public PeakLimiter(AudioContext context) {
+		this(context, 2);
+	}
+
+	/**
+	 * Constructor for a 2-channel limiter with the default look-ahead time.
+	 */
+	public PeakLimiter() {
+		this(getDefaultContext());
+	}
+
+	/**
+	 * Constructor for a multi-channel limiter with the default look-ahead time.
+	 *
+	 * @param context
+	 *            The audio context.
+	 * @param channels
+	 *            The number of channels.
+	 */
+	public PeakLimiter(AudioContext context, int channels) {
+		this(context, channels, DEFAULT_LOOK_AHEAD);
+	}
+
+	/**
+	 * Constructor for a multi-channel limiter with the default look-ahead time.
+	 *
+	 * @param channels
+	 *            The number of channels.
+	 */
+	public PeakLimiter(int channels) {
+		this(getDefaultContext(), channels);
+	}
+
+	/**
+	 * Constructor for a multi-channel limiter with the specified look-ahead
+	 * time.
+	 *
+	 * @param channels
+	 *            The number of channels.
+	 * @param lookAheadDelay
+	 *            The look-ahead time in milliseconds.
+	 */
+	public PeakLimiter(int channels, float lookAheadDelay) {
+		this(getDefaultContext(), channels, lookAheadDelay);
+	}
+
+	/**
+	 * Constructor for a multi-channel limiter with the specified look-ahead
+	 * time. The output is delayed by the look-ahead time, plus a few frames
+	 * for the true peak measurement (see {@link #getLatency()}).
+	 *
+	 * @param context
+	 *            The audio context.
+	 * @param channels
+	 *            The number of channels.
+	 * @param lookAheadDelay
+	 *            The look-ahead time in milliseconds.
+	 */
+	public PeakLimiter(AudioContext context, int channels, float lookAheadDelay) {
+		super(context, channels, channels);
+		this.channels = channels;
+		lookAhead = Math.max(0, (int) context.msToSamples(lookAheadDelay));
+		filterDelay = HALF_TAPS;
+		history = new float[channels][powerOfTwo(lookAhead + filterDelay + 2 * HALF_TAPS + bufferSize)];
+		historyMask = history[0].length - 1;
+		queueFrames = new int[powerOfTwo(lookAhead + 2)];
+		queueGains = new float[queueFrames.length];
+		queueMask = queueFrames.length - 1;
+		held = new float[lookAhead + 1];
+		Arrays.fill(held, 1);
+		heldSum = lookAhead + 1;
+		released = 1;
+		peaks = new float[bufferSize];
+		gains = new float[bufferSize];
+		Arrays.fill(gains, 1);
+		window = new float[bufferSize + 2 * HALF_TAPS];
+		setCeiling(1).setRelease(50).setTruePeak(true);
+	}
+
+	private static int powerOfTwo(int length) {
+		int size = 1;
+		while (size < length) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Makes a windowed sinc filter for each of the points between samples.
+	 */
+	private static float[][] makeInterpolator() {
+		float[][] filter = new float[OVERSAMPLING - 1][2 * HALF_TAPS];
+		for (int phase = 1; phase < OVERSAMPLING; phase++) {
+			double offset = (double) phase / OVERSAMPLING;
+			double sum = 0;
+			for (int k = 0; k < 2 * HALF_TAPS; k++) {
+				// tap k is the sample k - HALF_TAPS + 1 frames from the one before the point
+				double t = k - HALF_TAPS + 1 - offset;
+				double sinc = Math.sin(Math.PI * t) / (Math.PI * t);
+				double w = t / HALF_TAPS;
+				double window = Math.abs(w) >= 1 ? 0 : Math.pow(Math.cos(Math.PI * w / 2), 2);
+				filter[phase - 1][k] = (float) (sinc * window);
+				sum += sinc * window;
+			}
+			for (int k = 0; k < 2 * HALF_TAPS; k++) {
+				filter[phase - 1][k] /= sum;
+			}
+		}
+		return filter;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		int start = write;
+		int from = start & historyMask;
+		int first = Math.min(bufferSize, historyMask + 1 - from);
+		for (int c = 0; c < channels; c++) {
+			System.arraycopy(bufIn[c], 0, history[c], from, first);
+			System.arraycopy(bufIn[c], first, history[c], 0, bufferSize - first);
+		}
+		write = start + bufferSize;
+
+		// the peak of each frame, filterDelay frames back, over all channels
+		Arrays.fill(peaks, 0);
+		for (int c = 0; c < channels; c++) {
+			if (truePeak) {
+				measureTruePeaks(history[c], start - filterDelay, ceiling);
+			} else {
+				measurePeaks(history[c], start - filterDelay);
+			}
+		}
+
+		// the gain for each frame
+		float limit = ceiling;
+		float coef = releaseCoef;
+		for (int i = 0; i < bufferSize; i++) {
+			int n = frame + i;
+			float p = peaks[i];
+			float required = p > limit ? limit / p : 1;
+
+			// add to the queue, dropping any frames that can no longer be the smallest
+			while (queueTail != queueHead && queueGains[(queueTail - 1) & queueMask] >= required) {
+				queueTail--;
+			}
+			queueFrames[queueTail & queueMask] = n;
+			queueGains[queueTail & queueMask] = required;
+			queueTail++;
+			if (n - queueFrames[queueHead & queueMask] > lookAhead) {
+				queueHead++;
+			}
+			float smallest = queueGains[queueHead & queueMask];
+
+			// rise at the release rate, fall at once
+			released = smallest < released ? smallest : released + coef * (smallest - released);
+
+			// average over the look-ahead, which reaches the smallest gain in time
+			heldSum += released - held[heldSlot];
+			held[heldSlot] = released;
+			if (++heldSlot == held.length) {
+				heldSlot = 0;
+			}
+			gains[i] = (float) (heldSum / held.length);
+		}
+		frame += bufferSize;
+
+		// apply the gain to the delayed signal
+		int delayed = start - filterDelay - lookAhead;
+		for (int c = 0; c < channels; c++) {
+			float[] h = history[c];
+			float[] out = bufOut[c];
+			for (int i = 0; i < bufferSize; i++) {
+				out[i] = h[(delayed + i) & historyMask] * gains[i];
+			}
+		}
+	}
+
+	/**
+	 * Updates the peaks with the sample peaks of a channel.
+	 */
+	private void measurePeaks(float[] h, int from) {
+		for (int i = 0; i < bufferSize; i++) {
+			float a = Math.abs(h[(from + i) & historyMask]);
+			if (a > peaks[i]) {
+				peaks[i] = a;
+			}
+		}
+	}
+
+	/**
+	 * Updates the peaks with the true peaks of a channel, the largest of each
+	 * sample and the interpolated points between it and the sample before.
+	 */
+	private void measureTruePeaks(float[] h, int from, float limit) {
+		// copy the frames the filter needs into one run
+		int base = from - HALF_TAPS;
+		int length = bufferSize + 2 * HALF_TAPS;
+		int start = base & historyMask;
+		int first = Math.min(length, historyMask + 1 - start);
+		System.arraycopy(h, start, window, 0, first);
+		System.arraycopy(h, 0, window, first, length - first);
+		// no point between samples can be larger than the largest sample times the filter's gain, so if that is below the ceiling only the samples matter
+		float largest = 0;
+		for (int i = 0; i < length; i++) {
+			largest = Math.max(largest, Math.abs(window[i]));
+		}
+		if (largest * INTERPOLATOR_GAIN <= limit) {
+			measurePeaks(h, from);
+			return;
+		}
+		// the first and last phases mirror each other and the middle one is symmetric, so work from sums and differences of mirrored taps
+		for (int i = 0; i < bufferSize; i++) {
+			float even = 0, odd = 0, middle = 0;
+			for (int k = 0; k < HALF_TAPS; k++) {
+				float a = window[i + k];
+				float b = window[i + 2 * HALF_TAPS - 1 - k];
+				float sum = a + b;
+				even += EVEN[k] * sum;
+				odd += ODD[k] * (a - b);
+				middle += MIDDLE[k] * sum;
+			}
+			float peak = Math.max(Math.abs(window[i + HALF_TAPS]),
+					Math.max(Math.abs(even + odd), Math.max(Math.abs(even - odd), Math.abs(middle))));
+			if (peak > peaks[i]) {
+				peaks[i] = peak;
+			}
+		}
+	}
+
+	/**
+	 * Gets the delay of the output, which is the look-ahead time plus the
+	 * frames needed to measure true peaks.
+	 *
+	 * @return The latency in frames.
+	 */
+	public int getLatency() {
+		return lookAhead + filterDelay;
+	}
+
+	/**
+	 * Gets the ceiling.
+	 *
+	 * @return The ceiling, as an amplitude.
+	 */
+	public float getCeiling() {
+		return ceiling;
+	}
+
+	/**
+	 * Sets the ceiling, the largest amplitude let through. The default value
+	 * is 1.
+	 *
+	 * @param ceiling
+	 *            The ceiling, as an amplitude.
+	 * @return This limiter instance.
+	 */
+	public PeakLimiter setCeiling(float ceiling) {
+		if (ceiling <= 0) {
+			ceiling = Float.MIN_NORMAL;
+		}
+		this.ceiling = ceiling;
+		return this;
+	}
+
+	/**
+	 * Gets the release time.
+	 *
+	 * @return The release time in milliseconds.
+	 */
+	public float getRelease() {
+		return release;
+	}
+
+	/**
+	 * Sets the release time, the time in milliseconds for the gain to recover
+	 * most of the way after a peak. The default value is 50.
+	 *
+	 * @param release
+	 *            The release time in milliseconds.
+	 * @return This limiter instance.
+	 */
+	public PeakLimiter setRelease(float release) {
+		if (release < 0) {
+			release = 0;
+		}
+		this.release = release;
+		releaseCoef = (float) (1 - Math.exp(-1 / Math.max(1e-6, context.msToSamples(release))));
+		return this;
+	}
+
+	/**
+	 * Gets whether true peaks are measured.
+	 *
+	 * @return True if true peaks are measured, false if sample peaks are.
+	 */
+	public boolean isTruePeak() {
+		return truePeak;
+	}
+
+	/**
+	 * Sets whether to measure true peaks, including the peaks between
+	 * samples, or only the sample values, which is cheaper. The default is
+	 * true.
+	 *
+	 * @param truePeak
+	 *            True to measure true peaks, false to measure sample peaks.
+	 * @return This limiter instance.
+	 */
+	public PeakLimiter setTruePeak(boolean truePeak) {
+		this.truePeak = truePeak;
+		return this;
+	}
+
+	/**
+	 * Gets the current gain applied to the signal, which is 1 when no limiting is taking place.
+	 *
+	 * @return The current gain.
+	 */
+	public float getCurrentGain() {
+		return gains[bufferSize - 1];
+	}
+
+	/**
+	 * Sets the limiter parameters with a DataBead, using values stored in the
+	 * keys "ceiling", "release" and "truePeak".
+	 *
+	 * @param db
+	 *            The parameter DataBead.
+	 * @return This limiter instance.
+	 */
+	public DataBeadReceiver sendData(DataBead db) {
+		if (db != null) {
+			setCeiling(db.getFloat("ceiling", ceiling));
+			setRelease(db.getFloat("release", release));
+			Object tp = db.get("truePeak");
+			if (tp instanceof Boolean) {
+				setTruePeak((Boolean) tp);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Gets a DataBead filled with properties set to corresponding limiter
+	 * parameters: "ceiling", "release" and "truePeak".
+	 *
+	 * @return The parameter DataBead.
+	 */
+	public DataBead getParams() {
+		DataBead db = new DataBead();
+		db.put("ceiling", getCeiling());
+		db.put("release", getRelease());
+		db.put("truePeak", isTruePeak());
+		return db;
+	}
+}
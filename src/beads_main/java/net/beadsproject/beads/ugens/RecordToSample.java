@@ -5,6 +5,7 @@ package net.beadsproject.beads.ugens;
 
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.ChunkedSampleStorage;
 import net.beadsproject.beads.data.Sample;
 
 /**
@@ -27,9 +28,22 @@ import net.beadsproject.beads.data.Sample;
  * otherwise it will keep recording and you may quickly run out of memory.
  * </p>
  * 
- * <i>ADVANCED:</i> When resizing a sample in INFINITE mode, the recorder uses a set of parameters
- * that specify how it behaves. If necessary you can modify the parameters on a per-recorder basis. See
- * {@link #setResizingParameters(double, double)}.
+ * <p>
+ * In INFINITE mode, the first time the sample needs to grow the recorder switches it to a
+ * {@link ChunkedSampleStorage} (unless it already uses one), which costs one copy of the existing
+ * data. From then on the sample grows block by block without copying, and the length of the 
+ * sample always matches the recorded data. See {@link #setChunkedGrowth(boolean)}.
+ * </p>
+ * 
+ * <p>
+ * If the sample has a {@link net.beadsproject.beads.data.WaveformSummary}, for example
+ * because a UI is drawing it, the summary follows the recording: each buffer written
+ * marks just those frames as changed, and they are summarised when the summary is next read.
+ * </p>
+ * 
+ * <i>ADVANCED:</i> If chunked growth is disabled, the recorder resizes the sample's existing storage
+ * in INFINITE mode and uses a set of parameters that specify how it behaves. If necessary you can modify
+ * the parameters on a per-recorder basis. See {@link #setResizingParameters(double, double)}.
  *
  *  
  */
@@ -70,6 +84,9 @@ public class RecordToSample extends UGen {
 	private long doubleUpFrame; 
 	private long constantResizeLengthInFrames; 
 	
+	/** Whether INFINITE mode grows the sample using a ChunkedSampleStorage. */
+	private boolean chunkedGrowth = true;
+	
         
     /**
 	 * Instantiates a new RecordToSample.
@@ -233,17 +250,24 @@ public class RecordToSample extends UGen {
 	    			case INFINITE:
 	    			{
 	    				// adjust the size of the sample
-	    				// for now, we double the size of the sample.
-	    				try {
-	    					if (position < doubleUpFrame)
-	    					{
-	    						sample.resize(nFrames*2);
+	    				if (chunkedGrowth) {
+	    					// chunked storage grows without copying, so just add what we need
+	    					if (!(sample.getStorage() instanceof ChunkedSampleStorage)) {
+	    						sample.setStorage(new ChunkedSampleStorage(sample.getStorage()));
 	    					}
-	    					else
-	    					{
-	    						sample.resize(nFrames + constantResizeLengthInFrames);
-	    					}							
-						} catch (Exception e) { /* won't happen */ }
+	    					sample.resize(position + bufferSize);
+	    				} else {
+		    				try {
+		    					if (position < doubleUpFrame)
+		    					{
+		    						sample.resize(nFrames*2);
+		    					}
+		    					else
+		    					{
+		    						sample.resize(nFrames + constantResizeLengthInFrames);
+		    					}							
+							} catch (Exception e) { /* won't happen */ }
+	    				}
 						
 						sample.putFrames((int)position, bufIn);    		
 			    		position += bufferSize;
@@ -295,7 +319,31 @@ public class RecordToSample extends UGen {
     }
     
     /**
-     * <i>Advanced:</i> Change the parameters used when resizing samples in INFINITE recorder mode.
+     * Determines whether INFINITE mode grows the sample using a {@link ChunkedSampleStorage}.
+     * 
+     * @return true if chunked growth is enabled.
+     */
+    public boolean isChunkedGrowth()
+    {
+    	return chunkedGrowth;
+    }
+    
+    /**
+     * Sets whether INFINITE mode grows the sample using a {@link ChunkedSampleStorage} (the default),
+     * which avoids copying the recorded data each time the sample grows. If false, the sample's 
+     * existing storage is resized according to the resizing parameters 
+     * (see {@link #setResizingParameters(double, double)}).
+     * 
+     * @param chunkedGrowth true to enable chunked growth.
+     */
+    public void setChunkedGrowth(boolean chunkedGrowth)
+    {
+    	this.chunkedGrowth = chunkedGrowth;
+    }
+    
+    /**
+     * <i>Advanced:</i> Change the parameters used when resizing samples in INFINITE recorder mode
+     * with chunked growth disabled.
      * 
      * In INFINITE mode the recorder resizes the sample when it needs to write more data into it. Initially
      * the recorder doubles the length of the sample, up to a particular length. Once the sample size 
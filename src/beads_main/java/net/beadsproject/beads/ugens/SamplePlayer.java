@@ -16,7 +16,9 @@ import net.beadsproject.beads.data.Sample;
  * player can be set to a number of different loop modes. If constructed with a
  * {@link Sample} argument, the number of outputs of SamplePlayer is determined
  * by the number of channels of the {@link Sample}. {@link Sample} playback can
- * use either linear or cubic interpolation.
+ * use either linear or cubic interpolation. When a mipmapped {@link Sample} is
+ * played fast (see {@link Sample#setMipmapped(boolean)}), it is read from a
+ * band-limited copy at a suitable lower sample rate to avoid aliasing.
  *
  * @author ollie
  */
@@ -168,6 +170,13 @@ public class SamplePlayer extends UGen {
 	 */
 	private boolean[] isLooping;
 
+	/** The positions, crossfade positions and levels of each frame in the current buffer. */
+	private double[] positions, crossPositions;
+	private float[] sampleLevels;
+
+	/** The frames read for the current buffer, in the form [channel][frame]. */
+	private float[][] blockFrames, crossFrames;
+
 	/**
 	 * Instantiates a new SamplePlayer with given number of outputs.
 	 * 
@@ -190,6 +199,9 @@ public class SamplePlayer extends UGen {
 		positionIncrement = context.samplesToMs(1);
 		loopCrossFade = 0;
 		isLooping = new boolean[bufferSize];
+		positions = new double[bufferSize];
+		crossPositions = new double[bufferSize];
+		sampleLevels = new float[bufferSize];
 	}
 
 	/**
@@ -231,7 +243,13 @@ public class SamplePlayer extends UGen {
          * Sets the Sample.
          */
 	public void setSample(Sample sample) {
+		if (this.sample != null && !isDeleted()) {
+			this.sample.removePlayer();
+		}
 		this.sample = sample;
+		if (!isDeleted()) {
+			sample.addPlayer();
+		}
 		// sampleRate = sample.getSampleRate();
 		frame = new float[sample.getNumChannels()];
 	}
@@ -252,6 +270,17 @@ public class SamplePlayer extends UGen {
 		return sample;
 	}
 
+	/**
+	 * Kills the SamplePlayer, and tells the Sample it is no longer in use, so that
+	 * it can be evicted from the {@link net.beadsproject.beads.data.SampleCache}.
+	 */
+	public void kill() {
+		if (!isDeleted() && sample != null) {
+			sample.removePlayer();
+		}
+		super.kill();
+	}
+
 	/**
 	 * @deprecated
 	 */
@@ -686,6 +715,7 @@ public class SamplePlayer extends UGen {
 				loopStartEnvelope.update();
 				loopEndEnvelope.update();
 			}
+			prefetchHint();
 			// depending on the envelope type, we either copy whole chunks of
 			// data (COARSE), or step per frame (FINE)
 			if (envelopeType == EnvelopeType.COARSE) {
@@ -770,6 +800,11 @@ public class SamplePlayer extends UGen {
 				}
 			} else // envelopeType==EnvelopeType.FINE
 			{
+				// first work out the position, crossfade position and level of each frame,
+				// then read all of the frames from the Sample in one go.
+				boolean anyCrossfade = false;
+				float maxRate = -Float.MAX_VALUE;
+				float maxSpeed = 0;
 				for (int i = 0; i < bufferSize; i++) {
 					// update the position, loop state, direction
 					calculateNextPosition(i);
@@ -793,7 +828,6 @@ public class SamplePlayer extends UGen {
                         loopCrossFade = 0;
                     }
 					
-					float[] crossfadeFrame = new float[sample.getNumChannels()];
 					double crossPosition = -1;
 					double sampleLevel = 1;
 					
@@ -887,47 +921,108 @@ public class SamplePlayer extends UGen {
 						crossPosition = -1;
 					//----
 
-					// calculate the samples using position and crossPosition pointers.
-					// if either are out of bounds, getFrame() handles this by returning 0-filled array.
-					switch (interpolationType) {
-					case ADAPTIVE:
-						if (rate > ADAPTIVE_INTERP_HIGH_THRESH) {
-							sample.getFrameNoInterp(position, frame);
-							sample.getFrameNoInterp(crossPosition, crossfadeFrame);
-						} else if (rate > ADAPTIVE_INTERP_LOW_THRESH) {
-							sample.getFrameLinear(position, frame);
-							sample.getFrameLinear(crossPosition, crossfadeFrame);
-						} else {
-							sample.getFrameCubic(position, frame);
-							sample.getFrameCubic(crossPosition, crossfadeFrame);
-						}
-						break;
-					case LINEAR:
-						sample.getFrameLinear(position, frame);
-						sample.getFrameLinear(crossPosition, crossfadeFrame);
-						break;
-					case CUBIC:
-						sample.getFrameCubic(position, frame);
-						sample.getFrameCubic(crossPosition, crossfadeFrame);
-						break;
-					case NONE:
-						sample.getFrameNoInterp(position, frame);
-						sample.getFrameNoInterp(crossPosition, crossfadeFrame);
-						break;
-					}
+					positions[i] = position;
+					crossPositions[i] = crossPosition;
+					sampleLevels[i] = (float) sampleLevel;
+					if (crossPosition != -1) anyCrossfade = true;
+					if (rate > maxRate) maxRate = rate;
+					if (Math.abs(rate) > maxSpeed) maxSpeed = Math.abs(rate);
+				}
 
-					
-					for (int j = 0; j < outs; j++) {
-					   bufOut[j][i] = (crossPosition != -1) ? 
-							(float) sampleLevel * frame[j % sample.getNumChannels()]
-									+ (float) (1 - sampleLevel) * crossfadeFrame[j % sample.getNumChannels()] : 
-							(float) sampleLevel * frame[j % sample.getNumChannels()];
+				// a mipmapped Sample played fast is read from a band-limited copy, at a lower effective rate.
+				// the copy and the adaptive interpolation are chosen from the fastest rate in the buffer.
+				Sample source = positionEnvelope == null ? sample.getMipmap(maxSpeed * sample.msToSamples(positionIncrement)) : sample;
+				float sourceRate = source == sample ? maxRate : maxRate * source.getSampleRate() / sample.getSampleRate();
+				InterpolationType type = interpolationType;
+				if (type == InterpolationType.ADAPTIVE) {
+					if (sourceRate > ADAPTIVE_INTERP_HIGH_THRESH) {
+						type = InterpolationType.NONE;
+					} else if (sourceRate > ADAPTIVE_INTERP_LOW_THRESH) {
+						type = InterpolationType.LINEAR;
+					} else {
+						type = InterpolationType.CUBIC;
+					}
+				}
+				int nChannels = source.getNumChannels();
+				if (blockFrames == null || blockFrames.length < nChannels) {
+					blockFrames = new float[nChannels][bufferSize];
+					crossFrames = new float[nChannels][bufferSize];
+				}
+				// out of bounds positions, including crossPositions of -1, give 0-filled frames.
+				readFrames(source, type, positions, blockFrames);
+				if (anyCrossfade) {
+					readFrames(source, type, crossPositions, crossFrames);
+				}
+				for (int j = 0; j < outs; j++) {
+					float[] out = bufOut[j];
+					float[] f = blockFrames[j % nChannels];
+					if (anyCrossfade) {
+						float[] cf = crossFrames[j % nChannels];
+						for (int i = 0; i < bufferSize; i++) {
+							float level = sampleLevels[i];
+							out[i] = (crossPositions[i] != -1) ? level * f[i] + (1 - level) * cf[i] : level * f[i];
+						}
+					} else {
+						for (int i = 0; i < bufferSize; i++) {
+							out[i] = sampleLevels[i] * f[i];
+						}
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Reads a buffer's worth of frames from the Sample.
+	 */
+	private void readFrames(Sample source, InterpolationType type, double[] positions, float[][] result) {
+		switch (type) {
+		case NONE:
+			source.getFramesNoInterp(positions, result, bufferSize);
+			break;
+		case LINEAR:
+			source.getFramesLinear(positions, result, bufferSize);
+			break;
+		default:
+			source.getFramesCubic(positions, result, bufferSize);
+			break;
+		}
+	}
+
+	/**
+	 * Tells the Sample where playback is heading over the coming buffer, so
+	 * that Samples that stream from disk can read ahead. Called once per
+	 * buffer.
+	 */
+	protected void prefetchHint() {
+		if (positionEnvelope != null) {
+			sample.prefetchHint(positionEnvelope.getValueDouble(0, 0),
+					positionEnvelope.getValue(0, bufferSize - 1) >= positionEnvelope.getValue(0, 0));
+			return;
+		}
+		float currentRate = rateEnvelope.getValue(0, 0);
+		switch (loopType) {
+		case NO_LOOP_FORWARDS:
+			sample.prefetchHint(position, currentRate >= 0);
+			break;
+		case NO_LOOP_BACKWARDS:
+			sample.prefetchHint(position, currentRate < 0);
+			break;
+		case LOOP_FORWARDS:
+			sample.prefetchHint(position, currentRate >= 0, loopStartEnvelope.getValue(0, 0),
+					loopEndEnvelope.getValue(0, 0), false);
+			break;
+		case LOOP_BACKWARDS:
+			sample.prefetchHint(position, currentRate < 0, loopStartEnvelope.getValue(0, 0),
+					loopEndEnvelope.getValue(0, 0), false);
+			break;
+		case LOOP_ALTERNATING:
+			sample.prefetchHint(position, forwards ^ (currentRate < 0), loopStartEnvelope.getValue(0, 0),
+					loopEndEnvelope.getValue(0, 0), true);
+			break;
+		}
+	}
+
 	/**
 	 * Sets/unsets option for SamplePlayer to kill itself when it reaches the
 	 * end of the Sample it is playing. True by default.
@@ -0,0 +1,979 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+
+/**
+ * Spatializer pans point sources over a speaker array of any size, using
+ * either vector base amplitude panning ({@link Mode#VBAP}) or distance based
+ * amplitude panning ({@link Mode#DBAP}). It is intended for large arrays with
+ * many sources, where {@link Spatial}, which works out the gain of every
+ * speaker for every source at every frame, becomes too expensive.
+ * <p>
+ * Speaker positions are given relative to the listener, following the
+ * 'right-handed' ordering used by Spatial: x to the right, y to the front and
+ * z upwards. Positions may have two or three coordinates, and sources are
+ * positioned with the same number of coordinates as the speakers. The layout
+ * is analysed once, when the Spatializer is created. For VBAP, a horizontal
+ * layout is split into adjacent pairs and a three dimensional layout into the
+ * triangles of its convex hull, with virtual speakers filling any gap wider
+ * than half a circle or below (or above) a dome; a virtual speaker's share of
+ * a source is passed on to the real speakers around it. VBAP only uses the
+ * direction of a source, and a source at the listener's position is spread
+ * equally over every speaker. DBAP uses the distance from the source to each
+ * speaker, and so works with speakers anywhere, in any number of dimensions.
+ * <p>
+ * A source's speaker gains are only worked out again when its position or
+ * gain changes, and are then ramped over one buffer. Positions may be set
+ * directly or be controlled by UGens, in which case they are read once per
+ * buffer. Only the speakers that a source is actually sent to are mixed, so
+ * with VBAP a source usually costs two or three mixing loops, whatever the
+ * size of the array.
+ *
+ * @see Spatial
+ * @author Beads Team
+ */
+public class Spatializer extends UGen {
+
+	/**
+	 * The panning method.
+	 */
+	public enum Mode {
+		/** Vector base amplitude panning, which uses the direction of a source. */
+		VBAP,
+		/** Distance based amplitude panning, which uses the distance from a source to each speaker. */
+		DBAP
+	}
+
+	/** Coordinates below this are taken to be zero when analysing the layout. */
+	private static final float EPSILON = 1e-4f;
+
+	/** The fall in dB per doubling of distance under the inverse distance law, which DBAP rolloffs are relative to. */
+	private static final float LOG_2_DB = 6.0206f;
+
+	/** Determinants below this mark a pair or triangle of speakers too close together to pan between. */
+	private static final float SINGULAR = 1e-7f;
+
+	private final Mode mode;
+	private final int dimensions;
+	private final int numSpeakers;
+	private final float[][] speakers;
+
+	/** The speaker pairs or triangles, as indices into the directions, where virtual speakers follow the real ones. */
+	private int[][] sets;
+
+	/** The inverse of each set's matrix of speaker directions, row by row. */
+	private float[][] inverses;
+
+	/** The real speakers that each virtual speaker's gain is passed on to. */
+	private int[][] neighbours;
+
+	/** The number of coordinates that VBAP uses, 2 for horizontal layouts and 3 otherwise. */
+	private int vbapDimensions;
+
+	private volatile float rolloff, blur;
+
+	/** Counts changes to the DBAP parameters, so that sources know to work out their gains again. */
+	private volatile int settings;
+
+	/** The sources, replaced as a whole when sources are added or removed. */
+	private volatile Source[] sources;
+
+	/** Gains worked out for a single source, kept both dense and as a list of the speakers used. */
+	private final float[] gains;
+	private final int[] used;
+	private int numUsed;
+
+	/** The position read from a source's controllers. */
+	private final float[] polled;
+
+	/** A source's output, for UGens such as {@link Static} that leave their output buffers empty. */
+	private final float[] filled;
+
+	/** Rises from 0 towards 1 over a buffer, for ramping gains. */
+	private final float[] ramp;
+
+	/**
+	 * A point source, which is a single output of a UGen. The position and
+	 * gain can be changed at any time.
+	 */
+	public class Source {
+
+		private final UGen ugen;
+		private final int channel;
+		private volatile float[] position;
+		private volatile UGen[] controllers;
+		private volatile float gain;
+
+		/** The position and gain that the current gains were worked out for. */
+		private final float[] located;
+		private float locatedGain;
+		private int locatedSettings;
+		private boolean isLocated;
+
+		/** The gain of each speaker at the start and end of the current buffer. */
+		private final float[] current, target;
+
+		/** The speakers with a non-zero gain. */
+		private final int[] active;
+		private int numActive;
+
+		/** The last set that the source was found in. */
+		private int set;
+
+		private Source(UGen ugen, int channel) {
+			this.ugen = ugen;
+			this.channel = channel;
+			position = new float[dimensions];
+			gain = 1;
+			located = new float[dimensions];
+			current = new float[numSpeakers];
+			target = new float[numSpeakers];
+			active = new int[numSpeakers];
+		}
+
+		/**
+		 * Gets the source UGen.
+		 *
+		 * @return The source UGen.
+		 */
+		public UGen getUGen() {
+			return ugen;
+		}
+
+		/**
+		 * Gets the output of the source UGen that this source plays.
+		 *
+		 * @return The channel.
+		 */
+		public int getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Gets the position. If the position is controlled by UGens, this is
+		 * their last value.
+		 *
+		 * @return A copy of the position.
+		 */
+		public float[] getPosition() {
+			return controllers == null ? position.clone() : located.clone();
+		}
+
+		/**
+		 * Sets the position, relative to the listener. Missing coordinates are
+		 * taken to be zero.
+		 *
+		 * @param position
+		 *            The position.
+		 * @return This source.
+		 */
+		public Source setPosition(float... position) {
+			this.position = Arrays.copyOf(position, dimensions);
+			controllers = null;
+			return this;
+		}
+
+		/**
+		 * Sets UGens to control the position, one per coordinate. The
+		 * position is read at the end of each buffer. Passing
+		 * <code>null</code> returns the source to its last static position.
+		 *
+		 * @param controllers
+		 *            The UGens controlling each coordinate.
+		 * @return This source.
+		 */
+		public Source setPosition(UGen... controllers) {
+			if (controllers != null && controllers.length != dimensions) {
+				throw new IllegalArgumentException("Expected " + dimensions + " position controllers");
+			}
+			this.controllers = controllers == null ? null : controllers.clone();
+			return this;
+		}
+
+		/**
+		 * Gets the position controllers, if there are any.
+		 *
+		 * @return A copy of the position controllers, or <code>null</code>.
+		 */
+		public UGen[] getPositionUGens() {
+			UGen[] c = controllers;
+			return c == null ? null : c.clone();
+		}
+
+		/**
+		 * Gets the gain.
+		 *
+		 * @return The gain.
+		 */
+		public float getGain() {
+			return gain;
+		}
+
+		/**
+		 * Sets the gain.
+		 *
+		 * @param gain
+		 *            The gain.
+		 * @return This source.
+		 */
+		public Source setGain(float gain) {
+			this.gain = gain;
+			return this;
+		}
+
+		/**
+		 * Works out new target gains if the position, gain or panning
+		 * parameters have changed.
+		 */
+		private void locate() {
+			UGen[] c = controllers;
+			float[] p;
+			if (c == null) {
+				p = position;
+			} else {
+				p = polled;
+				for (int d = 0; d < dimensions; d++) {
+					c[d].update();
+					p[d] = c[d].getValue(0, bufferSize - 1);
+				}
+			}
+			float g = gain;
+			int s = settings;
+			boolean moved = !isLocated || g != locatedGain || s != locatedSettings;
+			for (int d = 0; d < dimensions && !moved; d++) {
+				moved = p[d] != located[d];
+			}
+			if (!moved) {
+				return;
+			}
+			System.arraycopy(p, 0, located, 0, dimensions);
+			locatedGain = g;
+			locatedSettings = s;
+			isLocated = true;
+
+			// at the start of a buffer every active speaker has reached its target
+			for (int k = 0; k < numActive; k++) {
+				target[active[k]] = 0;
+			}
+			set = mode == Mode.VBAP ? vbap(located, set) : dbap(located);
+			for (int k = 0; k < numUsed; k++) {
+				int sp = used[k];
+				if (current[sp] == 0) {
+					active[numActive++] = sp;
+				}
+				target[sp] = g * gains[sp];
+				gains[sp] = 0;
+			}
+			numUsed = 0;
+		}
+
+		/**
+		 * Adds the source to each of its speakers, ramping from the current to
+		 * the target gains.
+		 */
+		private void mix() {
+			ugen.update();
+			locate();
+			float[] in = ugen.getOutBuffer(channel);
+			if (in == null) {
+				in = filled;
+				for (int i = 0; i < bufferSize; i++) {
+					in[i] = ugen.getValue(channel, i);
+				}
+			}
+			int n = 0;
+			for (int k = 0; k < numActive; k++) {
+				int sp = active[k];
+				float g = current[sp];
+				float t = target[sp];
+				float[] out = bufOut[sp];
+				if (g == t) {
+					for (int i = 0; i < bufferSize; i++) {
+						out[i] += g * in[i];
+					}
+				} else {
+					float change = t - g;
+					for (int i = 0; i < bufferSize; i++) {
+						out[i] += (g + change * ramp[i]) * in[i];
+					}
+					current[sp] = t;
+				}
+				if (t != 0) {
+					active[n++] = sp;
+				}
+			}
+			numActive = n;
+		}
+	}
+
+	/**
+	 * Constructor for a VBAP spatializer with the given speaker positions.
+	 *
+	 * @param ac
+	 *            The audio context.
+	 * @param speakerPositions
+	 *            The speaker positions, as speakerPositions[speaker][coordinate].
+	 */
+	public Spatializer(AudioContext ac, float[][] speakerPositions) {
+		this(ac, speakerPositions, Mode.VBAP);
+	}
+
+	/**
+	 * Constructor for a VBAP spatializer with the given speaker positions.
+	 *
+	 * @param speakerPositions
+	 *            The speaker positions, as speakerPositions[speaker][coordinate].
+	 */
+	public Spatializer(float[][] speakerPositions) {
+		this(getDefaultContext(), speakerPositions);
+	}
+
+	/**
+	 * Constructor for a spatializer with the given speaker positions and
+	 * panning method.
+	 *
+	 * @param speakerPositions
+	 *            The speaker positions, as speakerPositions[speaker][coordinate].
+	 * @param mode
+	 *            The panning method.
+	 */
+	public Spatializer(float[][] speakerPositions, Mode mode) {
+		this(getDefaultContext(), speakerPositions, mode);
+	}
+
+	/**
+	 * Constructor for a spatializer with the given speaker positions and
+	 * panning method.
+	 *
+	 * @param ac
+	 *            The audio context.
+	 * @param speakerPositions
+	 *            The speaker positions, as speakerPositions[speaker][coordinate].
+	 * @param mode
+	 *            The panning method.
+	 */
+	public Spatializer(AudioContext ac, float[][] speakerPositions, Mode mode) {
+		super(ac, 0, speakerPositions.length);
+		if (speakerPositions.length == 0) {
+			throw new IllegalArgumentException("No speakers");
+		}
+		this.mode = mode;
+		numSpeakers = speakerPositions.length;
+		dimensions = speakerPositions[0].length;
+		speakers = new float[numSpeakers][];
+		for (int i = 0; i < numSpeakers; i++) {
+			if (speakerPositions[i].length != dimensions) {
+				throw new IllegalArgumentException("Speaker " + i + " does not have " + dimensions + " coordinates");
+			}
+			speakers[i] = speakerPositions[i].clone();
+		}
+		if (mode == Mode.VBAP) {
+			if (dimensions != 2 && dimensions != 3) {
+				throw new IllegalArgumentException("VBAP needs speaker positions in two or three dimensions");
+			}
+			boolean flat = true;
+			for (int i = 0; i < numSpeakers && dimensions == 3; i++) {
+				flat &= Math.abs(speakers[i][2]) < EPSILON;
+			}
+			if (flat) {
+				pair();
+			} else {
+				triangulate();
+			}
+		} else {
+			sets = new int[0][];
+		}
+		rolloff = 6;
+		blur = .1f;
+		sources = new Source[0];
+		gains = new float[numSpeakers];
+		used = new int[numSpeakers];
+		polled = new float[dimensions];
+		filled = new float[bufferSize];
+		ramp = new float[bufferSize];
+		for (int i = 0; i < bufferSize; i++) {
+			ramp[i] = (float) i / bufferSize;
+		}
+		outputInitializationRegime = OutputInitializationRegime.ZERO;
+	}
+
+	/**
+	 * Gets the unit vector pointing from the listener to each speaker.
+	 */
+	private float[][] speakerDirections(int d) {
+		float[][] dirs = new float[numSpeakers][d];
+		for (int i = 0; i < numSpeakers; i++) {
+			float len = 0;
+			for (int j = 0; j < d; j++) {
+				len += speakers[i][j] * speakers[i][j];
+			}
+			len = (float) Math.sqrt(len);
+			if (len < EPSILON) {
+				throw new IllegalArgumentException("Speaker " + i + " is at the listener's position");
+			}
+			for (int j = 0; j < d; j++) {
+				dirs[i][j] = speakers[i][j] / len;
+			}
+		}
+		return dirs;
+	}
+
+	/**
+	 * Splits a horizontal layout into pairs of adjacent speakers, adding a
+	 * virtual speaker in the middle of any gap of half a circle or more.
+	 */
+	private void pair() {
+		vbapDimensions = 2;
+		final float[][] dirs = speakerDirections(2);
+		float[] angles = new float[numSpeakers];
+		Integer[] order = new Integer[numSpeakers];
+		for (int i = 0; i < numSpeakers; i++) {
+			angles[i] = (float) Math.atan2(dirs[i][1], dirs[i][0]);
+			order[i] = i;
+		}
+		final float[] a = angles;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer x, Integer y) {
+				return Float.compare(a[x], a[y]);
+			}
+		});
+		List<int[]> pairs = new ArrayList<int[]>();
+		List<float[]> virtuals = new ArrayList<float[]>();
+		List<int[]> virtualNeighbours = new ArrayList<int[]>();
+		for (int k = 0; k < numSpeakers && numSpeakers > 1; k++) {
+			int from = order[k];
+			int to = order[(k + 1) % numSpeakers];
+			float gap = angles[to] - angles[from];
+			if (gap <= 0) {
+				gap += 2 * Math.PI;
+			}
+			if (gap < Math.PI - EPSILON) {
+				pairs.add(new int[] {from, to});
+			} else {
+				double mid = angles[from] + gap / 2;
+				int v = numSpeakers + virtuals.size();
+				virtuals.add(new float[] {(float) Math.cos(mid), (float) Math.sin(mid)});
+				virtualNeighbours.add(new int[] {from, to});
+				pairs.add(new int[] {from, v});
+				pairs.add(new int[] {v, to});
+			}
+		}
+		float[][] all = Arrays.copyOf(dirs, numSpeakers + virtuals.size());
+		for (int v = 0; v < virtuals.size(); v++) {
+			all[numSpeakers + v] = virtuals.get(v);
+		}
+		List<int[]> kept = new ArrayList<int[]>();
+		List<float[]> inv = new ArrayList<float[]>();
+		for (int[] p : pairs) {
+			float[] l = all[p[0]], m = all[p[1]];
+			float det = l[0] * m[1] - l[1] * m[0];
+			if (Math.abs(det) > SINGULAR) {
+				kept.add(p);
+				inv.add(new float[] {m[1] / det, -m[0] / det, -l[1] / det, l[0] / det});
+			}
+		}
+		sets = kept.toArray(new int[kept.size()][]);
+		inverses = inv.toArray(new float[inv.size()][]);
+		neighbours = virtualNeighbours.toArray(new int[virtualNeighbours.size()][]);
+	}
+
+	/**
+	 * Splits a three dimensional layout into the triangles of the convex hull
+	 * of the speaker directions, adding a virtual speaker below or above the
+	 * listener if there are no speakers there. Faces with more than three
+	 * speakers are split into a fan of triangles.
+	 */
+	private void triangulate() {
+		vbapDimensions = 3;
+		float[][] dirs = speakerDirections(3);
+		float lowest = 1, highest = -1;
+		for (int i = 0; i < numSpeakers; i++) {
+			lowest = Math.min(lowest, dirs[i][2]);
+			highest = Math.max(highest, dirs[i][2]);
+		}
+		List<float[]> points = new ArrayList<float[]>(Arrays.asList(dirs));
+		if (lowest > -.1f) {
+			points.add(new float[] {0, 0, -1});
+		}
+		if (highest < .1f) {
+			points.add(new float[] {0, 0, 1});
+		}
+		float[][] all = points.toArray(new float[points.size()][]);
+		int n = all.length;
+		List<int[]> triangles = new ArrayList<int[]>();
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				for (int k = j + 1; k < n; k++) {
+					float[] normal = cross(sub(all[j], all[i]), sub(all[k], all[i]));
+					float len = (float) Math.sqrt(dot(normal, normal));
+					if (len < EPSILON) {
+						continue;
+					}
+					// a face of the hull has every other point on one side of it
+					int above = 0, below = 0;
+					List<Integer> face = new ArrayList<Integer>();
+					for (int m = 0; m < n; m++) {
+						float side = dot(normal, sub(all[m], all[i])) / len;
+						if (side > EPSILON) {
+							above++;
+						} else if (side < -EPSILON) {
+							below++;
+						} else {
+							face.add(m);
+						}
+					}
+					if (above > 0 && below > 0) {
+						continue;
+					}
+					int[] f = new int[face.size()];
+					for (int m = 0; m < f.length; m++) {
+						f[m] = face.get(m);
+					}
+					if (f[0] != i || f[1] != j || f[2] != k) {
+						// a face with more than three points is only split once, from its first three
+						continue;
+					}
+					if (f.length == 3) {
+						triangles.add(f);
+					} else {
+						fan(all, f, normal, triangles);
+					}
+				}
+			}
+		}
+		List<int[]> kept = new ArrayList<int[]>();
+		List<float[]> inv = new ArrayList<float[]>();
+		for (int[] t : triangles) {
+			float[] a = all[t[0]], b = all[t[1]], c = all[t[2]];
+			float[] bc = cross(b, c), ca = cross(c, a), ab = cross(a, b);
+			float det = dot(a, bc);
+			if (Math.abs(det) > SINGULAR) {
+				kept.add(t);
+				inv.add(new float[] {bc[0] / det, bc[1] / det, bc[2] / det, ca[0] / det, ca[1] / det, ca[2] / det,
+						ab[0] / det, ab[1] / det, ab[2] / det});
+			}
+		}
+		sets = kept.toArray(new int[kept.size()][]);
+		inverses = inv.toArray(new float[inv.size()][]);
+		neighbours = new int[n - numSpeakers][];
+		for (int v = numSpeakers; v < n; v++) {
+			boolean[] near = new boolean[numSpeakers];
+			int count = 0;
+			for (int[] t : sets) {
+				if (t[0] == v || t[1] == v || t[2] == v) {
+					for (int m = 0; m < 3; m++) {
+						if (t[m] < numSpeakers && !near[t[m]]) {
+							near[t[m]] = true;
+							count++;
+						}
+					}
+				}
+			}
+			int[] nb = new int[count];
+			for (int m = 0, c = 0; m < numSpeakers; m++) {
+				if (near[m]) {
+					nb[c++] = m;
+				}
+			}
+			neighbours[v - numSpeakers] = nb;
+		}
+	}
+
+	/**
+	 * Splits a face of the hull with more than three points into a fan of
+	 * triangles, after sorting its points by angle around their centre.
+	 */
+	private static void fan(float[][] all, int[] face, float[] normal, List<int[]> triangles) {
+		float[] centre = new float[3];
+		for (int m : face) {
+			for (int d = 0; d < 3; d++) {
+				centre[d] += all[m][d] / face.length;
+			}
+		}
+		float[] u = sub(all[face[0]], centre);
+		float[] v = cross(normal, u);
+		final float[] angle = new float[all.length];
+		Integer[] order = new Integer[face.length];
+		for (int m = 0; m < face.length; m++) {
+			float[] p = sub(all[face[m]], centre);
+			angle[face[m]] = (float) Math.atan2(dot(p, v), dot(p, u));
+			order[m] = face[m];
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer x, Integer y) {
+				return Float.compare(angle[x], angle[y]);
+			}
+		});
+		for (int m = 1; m + 1 < order.length; m++) {
+			triangles.add(new int[] {order[0], order[m], order[m + 1]});
+		}
+	}
+
+	private static float[] sub(float[] a, float[] b) {
+		return new float[] {a[0] - b[0], a[1] - b[1], a[2] - b[2]};
+	}
+
+	private static float[] cross(float[] a, float[] b) {
+		return new float[] {a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+	}
+
+	private static float dot(float[] a, float[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	/**
+	 * Adds to the gain of a speaker.
+	 */
+	private void addGain(int speaker, float g) {
+		if (gains[speaker] == 0) {
+			used[numUsed++] = speaker;
+		}
+		gains[speaker] += g;
+	}
+
+	/**
+	 * Scales the gains worked out so far to unit power, or spreads the source
+	 * equally over every speaker if there are none.
+	 */
+	private void normalise() {
+		float power = 0;
+		for (int k = 0; k < numUsed; k++) {
+			power += gains[used[k]] * gains[used[k]];
+		}
+		if (power > 0) {
+			float scale = (float) (1 / Math.sqrt(power));
+			for (int k = 0; k < numUsed; k++) {
+				gains[used[k]] *= scale;
+			}
+		} else {
+			for (int k = 0; k < numUsed; k++) {
+				gains[used[k]] = 0;
+			}
+			numUsed = 0;
+			float g = (float) (1 / Math.sqrt(numSpeakers));
+			for (int i = 0; i < numSpeakers; i++) {
+				addGain(i, g);
+			}
+		}
+	}
+
+	/**
+	 * Works out the VBAP gains for a position, starting the search at the set
+	 * that the source was last found in.
+	 *
+	 * @return The set the position was found in.
+	 */
+	private int vbap(float[] position, int last) {
+		int d = vbapDimensions;
+		float len = 0;
+		for (int j = 0; j < d; j++) {
+			len += position[j] * position[j];
+		}
+		if (len < EPSILON * EPSILON || sets.length == 0) {
+			normalise();
+			return last;
+		}
+		float x = position[0], y = position[1], z = d == 3 ? position[2] : 0;
+		int best = last;
+		float bestMin = Float.NEGATIVE_INFINITY;
+		float g0 = 0, g1 = 0, g2 = 0;
+		for (int k = 0; k < sets.length; k++) {
+			int s = last + k < sets.length ? last + k : last + k - sets.length;
+			float[] m = inverses[s];
+			float a, b, c, min;
+			if (d == 2) {
+				a = m[0] * x + m[1] * y;
+				b = m[2] * x + m[3] * y;
+				c = 0;
+				min = Math.min(a, b);
+			} else {
+				a = m[0] * x + m[1] * y + m[2] * z;
+				b = m[3] * x + m[4] * y + m[5] * z;
+				c = m[6] * x + m[7] * y + m[8] * z;
+				min = Math.min(a, Math.min(b, c));
+			}
+			if (min > bestMin) {
+				bestMin = min;
+				best = s;
+				g0 = a;
+				g1 = b;
+				g2 = c;
+				if (min >= -EPSILON) {
+					break;
+				}
+			}
+		}
+		int[] set = sets[best];
+		addSetGain(set[0], Math.max(0, g0));
+		addSetGain(set[1], Math.max(0, g1));
+		if (d == 3) {
+			addSetGain(set[2], Math.max(0, g2));
+		}
+		normalise();
+		return best;
+	}
+
+	/**
+	 * Adds the gain of one speaker of a set, passing the gain of a virtual
+	 * speaker on to its neighbours.
+	 */
+	private void addSetGain(int speaker, float g) {
+		if (g == 0) {
+			return;
+		}
+		if (speaker < numSpeakers) {
+			addGain(speaker, g);
+		} else {
+			int[] nb = neighbours[speaker - numSpeakers];
+			float share = (float) (g / Math.sqrt(nb.length));
+			for (int k = 0; k < nb.length; k++) {
+				addGain(nb[k], share);
+			}
+		}
+	}
+
+	/**
+	 * Works out the DBAP gains for a position.
+	 *
+	 * @return Zero, as DBAP has no sets.
+	 */
+	private int dbap(float[] position) {
+		float exponent = -.5f * rolloff / LOG_2_DB;
+		float b = blur;
+		float b2 = b * b;
+		for (int i = 0; i < numSpeakers; i++) {
+			float[] s = speakers[i];
+			float d2 = b2;
+			for (int j = 0; j < dimensions; j++) {
+				d2 += (position[j] - s[j]) * (position[j] - s[j]);
+			}
+			d2 = Math.max(d2, EPSILON * EPSILON);
+			addGain(i, (float) Math.pow(d2, exponent));
+		}
+		normalise();
+		return 0;
+	}
+
+	/**
+	 * Gets the panning method.
+	 *
+	 * @return The panning method.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Gets the number of speakers.
+	 *
+	 * @return The number of speakers.
+	 */
+	public int getNumSpeakers() {
+		return numSpeakers;
+	}
+
+	/**
+	 * Gets the speaker positions.
+	 *
+	 * @return A copy of the speaker positions.
+	 */
+	public float[][] getSpeakerPositions() {
+		float[][] copy = new float[numSpeakers][];
+		for (int i = 0; i < numSpeakers; i++) {
+			copy[i] = speakers[i].clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Gets the number of speaker pairs or triangles that VBAP pans between,
+	 * including those with virtual speakers. This is zero for DBAP.
+	 *
+	 * @return The number of speaker pairs or triangles.
+	 */
+	public int getNumSpeakerSets() {
+		return sets.length;
+	}
+
+	/**
+	 * Gets the DBAP rolloff.
+	 *
+	 * @return The rolloff in dB per doubling of distance.
+	 */
+	public float getRolloff() {
+		return rolloff;
+	}
+
+	/**
+	 * Sets the DBAP rolloff, the amount a speaker's gain falls each time its
+	 * distance from the source doubles. The default is 6 dB.
+	 *
+	 * @param rolloff
+	 *            The rolloff in dB per doubling of distance.
+	 * @return This Spatializer.
+	 */
+	public Spatializer setRolloff(float rolloff) {
+		this.rolloff = Math.max(0, rolloff);
+		settings++;
+		return this;
+	}
+
+	/**
+	 * Gets the DBAP blur.
+	 *
+	 * @return The blur, in the same units as the speaker positions.
+	 */
+	public float getBlur() {
+		return blur;
+	}
+
+	/**
+	 * Sets the DBAP blur, a distance added to every source-speaker distance so
+	 * that a source at a speaker is not sent to that speaker alone. The
+	 * default is 0.1.
+	 *
+	 * @param blur
+	 *            The blur, in the same units as the speaker positions.
+	 * @return This Spatializer.
+	 */
+	public Spatializer setBlur(float blur) {
+		this.blur = Math.max(0, blur);
+		settings++;
+		return this;
+	}
+
+	/**
+	 * Adds the first output of a UGen as a source, at the listener's
+	 * position.
+	 *
+	 * @param ugen
+	 *            The source UGen.
+	 * @return The new source.
+	 */
+	public Source addSource(UGen ugen) {
+		return addSource(ugen, 0);
+	}
+
+	/**
+	 * Adds an output of a UGen as a source, at the listener's position.
+	 *
+	 * @param ugen
+	 *            The source UGen.
+	 * @param channel
+	 *            The output of the source UGen.
+	 * @return The new source.
+	 */
+	public synchronized Source addSource(UGen ugen, int channel) {
+		if (channel < 0 || channel >= ugen.getOuts()) {
+			throw new IllegalArgumentException("No output channel " + channel);
+		}
+		Source source = new Source(ugen, channel);
+		Source[] s = without(null, null);
+		s = Arrays.copyOf(s, s.length + 1);
+		s[s.length - 1] = source;
+		sources = s;
+		return source;
+	}
+
+	/**
+	 * Removes a source.
+	 *
+	 * @param source
+	 *            The source to remove.
+	 */
+	public synchronized void removeSource(Source source) {
+		sources = without(source, null);
+	}
+
+	/**
+	 * Removes every source playing an output of the given UGen.
+	 *
+	 * @param ugen
+	 *            The source UGen.
+	 */
+	public synchronized void removeSource(UGen ugen) {
+		sources = without(null, ugen);
+	}
+
+	/**
+	 * Gets the sources without the given source, the sources of the given UGen, or the sources
+	 * whose UGens have been deleted. Deleted sources are only skipped by the audio thread, and
+	 * are dropped here whenever sources are added or removed.
+	 */
+	private Source[] without(Source source, UGen ugen) {
+		Source[] s = sources;
+		Source[] kept = new Source[s.length];
+		int n = 0;
+		for (int i = 0; i < s.length; i++) {
+			if (s[i] != source && s[i].ugen != ugen && !s[i].ugen.isDeleted()) {
+				kept[n++] = s[i];
+			}
+		}
+		return n == s.length ? s : Arrays.copyOf(kept, n);
+	}
+
+	/**
+	 * Removes all of the sources.
+	 */
+	public synchronized void clearSources() {
+		sources = new Source[0];
+	}
+
+	/**
+	 * Gets the sources. The array is a copy, so changing it has no effect.
+	 *
+	 * @return The sources.
+	 */
+	public Source[] getSources() {
+		return sources.clone();
+	}
+
+	/**
+	 * Gets the number of sources.
+	 *
+	 * @return The number of sources.
+	 */
+	public int getNumSources() {
+		return sources.length;
+	}
+
+	/**
+	 * This overrides {@link UGen#addInput(UGen)} by adding each output of the
+	 * UGen as a source, at the listener's position.
+	 */
+	@Override
+	public void addInput(UGen ugen) {
+		for (int i = 0; i < ugen.getOuts(); i++) {
+			addSource(ugen, i);
+		}
+	}
+
+	/**
+	 * This overrides {@link UGen#addInput(int, UGen, int)} by adding the given
+	 * output of the UGen as a source, at the listener's position.
+	 */
+	@Override
+	public void addInput(int inputIndex, UGen ugen, int outputIndex) {
+		addSource(ugen, outputIndex);
+	}
+
+	@Override
+	public void calculateBuffer() {
+		Source[] s = sources;
+		for (int i = 0; i < s.length; i++) {
+			// deleted sources are dropped when sources are next added or removed, so as not to lock or allocate here
+			if (!s[i].ugen.isDeleted()) {
+				s[i].mix();
+			}
+		}
+	}
+}
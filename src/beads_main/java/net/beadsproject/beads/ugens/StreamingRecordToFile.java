@@ -0,0 +1,302 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.SampleAudioFormat;
+import net.beadsproject.beads.data.audiofile.FileFormatException;
+import net.beadsproject.beads.data.audiofile.WavFileStreamWriter;
+
+/**
+ * StreamingRecordToFile records audio into a wav file without doing any file IO on the
+ * audio thread. Each frame the input is interleaved into one of a fixed ring of preallocated
+ * blocks, which a background writer thread hands to a {@link WavFileStreamWriter}. The ring
+ * is lock-free (single producer, single consumer), so the audio thread never blocks; if the
+ * writer falls behind by more than the length of the ring, blocks are dropped and counted
+ * (see {@link #getNumDroppedFrames()}).
+ * <p>
+ * Files can be 16-bit, 24-bit or 32-bit floating point, and are converted to RF64 if they grow
+ * beyond 4GB, so long many-channel recordings are possible. The writer patches the header
+ * periodically (see {@link #setHeaderUpdateInterval(double)}) so that the file is readable even if
+ * the program terminates without killing the recorder.
+ * <p>
+ * You must {@link #kill() kill} this object when finished. The writer thread then drains the ring and
+ * finalises the file; use {@link #waitUntilFinished()} if you need to wait for this.
+ * <p>
+ * Unlike {@link RecordToFile} this class has no dependency on JavaSound or Tritonus.
+ *
+ * @author Beads Team
+ */
+public class StreamingRecordToFile extends UGen {
+
+	/** Default length of the ring buffer in milliseconds. */
+	public static final double DEFAULT_RING_LENGTH = 2000;
+
+	/** Default interval between header updates in milliseconds. */
+	public static final double DEFAULT_HEADER_UPDATE_INTERVAL = 5000;
+
+	/** The writer. Only accessed from the writer thread once recording starts. */
+	private final WavFileStreamWriter writer;
+
+	/** The ring of interleaved blocks. */
+	private final float[][] ring;
+
+	/** Number of blocks written into the ring by the audio thread. */
+	private final AtomicLong writeCount;
+
+	/** Number of blocks consumed from the ring by the writer thread. */
+	private final AtomicLong readCount;
+
+	/** Number of frames dropped because the ring was full. */
+	private final AtomicLong droppedFrames;
+
+	/** The thread that writes to disk. */
+	private final Thread writerThread;
+
+	/** Set when the recorder has been killed. */
+	private volatile boolean finished;
+
+	/** Number of frames between header updates. */
+	private volatile long headerUpdateFrames;
+
+	/** The first error encountered by the writer thread, if any. */
+	private volatile IOException error;
+
+	/**
+	 * Instantiates a recorder that writes a 16-bit wav file with the default ring length.
+	 *
+	 * @param context
+	 *            the AudioContext.
+	 * @param numberOfChannels
+	 *            the number of channels.
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public StreamingRecordToFile(AudioContext context, int numberOfChannels, File file) throws IOException {
+		this(context, numberOfChannels, file, 16, DEFAULT_RING_LENGTH);
+	}
+
+	/**
+	 * Instantiates a recorder that writes a 16-bit wav file with the default ring length.
+	 *
+	 * @param numberOfChannels
+	 *            the number of channels.
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public StreamingRecordToFile(int numberOfChannels, File file) throws IOException {
+		this(getDefaultContext(), numberOfChannels, file);
+	}
+
+	/**
+	 * Instantiates a recorder that writes a wav file with the given bit depth and the default ring length.
+	 *
+	 * @param context
+	 *            the AudioContext.
+	 * @param numberOfChannels
+	 *            the number of channels.
+	 * @param file
+	 *            the file to write to.
+	 * @param bitDepth
+	 *            16, 24 or 32 (floating point).
+	 * @throws IOException
+	 *             if the file cannot be opened or the format is not supported.
+	 */
+	public StreamingRecordToFile(AudioContext context, int numberOfChannels, File file, int bitDepth) throws IOException {
+		this(context, numberOfChannels, file, bitDepth, DEFAULT_RING_LENGTH);
+	}
+
+	/**
+	 * Instantiates a recorder that writes a wav file with the given bit depth and ring length.
+	 *
+	 * @param context
+	 *            the AudioContext.
+	 * @param numberOfChannels
+	 *            the number of channels.
+	 * @param file
+	 *            the file to write to.
+	 * @param bitDepth
+	 *            16, 24 or 32 (floating point).
+	 * @param ringLength
+	 *            the amount of audio, in milliseconds, that can be buffered while the writer thread
+	 *            is blocked on the disk.
+	 * @throws IOException
+	 *             if the file cannot be opened or the format is not supported.
+	 */
+	public StreamingRecordToFile(AudioContext context, int numberOfChannels, File file, int bitDepth, double ringLength) throws IOException {
+		super(context, numberOfChannels, 0);
+		try {
+			writer = new WavFileStreamWriter(file, new SampleAudioFormat(context.getSampleRate(), bitDepth, numberOfChannels, true, false));
+		} catch (FileFormatException e) {
+			throw new IOException("StreamingRecordToFile: " + e.getMessage(), e);
+		}
+		int numBlocks = Math.max(2, (int) Math.ceil(context.msToSamples(ringLength) / bufferSize));
+		ring = new float[numBlocks][numberOfChannels * bufferSize];
+		writeCount = new AtomicLong();
+		readCount = new AtomicLong();
+		droppedFrames = new AtomicLong();
+		setHeaderUpdateInterval(DEFAULT_HEADER_UPDATE_INTERVAL);
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				runWriter();
+			}
+		}, "StreamingRecordToFile writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Instantiates a recorder that writes a wav file with the given bit depth and ring length.
+	 *
+	 * @param numberOfChannels
+	 *            the number of channels.
+	 * @param file
+	 *            the file to write to.
+	 * @param bitDepth
+	 *            16, 24 or 32 (floating point).
+	 * @param ringLength
+	 *            the amount of audio, in milliseconds, that can be buffered.
+	 * @throws IOException
+	 *             if the file cannot be opened or the format is not supported.
+	 */
+	public StreamingRecordToFile(int numberOfChannels, File file, int bitDepth, double ringLength) throws IOException {
+		this(getDefaultContext(), numberOfChannels, file, bitDepth, ringLength);
+	}
+
+	@Override
+	public void calculateBuffer() {
+		if (finished) return;
+		long w = writeCount.get();
+		if (w - readCount.get() >= ring.length) {
+			droppedFrames.addAndGet(bufferSize);
+			return;
+		}
+		float[] block = ring[(int) (w % ring.length)];
+		for (int i = 0, count = 0; i < bufferSize; i++) {
+			for (int j = 0; j < ins; j++) {
+				block[count++] = bufIn[j][i];
+			}
+		}
+		writeCount.lazySet(w + 1);
+		LockSupport.unpark(writerThread);
+	}
+
+	/**
+	 * The body of the writer thread. Drains the ring until the recorder is killed, then closes the file.
+	 */
+	private void runWriter() {
+		long framesSinceHeaderUpdate = 0;
+		try {
+			while (true) {
+				long r = readCount.get();
+				if (r == writeCount.get()) {
+					if (finished) break;
+					LockSupport.park(this);
+					continue;
+				}
+				writer.write(ring[(int) (r % ring.length)], bufferSize);
+				readCount.lazySet(r + 1);
+				framesSinceHeaderUpdate += bufferSize;
+				if (framesSinceHeaderUpdate >= headerUpdateFrames) {
+					writer.updateHeader();
+					framesSinceHeaderUpdate = 0;
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				if (error == null) error = e;
+			}
+		}
+	}
+
+	/**
+	 * Stops recording. The writer thread writes any remaining buffered audio and finalises the file.
+	 */
+	@Override
+	public void kill() {
+		super.kill();
+		finished = true;
+		LockSupport.unpark(writerThread);
+	}
+
+	/**
+	 * Blocks until the writer thread has finished writing and closed the file. Only
+	 * returns once the recorder has been killed. Do not call this from the audio thread.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public void waitUntilFinished() throws InterruptedException {
+		writerThread.join();
+	}
+
+	/**
+	 * Sets how often the writer patches the file header with the current length.
+	 *
+	 * @param interval
+	 *            the interval in milliseconds.
+	 */
+	public void setHeaderUpdateInterval(double interval) {
+		headerUpdateFrames = Math.max(1, (long) context.msToSamples(interval));
+	}
+
+	/**
+	 * Gets how often the writer patches the file header with the current length.
+	 *
+	 * @return the interval in milliseconds.
+	 */
+	public double getHeaderUpdateInterval() {
+		return context.samplesToMs(headerUpdateFrames);
+	}
+
+	/**
+	 * Gets the number of frames that were dropped because the writer thread could not keep up.
+	 *
+	 * @return the number of dropped frames.
+	 */
+	public long getNumDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	/**
+	 * Gets the number of frames that have been handed to the writer thread.
+	 *
+	 * @return the number of frames recorded.
+	 */
+	public long getNumFramesRecorded() {
+		return writeCount.get() * bufferSize;
+	}
+
+	/**
+	 * Gets the error that stopped the writer thread, if any.
+	 *
+	 * @return the error, or null.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Gets the file being written.
+	 *
+	 * @return the file.
+	 */
+	public File getFile() {
+		return writer.getFile();
+	}
+}
@@ -6,6 +6,7 @@ package net.beadsproject.beads.ugens;
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.UGen;
 import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.data.Wavetable;
 import net.beadsproject.beads.data.buffers.SawBuffer;
 import net.beadsproject.beads.data.buffers.SineBuffer;
 import net.beadsproject.beads.data.buffers.SquareBuffer;
@@ -19,7 +20,15 @@ import net.beadsproject.beads.data.buffers.SquareBuffer;
  * WavePlayer wp = new WavePlayer(ac, 440.f, Buffer.SINE);
  * </code>
  * 
+ * WavePlayer can also play a band-limited {@link Wavetable}, which doesn't alias at high frequencies
+ * and is cheaper to play, as the phase is kept as a 32-bit fixed-point fraction of a cycle that wraps
+ * around by itself. The level of the Wavetable is chosen once per buffer from the highest frequency
+ * in the buffer: <code>
+ * WavePlayer wp = new WavePlayer(ac, 440.f, new SawBuffer().getWavetable());
+ * </code>
+ * 
  * @see Buffer
+ * @see Wavetable
  * @see SineBuffer
  * @see SawBuffer
  * @see SquareBuffer
@@ -48,11 +57,26 @@ public class WavePlayer extends UGen {
 
 	private boolean isFreqStatic;
 
+	/** The Wavetable, or null when playing the Buffer directly. */
+	private Wavetable wavetable;
+
+	/** The playback point when playing a Wavetable, as a fraction of a cycle scaled to the range of an int. */
+	private int fixedPhase;
+
+	/** Fixed-point phase increment per Hz. */
+	private final double fixedPerHz;
+
 	private WavePlayer(AudioContext context, Buffer buffer) {
 		super(context, 1);
 		this.buffer = buffer;
 		phase = 0;
 		one_over_sr = 1f / context.getSampleRate();
+		fixedPerHz = 4294967296.0 / context.getSampleRate();
+	}
+
+	private WavePlayer(AudioContext context, Wavetable wavetable) {
+		this(context, wavetable.getBuffer());
+		this.wavetable = wavetable;
 	}
 
 	/**
@@ -112,6 +136,61 @@ public class WavePlayer extends UGen {
 		this(getDefaultContext(), frequency, buffer);
 	}
 
+	/**
+	 * Instantiates a new WavePlayer with given frequency envelope and Wavetable.
+	 * 
+	 * @param context
+	 *            the AudioContext.
+	 * @param frequencyController
+	 *            the frequency envelope.
+	 * @param wavetable
+	 *            the Wavetable.
+	 */
+	public WavePlayer(AudioContext context, UGen frequencyController,
+			Wavetable wavetable) {
+		this(context, wavetable);
+		setFrequency(frequencyController);
+	}
+
+	/**
+	 * Instantiates a new WavePlayer with given frequency envelope and Wavetable.
+	 *
+	 * @param frequencyController
+	 *            the frequency envelope.
+	 * @param wavetable
+	 *            the Wavetable.
+	 */
+	public WavePlayer(UGen frequencyController, Wavetable wavetable) {
+		this(getDefaultContext(), frequencyController, wavetable);
+	}
+
+	/**
+	 * Instantiates a new WavePlayer with given static frequency and Wavetable.
+	 * 
+	 * @param context
+	 *            the AudioContext.
+	 * @param frequency
+	 *            the frequency in Hz.
+	 * @param wavetable
+	 *            the Wavetable.
+	 */
+	public WavePlayer(AudioContext context, float frequency, Wavetable wavetable) {
+		this(context, wavetable);
+		setFrequency(frequency);
+	}
+
+	/**
+	 * Instantiates a new WavePlayer with given static frequency and Wavetable.
+	 *
+	 * @param frequency
+	 *            the frequency in Hz.
+	 * @param wavetable
+	 *            the Wavetable.
+	 */
+	public WavePlayer(float frequency, Wavetable wavetable) {
+		this(getDefaultContext(), frequency, wavetable);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -120,6 +199,7 @@ public class WavePlayer extends UGen {
 	public void start() {
 		super.start();
 		phase = 0;
+		fixedPhase = 0;
 	}
 
 	/*
@@ -131,7 +211,9 @@ public class WavePlayer extends UGen {
 	public void calculateBuffer() {
 		frequencyEnvelope.update();
 		float[] bo = bufOut[0];
-		if (phaseEnvelope == null) {
+		if (wavetable != null && phaseEnvelope == null) {
+			calculateWavetableBuffer(bo);
+		} else if (phaseEnvelope == null) {
 			for (int i = 0; i < bufferSize; i++) {
 				frequency = frequencyEnvelope.getValue(0, i);
 				phase = (((phase + frequency * one_over_sr) % 1.0f) + 1.0f) % 1.0f;
@@ -145,6 +227,43 @@ public class WavePlayer extends UGen {
 		}
 	}
 
+	/**
+	 * Plays the Wavetable with a fixed-point phase. The top bits of the phase index the table and the
+	 * rest give the fraction between points.
+	 */
+	private void calculateWavetableBuffer(float[] bo) {
+		int shift = 32 - wavetable.getSizeBits();
+		int fractionMask = (1 << shift) - 1;
+		float fractionScale = 1f / (1 << shift);
+		int p = fixedPhase;
+		if (isFreqStatic) {
+			frequency = frequencyEnvelope.getValue(0, 0);
+			float[] table = wavetable.getTable(wavetable.getLevel(frequency * one_over_sr));
+			int increment = (int) (long) (frequency * fixedPerHz);
+			for (int i = 0; i < bufferSize; i++) {
+				p += increment;
+				int index = p >>> shift;
+				float y0 = table[index];
+				bo[i] = y0 + (p & fractionMask) * fractionScale * (table[index + 1] - y0);
+			}
+		} else {
+			float maxFrequency = 0;
+			for (int i = 0; i < bufferSize; i++) {
+				maxFrequency = Math.max(maxFrequency, Math.abs(frequencyEnvelope.getValue(0, i)));
+			}
+			float[] table = wavetable.getTable(wavetable.getLevel(maxFrequency * one_over_sr));
+			for (int i = 0; i < bufferSize; i++) {
+				frequency = frequencyEnvelope.getValue(0, i);
+				p += (int) (long) (frequency * fixedPerHz);
+				int index = p >>> shift;
+				float y0 = table[index];
+				bo[i] = y0 + (p & fractionMask) * fractionScale * (table[index + 1] - y0);
+			}
+		}
+		fixedPhase = p;
+		phase = (p & 0xffffffffL) / 4294967296.0;
+	}
+
 	/**
 	 * Gets the frequency envelope.
 	 * 
@@ -297,18 +416,27 @@ public class WavePlayer extends UGen {
 	 */
 	public WavePlayer setPhase(float phase) {
 		this.phase = phase;
+		fixedPhase = toFixedPhase(phase);
 		this.phaseEnvelope = null;
 		return this;
 	}
 
 	/**
-	 * Sets the Buffer.
+	 * Converts a phase, as a fraction of a cycle, to fixed point.
+	 */
+	private static int toFixedPhase(double phase) {
+		return (int) (long) ((phase - Math.floor(phase)) * 4294967296.0);
+	}
+
+	/**
+	 * Sets the Buffer. The WavePlayer stops playing any Wavetable.
 	 * 
 	 * @param b
 	 *            The new Buffer.
 	 */
 	public WavePlayer setBuffer(Buffer b) {
 		this.buffer = b;
+		this.wavetable = null;
 		return this;
 	}
 
@@ -321,4 +449,34 @@ public class WavePlayer extends UGen {
 		return this.buffer;
 	}
 
+	/**
+	 * Sets the Wavetable. The WavePlayer plays the Wavetable until a Buffer is set, or
+	 * the Wavetable is set to null. The Wavetable isn't used while there is a phase controller.
+	 * 
+	 * @param wavetable
+	 *            The new Wavetable.
+	 * @return This WavePlayer instance.
+	 */
+	public WavePlayer setWavetable(Wavetable wavetable) {
+		if (wavetable == null) {
+			this.wavetable = null;
+			return this;
+		}
+		if (this.wavetable == null) {
+			fixedPhase = toFixedPhase(phase);
+		}
+		this.wavetable = wavetable;
+		this.buffer = wavetable.getBuffer();
+		return this;
+	}
+
+	/**
+	 * Gets the Wavetable.
+	 * 
+	 * @return The Wavetable, or null if the WavePlayer plays a Buffer.
+	 */
+	public Wavetable getWavetable() {
+		return wavetable;
+	}
+
 }